@@ -34,7 +34,7 @@ public final class CameraManager implements IImageProvider, Camera.PreviewCallba
 
     // When isRunning is false it signals that the camera is not available
     // and any decoding of QR in progress should be stopped.
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
 
     private final BlockingQueue<YuvImage> currentFrame = Queues.newSynchronousQueue();
 
@@ -65,7 +65,11 @@ public final class CameraManager implements IImageProvider, Camera.PreviewCallba
 
         // Camera.PreviewCallback requests get handled on the same thread that opened the camera.
         // It so happens that the camera was opened on a separate thread from the main UI thread.
-        if (currentFrame.offer(new YuvImage(data, displayWidth, displayHeight))) {
+        // Preview frames come in the camera's default format, NV21, as the preview format is
+        // never changed.
+        YuvImage frame = new YuvImage(data, displayWidth, displayHeight,
+                                      YuvImage.ChromaLayout.NV21);
+        if (currentFrame.offer(frame)) {
             Log.d(Constants.APP_TAG, "CameraManager set currentFrame.");
         } else {
             Log.e(Constants.APP_TAG, "CameraManager tried to set currentFrame before successful read.");
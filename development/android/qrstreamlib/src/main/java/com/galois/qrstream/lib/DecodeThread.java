@@ -21,12 +21,16 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.preference.PreferenceManager;
 import android.provider.MediaStore.Images;
 import android.util.Log;
 
 import com.galois.qrstream.qrpipe.IProgress;
+import com.galois.qrstream.qrpipe.PayloadCodecs;
 import com.galois.qrstream.qrpipe.Receive;
 import com.galois.qrstream.qrpipe.ReceiveException;
+import com.galois.qrstream.qrpipe.Record;
+import com.galois.qrstream.qrpipe.SamplingPolicy;
 
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONException;
@@ -51,11 +55,20 @@ public class DecodeThread extends Thread {
                         Handler uiHandle) {
         this.context = ctx;
         this.cameraManager = cameraManager;
+        // Capture frames in step with the transmitter unless the user turned
+        // it off; transmitters that send their frame time in the manifest
+        // let the receiver skip frames caught between two QR codes.
+        boolean phaseLocked = PreferenceManager.getDefaultSharedPreferences(ctx)
+                .getBoolean("phase_locked_sampling", true);
+        // Decode frames on every core, capturing and saving chunks alongside.
         this.receiver = new Receive(
                 cameraManager.getDisplayHeight(),
                 cameraManager.getDisplayWidth(),
                 Constants.MAX_CHUNKS,
-                progress);
+                progress,
+                null,
+                phaseLocked ? SamplingPolicy.PHASE_LOCKED : SamplingPolicy.ALL_FRAMES,
+                Runtime.getRuntime().availableProcessors());
         this.uiHandle = uiHandle;
     }
 
@@ -63,7 +76,12 @@ public class DecodeThread extends Thread {
     public void run(){
         Job message;
         try {
-            message = (Job)receiver.decodeQRSerializable(cameraManager);
+            Record record = receiver.decodeQRCodes(cameraManager, PayloadCodecs.RECORD);
+            if (record == null) {
+                Log.w(Constants.APP_TAG, "DecodeThread stopped before the message was complete.");
+                return;
+            }
+            message = new Job(record.getTitle(), record.getData(), record.getMimeType());
             Log.w(Constants.APP_TAG, "DecodeThread received " + message.getData().length + " bytes, " +
                                      "mimetype: " + message.getMimeType());
 
@@ -43,13 +43,21 @@ import android.widget.TableRow;
 
 import java.util.Iterator;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 import com.google.common.base.Stopwatch;
 
+import com.galois.qrstream.qrpipe.CompressionCodecs;
+import com.galois.qrstream.qrpipe.EncodeHandle;
+import com.galois.qrstream.qrpipe.FrameCache;
+import com.galois.qrstream.qrpipe.HeaderFormat;
+import com.galois.qrstream.qrpipe.MaskSelection;
+import com.galois.qrstream.qrpipe.PayloadCodecs;
+import com.galois.qrstream.qrpipe.Record;
 import com.galois.qrstream.qrpipe.Transmit;
-import com.galois.qrstream.qrpipe.TransmitException;
 import com.galois.qrstream.image.BitmapImage;
 
 /**
@@ -61,6 +69,9 @@ public class TransmitFragment extends Fragment {
     // Trying to make it easier to play around with some of the layouts.
     private final boolean IS_LABEL_AFTER = true;
 
+    // Memory budget for encoded QR codes; enough for thousands of frames
+    private static final long FRAME_CACHE_BYTES = 4 * 1024 * 1024;
+
     // User setting. When true, display QR chunkIds on screen,
     // otherwise hide them to use more screen real estate for QR codes.
     private boolean hasQRCodeLabels = true;
@@ -74,6 +85,23 @@ public class TransmitFragment extends Fragment {
     private Collection<BitmapImage> qrCodes;
     private Iterator<BitmapImage> qrCodeIter;
     private BitmapImage currentQR;
+    private boolean totalQRCodesLogged;
+
+    // Title and type of the job, which later passes send in a manifest
+    private String jobTitle;
+    private String jobMimeType;
+
+    // Pixel buffer reused when converting QR codes to Bitmaps
+    private int[] pixels;
+
+    // Encoded QR codes kept between passes over the job
+    private final FrameCache frameCache = new FrameCache(FRAME_CACHE_BYTES);
+
+    // Encodes the QR codes of a job off the UI thread. The first pass over
+    // the job shows each QR code as soon as it is encoded, later passes
+    // iterate over 'qrCodes'.
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor();
+    private EncodeHandle encoding;
 
     // Manage shared settings for application
     private SharedPreferences settings;
@@ -89,18 +117,27 @@ public class TransmitFragment extends Fragment {
                     // Only the frame rate changed, no need to restart transmission
                     transmitInterval = Integer.parseInt(pref.getString(key, ""));
                     Log.i(Constants.APP_TAG, "new frame time =" + transmitInterval);
+                    // Tell receivers of the new frame time from the next pass on
+                    if (qrCodes != null && encoding != null) {
+                        sendManifest(encoding);
+                    }
                 } else if (key.equalsIgnoreCase("frame_population")) {
                     // Save display count so that we can populate the Tx with the
                     // right number of QR codes. No need to restart transmission
                     // since this will be handled onCreateView
                     numQRCodesDisplayed = Integer.parseInt(pref.getString(key, ""));
                     Log.i(Constants.APP_TAG, "new # of QR codes to display =" + numQRCodesDisplayed);
-                } else {
+                } else if (key.equalsIgnoreCase("qr_density")
+                        || key.equalsIgnoreCase("error_correction")) {
                     Log.i(Constants.APP_TAG, "Setting with key changed: " + key
                             + " to value: " + pref.getString(key, "no default"));
-                    // When remaining settings (qr_density and error_correction)
-                    // get updated, the transmission will need to be restarted.
+                    // The QR codes depend on these settings, so the
+                    // transmission needs to be restarted.
                     sendJob();
+                } else {
+                    // Receive-only settings, like phase_locked_sampling, do
+                    // not affect transmission.
+                    Log.i(Constants.APP_TAG, "Ignoring change of setting: " + key);
                 }
             }
         };
@@ -209,7 +246,11 @@ public class TransmitFragment extends Fragment {
                     // final image. Otherwise, the taller dimension would just be filled in
                     // with white pixels.
                     int smallerDimension = Math.min(imageWidth, imageHeight);
-                    transmitter = new Transmit(smallerDimension, smallerDimension);
+                    // Jobs are mostly text, so compress them to send fewer frames,
+                    // and use the compact header to leave more room for data.
+                    transmitter = new Transmit(smallerDimension, smallerDimension,
+                            MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE,
+                            HeaderFormat.V2);
 
                     sendJob();
                     Log.d(Constants.TIMING_TAG, "QR dimension: " + smallerDimension);
@@ -323,6 +364,15 @@ public class TransmitFragment extends Fragment {
         pauseTransmission();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (encoding != null) {
+            encoding.cancel();
+        }
+        encoder.shutdown();
+    }
+
     private void transmitData(Job job) {
         byte[] bytes = job.getData();
         String title = job.getTitle();
@@ -336,28 +386,36 @@ public class TransmitFragment extends Fragment {
         Log.i(Constants.APP_TAG, "transmitData density=" + density +
                                  " error correction Level=" + ecLevel);
 
-        try {
-            qrCodes = transmitter.encodeQRCodes(job, density, ecLevel);
-            qrCodeIter = qrCodes.iterator();
-            currentQR = null;
-            Log.i(Constants.APP_TAG, "transmitData(), Successful creation of QR codes");
-
-            // Force different layout whenever there are fewer QR codes than expected
-            if(qrCodes.size() < numQRCodesDisplayed) {
-                setupQRCodeLayout(send_window);
-            }
-
-            // Log some performance characteristics at start of job
-            logNewJob(title, bytes.length);
-            logUserSettings();
-
-        } catch (TransmitException e) {
-            Log.e(Constants.APP_TAG, e.getMessage());
+        // Stop encoding the previous settings' QR codes
+        if (encoding != null) {
+            encoding.cancel();
         }
+        Record record = new Record(title, job.getMimeType(), bytes);
+        jobTitle = title;
+        jobMimeType = job.getMimeType();
+        // Encode through the cache from the first pass on, so that every pass
+        // of a job sent again carries the session id of its earlier passes.
+        // Large jobs are sent uncompressed to show their first frame at once.
+        encoding = transmitter.encodeAsync(record, PayloadCodecs.RECORD, density, ecLevel,
+                encoder, frameCache);
+        qrCodes = null;
+        qrCodeIter = null;
+        currentQR = null;
+        totalQRCodesLogged = false;
+        Log.i(Constants.APP_TAG, "transmitData(), Started encoding of QR codes");
+
+        // Log some performance characteristics at start of job
+        logNewJob(title, bytes.length);
+        logUserSettings();
     }
 
     private void displayNextFrame() {
-        currentQR = getNextFrame();
+        BitmapImage next = getNextFrame();
+        // Keep the previous frame on screen while the next is still encoding
+        if (next == null) {
+            return;
+        }
+        currentQR = next;
         insertFrame(currentQR);
     }
 
@@ -375,9 +433,36 @@ public class TransmitFragment extends Fragment {
     // Returns the next BitmapImage in the sequence
     // when it is available, otherwise, return null.
     private BitmapImage getNextFrame() {
-        if (qrCodes == null) {
+        if (encoding == null) {
             return null;
         }
+        if (qrCodes == null && encoding.getCollection() != null) {
+            // Later passes repeat the QR codes of the handle, and add a
+            // manifest once it is ready.
+            qrCodes = encoding.getCollection();
+            sendManifest(encoding);
+            Log.i(Constants.APP_TAG, "getNextFrame(), Successful creation of QR codes");
+            logTotalQRCodes(encoding.getTotalChunks());
+
+            // Force different layout whenever there are fewer QR codes than expected
+            if(qrCodes.size() < numQRCodesDisplayed) {
+                setupQRCodeLayout(send_window);
+            }
+        }
+        // The first pass shows each QR code as soon as it is encoded
+        if (qrCodeIter == null) {
+            BitmapImage next;
+            try {
+                next = encoding.poll();
+            } catch (IllegalStateException e) {
+                Log.e(Constants.APP_TAG, "Failed to encode QR codes: " + e.getCause());
+                encoding = null;
+                return null;
+            }
+            if (next != null || !encoding.isDone()) {
+                return next;
+            }
+        }
         // Reset so we can transmit again
         if (qrCodeIter == null || !qrCodeIter.hasNext()) {
             resetQRTransmission();
@@ -385,6 +470,50 @@ public class TransmitFragment extends Fragment {
         return qrCodeIter.next();
     }
 
+    /**
+     * Sends the QR codes of 'job' along with a manifest that tells receivers
+     * how long each QR code is shown for, so that they can capture frames in
+     * step with the display, from the next pass on. The first pass over a
+     * job is encoded as it is shown and so is sent without one.
+     *
+     * The manifest's digest takes a pass over the whole job, so the view is
+     * built on the encoder thread, after the first pass is encoded, and
+     * swapped in on the UI thread unless the job has changed by then.
+     */
+    private void sendManifest(final EncodeHandle job) {
+        if (encoder.isShutdown()) {
+            return;
+        }
+        final String title = jobTitle;
+        final String mimeType = jobMimeType;
+        final int frameTime = transmitInterval;
+        encoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Transmit.ImgCollection view;
+                try {
+                    view = job.getCollection().withManifest(title, mimeType, frameTime);
+                } catch (IllegalArgumentException e) {
+                    Log.w(Constants.APP_TAG, "Sending QR codes without a manifest: "
+                            + e.getMessage());
+                    return;
+                } catch (IllegalStateException e) {
+                    Log.w(Constants.APP_TAG, "Sending QR codes without a manifest: "
+                            + e.getMessage());
+                    return;
+                }
+                handleFrameUpdate.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (encoding == job) {
+                            qrCodes = view;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Re-draw a frame with QR codes whenever resume from pause
      */
@@ -403,7 +532,20 @@ public class TransmitFragment extends Fragment {
         }
     }
 
+    private void logTotalQRCodes(int totalChunks) {
+        if (!totalQRCodesLogged) {
+            Log.d(Constants.TIMING_TAG, "Total QR codes: " + totalChunks);
+            totalQRCodesLogged = true;
+        }
+    }
+
+    // Logs the total QR codes from the label of 'qrCode', which is null
+    // until the first QR code has been encoded.
     private void logTotalQRCodes(BitmapImage qrCode) {
+        if (qrCode == null || totalQRCodesLogged) {
+            return;
+        }
+        totalQRCodesLogged = true;
         String chunkStr = qrCode.toString();
         String description = "Total QR codes: ";
 
@@ -567,13 +709,11 @@ public class TransmitFragment extends Fragment {
     private Bitmap toBitmap(final BitmapImage matrix) {
         int height = matrix.getHeight();
         int width = matrix.getWidth();
-        int[] pixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            int offset = y * width;
-            for (int x = 0; x < width; x++) {
-                pixels[offset + x] = matrix.get(x,y) ? Color.BLACK : Color.WHITE;
-            }
+        // Reuse the pixel buffer between frames of the same size
+        if (pixels == null || pixels.length != width * height) {
+            pixels = new int[width * height];
         }
+        matrix.getPixels(pixels, 0, width, Color.BLACK, Color.WHITE);
         Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
         bmp.setPixels(pixels, 0, width, 0, 0, width, height);
         return bmp;
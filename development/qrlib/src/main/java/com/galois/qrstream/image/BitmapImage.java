@@ -16,6 +16,11 @@
  */
 package com.galois.qrstream.image;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.google.zxing.common.BitArray;
 import com.google.zxing.common.BitMatrix;
 
 
@@ -28,15 +33,34 @@ import com.google.zxing.common.BitMatrix;
  * the QR codes, the id of the QR code contained within the image
  * and the totalChunks being transmitted so that the
  * application doesn't have to decode the QR code to access this information.
+ *
+ * An image either holds every pixel, or it holds one bit per QR code module
+ * along with the number of pixels per module and the position of the code
+ * within the image. The second form takes orders of magnitude less memory;
+ * its pixels are computed when they are requested.
  */
 public class BitmapImage {
 
+  /* Default ARGB colours of set and unset pixels */
+  public static final int BLACK = 0xff000000;
+  public static final int WHITE = 0xffffffff;
+
   private final BitMatrix m;
   private final int w;
   private final int h;
   private final int id;
   private final int total;
 
+  /* True when 'm' holds one bit per QR code module rather than per pixel */
+  private final boolean moduleImage;
+
+  /* Pixels per module, 1 when 'm' holds every pixel */
+  private final int scale;
+
+  /* Pixel coordinates of the top-left module, 0 when 'm' holds every pixel */
+  private final int left;
+  private final int top;
+
   /**
    * Convert BitMatrix to BitmapImage type
    * @param mat the BitMatrix to convert
@@ -46,17 +70,69 @@ public class BitmapImage {
                                                BitMatrix mat) {
     int w = mat.getWidth();
     int h = mat.getHeight();
-    return new BitmapImage(chunkId,totalChunks,w,h,mat);
+    return new BitmapImage(chunkId,totalChunks,w,h,mat,false,1,0,0);
+  }
+
+  /**
+   * Creates an image from the modules of a QR code, one bit per module,
+   * surrounded by a quiet zone of {@code quietZone} modules. Each module
+   * covers {@code scale} by {@code scale} pixels of the image.
+   *
+   * @param modules the QR code, one bit per module
+   * @param scale the width and height of each module in pixels
+   * @param quietZone the width in modules of the white border around the code
+   */
+  public static BitmapImage createModuleImage(int chunkId,
+                                              int totalChunks,
+                                              BitMatrix modules,
+                                              int scale,
+                                              int quietZone) {
+    if (scale < 1 || quietZone < 0) {
+      throw new IllegalArgumentException("Invalid scale or quiet zone.");
+    }
+    int w = (modules.getWidth() + 2 * quietZone) * scale;
+    int h = (modules.getHeight() + 2 * quietZone) * scale;
+    return new BitmapImage(chunkId,totalChunks,w,h,modules,true,
+                           scale,quietZone * scale,quietZone * scale);
+  }
+
+  /**
+   * Creates a {@code width} by {@code height} image from the modules of a QR
+   * code, one bit per module, where the QR code is centered in the image.
+   * Each module covers {@code scale} by {@code scale} pixels of the image.
+   *
+   * @param modules the QR code, one bit per module
+   * @param scale the width and height of each module in pixels
+   * @throws IllegalArgumentException if the scaled QR code does not fit
+   */
+  public static BitmapImage createCenteredModuleImage(int chunkId,
+                                                      int totalChunks,
+                                                      BitMatrix modules,
+                                                      int scale,
+                                                      int width,
+                                                      int height) {
+    int codeWidth = modules.getWidth() * scale;
+    int codeHeight = modules.getHeight() * scale;
+    if (scale < 1 || codeWidth > width || codeHeight > height) {
+      throw new IllegalArgumentException("QR code does not fit in image at scale " + scale);
+    }
+    return new BitmapImage(chunkId,totalChunks,width,height,modules,true,
+                           scale,(width - codeWidth) / 2,(height - codeHeight) / 2);
   }
 
   private BitmapImage(int chunkId, int totalChunks,
                       int width, int height,
-                      BitMatrix bitMatrix) {
+                      BitMatrix bitMatrix, boolean moduleImage,
+                      int scale, int left, int top) {
     id = chunkId;
     total = totalChunks;
     w = width;
     h = height;
     m = bitMatrix;
+    this.moduleImage = moduleImage;
+    this.scale = scale;
+    this.left = left;
+    this.top = top;
   }
 
   public int getWidth() {
@@ -67,6 +143,14 @@ public class BitmapImage {
     return h;
   }
 
+  public int getChunkId() {
+    return id;
+  }
+
+  public int getTotalChunks() {
+    return total;
+  }
+
   @Override
   public String toString() {
     String label = "chunk " + id;
@@ -86,14 +170,309 @@ public class BitmapImage {
     if (x < 0 || y < 0 || x > w || y > h) {
       throw new IllegalArgumentException("Trying to get bit that is out of bounds.");
     }
-    return m.get(x, y);
+    return getPixel(x, y);
+  }
+
+  /**
+   * Copies row {@code y} of the image into {@code row}, where set bits are
+   * black. The array is allocated when {@code row} is null or too small.
+   *
+   * @param y The row to retrieve.
+   * @param row An optional caller-allocated array, which is cleared first.
+   * @return The array holding the row's pixels.
+   */
+  public BitArray getRow(int y, BitArray row) {
+    if (y < 0 || y >= h) {
+      throw new IllegalArgumentException("Trying to get row that is out of bounds.");
+    }
+    if (!moduleImage) {
+      return m.getRow(y, row);
+    }
+    if (row == null || row.getSize() < w) {
+      row = new BitArray(w);
+    } else {
+      row.clear();
+    }
+    int my = moduleRow(y);
+    if (my < 0) {
+      return row;
+    }
+    int moduleCount = m.getWidth();
+    for (int mx = 0; mx < moduleCount; mx++) {
+      if (m.get(mx, my)) {
+        int x = left + mx * scale;
+        row.setRange(x, x + scale);
+      }
+    }
+    return row;
+  }
+
+  /**
+   * Fills {@code pixels} with the ARGB colours of the whole image, row by
+   * row. Pixel (x,y) is written to {@code pixels[offset + y * stride + x]},
+   * matching the layout used by Android's {@code Bitmap.setPixels}.
+   *
+   * @param pixels The caller-allocated array to fill.
+   * @param offset The index of the first pixel of the first row.
+   * @param stride The distance between the starts of rows; at least the width.
+   * @param onColor The colour of set (black) pixels.
+   * @param offColor The colour of unset (white) pixels.
+   */
+  public void getPixels(int[] pixels, int offset, int stride, int onColor, int offColor) {
+    if (stride < w || offset < 0 || (h > 0 && offset + (h - 1) * stride + w > pixels.length)) {
+      throw new IndexOutOfBoundsException("Pixel array too small for image.");
+    }
+    int previousModuleRow = -1;
+    for (int y = 0; y < h; y++) {
+      int rowOffset = offset + y * stride;
+      if (moduleImage) {
+        // Every pixel row of a module row is the same, so copy it.
+        int moduleRow = moduleRow(y);
+        if (moduleRow >= 0 && moduleRow == previousModuleRow) {
+          System.arraycopy(pixels, rowOffset - stride, pixels, rowOffset, w);
+          continue;
+        }
+        previousModuleRow = moduleRow;
+      }
+      fillRowPixels(y, pixels, rowOffset, onColor, offColor);
+    }
+  }
+
+  /**
+   * Fills {@code pixels}, starting at {@code offset}, with the ARGB colours
+   * of row {@code y} of the image.
+   *
+   * @param y The row to retrieve.
+   * @param pixels The caller-allocated array to fill.
+   * @param offset The index of the row's first pixel.
+   * @param onColor The colour of set (black) pixels.
+   * @param offColor The colour of unset (white) pixels.
+   */
+  public void getRowPixels(int y, int[] pixels, int offset, int onColor, int offColor) {
+    if (y < 0 || y >= h) {
+      throw new IllegalArgumentException("Trying to get row that is out of bounds.");
+    }
+    if (offset < 0 || offset + w > pixels.length) {
+      throw new IndexOutOfBoundsException("Pixel array too small for row.");
+    }
+    fillRowPixels(y, pixels, offset, onColor, offColor);
+  }
+
+  /**
+   * Copies the ARGB colours of the whole image into {@code dest}, row by
+   * row without padding, starting at its current position. The position is
+   * advanced past the copied pixels.
+   *
+   * @param dest The buffer to fill, with at least width * height remaining.
+   * @param onColor The colour of set (black) pixels.
+   * @param offColor The colour of unset (white) pixels.
+   */
+  public void copyPixelsTo(IntBuffer dest, int onColor, int offColor) {
+    int count = w * h;
+    if (dest.remaining() < count) {
+      throw new IndexOutOfBoundsException("Buffer too small for image.");
+    }
+    if (dest.hasArray()) {
+      getPixels(dest.array(), dest.arrayOffset() + dest.position(), w, onColor, offColor);
+      dest.position(dest.position() + count);
+      return;
+    }
+    for (int y = 0; y < h; y++) {
+      for (int x = 0; x < w; x++) {
+        dest.put(getPixel(x, y) ? onColor : offColor);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of bytes in a row of packed pixels, one bit each.
+   */
+  public int getPackedRowSize() {
+    return (w + 7) / 8;
+  }
+
+  /**
+   * Packs row {@code y} of the image into {@link #getPackedRowSize()} bytes,
+   * one bit per pixel with the leftmost pixel in the most significant bit.
+   * Set bits are black and unused bits of the last byte are zero.
+   *
+   * @param y The row to retrieve.
+   * @param dest The caller-allocated array to fill.
+   * @param offset The index of the row's first byte.
+   */
+  public void getPackedRow(int y, byte[] dest, int offset) {
+    if (y < 0 || y >= h) {
+      throw new IllegalArgumentException("Trying to get row that is out of bounds.");
+    }
+    int rowSize = getPackedRowSize();
+    if (offset < 0 || offset + rowSize > dest.length) {
+      throw new IndexOutOfBoundsException("Byte array too small for row.");
+    }
+    Arrays.fill(dest, offset, offset + rowSize, (byte) 0);
+    if (!moduleImage) {
+      for (int x = 0; x < w; x++) {
+        if (m.get(x, y)) {
+          dest[offset + (x >>> 3)] |= 0x80 >>> (x & 7);
+        }
+      }
+      return;
+    }
+    int my = moduleRow(y);
+    if (my < 0) {
+      return;
+    }
+    int moduleCount = m.getWidth();
+    for (int mx = 0; mx < moduleCount; mx++) {
+      if (m.get(mx, my)) {
+        int end = left + (mx + 1) * scale;
+        for (int x = left + mx * scale; x < end; x++) {
+          dest[offset + (x >>> 3)] |= 0x80 >>> (x & 7);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the whole image into {@code dest} as packed rows, as described by
+   * {@link #getPackedRow}, starting at its current position. The position is
+   * advanced past the copied rows.
+   *
+   * @param dest The buffer to fill, with at least height * getPackedRowSize() remaining.
+   */
+  public void copyPackedRowsTo(ByteBuffer dest) {
+    int rowSize = getPackedRowSize();
+    if (dest.remaining() < rowSize * h) {
+      throw new IndexOutOfBoundsException("Buffer too small for image.");
+    }
+    for (int y = 0; y < h; y++) {
+      if (dest.hasArray()) {
+        getPackedRow(y, dest.array(), dest.arrayOffset() + dest.position());
+        dest.position(dest.position() + rowSize);
+        continue;
+      }
+      for (int i = 0; i < rowSize; i++) {
+        int b = 0;
+        for (int bit = 0; bit < 8; bit++) {
+          int x = i * 8 + bit;
+          if (x < w && getPixel(x, y)) {
+            b |= 0x80 >>> bit;
+          }
+        }
+        dest.put((byte) b);
+      }
+    }
+  }
+
+  /**
+   * Writes the colours of row {@code y} into {@code pixels} at {@code offset}.
+   */
+  private void fillRowPixels(int y, int[] pixels, int offset, int onColor, int offColor) {
+    if (!moduleImage) {
+      for (int x = 0; x < w; x++) {
+        pixels[offset + x] = m.get(x, y) ? onColor : offColor;
+      }
+      return;
+    }
+    Arrays.fill(pixels, offset, offset + w, offColor);
+    int my = moduleRow(y);
+    if (my < 0) {
+      return;
+    }
+    int moduleCount = m.getWidth();
+    for (int mx = 0; mx < moduleCount; mx++) {
+      if (m.get(mx, my)) {
+        int start = offset + left + mx * scale;
+        Arrays.fill(pixels, start, start + scale, onColor);
+      }
+    }
+  }
+
+  /**
+   * Returns the module row covering pixel row {@code y}, or -1 when the row
+   * lies outside the QR code.
+   */
+  private int moduleRow(int y) {
+    int my = y - top;
+    if (my < 0 || my / scale >= m.getHeight()) {
+      return -1;
+    }
+    return my / scale;
+  }
+
+  /**
+   * Returns the pixel at (x,y) of an image, without checking bounds.
+   */
+  private boolean getPixel(int x, int y) {
+    if (!moduleImage) {
+      return m.get(x, y);
+    }
+    int mx = x - left;
+    int my = moduleRow(y);
+    return my >= 0 && mx >= 0 && mx / scale < m.getWidth() && m.get(mx / scale, my);
+  }
+
+  /**
+   * Returns true when the image stores one bit per QR code module rather
+   * than one bit per pixel.
+   */
+  public boolean isModuleImage() {
+    return moduleImage;
+  }
+
+  /**
+   * Returns the width and height in pixels of each QR code module, or 1 for
+   * images that hold every pixel.
+   */
+  public int getScale() {
+    return scale;
+  }
+
+  /**
+   * Returns the number of QR code modules across the image, not counting
+   * the quiet zone. For images that hold every pixel, this is the width.
+   */
+  public int getModuleWidth() {
+    return m.getWidth();
+  }
+
+  /**
+   * Returns the number of QR code modules down the image, not counting
+   * the quiet zone. For images that hold every pixel, this is the height.
+   */
+  public int getModuleHeight() {
+    return m.getHeight();
+  }
+
+  /**
+   * Returns true if the given module is set, where true means black. For
+   * images that hold every pixel, this is the same as {@link #get}.
+   *
+   * @param mx The module column
+   * @param my The module row
+   */
+  public boolean getModule(int mx, int my) {
+    if (mx < 0 || my < 0 || mx >= m.getWidth() || my >= m.getHeight()) {
+      throw new IllegalArgumentException("Trying to get module that is out of bounds.");
+    }
+    return m.get(mx, my);
   }
 
   /**
    * BitMatrix accessor, currently only used for testing, which is why it is
-   * protected.
+   * protected. Images of QR code modules are rendered at full size.
    */
   protected BitMatrix getBitMatrix() {
-    return m;
+    if (!moduleImage) {
+      return m;
+    }
+    BitMatrix pixels = new BitMatrix(w, h);
+    for (int my = 0; my < m.getHeight(); my++) {
+      for (int mx = 0; mx < m.getWidth(); mx++) {
+        if (m.get(mx, my)) {
+          pixels.setRegion(left + mx * scale, top + my * scale, scale, scale);
+        }
+      }
+    }
+    return pixels;
   }
 }
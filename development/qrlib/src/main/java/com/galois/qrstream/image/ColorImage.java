@@ -0,0 +1,135 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.image;
+
+/**
+ * Image made of three monochrome images of the same size, one in each of
+ * the red, green and blue channels. A set pixel of a channel's image
+ * turns that channel off, so a pixel set in every channel is black and a
+ * pixel set in none is white, and each channel on its own reads as a
+ * black on white image.
+ */
+public class ColorImage {
+  public static final int RED = 0;
+  public static final int GREEN = 1;
+  public static final int BLUE = 2;
+  public static final int CHANNELS = 3;
+
+  private static final int[] CHANNEL_MASKS = { 0x00ff0000, 0x0000ff00, 0x000000ff };
+
+  private final int id;
+  private final int total;
+  private final int w;
+  private final int h;
+  private final BitmapImage[] channels;
+
+  /**
+   * Creates an image from the images of its red, green and blue channels.
+   *
+   * @throws IllegalArgumentException if the images differ in size.
+   */
+  public ColorImage(int chunkId, int totalChunks, BitmapImage red, BitmapImage green,
+                    BitmapImage blue) {
+    if (red.getWidth() != green.getWidth() || red.getWidth() != blue.getWidth()
+        || red.getHeight() != green.getHeight() || red.getHeight() != blue.getHeight()) {
+      throw new IllegalArgumentException("Channel images must have the same size.");
+    }
+    id = chunkId;
+    total = totalChunks;
+    w = red.getWidth();
+    h = red.getHeight();
+    channels = new BitmapImage[] { red, green, blue };
+  }
+
+  public int getWidth() {
+    return w;
+  }
+
+  public int getHeight() {
+    return h;
+  }
+
+  public int getChunkId() {
+    return id;
+  }
+
+  public int getTotalChunks() {
+    return total;
+  }
+
+  /**
+   * Returns the monochrome image of {@code channel}, one of {@link #RED},
+   * {@link #GREEN} or {@link #BLUE}.
+   */
+  public BitmapImage getChannel(int channel) {
+    return channels[channel];
+  }
+
+  /**
+   * Returns the opaque ARGB colour of pixel (x,y).
+   */
+  public int getPixel(int x, int y) {
+    int color = 0xff000000;
+    for (int c = 0; c < CHANNELS; c++) {
+      if (!channels[c].get(x, y)) {
+        color |= CHANNEL_MASKS[c];
+      }
+    }
+    return color;
+  }
+
+  /**
+   * Fills {@code pixels} with the ARGB colours of the whole image, row by
+   * row, with the same layout as {@link BitmapImage#getPixels}. Allocates
+   * nothing, so it may be called for every frame shown.
+   *
+   * @param pixels The caller-allocated array to fill.
+   * @param offset The index of the first pixel of the first row.
+   * @param stride The distance between the starts of rows; at least the width.
+   */
+  public void getPixels(int[] pixels, int offset, int stride) {
+    if (stride < w || offset < 0 || (h > 0 && offset + (h - 1) * stride + w > pixels.length)) {
+      throw new IndexOutOfBoundsException("Pixel array too small for image.");
+    }
+    // Rows are filled from the bottom up, so that the row above, which is
+    // not filled yet, holds the other channels while they are merged.
+    for (int y = h - 1; y > 0; y--) {
+      int rowOffset = offset + y * stride;
+      int scratch = rowOffset - stride;
+      channels[0].getRowPixels(y, pixels, rowOffset, 0xff000000, 0xff000000 | CHANNEL_MASKS[0]);
+      for (int c = 1; c < CHANNELS; c++) {
+        channels[c].getRowPixels(y, pixels, scratch, 0, CHANNEL_MASKS[c]);
+        for (int x = 0; x < w; x++) {
+          pixels[rowOffset + x] |= pixels[scratch + x];
+        }
+      }
+    }
+    // The top row has no row above it.
+    for (int x = 0; x < w && h > 0; x++) {
+      pixels[offset + x] = getPixel(x, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    String label = "colour chunk " + id;
+    if (total > 1) {
+        return label + " of " + total;
+    }
+    return label;
+  }
+}
@@ -21,17 +21,42 @@ import java.util.Arrays;
 /**
  * Class representing data from the YUV color space. It contains
  * luminance data, Y, followed by the (U=Cb and V=Cr) chroma
- * planes. According to Android, the chroma planes have half the width
- * and height of the luminance plane (4:2:0 subsampling).
+ * samples. According to Android, the chroma has half the width
+ * and height of the luminance plane (4:2:0 subsampling), laid out as
+ * given by {@link ChromaLayout}.
  */
 public class YuvImage {
+
+  /**
+   * How the chroma samples follow the luminance plane.
+   */
+  public enum ChromaLayout {
+    /** A plane of U followed by a plane of V. */
+    I420,
+    /** V and U interleaved, starting with V: the default format of
+     * Android camera previews. */
+    NV21
+  }
+
   private final byte[] data;
   private final int w;
   private final int h;
+  private final ChromaLayout layout;
 
+  /**
+   * Creates an image whose chroma is laid out as {@link ChromaLayout#I420}.
+   */
   public YuvImage(byte[] yuvData, int width, int height) {
+    this(yuvData, width, height, ChromaLayout.I420);
+  }
+
+  public YuvImage(byte[] yuvData, int width, int height, ChromaLayout layout) {
+    if (layout == null) {
+      throw new NullPointerException("Chroma layout must not be null.");
+    }
     w = width;
     h = height;
+    this.layout = layout;
     if (yuvData == null) {
       data = new byte[0];
     } else {
@@ -47,6 +72,10 @@ public class YuvImage {
     return h;
   }
 
+  public ChromaLayout getChromaLayout() {
+    return layout;
+  }
+
   // To get luminance data, we could create ZXing's
   // PlanarYUVLuminanceSource object and call getMatrix().
   public byte[] getYuvData() {
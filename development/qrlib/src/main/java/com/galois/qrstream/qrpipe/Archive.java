@@ -0,0 +1,247 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Packs several named files into one message, so that a folder can be sent
+ * as a single stream. The message starts with an index of the files, so
+ * that a receiver can hand over each file as soon as the chunks that cover
+ * it arrive, see {@link Receive#decodeArchiveQRCodes}.
+ *
+ * An archive is laid out as a version byte, the length of the index (u32),
+ * then the index: the number of entries (u32) and, for each, its name as
+ * modified UTF-8 preceded by its u16 length, its offset (u64) and its
+ * length (u32). The contents of the entries follow the index in order.
+ * Offsets are from the start of the archive.
+ */
+public final class Archive {
+
+  /* Archives start with their version, so that fields can be added */
+  private static final int VERSION = 1;
+
+  /* The version byte and the length of the index */
+  static final int HEADER_BYTES = 5;
+
+  /* Names are written after their u16 length */
+  private static final int MAX_NAME_BYTES = 0xffff;
+
+  private Archive() {
+  }
+
+  /**
+   * A file in an archive.
+   */
+  public static final class Entry {
+    private final String name;
+    private final long offset;
+    private final int length;
+
+    Entry(String name, long offset, int length) {
+      this.name = name;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Returns the name the file was packed with.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the offset of the file's contents in the archive.
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * Returns the length of the file in bytes.
+     */
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) o;
+      return name.equals(other.name) && offset == other.offset && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode() * 31 + (int) offset;
+    }
+
+    @Override
+    public String toString() {
+      return "Entry(" + name + ", " + length + " bytes at " + offset + ")";
+    }
+  }
+
+  /**
+   * Returns an archive of {@code files}, by name, in the map's iteration
+   * order.
+   *
+   * @throws IllegalArgumentException if the archive would not fit in an
+   *   array, or a name is longer than 65535 bytes of modified UTF-8.
+   */
+  public static byte[] pack(Map<String, byte[]> files) {
+    ByteArrayDataOutput index = ByteStreams.newDataOutput();
+    index.writeInt(files.size());
+    long indexLength = 4;
+    for (String name : files.keySet()) {
+      int nameLength = utfLength(name);
+      if (nameLength > MAX_NAME_BYTES) {
+        throw new IllegalArgumentException("Archive entry name of " + nameLength
+            + " bytes is too long.");
+      }
+      indexLength += 2 + nameLength + 12;
+    }
+    long offset = HEADER_BYTES + indexLength;
+    for (Map.Entry<String, byte[]> file : files.entrySet()) {
+      index.writeUTF(file.getKey());
+      index.writeLong(offset);
+      index.writeInt(file.getValue().length);
+      offset += file.getValue().length;
+    }
+    if (offset > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Archive of " + offset + " bytes is too large.");
+    }
+
+    ByteArrayDataOutput out = ByteStreams.newDataOutput((int) offset);
+    out.writeByte(VERSION);
+    out.writeInt((int) indexLength);
+    out.write(index.toByteArray());
+    for (byte[] contents : files.values()) {
+      out.write(contents);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Returns the length of {@code s} in modified UTF-8, as written by
+   * {@code DataOutput.writeUTF} after its u16 length.
+   */
+  private static int utfLength(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007f) {
+        length += 1;
+      } else if (c <= 0x07ff) {
+        length += 2;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Returns the files in {@code archive} by name, in the order they were
+   * packed.
+   *
+   * @throws IllegalArgumentException if {@code archive} is malformed.
+   */
+  public static Map<String, byte[]> unpack(byte[] archive) {
+    if (archive.length < HEADER_BYTES) {
+      throw new IllegalArgumentException("Malformed archive.");
+    }
+    long indexEnd = HEADER_BYTES + (long) indexLength(archive);
+    if (indexEnd > archive.length) {
+      throw new IllegalArgumentException("Malformed archive.");
+    }
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    for (Entry entry : parseIndex(Arrays.copyOf(archive, (int) indexEnd))) {
+      if (entry.getOffset() + entry.getLength() > archive.length) {
+        throw new IllegalArgumentException("Archive ends before " + entry);
+      }
+      int from = (int) entry.getOffset();
+      files.put(entry.getName(), Arrays.copyOfRange(archive, from, from + entry.getLength()));
+    }
+    return files;
+  }
+
+  /**
+   * Returns the length of the index from the first {@link #HEADER_BYTES}
+   * of {@code header}.
+   *
+   * @throws IllegalArgumentException if {@code header} does not start an
+   *   archive of a known version.
+   */
+  static int indexLength(byte[] header) {
+    ByteArrayDataInput in = ByteStreams.newDataInput(header);
+    try {
+      int version = in.readUnsignedByte();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unknown archive version " + version);
+      }
+      int length = in.readInt();
+      if (length < 4 || length > Integer.MAX_VALUE - HEADER_BYTES) {
+        throw new IllegalArgumentException("Archive index of " + length
+            + " bytes is out of range.");
+      }
+      return length;
+    } catch (IllegalStateException e) {
+      throw new IllegalArgumentException("Malformed archive.", e);
+    }
+  }
+
+  /**
+   * Reads the entries from {@code index}, the header and index of an
+   * archive.
+   *
+   * @throws IllegalArgumentException if the index is malformed.
+   */
+  static List<Entry> parseIndex(byte[] index) {
+    ByteArrayDataInput in = ByteStreams.newDataInput(index, HEADER_BYTES);
+    try {
+      int count = in.readInt();
+      if (count < 0) {
+        throw new IllegalArgumentException("Archive of " + count + " entries.");
+      }
+      ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        String name = in.readUTF();
+        long offset = in.readLong();
+        int length = in.readInt();
+        if (offset < index.length || length < 0) {
+          throw new IllegalArgumentException("Archive entry " + name + " is out of range.");
+        }
+        entries.add(new Entry(name, offset, length));
+      }
+      return entries.build();
+    } catch (IllegalStateException e) {
+      throw new IllegalArgumentException("Malformed archive index.", e);
+    }
+  }
+}
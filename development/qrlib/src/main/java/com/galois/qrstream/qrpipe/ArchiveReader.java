@@ -0,0 +1,182 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Hands the entries of an archive being received to a listener as soon as
+ * the chunks that cover each of them have arrived. Each update only looks
+ * at the entries covered by the chunks that arrived since the last one,
+ * so an archive of many small files costs no more per frame than one of
+ * a few large ones.
+ */
+final class ArchiveReader {
+  private final IArchiveListener listener;
+
+  // Entries not yet handed over in archive order, null until the index
+  // arrives.
+  private Set<Archive.Entry> pending;
+
+  // The pending entries by the chunks that cover them, and the number of
+  // those chunks each still waits for. Null until the chunk size is known.
+  private ListMultimap<Integer, Archive.Entry> byChunk;
+  private Map<Archive.Entry, Integer> missing;
+
+  // The chunks that had arrived by the last update.
+  private final BitSet seen = new BitSet();
+
+  ArchiveReader(IArchiveListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Returns true once every entry has been handed over.
+   */
+  boolean isComplete() {
+    return pending != null && pending.isEmpty();
+  }
+
+  /**
+   * Hands over the index and the entries that have arrived in
+   * {@code message} since the last update.
+   *
+   * @throws IllegalStateException if the message is not an archive.
+   */
+  void update(DecodedMessage message) {
+    if (pending == null) {
+      byte[] header = message.readRange(0, Archive.HEADER_BYTES);
+      if (header == null) {
+        return;
+      }
+      byte[] index = message.readRange(0, Archive.HEADER_BYTES + indexLength(header));
+      if (index == null) {
+        return;
+      }
+      setIndex(index);
+    }
+    if (byChunk == null) {
+      if (message.getChunkSize() < 1) {
+        return;
+      }
+      mapChunks(message.getChunkSize());
+    }
+    BitSet arrived = message.getAvailableChunks();
+    arrived.andNot(seen);
+    seen.or(arrived);
+    for (int i = arrived.nextSetBit(0); i >= 0; i = arrived.nextSetBit(i + 1)) {
+      for (Archive.Entry entry : byChunk.removeAll(i + 1)) {
+        int left = missing.get(entry) - 1;
+        missing.put(entry, left);
+        if (left == 0) {
+          handOver(message, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps the pending entries to the chunks of {@code chunkSize} bytes that
+   * cover them. An empty entry waits for the chunk that ends at or holds
+   * its offset, so that it is handed over in turn with its neighbours.
+   */
+  private void mapChunks(int chunkSize) {
+    byChunk = ArrayListMultimap.create();
+    missing = new IdentityHashMap<Archive.Entry, Integer>();
+    for (Archive.Entry entry : pending) {
+      long end = entry.getOffset() + entry.getLength();
+      int first = entry.getLength() == 0
+          ? (int) ((entry.getOffset() - 1) / chunkSize) + 1
+          : (int) (entry.getOffset() / chunkSize) + 1;
+      int last = (int) ((end - 1) / chunkSize) + 1;
+      for (int chunkId = first; chunkId <= last; chunkId++) {
+        byChunk.put(chunkId, entry);
+      }
+      missing.put(entry, last - first + 1);
+    }
+  }
+
+  /**
+   * Hands over {@code entry}, whose chunks have all arrived. One that
+   * cannot be read from them after all is left for {@link #finish}.
+   */
+  private void handOver(DecodedMessage message, Archive.Entry entry) {
+    byte[] contents = entry.getLength() == 0
+        ? new byte[0] : message.readRange(entry.getOffset(), entry.getLength());
+    if (contents != null) {
+      pending.remove(entry);
+      listener.entryReceived(entry, contents);
+    }
+  }
+
+  /**
+   * Hands over the entries not yet handed over from {@code archive}, the
+   * whole message. Compressed and fountain coded archives can only be read
+   * this way.
+   *
+   * @throws IllegalStateException if the message is not an archive.
+   */
+  void finish(byte[] archive) {
+    if (pending == null) {
+      if (archive.length < Archive.HEADER_BYTES) {
+        throw new IllegalStateException("Message is too short to be an archive.");
+      }
+      long indexEnd = Archive.HEADER_BYTES + (long) indexLength(archive);
+      if (indexEnd > archive.length) {
+        throw new IllegalStateException("Archive ends before its index.");
+      }
+      setIndex(Arrays.copyOf(archive, (int) indexEnd));
+    }
+    for (Archive.Entry entry : pending) {
+      if (entry.getOffset() + entry.getLength() > archive.length) {
+        throw new IllegalStateException("Archive ends before " + entry);
+      }
+      int from = (int) entry.getOffset();
+      listener.entryReceived(entry,
+          Arrays.copyOfRange(archive, from, from + entry.getLength()));
+    }
+    pending.clear();
+  }
+
+  private static int indexLength(byte[] header) {
+    try {
+      return Archive.indexLength(header);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("Message is not an archive.", e);
+    }
+  }
+
+  private void setIndex(byte[] index) {
+    List<Archive.Entry> entries;
+    try {
+      entries = Archive.parseIndex(index);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("Message is not an archive.", e);
+    }
+    pending = Sets.newLinkedHashSet(entries);
+    listener.indexReceived(entries);
+  }
+}
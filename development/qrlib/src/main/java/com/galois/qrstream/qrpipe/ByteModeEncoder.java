@@ -0,0 +1,905 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Mode;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Reusable QR code encoder bound to a single QR version, error correction
+ * level and output image dimension. It encodes raw bytes in QR 'Byte' mode
+ * directly into a matrix that it reuses between calls.
+ *
+ * Compared to ZXing's {@code QRCodeWriter}, everything that only depends on
+ * the version is computed once when the encoder is constructed: the function
+ * patterns, the order in which data modules are placed, the Reed-Solomon
+ * generator polynomial and all of the working buffers. Encoding a chunk
+ * therefore allocates nothing and skips the {@code String} conversion that
+ * {@code Transmit.bytesToQRCode} needs.
+ *
+ * For a given input, the resulting QR code is identical to the one ZXing
+ * produces for the same version, error correction level and a margin of one
+ * module, including ZXing's choice of mask pattern. A cheaper
+ * {@link MaskSelection} trades that choice for encoding speed.
+ *
+ * Instances are not thread-safe; use one encoder per thread.
+ */
+public final class ByteModeEncoder {
+
+  /* Width in modules of the white border drawn around the QR code. This
+   * matches the MARGIN hint given to ZXing in Transmit.getEncodeHints. */
+  private static final int QUIET_ZONE = 1;
+
+  /* Number of QR mask patterns defined by the standard */
+  static final int NUM_MASK_PATTERNS = 8;
+
+  /* Marks modules of the template that hold data rather than a function pattern */
+  private static final byte DATA_MODULE = -1;
+
+  /* Polynomials and mask used for the BCH codes protecting format and version info */
+  private static final int VERSION_INFO_POLY = 0x1f25;
+  private static final int TYPE_INFO_POLY = 0x537;
+  private static final int TYPE_INFO_MASK_PATTERN = 0x5412;
+
+  /* Coordinates of the format info bits next to the top-left finder pattern */
+  private static final int[][] TYPE_INFO_COORDINATES = {
+    {8, 0}, {8, 1}, {8, 2}, {8, 3}, {8, 4}, {8, 5}, {8, 7}, {8, 8},
+    {7, 8}, {5, 8}, {4, 8}, {3, 8}, {2, 8}, {1, 8}, {0, 8},
+  };
+
+  /* Log and anti-log tables for GF(256) with the QR code primitive polynomial */
+  private static final int[] GF_EXP = new int[512];
+  private static final int[] GF_LOG = new int[256];
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      GF_EXP[i] = x;
+      GF_LOG[x] = i;
+      x <<= 1;
+      if (x >= 256) {
+        x ^= 0x11d;
+      }
+    }
+    // Duplicate the table so that products never need a modulo.
+    for (int i = 255; i < GF_EXP.length; i++) {
+      GF_EXP[i] = GF_EXP[i - 255];
+    }
+  }
+
+  private final Version version;
+  private final ErrorCorrectionLevel ecLevel;
+
+  /* Number of modules along each side of the QR code, without quiet zone */
+  private final int size;
+
+  /* Layout of the rendered image */
+  private final int outputSize;
+  private final int multiple;
+  private final int padding;
+
+  /* Codeword and block structure for (version, ecLevel) */
+  private final int numDataBytes;
+  private final int numTotalBytes;
+  private final int numBlocks;
+  private final int numShortBlocks;
+  private final int shortBlockDataBytes;
+  private final int ecBytesPerBlock;
+  private final int charCountBits;
+
+  /* Coefficients of the Reed-Solomon generator, highest degree (always 1) omitted */
+  private final int[] generator;
+
+  /* Function patterns and version info; data modules are DATA_MODULE */
+  private final byte[] template;
+
+  /* Indexes (y * size + x) of the data modules in placement order */
+  private final int[] dataPositions;
+
+  /* The 15 bit format information for each mask pattern */
+  private final int[] typeInfo;
+
+  /* Band of rows scored by MaskSelection.SAMPLED, and the indexes of the
+   * data bits and modules that fall inside it */
+  private final int sampleStart;
+  private final int sampleRows;
+  private final int[] sampleBits;
+  private final int[] samplePositions;
+
+  /* Working buffers reused by every call to encode */
+  private final byte[] dataCodewords;
+  private final byte[] ecCodewords;
+  private final byte[] codewords;
+  private final byte[] modules;
+  private final byte[] sample;
+  private final BitMatrix output;
+
+  /* Strategy for picking the mask pattern of each QR code */
+  private MaskSelection maskSelection;
+
+  /**
+   * Creates an encoder for QR codes of the given version and error
+   * correction level, rendered into square images of {@code dimension}
+   * pixels (or the size of the QR code, when it is larger).
+   *
+   * @param version The QR version (density) of the codes to generate.
+   * @param ecLevel The error correction level of the codes to generate.
+   * @param dimension The width and height of the rendered image in pixels.
+   */
+  public ByteModeEncoder(Version version, ErrorCorrectionLevel ecLevel, int dimension) {
+    if (version == null || ecLevel == null) {
+      throw new NullPointerException("Version and error correction level must not be null.");
+    }
+    if (dimension < 0) {
+      throw new IllegalArgumentException("Image dimension must not be negative.");
+    }
+    this.version = version;
+    this.ecLevel = ecLevel;
+    this.size = version.getDimensionForVersion();
+
+    // Same layout as ZXing's QRCodeWriter.renderResult
+    int qrWidth = size + 2 * QUIET_ZONE;
+    this.outputSize = Math.max(dimension, qrWidth);
+    this.multiple = outputSize / qrWidth;
+    this.padding = (outputSize - size * multiple) / 2;
+
+    Version.ECBlocks ecBlocks = version.getECBlocksForLevel(ecLevel);
+    this.numTotalBytes = version.getTotalCodewords();
+    this.numDataBytes = numTotalBytes - ecBlocks.getTotalECCodewords();
+    this.numBlocks = ecBlocks.getNumBlocks();
+    this.numShortBlocks = numBlocks - (numTotalBytes % numBlocks);
+    this.shortBlockDataBytes = numDataBytes / numBlocks;
+    this.ecBytesPerBlock = numTotalBytes / numBlocks - shortBlockDataBytes;
+    this.charCountBits = Mode.BYTE.getCharacterCountBits(version);
+
+    this.generator = buildGenerator(ecBytesPerBlock);
+    this.template = buildTemplate(version, size);
+    this.dataPositions = buildDataPositions(template, size);
+    this.typeInfo = new int[NUM_MASK_PATTERNS];
+    for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+      typeInfo[mask] = makeTypeInfoBits(ecLevel, mask);
+    }
+
+    this.dataCodewords = new byte[numDataBytes];
+    this.ecCodewords = new byte[ecBytesPerBlock];
+    this.codewords = new byte[numTotalBytes];
+    this.modules = new byte[size * size];
+    this.output = new BitMatrix(outputSize, outputSize);
+    this.maskSelection = MaskSelection.ALL_PATTERNS;
+
+    // The band must be tall enough to contain finder-like patterns along with
+    // the white space around them (rule 3 of the penalty score).
+    this.sampleRows = Math.min(size, Math.max(11, size / 4));
+    this.sampleStart = (size - sampleRows) / 2;
+    int first = sampleStart * size;
+    int last = first + sampleRows * size;
+    int count = 0;
+    for (int position : dataPositions) {
+      if (position >= first && position < last) {
+        count++;
+      }
+    }
+    this.sampleBits = new int[count];
+    this.samplePositions = new int[count];
+    count = 0;
+    for (int i = 0; i < dataPositions.length; i++) {
+      if (dataPositions[i] >= first && dataPositions[i] < last) {
+        sampleBits[count] = i;
+        samplePositions[count] = dataPositions[i];
+        count++;
+      }
+    }
+    this.sample = new byte[sampleRows * size];
+  }
+
+  public Version getVersion() {
+    return version;
+  }
+
+  public ErrorCorrectionLevel getErrorCorrectionLevel() {
+    return ecLevel;
+  }
+
+  /**
+   * Returns the width and height in pixels of the rendered QR codes.
+   */
+  public int getOutputSize() {
+    return outputSize;
+  }
+
+  /**
+   * Returns the width and height in pixels of each module of the rendered
+   * QR codes.
+   */
+  public int getScale() {
+    return multiple;
+  }
+
+  /**
+   * Returns the number of modules along each side of the QR code, without
+   * the quiet zone.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the maximum number of bytes that fit into a single QR code.
+   */
+  public int getMaxBytes() {
+    return numDataBytes - (4 + charCountBits + 7) / 8;
+  }
+
+  /**
+   * Returns the smallest QR version that can hold {@code length} bytes in
+   * 'Byte' mode at the given error correction level. This is the version
+   * ZXing picks when it is asked to encode the same bytes.
+   *
+   * @throws IllegalArgumentException if the data does not fit into any version.
+   */
+  public static Version smallestVersionFor(int length, ErrorCorrectionLevel ecLevel) {
+    // Like ZXing, guess the size of the character count from version 1 and
+    // then re-check with the size used by the guessed version.
+    Version provisional = chooseVersion(4 + Mode.BYTE.getCharacterCountBits(
+        Version.getVersionForNumber(1)) + 8 * length, ecLevel);
+    return chooseVersion(4 + Mode.BYTE.getCharacterCountBits(provisional) + 8 * length,
+                         ecLevel);
+  }
+
+  private static Version chooseVersion(int numInputBits, ErrorCorrectionLevel ecLevel) {
+    for (int i = 1; i <= 40; i++) {
+      Version v = Version.getVersionForNumber(i);
+      int numData = v.getTotalCodewords() - v.getECBlocksForLevel(ecLevel).getTotalECCodewords();
+      if (numData >= (numInputBits + 7) / 8) {
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("Data too big for any QR version.");
+  }
+
+  /**
+   * Encodes {@code length} bytes of {@code data}, starting at {@code offset},
+   * as a QR code. The returned matrix is owned by this encoder and is
+   * overwritten by the next call to {@code encode}; copy it if it needs to
+   * outlive that call.
+   *
+   * @throws IllegalArgumentException if the data does not fit in the QR code.
+   */
+  public BitMatrix encode(byte[] data, int offset, int length) {
+    encode(data, offset, length, output);
+    return output;
+  }
+
+  /**
+   * Encodes {@code length} bytes of {@code data}, starting at {@code offset},
+   * as a QR code drawn into {@code result}. Any previous content of
+   * {@code result} is cleared.
+   *
+   * @param result A square matrix of {@link #getOutputSize()} pixels.
+   * @throws IllegalArgumentException if the data does not fit in the QR code
+   *   or {@code result} has the wrong dimensions.
+   */
+  public void encode(byte[] data, int offset, int length, BitMatrix result) {
+    if (result.getWidth() != outputSize || result.getHeight() != outputSize) {
+      throw new IllegalArgumentException("Expected a matrix of " + outputSize
+          + " pixels but got " + result.getWidth() + "x" + result.getHeight() + ".");
+    }
+    encodeModules(data, offset, length);
+    render(result);
+  }
+
+  /**
+   * Encodes {@code length} bytes of {@code data}, starting at {@code offset},
+   * as a QR code with one bit per module and no quiet zone. Any previous
+   * content of {@code result} is cleared.
+   *
+   * @param result A square matrix of {@link #getSize()} modules.
+   * @throws IllegalArgumentException if the data does not fit in the QR code
+   *   or {@code result} has the wrong dimensions.
+   */
+  public void encodeModules(byte[] data, int offset, int length, BitMatrix result) {
+    if (result.getWidth() != size || result.getHeight() != size) {
+      throw new IllegalArgumentException("Expected a matrix of " + size
+          + " modules but got " + result.getWidth() + "x" + result.getHeight() + ".");
+    }
+    encodeModules(data, offset, length);
+    result.clear();
+    for (int y = 0; y < size; y++) {
+      int row = y * size;
+      for (int x = 0; x < size; x++) {
+        if (modules[row + x] == 1) {
+          result.set(x, y);
+        }
+      }
+    }
+  }
+
+  /**
+   * Places the QR code for the given bytes into {@code modules}, one byte per
+   * module, and returns the mask pattern that was applied.
+   */
+  int encodeModules(byte[] data, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > data.length) {
+      throw new IndexOutOfBoundsException("Invalid range of input data.");
+    }
+    if (length > getMaxBytes()) {
+      throw new IllegalArgumentException("Input data too large for QR version: "
+          + version.getVersionNumber() + " and error correction level: " + ecLevel
+          + " length = " + length + " maxPayload= " + getMaxBytes());
+    }
+    writeDataCodewords(data, offset, length);
+    interleaveWithECBytes();
+
+    int mask;
+    switch (maskSelection.getPattern()) {
+      case MaskSelection.ALL_PATTERNS_ID:
+        mask = chooseMaskPattern();
+        break;
+      case MaskSelection.SAMPLED_ID:
+        mask = chooseSampledMaskPattern();
+        break;
+      default:
+        mask = maskSelection.getPattern();
+    }
+    placeModules(mask);
+    return mask;
+  }
+
+  /**
+   * Returns the mask pattern with the lowest penalty score, preferring the
+   * lowest numbered pattern on ties just as ZXing does.
+   */
+  private int chooseMaskPattern() {
+    int minPenalty = Integer.MAX_VALUE;
+    int bestMaskPattern = 0;
+    for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+      placeModules(mask);
+      int penalty = maskPenalty(modules, size, size);
+      if (penalty < minPenalty) {
+        minPenalty = penalty;
+        bestMaskPattern = mask;
+      }
+    }
+    return bestMaskPattern;
+  }
+
+  /**
+   * Returns the mask pattern with the lowest penalty score on the band of
+   * rows in the middle of the QR code.
+   */
+  private int chooseSampledMaskPattern() {
+    int minPenalty = Integer.MAX_VALUE;
+    int bestMaskPattern = 0;
+    for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+      placeSample(mask);
+      int penalty = maskPenalty(sample, size, sampleRows);
+      if (penalty < minPenalty) {
+        minPenalty = penalty;
+        bestMaskPattern = mask;
+      }
+    }
+    return bestMaskPattern;
+  }
+
+  /**
+   * Writes the mode indicator, character count, data, terminator and pad
+   * bytes into {@code dataCodewords}.
+   */
+  private void writeDataCodewords(byte[] data, int offset, int length) {
+    // Mode and character count take 12 or 20 bits, so every data byte
+    // straddles two codewords with the same 4 bit shift.
+    int header = (Mode.BYTE.getBits() << charCountBits) | length;
+    int headerBits = 4 + charCountBits;
+    int pos = 0;
+    int acc = header;
+    int accBits = headerBits;
+    while (accBits >= 8) {
+      dataCodewords[pos++] = (byte) (acc >>> (accBits - 8));
+      accBits -= 8;
+    }
+    acc &= (1 << accBits) - 1;
+    for (int i = 0; i < length; i++) {
+      acc = (acc << 8) | (data[offset + i] & 0xff);
+      dataCodewords[pos++] = (byte) (acc >>> accBits);
+      acc &= (1 << accBits) - 1;
+    }
+    // Terminator of up to four zero bits, then pad to a byte boundary.
+    if (accBits > 0 && pos < numDataBytes) {
+      dataCodewords[pos++] = (byte) (acc << (8 - accBits));
+    }
+    for (int i = 0; pos < numDataBytes; i++) {
+      dataCodewords[pos++] = (byte) ((i & 1) == 0 ? 0xec : 0x11);
+    }
+  }
+
+  /**
+   * Computes the error correction codewords of each block and interleaves
+   * them with the data codewords into {@code codewords}.
+   */
+  private void interleaveWithECBytes() {
+    int dataOffset = 0;
+    for (int block = 0; block < numBlocks; block++) {
+      int blockDataBytes = shortBlockDataBytes + (block < numShortBlocks ? 0 : 1);
+      generateECBytes(dataOffset, blockDataBytes);
+
+      // Data codewords are interleaved column by column across the blocks,
+      // where the long blocks have one extra codeword at the end.
+      for (int i = 0; i < blockDataBytes; i++) {
+        int index;
+        if (i < shortBlockDataBytes) {
+          index = i * numBlocks + block;
+        } else {
+          index = shortBlockDataBytes * numBlocks + (block - numShortBlocks);
+        }
+        codewords[index] = dataCodewords[dataOffset + i];
+      }
+      for (int i = 0; i < ecBytesPerBlock; i++) {
+        codewords[numDataBytes + i * numBlocks + block] = ecCodewords[i];
+      }
+      dataOffset += blockDataBytes;
+    }
+  }
+
+  /**
+   * Computes the Reed-Solomon error correction codewords for a block of data
+   * codewords into {@code ecCodewords}.
+   */
+  private void generateECBytes(int dataOffset, int blockDataBytes) {
+    for (int i = 0; i < ecBytesPerBlock; i++) {
+      ecCodewords[i] = 0;
+    }
+    for (int i = 0; i < blockDataBytes; i++) {
+      int feedback = (dataCodewords[dataOffset + i] ^ ecCodewords[0]) & 0xff;
+      for (int j = 0; j < ecBytesPerBlock - 1; j++) {
+        ecCodewords[j] = (byte) (ecCodewords[j + 1] ^ gfMultiply(generator[j], feedback));
+      }
+      ecCodewords[ecBytesPerBlock - 1] = (byte) gfMultiply(generator[ecBytesPerBlock - 1], feedback);
+    }
+  }
+
+  /**
+   * Fills {@code modules} with the function patterns, the format information
+   * for {@code mask} and the masked codewords.
+   */
+  private void placeModules(int mask) {
+    System.arraycopy(template, 0, modules, 0, modules.length);
+
+    int bits = typeInfo[mask];
+    for (int i = 0; i < 15; i++) {
+      byte bit = (byte) ((bits >>> i) & 1);
+      modules[TYPE_INFO_COORDINATES[i][1] * size + TYPE_INFO_COORDINATES[i][0]] = bit;
+      if (i < 8) {
+        modules[8 * size + (size - i - 1)] = bit;
+      } else {
+        modules[(size - 7 + (i - 8)) * size + 8] = bit;
+      }
+    }
+
+    int numBits = numTotalBytes * 8;
+    for (int i = 0; i < dataPositions.length; i++) {
+      int position = dataPositions[i];
+      int bit = 0;
+      if (i < numBits) {
+        bit = (codewords[i >>> 3] >>> (7 - (i & 7))) & 1;
+      }
+      if (isMasked(mask, position % size, position / size)) {
+        bit ^= 1;
+      }
+      modules[position] = (byte) bit;
+    }
+  }
+
+  /**
+   * Fills {@code sample} with the rows of the QR code that are scored by
+   * {@code chooseSampledMaskPattern}, using mask pattern {@code mask}.
+   */
+  private void placeSample(int mask) {
+    int first = sampleStart * size;
+    System.arraycopy(template, first, sample, 0, sample.length);
+
+    int bits = typeInfo[mask];
+    for (int i = 0; i < 15; i++) {
+      byte bit = (byte) ((bits >>> i) & 1);
+      setSampleModule(TYPE_INFO_COORDINATES[i][1] * size + TYPE_INFO_COORDINATES[i][0], bit);
+      if (i < 8) {
+        setSampleModule(8 * size + (size - i - 1), bit);
+      } else {
+        setSampleModule((size - 7 + (i - 8)) * size + 8, bit);
+      }
+    }
+
+    int numBits = numTotalBytes * 8;
+    for (int i = 0; i < sampleBits.length; i++) {
+      int index = sampleBits[i];
+      int position = samplePositions[i];
+      int bit = 0;
+      if (index < numBits) {
+        bit = (codewords[index >>> 3] >>> (7 - (index & 7))) & 1;
+      }
+      if (isMasked(mask, position % size, position / size)) {
+        bit ^= 1;
+      }
+      sample[position - first] = (byte) bit;
+    }
+  }
+
+  private void setSampleModule(int position, byte bit) {
+    int index = position - sampleStart * size;
+    if (index >= 0 && index < sample.length) {
+      sample[index] = bit;
+    }
+  }
+
+  /**
+   * Draws {@code modules} into {@code result}, scaled and centered.
+   */
+  private void render(BitMatrix result) {
+    result.clear();
+    for (int y = 0; y < size; y++) {
+      int row = y * size;
+      for (int x = 0; x < size; x++) {
+        if (modules[row + x] == 1) {
+          result.setRegion(padding + x * multiple, padding + y * multiple,
+                           multiple, multiple);
+        }
+      }
+    }
+  }
+
+  public MaskSelection getMaskSelection() {
+    return maskSelection;
+  }
+
+  /**
+   * Sets how the mask pattern of subsequent QR codes is chosen. The default
+   * is {@link MaskSelection#ALL_PATTERNS}.
+   */
+  public void setMaskSelection(MaskSelection maskSelection) {
+    if (maskSelection == null) {
+      throw new NullPointerException("Mask selection must not be null.");
+    }
+    this.maskSelection = maskSelection;
+  }
+
+  /**
+   * Returns the modules of the most recently encoded QR code, one byte
+   * (0 or 1) per module in row-major order. The array is reused.
+   */
+  byte[] getModules() {
+    return modules;
+  }
+
+
+  private static int gfMultiply(int a, int b) {
+    if (a == 0 || b == 0) {
+      return 0;
+    }
+    return GF_EXP[GF_LOG[a] + GF_LOG[b]];
+  }
+
+  /**
+   * Returns the coefficients of prod_{i < degree} (x - a^i), from the
+   * second highest degree down to the constant term.
+   */
+  private static int[] buildGenerator(int degree) {
+    int[] poly = new int[degree + 1];
+    poly[0] = 1;
+    for (int d = 0; d < degree; d++) {
+      // Multiply by (x + a^d), working from the lowest degree term up
+      int root = GF_EXP[d];
+      for (int j = d + 1; j > 0; j--) {
+        poly[j] = poly[j] ^ gfMultiply(poly[j - 1], root);
+      }
+    }
+    int[] result = new int[degree];
+    System.arraycopy(poly, 1, result, 0, degree);
+    return result;
+  }
+
+  /**
+   * Returns true when mask pattern {@code mask} inverts the module at (x,y).
+   */
+  static boolean isMasked(int mask, int x, int y) {
+    int intermediate;
+    switch (mask) {
+      case 0:
+        intermediate = (y + x) & 1;
+        break;
+      case 1:
+        intermediate = y & 1;
+        break;
+      case 2:
+        intermediate = x % 3;
+        break;
+      case 3:
+        intermediate = (y + x) % 3;
+        break;
+      case 4:
+        intermediate = ((y >>> 1) + (x / 3)) & 1;
+        break;
+      case 5:
+        intermediate = ((y * x) & 1) + ((y * x) % 3);
+        break;
+      case 6:
+        intermediate = (((y * x) & 1) + ((y * x) % 3)) & 1;
+        break;
+      case 7:
+        intermediate = (((y * x) % 3) + ((y + x) & 1)) & 1;
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid mask pattern: " + mask);
+    }
+    return intermediate == 0;
+  }
+
+  /**
+   * Scores {@code height} rows of a QR code, {@code width} modules wide,
+   * with the four penalty rules of the QR standard as implemented by ZXing's
+   * MaskUtil. Lower scores are better.
+   */
+  static int maskPenalty(byte[] m, int width, int height) {
+    return penaltyRule1(m, width, height) + penaltyRule2(m, width, height)
+        + penaltyRule3(m, width, height) + penaltyRule4(m, width, height);
+  }
+
+  /* Runs of five or more modules of the same colour in a row or column */
+  private static int penaltyRule1(byte[] m, int width, int height) {
+    int penalty = 0;
+    for (int y = 0; y < height; y++) {
+      penalty += runPenalty(m, y * width, 1, width);
+    }
+    for (int x = 0; x < width; x++) {
+      penalty += runPenalty(m, x, width, height);
+    }
+    return penalty;
+  }
+
+  private static int runPenalty(byte[] m, int start, int step, int count) {
+    int penalty = 0;
+    int run = 0;
+    int prev = -1;
+    for (int i = 0, index = start; i < count; i++, index += step) {
+      int bit = m[index];
+      if (bit == prev) {
+        run++;
+      } else {
+        if (run >= 5) {
+          penalty += 3 + (run - 5);
+        }
+        run = 1;
+        prev = bit;
+      }
+    }
+    if (run >= 5) {
+      penalty += 3 + (run - 5);
+    }
+    return penalty;
+  }
+
+  /* 2x2 blocks of modules of the same colour */
+  private static int penaltyRule2(byte[] m, int size, int height) {
+    int penalty = 0;
+    for (int y = 0; y < height - 1; y++) {
+      int row = y * size;
+      for (int x = 0; x < size - 1; x++) {
+        byte value = m[row + x];
+        if (value == m[row + x + 1] && value == m[row + size + x]
+            && value == m[row + size + x + 1]) {
+          penalty++;
+        }
+      }
+    }
+    return 3 * penalty;
+  }
+
+  /* 1:1:3:1:1 finder-like patterns with four white modules on either side */
+  private static int penaltyRule3(byte[] m, int size, int height) {
+    int numPenalties = 0;
+    for (int y = 0; y < height; y++) {
+      int row = y * size;
+      for (int x = 0; x < size; x++) {
+        if (x + 6 < size
+            && m[row + x] == 1 && m[row + x + 1] == 0 && m[row + x + 2] == 1
+            && m[row + x + 3] == 1 && m[row + x + 4] == 1 && m[row + x + 5] == 0
+            && m[row + x + 6] == 1
+            && (isWhiteHorizontal(m, size, y, x - 4, x)
+                || isWhiteHorizontal(m, size, y, x + 7, x + 11))) {
+          numPenalties++;
+        }
+        if (y + 6 < height
+            && m[row + x] == 1 && m[row + size + x] == 0 && m[row + 2 * size + x] == 1
+            && m[row + 3 * size + x] == 1 && m[row + 4 * size + x] == 1
+            && m[row + 5 * size + x] == 0 && m[row + 6 * size + x] == 1
+            && (isWhiteVertical(m, size, height, x, y - 4, y)
+                || isWhiteVertical(m, size, height, x, y + 7, y + 11))) {
+          numPenalties++;
+        }
+      }
+    }
+    return numPenalties * 40;
+  }
+
+  private static boolean isWhiteHorizontal(byte[] m, int size, int y, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (i >= 0 && i < size && m[y * size + i] == 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isWhiteVertical(byte[] m, int size, int height,
+                                         int x, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (i >= 0 && i < height && m[i * size + x] == 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Deviation of the proportion of dark modules from 50% */
+  private static int penaltyRule4(byte[] m, int size, int height) {
+    int numTotalCells = size * height;
+    int numDarkCells = 0;
+    for (int i = 0; i < numTotalCells; i++) {
+      numDarkCells += m[i];
+    }
+    int fivePercentVariances = Math.abs(numDarkCells * 2 - numTotalCells) * 10 / numTotalCells;
+    return fivePercentVariances * 10;
+  }
+
+  /**
+   * Returns the 15 bit format information for {@code mask}, where bit i
+   * holds the value of the i-th module in TYPE_INFO_COORDINATES.
+   */
+  private static int makeTypeInfoBits(ErrorCorrectionLevel ecLevel, int mask) {
+    int info = (ecLevel.getBits() << 3) | mask;
+    // The least significant bit goes into the first coordinate.
+    return ((info << 10) | calculateBCHCode(info, TYPE_INFO_POLY)) ^ TYPE_INFO_MASK_PATTERN;
+  }
+
+  private static int calculateBCHCode(int value, int poly) {
+    int msbSetInPoly = 32 - Integer.numberOfLeadingZeros(poly);
+    value <<= msbSetInPoly - 1;
+    while (32 - Integer.numberOfLeadingZeros(value) >= msbSetInPoly) {
+      value ^= poly << (32 - Integer.numberOfLeadingZeros(value) - msbSetInPoly);
+    }
+    return value;
+  }
+
+  /**
+   * Returns the modules of all function patterns for {@code version}. The
+   * format information modules are reserved (set to 0) and data modules are
+   * set to DATA_MODULE.
+   */
+  private static byte[] buildTemplate(Version version, int size) {
+    byte[] t = new byte[size * size];
+    for (int i = 0; i < t.length; i++) {
+      t[i] = DATA_MODULE;
+    }
+
+    // Finder patterns and their white separators
+    int[][] corners = {{0, 0}, {size - 7, 0}, {0, size - 7}};
+    for (int[] corner : corners) {
+      for (int dy = -1; dy <= 7; dy++) {
+        for (int dx = -1; dx <= 7; dx++) {
+          int x = corner[0] + dx;
+          int y = corner[1] + dy;
+          if (x < 0 || y < 0 || x >= size || y >= size) {
+            continue;
+          }
+          int ring = Math.max(Math.abs(dx - 3), Math.abs(dy - 3));
+          t[y * size + x] = (byte) ((ring == 2 || ring == 4) ? 0 : 1);
+        }
+      }
+    }
+
+    // Dark module above the bottom-left finder pattern
+    t[(size - 8) * size + 8] = 1;
+
+    // Alignment patterns wherever they do not overlap a finder pattern
+    int[] centers = version.getAlignmentPatternCenters();
+    for (int cy : centers) {
+      for (int cx : centers) {
+        if (t[cy * size + cx] != DATA_MODULE) {
+          continue;
+        }
+        for (int dy = -2; dy <= 2; dy++) {
+          for (int dx = -2; dx <= 2; dx++) {
+            int ring = Math.max(Math.abs(dx), Math.abs(dy));
+            t[(cy + dy) * size + cx + dx] = (byte) (ring == 1 ? 0 : 1);
+          }
+        }
+      }
+    }
+
+    // Timing patterns
+    for (int i = 8; i < size - 8; i++) {
+      byte bit = (byte) ((i + 1) % 2);
+      if (t[6 * size + i] == DATA_MODULE) {
+        t[6 * size + i] = bit;
+      }
+      if (t[i * size + 6] == DATA_MODULE) {
+        t[i * size + 6] = bit;
+      }
+    }
+
+    // Reserve the format information, it is filled in once the mask is known.
+    for (int i = 0; i < 15; i++) {
+      t[TYPE_INFO_COORDINATES[i][1] * size + TYPE_INFO_COORDINATES[i][0]] = 0;
+      if (i < 8) {
+        t[8 * size + (size - i - 1)] = 0;
+      } else {
+        t[(size - 7 + (i - 8)) * size + 8] = 0;
+      }
+    }
+
+    // Version information for versions 7 and up
+    if (version.getVersionNumber() >= 7) {
+      int number = version.getVersionNumber();
+      int bits = (number << 12) | calculateBCHCode(number, VERSION_INFO_POLY);
+      // The least significant bit goes into the top-left corner of each block.
+      int bitIndex = 0;
+      for (int i = 0; i < 6; i++) {
+        for (int j = 0; j < 3; j++) {
+          byte bit = (byte) ((bits >>> bitIndex) & 1);
+          bitIndex++;
+          t[(size - 11 + j) * size + i] = bit;
+          t[i * size + (size - 11 + j)] = bit;
+        }
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Returns the positions of the data modules in the order that the
+   * codeword bits are placed: upwards and downwards in two module wide
+   * columns, from right to left, skipping the vertical timing pattern.
+   */
+  private static int[] buildDataPositions(byte[] t, int size) {
+    int count = 0;
+    for (byte b : t) {
+      if (b == DATA_MODULE) {
+        count++;
+      }
+    }
+    int[] positions = new int[count];
+    int index = 0;
+    int direction = -1;
+    int y = size - 1;
+    for (int x = size - 1; x > 0; x -= 2) {
+      if (x == 6) {
+        x--;
+      }
+      while (y >= 0 && y < size) {
+        for (int i = 0; i < 2; i++) {
+          int position = y * size + x - i;
+          if (t[position] == DATA_MODULE) {
+            positions[index++] = position;
+          }
+        }
+        y += direction;
+      }
+      direction = -direction;
+      y += direction;
+    }
+    return positions;
+  }
+}
@@ -0,0 +1,291 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+
+/**
+ * Factories for the {@code ByteSource}s that back a collection of QR codes.
+ * None of these sources copy the underlying data into memory; the QR code
+ * iterators read only the bytes of the chunk they are about to encode.
+ */
+final class ByteSources {
+
+  /* The largest part of a file in a single memory mapping */
+  private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+  // Do not allow class to be instantiated.
+  private ByteSources() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns a source that hands out {@code in} exactly once. Streams can
+   * only be read from front to back, so a collection backed by this source
+   * can only be iterated over a single time.
+   *
+   * @param in The stream to read data from. It is not closed by the source.
+   */
+  static ByteSource once(InputStream in) {
+    return new OnceByteSource(in);
+  }
+
+  /**
+   * Returns a source reading from {@code channel}. A {@code FileChannel}
+   * is read with positional reads starting at its current position, so it
+   * can be read any number of times. Other channels can only be read once.
+   *
+   * @param channel The channel to read data from. It is not closed by the source.
+   */
+  static ByteSource fromChannel(ReadableByteChannel channel) throws IOException {
+    if (channel instanceof FileChannel) {
+      FileChannel fc = (FileChannel) channel;
+      return new FileChannelByteSource(fc, fc.position());
+    }
+    return once(Channels.newInputStream(channel));
+  }
+
+  /**
+   * Returns a source backed by a read-only memory mapping of {@code file}.
+   * Reading any slice of the source costs the same regardless of where in
+   * the file it starts, and the file contents are paged in by the operating
+   * system rather than copied onto the heap.
+   *
+   * A single mapping cannot exceed 2GB, so larger files are mapped in
+   * segments that the source reads one after the other.
+   *
+   * @param file The file to map.
+   * @throws IOException if the file cannot be opened or mapped.
+   */
+  static ByteSource map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size <= MAX_SEGMENT) {
+        // The mapping stays valid after the channel is closed.
+        return new ByteBufferByteSource(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      }
+      List<ByteSource> segments = Lists.newArrayList();
+      for (long offset = 0; offset < size; offset += MAX_SEGMENT) {
+        segments.add(new ByteBufferByteSource(channel.map(FileChannel.MapMode.READ_ONLY,
+            offset, Math.min(MAX_SEGMENT, size - offset))));
+      }
+      return ByteSource.concat(segments);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns true when {@code source} can be opened more than once, and
+   * therefore supports reading arbitrary slices of its data.
+   */
+  static boolean isRepeatable(ByteSource source) {
+    return !(source instanceof OnceByteSource);
+  }
+
+  /**
+   * Source reading from a byte buffer, typically a mapped file. Slices
+   * share the buffer's contents rather than copying them.
+   */
+  private static final class ByteBufferByteSource extends ByteSource {
+    private final ByteBuffer buffer;
+
+    ByteBufferByteSource(ByteBuffer buffer) {
+      this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public InputStream openStream() {
+      final ByteBuffer buf = buffer.duplicate();
+      return new InputStream() {
+        @Override
+        public int read() {
+          return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+          if (!buf.hasRemaining()) {
+            return -1;
+          }
+          int n = Math.min(len, buf.remaining());
+          buf.get(b, off, n);
+          return n;
+        }
+
+        @Override
+        public long skip(long n) {
+          int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+          buf.position(buf.position() + skipped);
+          return skipped;
+        }
+
+        @Override
+        public int available() {
+          return buf.remaining();
+        }
+      };
+    }
+
+    @Override
+    public ByteSource slice(long offset, long length) {
+      if (offset < 0 || length < 0) {
+        throw new IllegalArgumentException("Slice offset and length must not be negative.");
+      }
+      ByteBuffer slice = buffer.duplicate();
+      int start = (int) Math.min(offset, slice.remaining());
+      int end = (int) Math.min(start + length, slice.remaining());
+      slice.position(start);
+      slice.limit(end);
+      return new ByteBufferByteSource(slice.slice());
+    }
+
+    @Override
+    public long size() {
+      return buffer.remaining();
+    }
+  }
+
+  /**
+   * Source that refuses to open its stream more than once.
+   */
+  private static final class OnceByteSource extends ByteSource {
+    private InputStream in;
+
+    OnceByteSource(InputStream in) {
+      if (in == null) {
+        throw new NullPointerException("Input stream must not be null.");
+      }
+      this.in = in;
+    }
+
+    @Override
+    public synchronized InputStream openStream() throws IOException {
+      if (in == null) {
+        throw new IllegalStateException(
+            "Data from an input stream can only be encoded once.");
+      }
+      InputStream result = new UnclosableInputStream(in);
+      in = null;
+      return result;
+    }
+  }
+
+  /**
+   * Source that reads a file channel with positional reads so that it
+   * neither moves nor closes the channel shared by its callers.
+   */
+  private static final class FileChannelByteSource extends ByteSource {
+    private final FileChannel channel;
+    private final long start;
+
+    FileChannelByteSource(FileChannel channel, long start) {
+      this.channel = channel;
+      this.start = start;
+    }
+
+    @Override
+    public InputStream openStream() {
+      return new InputStream() {
+        private long position = start;
+
+        @Override
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+          if (n > 0) {
+            position += n;
+          }
+          return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+          long skipped = Math.max(0, Math.min(n, channel.size() - position));
+          position += skipped;
+          return skipped;
+        }
+      };
+    }
+
+    @Override
+    public long size() throws IOException {
+      return channel.size() - start;
+    }
+  }
+
+  /**
+   * Leaves the wrapped stream open when closed, since the caller owns it.
+   */
+  private static final class UnclosableInputStream extends InputStream {
+    private final InputStream in;
+
+    UnclosableInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      return in.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    @Override
+    public void close() {
+      // The caller that handed us the stream is responsible for closing it.
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Chooses the QR version and error correction level that transfer a payload
+ * fastest on a given display.
+ *
+ * Denser QR codes carry more bytes per code, but their modules are drawn
+ * with fewer pixels; stronger error correction tolerates a worse camera,
+ * but leaves less room for data. The planner considers every combination
+ * whose modules are drawn with at least the requested number of pixels and
+ * ranks them by expected transfer time:
+ * <pre>
+ *   frames  = ceil(chunks / codesPerFrame)
+ *   time    = frames * frameInterval * expected passes over the frames
+ * </pre>
+ * The expected number of passes accounts for the loss rate of each error
+ * correction level, which is zero unless set with
+ * {@link #withLossRate(ErrorCorrectionLevel, double)}. A transmitter loops
+ * over its frames until the receiver has every chunk, so a lost chunk costs
+ * another pass.
+ *
+ * Planners are immutable and thread-safe.
+ */
+public final class CapacityPlanner {
+
+  /* Stop summing expected passes once the remaining terms are this small */
+  private static final double PASS_EPSILON = 1e-9;
+  private static final int MAX_PASSES = 100000;
+
+  /* Error correction levels from weakest to strongest */
+  private static final ErrorCorrectionLevel[] EC_LEVELS = {
+    ErrorCorrectionLevel.L, ErrorCorrectionLevel.M,
+    ErrorCorrectionLevel.Q, ErrorCorrectionLevel.H
+  };
+
+  private final int imgHeight;
+  private final int imgWidth;
+  private final int minModulePixels;
+  private final long frameIntervalMillis;
+  private final int codesPerFrame;
+
+  /* Probability that a single QR code is not decoded, by error correction level */
+  private final EnumMap<ErrorCorrectionLevel, Double> lossRates;
+
+  /**
+   * Creates a planner for QR codes shown in a {@code width} by
+   * {@code height} image.
+   *
+   * @param height The height of each frame in pixels.
+   * @param width The width of each frame in pixels.
+   * @param minModulePixels The fewest pixels per module the receiver's
+   *   camera can resolve.
+   * @param frameIntervalMillis How long each frame is shown.
+   * @param codesPerFrame The number of QR codes shown side by side in
+   *   each frame.
+   */
+  public CapacityPlanner(int height, int width, int minModulePixels,
+                         long frameIntervalMillis, int codesPerFrame) {
+    if (height < 1 || width < 1) {
+      throw new IllegalArgumentException("Image dimensions must be positive.");
+    }
+    if (minModulePixels < 1) {
+      throw new IllegalArgumentException("Pixels per module must be positive.");
+    }
+    if (frameIntervalMillis < 0) {
+      throw new IllegalArgumentException("Frame interval must not be negative.");
+    }
+    if (codesPerFrame < 1) {
+      throw new IllegalArgumentException("Codes per frame must be positive.");
+    }
+    this.imgHeight = height;
+    this.imgWidth = width;
+    this.minModulePixels = minModulePixels;
+    this.frameIntervalMillis = frameIntervalMillis;
+    this.codesPerFrame = codesPerFrame;
+    this.lossRates = new EnumMap<ErrorCorrectionLevel, Double>(ErrorCorrectionLevel.class);
+    for (ErrorCorrectionLevel ecLevel : EC_LEVELS) {
+      lossRates.put(ecLevel, 0.0);
+    }
+  }
+
+  // Copy of an existing planner with different loss rates.
+  private CapacityPlanner(CapacityPlanner other,
+                          EnumMap<ErrorCorrectionLevel, Double> lossRates) {
+    this.imgHeight = other.imgHeight;
+    this.imgWidth = other.imgWidth;
+    this.minModulePixels = other.minModulePixels;
+    this.frameIntervalMillis = other.frameIntervalMillis;
+    this.codesPerFrame = other.codesPerFrame;
+    this.lossRates = lossRates;
+  }
+
+  /**
+   * Returns a copy of this planner that expects the receiver to miss the
+   * fraction {@code lossRate} of QR codes with error correction level
+   * {@code ecLevel}, for example as measured on the receiving device.
+   *
+   * @throws IllegalArgumentException if {@code lossRate} is not at least 0
+   *   and less than 1.
+   */
+  public CapacityPlanner withLossRate(ErrorCorrectionLevel ecLevel, double lossRate) {
+    if (!(lossRate >= 0 && lossRate < 1)) {
+      throw new IllegalArgumentException("Loss rate must be at least 0 and less than 1.");
+    }
+    EnumMap<ErrorCorrectionLevel, Double> rates =
+        new EnumMap<ErrorCorrectionLevel, Double>(lossRates);
+    rates.put(ecLevel, lossRate);
+    return new CapacityPlanner(this, rates);
+  }
+
+  public int getHeight() {
+    return imgHeight;
+  }
+
+  public int getWidth() {
+    return imgWidth;
+  }
+
+  /**
+   * Returns every QR version and error correction level that can carry
+   * {@code payloadBytes} on this display, fastest first. Plans that take
+   * equally long are ordered by fewer frames, then stronger error
+   * correction, then larger modules. The list is empty when even version 1
+   * QR codes cannot be drawn with enough pixels per module.
+   */
+  public List<Plan> rank(long payloadBytes) {
+    if (payloadBytes < 0) {
+      throw new IllegalArgumentException("Payload size must not be negative.");
+    }
+    int codeDimension = getCodeDimension();
+    List<Plan> plans = new ArrayList<Plan>();
+    for (int number = 1; number <= 40; number++) {
+      Version v = Version.getVersionForNumber(number);
+      // Same layout as ByteModeEncoder, with one module of quiet zone
+      int modulePixels = codeDimension / (v.getDimensionForVersion() + 2);
+      if (modulePixels < minModulePixels) {
+        break;
+      }
+      for (ErrorCorrectionLevel ecLevel : EC_LEVELS) {
+        int chunkBytes = Transmit.payloadMaxBytes(ecLevel, v);
+        if (chunkBytes < 1) {
+          // Too small to hold anything besides the chunk header
+          continue;
+        }
+        long chunkCount = (payloadBytes + chunkBytes - 1) / chunkBytes;
+        if (chunkCount > Utils.MAX_COMPACT_TOTAL_CHUNKS) {
+          continue;
+        }
+        int chunks = (int) chunkCount;
+        int frames = (int) ((chunks + (long) codesPerFrame - 1) / codesPerFrame);
+        double passes = expectedPasses(chunks, lossRates.get(ecLevel));
+        plans.add(new Plan(v, ecLevel, chunkBytes, chunks, frames, modulePixels,
+                           frames * passes * frameIntervalMillis));
+      }
+    }
+    Collections.sort(plans, FASTEST_FIRST);
+    return Collections.unmodifiableList(plans);
+  }
+
+  /**
+   * Returns the fastest plan for {@code payloadBytes}, or null when no
+   * QR version fits this display.
+   */
+  public Plan best(long payloadBytes) {
+    List<Plan> plans = rank(payloadBytes);
+    return plans.isEmpty() ? null : plans.get(0);
+  }
+
+  /**
+   * Returns the width and height available to each QR code when
+   * {@code codesPerFrame} codes are tiled in a grid as close to square as
+   * possible.
+   */
+  private int getCodeDimension() {
+    int columns = (int) Math.ceil(Math.sqrt(codesPerFrame));
+    int rows = (codesPerFrame + columns - 1) / columns;
+    return Math.min(imgWidth / columns, imgHeight / rows);
+  }
+
+  /**
+   * Returns the expected number of passes over the frames before all
+   * {@code chunks} have been received at least once, when each is lost
+   * independently with probability {@code lossRate} on every pass.
+   */
+  static double expectedPasses(int chunks, double lossRate) {
+    if (chunks == 0) {
+      return 0;
+    }
+    // E[max of n geometric variables] = sum over k >= 0 of P(max > k)
+    double passes = 0;
+    double lostAfterK = 1;
+    for (int k = 0; k < MAX_PASSES; k++) {
+      double term = 1 - Math.pow(1 - lostAfterK, chunks);
+      passes += term;
+      if (term < PASS_EPSILON) {
+        break;
+      }
+      lostAfterK *= lossRate;
+    }
+    return passes;
+  }
+
+  private static final Comparator<Plan> FASTEST_FIRST = new Comparator<Plan>() {
+    @Override
+    public int compare(Plan a, Plan b) {
+      int c = Double.compare(a.transferMillis, b.transferMillis);
+      if (c != 0) {
+        return c;
+      }
+      if (a.frames != b.frames) {
+        return a.frames < b.frames ? -1 : 1;
+      }
+      if (a.ecLevel != b.ecLevel) {
+        return a.ecLevel.ordinal() < b.ecLevel.ordinal() ? 1 : -1;
+      }
+      return a.modulePixels > b.modulePixels ? -1 : (a.modulePixels == b.modulePixels ? 0 : 1);
+    }
+  };
+
+  /**
+   * One way of transmitting a payload: the QR version and error
+   * correction level to encode it with, and what that costs.
+   */
+  public static final class Plan {
+    private final Version version;
+    private final ErrorCorrectionLevel ecLevel;
+    private final int chunkBytes;
+    private final int chunks;
+    private final int frames;
+    private final int modulePixels;
+    private final double transferMillis;
+
+    private Plan(Version version, ErrorCorrectionLevel ecLevel, int chunkBytes,
+                 int chunks, int frames, int modulePixels, double transferMillis) {
+      this.version = version;
+      this.ecLevel = ecLevel;
+      this.chunkBytes = chunkBytes;
+      this.chunks = chunks;
+      this.frames = frames;
+      this.modulePixels = modulePixels;
+      this.transferMillis = transferMillis;
+    }
+
+    public Version getVersion() {
+      return version;
+    }
+
+    public ErrorCorrectionLevel getErrorCorrectionLevel() {
+      return ecLevel;
+    }
+
+    /**
+     * Returns the most payload bytes carried by each QR code.
+     */
+    public int getChunkBytes() {
+      return chunkBytes;
+    }
+
+    /**
+     * Returns the number of QR codes needed to carry the payload.
+     */
+    public int getChunkCount() {
+      return chunks;
+    }
+
+    /**
+     * Returns the number of frames shown in each pass over the payload.
+     */
+    public int getFrameCount() {
+      return frames;
+    }
+
+    /**
+     * Returns the number of pixels each module is drawn with.
+     */
+    public int getModulePixels() {
+      return modulePixels;
+    }
+
+    /**
+     * Returns the expected time in milliseconds until every chunk has been
+     * shown to the receiver and decoded.
+     */
+    public double getExpectedTransferMillis() {
+      return transferMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("version %d/%s: %d chunks, %d frames, %d px/module, %.0f ms",
+          version.getVersionNumber(), ecLevel, chunks, frames, modulePixels, transferMillis);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+/**
+ * Holds the payloads of the data chunks of a message as they arrive.
+ * Until a receiver knows how long a message is, chunks are kept in a map;
+ * once a {@link Manifest} arrives, they move to storage of exactly the
+ * message's length, on the heap or in a file.
+ */
+abstract class ChunkStore {
+
+  /* The longest message stored in a single array */
+  private static final long MAX_HEAP_LENGTH = Integer.MAX_VALUE - 8;
+
+  /**
+   * Returns true if chunk {@code chunkId} is stored.
+   */
+  abstract boolean contains(int chunkId);
+
+  /**
+   * Returns the payload of chunk {@code chunkId}, or null if it is not
+   * stored.
+   */
+  abstract byte[] get(int chunkId);
+
+  /**
+   * Stores the payload of chunk {@code chunkId}, unless it does not fit.
+   *
+   * @return false if the payload is not the length of the chunk.
+   */
+  abstract boolean put(int chunkId, byte[] payload);
+
+  /**
+   * Returns the ids of the stored chunks in increasing order.
+   */
+  abstract Iterable<Integer> chunkIds();
+
+  /**
+   * Returns the stored chunks in order, as one source of bytes.
+   */
+  abstract ByteSource asByteSource();
+
+  /**
+   * Releases the storage. The store must not be used afterwards.
+   */
+  void close() {
+  }
+
+  /**
+   * Returns an empty store that grows with the chunks put into it.
+   */
+  static ChunkStore inMemory() {
+    return new MapChunkStore();
+  }
+
+  /**
+   * Returns an empty store for a message of {@code length} bytes in chunks
+   * of {@code chunkSize} bytes, in an array allocated up front, or null if
+   * the message is too long for an array.
+   */
+  static ChunkStore onHeap(long length, int chunkSize) {
+    if (length > MAX_HEAP_LENGTH) {
+      return null;
+    }
+    return new HeapChunkStore(new byte[(int) length], chunkSize);
+  }
+
+  /**
+   * Returns an empty store for a message of {@code length} bytes in chunks
+   * of {@code chunkSize} bytes, in a new file of that length in
+   * {@code directory}. The file is deleted when the store is closed.
+   *
+   * @throws IOException if the file cannot be created.
+   */
+  static ChunkStore inFile(File directory, long length, int chunkSize) throws IOException {
+    File file = File.createTempFile("qrstream", ".part", directory);
+    file.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } catch (IOException e) {
+      raf.close();
+      file.delete();
+      throw e;
+    }
+    return new FileChunkStore(file, raf, length, chunkSize);
+  }
+
+  /**
+   * Chunks in a map by chunk id, for messages of unknown length.
+   */
+  private static final class MapChunkStore extends ChunkStore {
+    // Using SortedMap so that message can be assembled in order.
+    private final SortedMap<Integer, byte[]> chunks = new TreeMap<Integer, byte[]>();
+
+    @Override
+    boolean contains(int chunkId) {
+      return chunks.containsKey(chunkId);
+    }
+
+    @Override
+    byte[] get(int chunkId) {
+      return chunks.get(chunkId);
+    }
+
+    @Override
+    boolean put(int chunkId, byte[] payload) {
+      chunks.put(chunkId, payload);
+      return true;
+    }
+
+    @Override
+    Iterable<Integer> chunkIds() {
+      return chunks.keySet();
+    }
+
+    @Override
+    ByteSource asByteSource() {
+      List<ByteSource> parts = Lists.newArrayListWithCapacity(chunks.size());
+      for (byte[] payload : chunks.values()) {
+        parts.add(ByteSource.wrap(payload));
+      }
+      return ByteSource.concat(parts);
+    }
+  }
+
+  /**
+   * Chunks at their offsets in storage of the message's length.
+   */
+  private abstract static class FixedChunkStore extends ChunkStore {
+    protected final long length;
+    protected final int chunkSize;
+    private final int totalChunks;
+    private final BitSet present = new BitSet();
+
+    FixedChunkStore(long length, int chunkSize) {
+      this.length = length;
+      this.chunkSize = chunkSize;
+      this.totalChunks = (int) ((length - 1) / chunkSize + 1);
+    }
+
+    /* Reads or writes the bytes of a chunk at {@code offset} */
+    abstract void read(long offset, byte[] chunk);
+    abstract void write(long offset, byte[] chunk);
+
+    @Override
+    final boolean contains(int chunkId) {
+      return present.get(chunkId - 1);
+    }
+
+    @Override
+    final byte[] get(int chunkId) {
+      if (!contains(chunkId)) {
+        return null;
+      }
+      byte[] chunk = new byte[chunkLength(chunkId)];
+      read((long) (chunkId - 1) * chunkSize, chunk);
+      return chunk;
+    }
+
+    @Override
+    final boolean put(int chunkId, byte[] payload) {
+      if (chunkId < 1 || chunkId > totalChunks || payload.length != chunkLength(chunkId)) {
+        return false;
+      }
+      write((long) (chunkId - 1) * chunkSize, payload);
+      present.set(chunkId - 1);
+      return true;
+    }
+
+    @Override
+    final Iterable<Integer> chunkIds() {
+      List<Integer> ids = Lists.newArrayListWithCapacity(present.cardinality());
+      for (int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i + 1)) {
+        ids.add(i + 1);
+      }
+      return ids;
+    }
+
+    /* Every chunk but the last holds exactly chunkSize bytes */
+    private int chunkLength(int chunkId) {
+      return (int) Math.min(chunkSize, length - (long) (chunkId - 1) * chunkSize);
+    }
+  }
+
+  private static final class HeapChunkStore extends FixedChunkStore {
+    private final byte[] data;
+
+    HeapChunkStore(byte[] data, int chunkSize) {
+      super(data.length, chunkSize);
+      this.data = data;
+    }
+
+    @Override
+    void read(long offset, byte[] chunk) {
+      System.arraycopy(data, (int) offset, chunk, 0, chunk.length);
+    }
+
+    @Override
+    void write(long offset, byte[] chunk) {
+      System.arraycopy(chunk, 0, data, (int) offset, chunk.length);
+    }
+
+    @Override
+    ByteSource asByteSource() {
+      return ByteSource.wrap(data);
+    }
+  }
+
+  private static final class FileChunkStore extends FixedChunkStore {
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    FileChunkStore(File file, RandomAccessFile raf, long length, int chunkSize) {
+      super(length, chunkSize);
+      this.file = file;
+      this.raf = raf;
+      this.channel = raf.getChannel();
+    }
+
+    @Override
+    void read(long offset, byte[] chunk) {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      try {
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of " + file);
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read chunk from " + file, e);
+      }
+    }
+
+    @Override
+    void write(long offset, byte[] chunk) {
+      ByteBuffer buffer = ByteBuffer.wrap(chunk);
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer, offset + buffer.position());
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to write chunk to " + file, e);
+      }
+    }
+
+    @Override
+    ByteSource asByteSource() {
+      return Files.asByteSource(file).slice(0, length);
+    }
+
+    @Override
+    void close() {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        // Nothing was written that still needs flushing to the file.
+      }
+      file.delete();
+    }
+  }
+}
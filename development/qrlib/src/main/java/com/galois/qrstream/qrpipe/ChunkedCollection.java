@@ -0,0 +1,145 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Collection of frames generated on demand from data split into chunks,
+ * whose QR codes always carry a {@link HeaderFormat#V2} header. Iterators
+ * encode the frames in order, and {@link #encodeFrame(int)} at random.
+ *
+ * @param <T> The type of the frames.
+ */
+public abstract class ChunkedCollection<T> extends AbstractCollection<T> {
+  /* Encodes the QR codes of the frames */
+  final Transmit transmitter;
+
+  final Version qrVersion;
+  final ErrorCorrectionLevel ecLevel;
+
+  /* The data to encode, split into chunks of chunkSize bytes */
+  final byte[] data;
+  final int chunkSize;
+  final int totalChunks;
+
+  /* Codec the data was compressed with and its id, or null and 0 */
+  final CompressionCodec codec;
+  final int codecId;
+
+  /* Identifies the stream in the header of each chunk */
+  final int sessionId;
+
+  ChunkedCollection(Transmit transmitter, byte[] data, CompressionCodec codec, int chunkSize,
+                    int totalChunks, Version qrVersion, ErrorCorrectionLevel ecLevel) {
+    this.transmitter = transmitter;
+    this.data = data;
+    this.chunkSize = chunkSize;
+    this.totalChunks = totalChunks;
+    this.qrVersion = qrVersion;
+    this.ecLevel = ecLevel;
+    this.codec = codec;
+    this.codecId = codec == null ? 0 : codec.getId();
+    this.sessionId = Transmit.newSessionId();
+  }
+
+  /**
+   * Returns the number of chunks the data was split into.
+   */
+  public int getChunkCount() {
+    return totalChunks;
+  }
+
+  public Version getVersion() {
+    return qrVersion;
+  }
+
+  public ErrorCorrectionLevel getErrorCorrectionLevel() {
+    return ecLevel;
+  }
+
+  /**
+   * Returns the codec the data was compressed with, or null when it is
+   * sent uncompressed.
+   */
+  public CompressionCodec getCompressionCodec() {
+    return codec;
+  }
+
+  /**
+   * Encodes frame {@code frame}, the frame at that position in iteration
+   * order. This method may be called concurrently from several threads.
+   *
+   * @param frame The 1-indexed position of the frame to encode.
+   * @throws IndexOutOfBoundsException if {@code frame} is not between 1
+   *   and {@link #size()}.
+   */
+  public abstract T encodeFrame(int frame);
+
+  /**
+   * Returns the data of chunk {@code chunkId}; the last chunk may be
+   * shorter than the others.
+   */
+  byte[] dataChunk(int chunkId) {
+    int offset = (chunkId - 1) * chunkSize;
+    return Arrays.copyOfRange(data, offset, Math.min(offset + chunkSize, data.length));
+  }
+
+  /**
+   * Throws {@code IndexOutOfBoundsException} unless {@code frame} is
+   * between 1 and {@link #size()}.
+   */
+  void checkFrame(int frame) {
+    int frames = size();
+    if (frame < 1 || frame > frames) {
+      throw new IndexOutOfBoundsException("Cannot encode frame " + frame
+          + " of " + frames + " frames.");
+    }
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private int frame = 0;
+
+      @Override
+      public boolean hasNext() {
+        return frame < size();
+      }
+
+      @Override
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more frames to encode.");
+        }
+        frame++;
+        return encodeFrame(frame);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Removing frames is not supported.");
+      }
+    };
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.ColorImage;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Collection of colour frames, generated on demand. Frame {@code f}
+ * holds chunks {@code 3f - 2}, {@code 3f - 1} and {@code 3f} in its red,
+ * green and blue channels; the channels of the last frame may be blank.
+ */
+public final class ColorCollection extends ChunkedCollection<ColorImage> {
+
+  ColorCollection(Transmit transmitter, byte[] data, CompressionCodec codec, int chunkSize,
+                  int totalChunks, Version qrVersion, ErrorCorrectionLevel ecLevel) {
+    super(transmitter, data, codec, chunkSize, totalChunks, qrVersion, ecLevel);
+  }
+
+  /**
+   * Encodes frame {@code frame}. This method may be called concurrently
+   * from several threads. The image's chunk id and total are the frame
+   * number and the number of frames.
+   *
+   * @param frame The 1-indexed number of the frame to encode.
+   * @throws IndexOutOfBoundsException if {@code frame} is not between 1
+   *   and {@link #size()}.
+   */
+  @Override
+  public ColorImage encodeFrame(int frame) {
+    checkFrame(frame);
+    int frames = size();
+    int firstChunk = (frame - 1) * ColorImage.CHANNELS + 1;
+    BitmapImage red = encodeChannel(firstChunk);
+    if (firstChunk + 2 <= totalChunks) {
+      return new ColorImage(frame, frames, red, encodeChannel(firstChunk + 1),
+                            encodeChannel(firstChunk + 2));
+    }
+    // Only the last frame has blank channels, which hold a single white
+    // module rather than a bit per pixel.
+    BitmapImage blank = BitmapImage.createCenteredModuleImage(frame, frames, new BitMatrix(1),
+        1, red.getWidth(), red.getHeight());
+    BitmapImage green = firstChunk + 1 <= totalChunks ? encodeChannel(firstChunk + 1) : blank;
+    return new ColorImage(frame, frames, red, green, blank);
+  }
+
+  private BitmapImage encodeChannel(int chunkId) {
+    byte[] prependedData = CompactHeader.prependTiled(dataChunk(chunkId), chunkId,
+        totalChunks, 1, 1, ColorImage.CHANNELS, codecId, sessionId);
+    return transmitter.encodePrependedQRCode(prependedData, chunkId, totalChunks, ecLevel,
+                                             null, null);
+  }
+
+  /**
+   * Returns the number of frames.
+   */
+  @Override
+  public int size() {
+    return (totalChunks + ColorImage.CHANNELS - 1) / ColorImage.CHANNELS;
+  }
+}
@@ -0,0 +1,494 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+/**
+ * Writes and parses the {@link HeaderFormat#V2} QR code header.
+ */
+final class CompactHeader {
+
+  /* Fields of the first byte of a version 2 header */
+  private static final int FORMAT_MARKER = 0x80;
+  private static final int FORMAT_MASK = 0x60;
+  private static final int FORMAT_V2 = 0x00;
+  private static final int FORMAT_FOUNTAIN = 0x20;
+  private static final int FORMAT_PARITY = 0x40;
+  private static final int FORMAT_TILED = 0x60;
+
+  /* The largest number of columns or rows of tiled QR codes */
+  static final int MAX_TILES = 16;
+
+  /* The largest number of colour channels of a frame, one QR code in each */
+  static final int MAX_CHANNELS = 3;
+
+  /* Stands in for the number of channels in the header of a manifest */
+  private static final int MANIFEST_CHANNELS = 0;
+  private static final int HAS_CODEC = 0x10;
+  private static final int SESSION_HIGH_MASK = 0x0f;
+
+  /* Bytes taken by the first byte and the rest of the session id, and the CRC */
+  private static final int FORMAT_AND_SESSION_BYTES = 2;
+  private static final int CRC_BYTES = 2;
+
+  /* The largest session id */
+  static final int MAX_SESSION_ID = 0xfff;
+
+  private static final int[] CRC_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i << 8;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+      }
+      CRC_TABLE[i] = crc & 0xffff;
+    }
+  }
+
+  private final boolean fountain;
+  private final int sessionId;
+  private final int codecId;
+  private final int chunkId;
+  private final int totalChunks;
+  private final int length;
+
+  /* The code of a parity chunk and the length of the message, else null and 0 */
+  private final ParityCode parityCode;
+  private final int messageLength;
+
+  /* The grid of QR codes in each frame, 1 by 1 unless tiled */
+  private final int tileColumns;
+  private final int tileRows;
+
+  /* The number of colour channels of each frame, 1 unless in colour */
+  private final int channels;
+
+  /* True if the data is the manifest of the stream rather than a chunk */
+  private final boolean manifest;
+
+  private CompactHeader(boolean fountain, int sessionId, int codecId, int chunkId,
+                        int totalChunks, ParityCode parityCode, int messageLength,
+                        int tileColumns, int tileRows, int channels, boolean manifest,
+                        int length) {
+    this.fountain = fountain;
+    this.manifest = manifest;
+    this.sessionId = sessionId;
+    this.codecId = codecId;
+    this.chunkId = chunkId;
+    this.totalChunks = totalChunks;
+    this.parityCode = parityCode;
+    this.messageLength = messageLength;
+    this.tileColumns = tileColumns;
+    this.tileRows = tileRows;
+    this.channels = channels;
+    this.length = length;
+  }
+
+  /**
+   * Returns true if the data is a fountain coded symbol rather than a
+   * chunk. For a symbol, the chunk id is the symbol id and the total is the
+   * number of source blocks.
+   */
+  boolean isFountain() {
+    return fountain;
+  }
+
+  /**
+   * Returns the code of a parity chunk, or null for any other data. For a
+   * parity chunk, the chunk id is the id of the parity chunk and the total
+   * is the number of data chunks.
+   */
+  ParityCode getParityCode() {
+    return parityCode;
+  }
+
+  /**
+   * Returns the length of the whole message for a parity chunk, which
+   * tells how long the last data chunk is when it has to be rebuilt.
+   */
+  int getMessageLength() {
+    return messageLength;
+  }
+
+  /**
+   * Returns the number of columns of QR codes in each frame, 1 unless the
+   * chunk was sent in a tiled frame.
+   */
+  int getTileColumns() {
+    return tileColumns;
+  }
+
+  /**
+   * Returns the number of rows of QR codes in each frame, 1 unless the
+   * chunk was sent in a tiled frame.
+   */
+  int getTileRows() {
+    return tileRows;
+  }
+
+  /**
+   * Returns the number of colour channels of each frame, each with its own
+   * QR code, 1 unless the chunk was sent in a colour frame.
+   */
+  int getChannels() {
+    return channels;
+  }
+
+  /**
+   * Returns true if the data is the {@link Manifest} of the stream rather
+   * than a chunk. For a manifest, the chunk id is 1 and the total is the
+   * number of chunks of the stream.
+   */
+  boolean isManifest() {
+    return manifest;
+  }
+
+  int getSessionId() {
+    return sessionId;
+  }
+
+  int getCodecId() {
+    return codecId;
+  }
+
+  int getChunkId() {
+    return chunkId;
+  }
+
+  int getTotalChunks() {
+    return totalChunks;
+  }
+
+  /**
+   * Returns the number of bytes taken by the header; the data follows.
+   */
+  int getLength() {
+    return length;
+  }
+
+  /**
+   * Returns true when {@code rawData} starts with a header newer than
+   * version 1.
+   */
+  static boolean isCompact(byte[] rawData) {
+    return rawData.length > 0 && (rawData[0] & FORMAT_MARKER) != 0;
+  }
+
+  /**
+   * Returns the size of the header of any chunk in a stream of
+   * {@code totalChunks} chunks.
+   */
+  static int maxSize(int totalChunks, int codecId) {
+    return size(totalChunks, totalChunks, codecId);
+  }
+
+  /**
+   * Returns the size of the header of any symbol in a fountain coded stream
+   * of {@code sourceBlocks} blocks.
+   */
+  static int maxSymbolSize(int sourceBlocks, int codecId) {
+    return size(LtCode.maxSymbolId(sourceBlocks), sourceBlocks, codecId);
+  }
+
+  /**
+   * Returns the size of the header of any parity chunk of a message of
+   * {@code messageLength} bytes in {@code totalChunks} chunks. It is never
+   * smaller than {@link #maxSize}.
+   */
+  static int maxParitySize(int totalChunks, ParityCode code, int messageLength, int codecId) {
+    int parityChunks = code.groupCount(totalChunks) * code.getParityChunks();
+    return size(Math.max(parityChunks, totalChunks), totalChunks, codecId)
+        + parityFieldsSize(code, messageLength);
+  }
+
+  /**
+   * Returns the size of the header of any chunk of a stream of
+   * {@code totalChunks} chunks sent in tiled or colour frames.
+   */
+  static int maxTiledSize(int totalChunks, int codecId) {
+    return maxSize(totalChunks, codecId) + 2;
+  }
+
+  private static int parityFieldsSize(ParityCode code, int messageLength) {
+    return varintSize(code.getDataChunks() - 1) + varintSize(code.getParityChunks() - 1)
+        + varintSize(messageLength);
+  }
+
+  private static int size(int chunkId, int totalChunks, int codecId) {
+    return FORMAT_AND_SESSION_BYTES + (codecId == 0 ? 0 : 1)
+        + varintSize(chunkId - 1) + varintSize(totalChunks - 1) + CRC_BYTES;
+  }
+
+  /**
+   * Returns {@code rawData} preceded by a version 2 header.
+   *
+   * @throws IllegalArgumentException if any of the header fields is out of
+   *   range.
+   */
+  static byte[] prepend(byte[] rawData, int chunkId, int totalChunks, int codecId,
+                        int sessionId) {
+    return prepend(FORMAT_V2, rawData, chunkId, totalChunks, NO_FIELDS, codecId, sessionId);
+  }
+
+  /**
+   * Returns the fountain coded symbol {@code rawData} preceded by a header.
+   * The header is the same as {@link #prepend} writes, except for its
+   * format, with the symbol id in place of the chunk id and the number of
+   * source blocks in place of the total.
+   */
+  static byte[] prependSymbol(byte[] rawData, int symbolId, int sourceBlocks, int codecId,
+                              int sessionId) {
+    return prepend(FORMAT_FOUNTAIN, rawData, symbolId, sourceBlocks, NO_FIELDS, codecId,
+                   sessionId);
+  }
+
+  /**
+   * Returns parity chunk {@code parityId} preceded by a header. The header
+   * is the same as {@link #prepend} writes, except for its format, with the
+   * parity chunk id in place of the chunk id, followed by the number of
+   * data and parity chunks per group less one and the length of the whole
+   * message, all as varints.
+   */
+  static byte[] prependParity(byte[] rawData, int parityId, int totalChunks, ParityCode code,
+                              int messageLength, int codecId, int sessionId) {
+    if (messageLength < 0) {
+      throw new IllegalArgumentException("Message length must not be negative.");
+    }
+    byte[] fields = new byte[parityFieldsSize(code, messageLength)];
+    int pos = writeVarint(fields, 0, code.getDataChunks() - 1);
+    pos = writeVarint(fields, pos, code.getParityChunks() - 1);
+    writeVarint(fields, pos, messageLength);
+    return prepend(FORMAT_PARITY, rawData, parityId, totalChunks, fields, codecId, sessionId);
+  }
+
+  /**
+   * Returns chunk {@code chunkId} preceded by the header of a chunk sent in
+   * frames of {@code columns} by {@code rows} QR codes in each of
+   * {@code channels} colour channels. The header is the same as
+   * {@link #prepend} writes, except for its format, followed by a byte
+   * holding the number of columns less one in its high 4 bits and the
+   * number of rows less one in its low 4 bits, and a byte holding the
+   * number of channels.
+   */
+  static byte[] prependTiled(byte[] rawData, int chunkId, int totalChunks, int columns,
+                             int rows, int channels, int codecId, int sessionId) {
+    if (columns < 1 || columns > MAX_TILES || rows < 1 || rows > MAX_TILES) {
+      throw new IllegalArgumentException("Invalid grid: " + columns + "x" + rows);
+    }
+    if (channels != 1 && channels != MAX_CHANNELS) {
+      throw new IllegalArgumentException("Invalid number of channels: " + channels);
+    }
+    byte[] fields = { (byte) (((columns - 1) << 4) | (rows - 1)), (byte) channels };
+    return prepend(FORMAT_TILED, rawData, chunkId, totalChunks, fields, codecId, sessionId);
+  }
+
+  /**
+   * Returns the {@link Manifest} of a stream of {@code totalChunks} chunks
+   * preceded by a header. The header is the one {@link #prependTiled}
+   * writes for a single QR code per frame, except that the number of
+   * channels is 0. Receivers that predate manifests reject the header.
+   */
+  static byte[] prependManifest(byte[] manifest, int totalChunks, int codecId, int sessionId) {
+    byte[] fields = { 0, (byte) MANIFEST_CHANNELS };
+    return prepend(FORMAT_TILED, manifest, 1, totalChunks, fields, codecId, sessionId);
+  }
+
+  private static final byte[] NO_FIELDS = new byte[0];
+
+  /**
+   * Returns {@code rawData} preceded by a header of {@code format}, with
+   * {@code fields} specific to the format between the total and the CRC.
+   */
+  private static byte[] prepend(int format, byte[] rawData, int chunkId, int totalChunks,
+                                byte[] fields, int codecId, int sessionId) {
+    if (chunkId < 1 || totalChunks < 1) {
+      throw new IllegalArgumentException("Number of chunks must be positive");
+    }
+    if (codecId < 0 || codecId > CompressionCodecs.MAX_ID) {
+      throw new IllegalArgumentException("Invalid codec id: " + codecId);
+    }
+    if (sessionId < 0 || sessionId > MAX_SESSION_ID) {
+      throw new IllegalArgumentException("Invalid session id: " + sessionId);
+    }
+    int headerLength = size(chunkId, totalChunks, codecId) + fields.length;
+    byte[] combined = new byte[headerLength + rawData.length];
+    int pos = 0;
+    combined[pos++] = (byte) (FORMAT_MARKER | format | (codecId == 0 ? 0 : HAS_CODEC)
+                              | (sessionId >>> 8));
+    combined[pos++] = (byte) sessionId;
+    if (codecId != 0) {
+      combined[pos++] = (byte) codecId;
+    }
+    // Ids start at 1, so store one less to fit 128 chunks in one byte.
+    pos = writeVarint(combined, pos, chunkId - 1);
+    pos = writeVarint(combined, pos, totalChunks - 1);
+    System.arraycopy(fields, 0, combined, pos, fields.length);
+    pos += fields.length;
+    System.arraycopy(rawData, 0, combined, headerLength, rawData.length);
+
+    int crc = crc16(combined, 0, pos, 0xffff);
+    crc = crc16(combined, headerLength, rawData.length, crc);
+    combined[pos++] = (byte) (crc >>> 8);
+    combined[pos] = (byte) crc;
+    return combined;
+  }
+
+  /**
+   * Parses the version 2 header at the front of {@code rawData}. Returns
+   * null if the header is malformed, of an unknown version, or its CRC
+   * does not match the data.
+   */
+  static CompactHeader parse(byte[] rawData) {
+    if (!isCompact(rawData)) {
+      return null;
+    }
+    int format = rawData[0] & 0xff;
+    boolean fountain = (format & FORMAT_MASK) == FORMAT_FOUNTAIN;
+    boolean parity = (format & FORMAT_MASK) == FORMAT_PARITY;
+    boolean tiled = (format & FORMAT_MASK) == FORMAT_TILED;
+    if (rawData.length < FORMAT_AND_SESSION_BYTES) {
+      return null;
+    }
+    int sessionId = ((format & SESSION_HIGH_MASK) << 8) | (rawData[1] & 0xff);
+    int pos = FORMAT_AND_SESSION_BYTES;
+
+    int codecId = 0;
+    if ((format & HAS_CODEC) != 0) {
+      if (rawData.length < pos + 1) {
+        return null;
+      }
+      codecId = rawData[pos++] & 0xff;
+    }
+
+    long chunkId = readVarint(rawData, pos);
+    if (chunkId < 0) {
+      return null;
+    }
+    pos += varintSize((int) chunkId);
+    long totalChunks = readVarint(rawData, pos);
+    if (totalChunks < 0) {
+      return null;
+    }
+    pos += varintSize((int) totalChunks);
+    if (chunkId >= Integer.MAX_VALUE || totalChunks >= Integer.MAX_VALUE) {
+      return null;
+    }
+
+    ParityCode parityCode = null;
+    long messageLength = 0;
+    if (parity) {
+      long dataChunks = readVarint(rawData, pos);
+      if (dataChunks < 0) {
+        return null;
+      }
+      pos += varintSize((int) dataChunks);
+      long parityChunks = readVarint(rawData, pos);
+      if (parityChunks < 0) {
+        return null;
+      }
+      pos += varintSize((int) parityChunks);
+      messageLength = readVarint(rawData, pos);
+      if (messageLength < 0) {
+        return null;
+      }
+      pos += varintSize((int) messageLength);
+      if (dataChunks + parityChunks + 2 > ParityCode.MAX_GROUP_CHUNKS) {
+        return null;
+      }
+      parityCode = new ParityCode((int) dataChunks + 1, (int) parityChunks + 1);
+    }
+    int tileColumns = 1;
+    int tileRows = 1;
+    int channels = 1;
+    boolean manifest = false;
+    if (tiled) {
+      if (rawData.length < pos + 2) {
+        return null;
+      }
+      tileColumns = ((rawData[pos] & 0xff) >>> 4) + 1;
+      tileRows = (rawData[pos] & 0x0f) + 1;
+      channels = rawData[pos + 1];
+      if (channels == MANIFEST_CHANNELS && tileColumns == 1 && tileRows == 1) {
+        manifest = true;
+        channels = 1;
+      } else if (channels != 1 && channels != MAX_CHANNELS) {
+        return null;
+      }
+      pos += 2;
+    }
+
+    if (rawData.length < pos + CRC_BYTES) {
+      return null;
+    }
+    int headerLength = pos + CRC_BYTES;
+    int crc = crc16(rawData, 0, pos, 0xffff);
+    crc = crc16(rawData, headerLength, rawData.length - headerLength, crc);
+    int expected = ((rawData[pos] & 0xff) << 8) | (rawData[pos + 1] & 0xff);
+    if (crc != expected) {
+      return null;
+    }
+    return new CompactHeader(fountain, sessionId, codecId, (int) chunkId + 1, (int) totalChunks + 1,
+                             parityCode, (int) messageLength, tileColumns, tileRows,
+                             channels, manifest, headerLength);
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private static int writeVarint(byte[] out, int pos, int value) {
+    while ((value & ~0x7f) != 0) {
+      out[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Returns the non-negative int varint at {@code pos}, or -1 if it is
+   * truncated, too large or not in its shortest form.
+   */
+  private static long readVarint(byte[] in, int pos) {
+    long value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (pos >= in.length) {
+        return -1;
+      }
+      int b = in[pos++] & 0xff;
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        // Reject padded encodings so that every value has one encoding.
+        if (b == 0 && shift > 0) {
+          return -1;
+        }
+        return value <= Integer.MAX_VALUE ? value : -1;
+      }
+    }
+    return -1;
+  }
+
+  private static int crc16(byte[] data, int offset, int length, int crc) {
+    for (int i = offset; i < offset + length; i++) {
+      crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+    }
+    return crc;
+  }
+}
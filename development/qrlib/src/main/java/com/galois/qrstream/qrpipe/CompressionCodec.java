@@ -0,0 +1,48 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compresses data before it is split into QR codes and decompresses it once
+ * every QR code has been received. Each QR code names the codec its data was
+ * compressed with, so the receiver must know the codec by the same id; see
+ * {@link CompressionCodecs#register(CompressionCodec)}.
+ */
+public interface CompressionCodec {
+
+  /**
+   * Returns the id that identifies this codec in the QR code header, between
+   * 1 and {@link CompressionCodecs#MAX_ID}. Id 0 means uncompressed data.
+   */
+  int getId();
+
+  /**
+   * Returns a stream that compresses the data written to it into
+   * {@code out}. Closing the returned stream finishes the compressed data
+   * and closes {@code out}.
+   */
+  OutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * Returns a stream that reads the data decompressed from {@code in}.
+   */
+  InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,189 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * The {@link CompressionCodec}s known to this library, by id.
+ */
+public final class CompressionCodecs {
+
+  /* Codec ids share the top byte of the total chunks in the QR code
+   * header, which must stay a non-negative integer. */
+  public static final int MAX_ID = 0x7f;
+
+  /**
+   * Deflate at the best compression level, in the zlib format (RFC 1950)
+   * so that a checksum guards the decompressed data. Well suited to text,
+   * JSON and serialized objects.
+   */
+  public static final CompressionCodec DEFLATE = new CompressionCodec() {
+    @Override
+    public int getId() {
+      return 1;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      return new DeflaterOutputStream(out, deflater) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      final Inflater inflater = new Inflater();
+      return new InflaterInputStream(in, inflater) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      return "deflate";
+    }
+  };
+
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private static final ConcurrentMap<Integer, CompressionCodec> codecs =
+      new ConcurrentHashMap<Integer, CompressionCodec>();
+  static {
+    codecs.put(DEFLATE.getId(), DEFLATE);
+  }
+
+  private CompressionCodecs() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Makes {@code codec} available to receivers, which look up the codec of
+   * each transmission by its id.
+   *
+   * @throws IllegalArgumentException if the id of {@code codec} is out of
+   *   range or already taken by a different codec.
+   */
+  public static void register(CompressionCodec codec) {
+    int id = codec.getId();
+    if (id < 1 || id > MAX_ID) {
+      throw new IllegalArgumentException("Codec id must be between 1 and " + MAX_ID);
+    }
+    CompressionCodec previous = codecs.putIfAbsent(id, codec);
+    if (previous != null && previous != codec) {
+      throw new IllegalArgumentException("Codec id " + id + " is already used by " + previous);
+    }
+  }
+
+  /**
+   * Returns the codec with the given id, or null if there is none.
+   */
+  public static CompressionCodec forId(int id) {
+    return codecs.get(id);
+  }
+
+  /**
+   * Compresses all of {@code data} with {@code codec}.
+   */
+  static byte[] compress(CompressionCodec codec, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    OutputStream out = codec.compress(compressed);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Compresses all of {@code source} with {@code codec} into
+   * {@code compressed} as it is read, without holding it in memory, and
+   * also writes it uncompressed to {@code copy} unless that is null. Closes
+   * both streams.
+   *
+   * @return the number of bytes read from {@code source}.
+   */
+  static long compress(CompressionCodec codec, ByteSource source, OutputStream compressed,
+                       OutputStream copy) throws IOException {
+    OutputStream out = codec.compress(compressed);
+    InputStream in = null;
+    boolean threw = true;
+    try {
+      in = source.openStream();
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      long total = 0;
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+        if (copy != null) {
+          copy.write(buf, 0, n);
+        }
+        total += n;
+      }
+      threw = false;
+      return total;
+    } finally {
+      Closeables.close(in, true);
+      Closeables.close(out, threw);
+      if (copy != null) {
+        Closeables.close(copy, threw);
+      }
+    }
+  }
+
+  /**
+   * Decompresses all of {@code data} with {@code codec}.
+   */
+  static byte[] decompress(CompressionCodec codec, byte[] data) throws IOException {
+    InputStream in = codec.decompress(new ByteArrayInputStream(data));
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -30,8 +30,19 @@ public final class DecodeState {
 
   private final BitSet data;
   private final int capacity;
+
+  // Chunks that were not received but were rebuilt from parity chunks
+  private final BitSet recoverable;
+
+  // Cardinalities of data and recoverable, kept as bits are set so that
+  // checking for completion does not count every bit of a long stream.
+  private int receivedCount;
+  private int recoverableCount;
   private int lastChunkId;
 
+	// Description of the message from its manifest, null until one arrives
+	private Manifest manifest;
+
 	// True if transmission of QR codes stops before entire message received
 	private boolean hasTransmissionFailed;
 
@@ -51,25 +62,27 @@ public final class DecodeState {
 			throw new IllegalArgumentException("DecodeState must have capacity > 0");
 		}
 		this.capacity = capacity;
-		this.data = new BitSet(capacity);
+		// The bitsets grow as chunks arrive, rather than allocating a bit
+		// for every chunk of a stream that may be cancelled early.
+		this.data = new BitSet();
+		this.recoverable = new BitSet();
 		this.hasTransmissionFailed = false;
 		this.hasFrameFailed = false;
 	}
 
 	/**
-	 * Return the state that a transmission is in. If no QR codes have been
-	 * received and decoded, this returns the {@code Initial} state. When at
-	 * least one QR code has been decoded, return {@code Intermediate} state.
-	 * Finally, when all QR codes have been received and decoded, the state
-	 * transitions to {@code Final}.
+	 * Return the state that a transmission is in. When all QR codes have
+	 * been received and decoded, or rebuilt from parity chunks, this returns
+	 * the {@code Final} state. If no chunks have been received or rebuilt,
+	 * return the {@code Initial} state, and otherwise {@code Intermediate}.
 	 */
 	public State getState () {
 		if (hasTransmissionFailed) {
 			return State.Fail;
-		} else if (data.isEmpty()) {
-			return State.Initial;
 		} else if (allBitsSet()) {
 			return State.Final;
+		} else if (receivedCount + recoverableCount == 0) {
+			return State.Initial;
 		} else {
 			return State.Intermediate;
 		}
@@ -78,12 +91,16 @@ public final class DecodeState {
 	@Override
 	public String toString() {
 		StringBuilder s = new StringBuilder(getState().toString());
-		int nFramesReceived = data.cardinality();
+		int nFramesReceived = receivedCount;
 		double complete = (double) nFramesReceived / this.capacity;
 		if(nFramesReceived > 0) {
 		  s.append(", " + nFramesReceived +" of " + this.capacity + ": ");
 			s.append(NumberFormat.getPercentInstance().format(complete));
 		}
+		int nRecoverable = recoverableCount;
+		if (nRecoverable > 0) {
+			s.append(", " + nRecoverable + " recoverable");
+		}
 		return s.toString();
 	}
 
@@ -99,7 +116,14 @@ public final class DecodeState {
 			throw new IndexOutOfBoundsException("Cannot mark bit, the chunkId: " + chunkId +
 			                                    ", is out of bounds");
 		}
-		data.set(chunkId - 1);
+		if (!data.get(chunkId - 1)) {
+			data.set(chunkId - 1);
+			receivedCount++;
+		}
+		if (recoverable.get(chunkId - 1)) {
+			recoverable.clear(chunkId - 1);
+			recoverableCount--;
+		}
                 lastChunkId = chunkId;
 		// Reset failed frame tag if it was set because this method
 		// indicates successful QR code reading
@@ -108,6 +132,25 @@ public final class DecodeState {
 		}
 	}
 
+	/**
+	 * Mark chunk {@code chunkId} as recoverable: it was not received, but
+	 * was rebuilt from the chunks and parity chunks of its group. A chunk
+	 * that was already received stays received.
+	 *
+	 * @throw IndexOutOfBoundsException if {@code chunkId} is not within bounds
+	 * of capacity of underlying bitset.
+	 */
+	public void markDataRecoverable(int chunkId) throws IndexOutOfBoundsException {
+		if (chunkId < 1 || chunkId > capacity) {
+			throw new IndexOutOfBoundsException("Cannot mark bit, the chunkId: " + chunkId +
+			                                    ", is out of bounds");
+		}
+		if (!data.get(chunkId - 1) && !recoverable.get(chunkId - 1)) {
+			recoverable.set(chunkId - 1);
+			recoverableCount++;
+		}
+	}
+
 	/**
 	 * Indicate that transmission failed and we expect no more QR codes
 	 * to decode.
@@ -138,15 +181,24 @@ public final class DecodeState {
 		return (BitSet) data.clone();
 	}
 
+	/**
+	 * Get a deep copy of the bitset of chunks that were rebuilt from parity
+	 * chunks rather than received.
+	 */
+	public BitSet getRecoverableData() {
+		return (BitSet) recoverable.clone();
+	}
+
 	/**
 	 * Returns a list of integers identifying the chunks of data that are still
-	 * missing from the transmission.
+	 * missing from the transmission, and cannot be rebuilt from parity chunks.
 	 */
 	public int[] identifyMissingChunks() {
 		List<Integer> missingChunks = Lists.newArrayList();
+		BitSet available = availableChunks();
 		int i = 0;
 		do {
-			int bit = data.nextClearBit(i);
+			int bit = available.nextClearBit(i);
 			if (bit < capacity) {
 				missingChunks.add(bit + 1);
 			}
@@ -168,17 +220,47 @@ public final class DecodeState {
 	 * Returns the number of QR codes that have been received and decoded
 	 */
 	public int getTotalFramesDecoded() {
-		//Note, this call will take O(n) time.
-		return data.cardinality();
+		return receivedCount;
+	}
+
+	/**
+	 * Returns the number of chunks that were rebuilt from parity chunks
+	 * rather than received.
+	 */
+	public int getTotalChunksRecoverable() {
+		return recoverableCount;
+	}
+
+	/**
+	 * Returns the manifest of the message being received, which describes
+	 * it before its chunks arrive, or null if none has arrived yet or the
+	 * stream has none.
+	 */
+	public Manifest getManifest() {
+		return manifest;
+	}
+
+	void setManifest(Manifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Returns the chunks that were either received or rebuilt, bit
+	 * {@code chunkId - 1} for chunk {@code chunkId}.
+	 */
+	BitSet availableChunks() {
+		BitSet available = (BitSet) data.clone();
+		available.or(recoverable);
+		return available;
 	}
 
 
 	/**
 	 * Returns true when all of the chunks of data have been
-	 * received and false otherwise.
+	 * received or rebuilt and false otherwise.
 	 */
 	private boolean allBitsSet() {
-		return (data.cardinality() == this.capacity);
+		return (receivedCount + recoverableCount == this.capacity);
 	}
 
         /**
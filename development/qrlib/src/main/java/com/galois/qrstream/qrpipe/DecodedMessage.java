@@ -16,30 +16,74 @@
  */
 package com.galois.qrstream.qrpipe;
 
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 
 /**
  * Stores message from sequence of decoded QR codes. Note, the initial
  * capacity is unknown until first QR code is read.
  */
 public final class DecodedMessage {
-  // Container for saving received data.
-  // Using SortedMap so that message can be assembled in order.
-  private final SortedMap<Integer, PartialMessage> receivedData;
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  // Container for saving received data. It holds the chunks in a map until
+  // the manifest tells how long the message is.
+  private ChunkStore receivedData;
+
+  // Directory of the file that holds the chunks once the manifest arrives,
+  // or null to hold them on the heap.
+  private final File storageDirectory;
 
   // Track progress of decoding
   private final IProgress decodeProgress;
-  private DecodeState decodeState;
+  private volatile DecodeState decodeState;
+
+  // Codec the message was compressed with, 0 if none, and the id of its
+  // stream. Set with decodeState.
+  private int codecId;
+  private int sessionId;
+
+  // Recovers the source blocks of a fountain coded message, null otherwise.
+  // Set with decodeState.
+  private FountainDecoder fountainDecoder;
+
+  // Parity chunks received so far by parity chunk id, and the code and
+  // message length they name. Set with the first parity chunk.
+  private final Map<Integer, byte[]> parityData = new HashMap<Integer, byte[]>();
+  private ParityCode parityCode;
+  private int messageLength;
+
+  // The grid of QR codes in each frame of the stream and its number of
+  // colour channels. Set with decodeState.
+  // Volatile as the decoders of a pipelined receive read them.
+  private volatile int tileColumns = 1;
+  private volatile int tileRows = 1;
+  private volatile int channels = 1;
+
+  // The manifest of the stream, null until it arrives. Set with decodeState
+  // when it is the first QR code of the stream.
+  private volatile Manifest manifest;
+
+  // Length of every chunk but the last, -1 until a chunk that shows it
+  // arrives.
+  private int chunkSize = -1;
 
   // Performance metric counters
   private int numRepeatedQRDecodes = 0;
@@ -50,9 +94,19 @@ public final class DecodedMessage {
   private final Stopwatch stopwatch = Stopwatch.createUnstarted();
 
   public DecodedMessage (IProgress progress) {
+    this(progress, null);
+  }
+
+  /**
+   * Creates a message whose chunks are stored in a file in
+   * {@code storageDirectory} once their total length is known, or on the
+   * heap if it is null.
+   */
+  public DecodedMessage (IProgress progress, File storageDirectory) {
     // Initialize 'decodeState' upon decoding first QR code.
-    receivedData = new TreeMap<Integer, PartialMessage>();
+    receivedData = ChunkStore.inMemory();
     decodeProgress = progress;
+    this.storageDirectory = storageDirectory;
   }
 
   /**
@@ -66,18 +120,155 @@ public final class DecodedMessage {
   /**
    * Returns the whole transmitted message whenever it is available, otherwise
    * it returns an empty message to indicate only partial message received.
+   * A compressed message is decompressed.
+   *
+   * @throws IllegalStateException if a compressed or fountain coded message
+   *   is corrupt.
    */
   public byte[] getEntireMessage() {
-    if (receivedData.isEmpty() || (decodeState.getState() != State.Final)) {
-      return new byte[0];
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      writeEntireMessage(out);
+    } catch (IOException e) {
+      // Writing to a ByteArrayOutputStream does not fail.
+      throw new AssertionError(e);
     }
+    return out.toByteArray();
+  }
 
-    // Assemble message in order, we assume key are sorted
-    ByteArrayDataOutput bstream = ByteStreams.newDataOutput();
-    for(Entry<Integer, PartialMessage> entry : receivedData.entrySet()) {
-      bstream.write(entry.getValue().getPayload());
+  /**
+   * Writes the whole transmitted message to {@code out} whenever it is
+   * available, otherwise it writes nothing. A compressed message is
+   * decompressed as it is written, so a large message is never held in
+   * memory a second time.
+   *
+   * @throws IOException if writing to {@code out} fails.
+   * @throws IllegalStateException if a compressed or fountain coded message
+   *   is corrupt.
+   */
+  public void writeEntireMessage(OutputStream out) throws IOException {
+    InputStream message = openAssembledMessage();
+    if (message == null) {
+      return;
     }
-    return bstream.toByteArray();
+    InputStream in = null;
+    try {
+      if (codecId == 0) {
+        ByteStreams.copy(message, out);
+        return;
+      }
+      CompressionCodec codec = CompressionCodecs.forId(codecId);
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      int n;
+      try {
+        in = codec.decompress(message);
+        n = in.read(buf);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to decompress message with " + codec, e);
+      }
+      // Failures to read are corruption, failures to write are the caller's.
+      while (n != -1) {
+        out.write(buf, 0, n);
+        try {
+          n = in.read(buf);
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to decompress message with " + codec, e);
+        }
+      }
+    } finally {
+      // Chunks stored in a file hold it open until the stream is closed.
+      Closeables.close(in, true);
+      Closeables.close(message, true);
+    }
+  }
+
+  /**
+   * Returns a stream of the whole transmitted message whenever it is
+   * available, decompressing a compressed message as it is read, or null
+   * if only part of the message was received. The caller must close it.
+   *
+   * @throws IllegalStateException if a fountain coded message is corrupt,
+   *   or the message does not match its manifest.
+   * @throws IOException if the message cannot be read or decompressed.
+   */
+  InputStream openEntireMessage() throws IOException {
+    InputStream message = openAssembledMessage();
+    if (message == null || codecId == 0) {
+      return message;
+    }
+    boolean opened = false;
+    try {
+      InputStream in = CompressionCodecs.forId(codecId).decompress(message);
+      opened = true;
+      return in;
+    } finally {
+      if (!opened) {
+        Closeables.close(message, true);
+      }
+    }
+  }
+
+  /**
+   * Returns a stream of the whole message as it was sent, before it is
+   * decompressed, or null if only part of it was received.
+   */
+  private InputStream openAssembledMessage() throws IOException {
+    if (decodeState == null || (decodeState.getState() != State.Final)) {
+      return null;
+    }
+    if (fountainDecoder != null) {
+      try {
+        return new ByteArrayInputStream(LtCode.unpad(fountainDecoder.getSource()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("Fountain coded message is corrupt.", e);
+      }
+    }
+    // Assemble message in order
+    ByteSource assembled = receivedData.asByteSource();
+    if (manifest != null && !Arrays.equals(manifest.getDigest(),
+                                           assembled.hash(Manifest.DIGEST).asBytes())) {
+      throw new IllegalStateException("Message does not match the digest of its manifest.");
+    }
+    return assembled.openStream();
+  }
+
+  /**
+   * Returns true once a QR code of the stream being received has arrived.
+   */
+  boolean isStarted() {
+    return decodeState != null;
+  }
+
+  /**
+   * Returns the manifest of the stream being received, or null until it
+   * arrives.
+   */
+  Manifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * Returns the number of columns of QR codes in each frame of the stream
+   * being received, 1 until a chunk of a tiled stream arrives.
+   */
+  int getTileColumns() {
+    return tileColumns;
+  }
+
+  /**
+   * Returns the number of rows of QR codes in each frame of the stream
+   * being received, 1 until a chunk of a tiled stream arrives.
+   */
+  int getTileRows() {
+    return tileRows;
+  }
+
+  /**
+   * Returns the number of colour channels of each frame of the stream
+   * being received, 1 until a chunk of a colour stream arrives.
+   */
+  int getChannels() {
+    return channels;
   }
 
   /**
@@ -99,8 +290,8 @@ public final class DecodedMessage {
   /**
    * Mark progress of data transmission by setting the {@code chunkId}
    * bit in {@code DecodeState} to true whenever a QR code has been decoded.
-   * It also sets up the initial sizes of {@code receivedData} if this is
-   * the first QR code encountered.
+   * It also sets up the message container if this is the first QR code
+   * encountered.
    * @return The {@code State} indicating whether the whole message has been received.
    */
   protected State saveMessageChunk(PartialMessage msgPart) {
@@ -113,20 +304,343 @@ public final class DecodedMessage {
       // This is the beginning of the message. Start the performance timer!
       stopwatch.start();
       decodeState = new DecodeState(msgPart.getTotalChunks());
-      receivedData.clear();
+      codecId = msgPart.getCodecId();
+      sessionId = msgPart.getSessionId();
+      tileColumns = msgPart.getTileColumns();
+      tileRows = msgPart.getTileRows();
+      channels = msgPart.getChannels();
+      if (msgPart.isFountain()) {
+        fountainDecoder = new FountainDecoder(new LtCode(msgPart.getTotalChunks()),
+                                              msgPart.getPayload().length);
+      }
+      receivedData.close();
+      receivedData = ChunkStore.inMemory();
+      parityData.clear();
+      chunkSize = -1;
+    }
+    // Chunks of another stream, or compressed differently, cannot belong
+    // to this message.
+    if (msgPart.getSessionId() != sessionId || msgPart.getCodecId() != codecId
+        || msgPart.getTotalChunks() != decodeState.getCapacity()
+        || msgPart.isFountain() != (fountainDecoder != null)) {
+      logger.debug("QRLib: Ignoring chunk " + msgPart.getChunkId() + " of another stream");
+      return decodeState.getState();
+    }
+    if (fountainDecoder != null) {
+      return saveSymbol(msgPart);
+    }
+    if (msgPart.isParity()) {
+      return saveParity(msgPart);
     }
     // Save message part if we haven't seen it already.
-    if (!receivedData.containsKey(msgPart.getChunkId())) {
-      receivedData.put(msgPart.getChunkId(), msgPart);
+    if (msgPart.isManifest()) {
+      return saveManifest(msgPart);
+    }
+    if (!receivedData.contains(msgPart.getChunkId())) {
+      if (!receivedData.put(msgPart.getChunkId(), msgPart.getPayload())) {
+        logger.debug("QRLib: Chunk " + msgPart.getChunkId() + " does not match the manifest");
+        return decodeState.getState();
+      }
       decodeState.markDataReceived(msgPart.getChunkId());
+      noteChunkSize(msgPart.getChunkId(), msgPart.getPayload().length);
       // Only update progress indicator when decoding is successful
       // and we haven't seen this part of the message before.
       decodeProgress.changeState(decodeState);
       logger.debug("QRLib: Saving chunk " + msgPart.getChunkId() + " of " + msgPart.getTotalChunks());
+      if (parityCode != null) {
+        rebuildGroup(parityCode.groupOf(msgPart.getChunkId()));
+      }
     }else{
       logger.debug("QRLib: Already saved chunk " + msgPart.getChunkId() + " of " + msgPart.getTotalChunks());
       numRepeatedQRDecodes++;
     }
+    return checkFinalState();
+  }
+
+  /**
+   * Saves a parity chunk and rebuilds the missing chunks of its group if
+   * enough of the group has arrived.
+   */
+  private State saveParity(PartialMessage msgPart) {
+    int parityId = msgPart.getChunkId();
+    ParityCode code = msgPart.getParityCode();
+    if (parityCode == null) {
+      parityCode = code;
+      messageLength = msgPart.getMessageLength();
+    } else if (code.getDataChunks() != parityCode.getDataChunks()
+               || code.getParityChunks() != parityCode.getParityChunks()
+               || msgPart.getMessageLength() != messageLength) {
+      logger.debug("QRLib: Ignoring parity chunk " + parityId + " of another stream");
+      return decodeState.getState();
+    }
+    if (parityData.containsKey(parityId)) {
+      logger.debug("QRLib: Already saved parity chunk " + parityId);
+      numRepeatedQRDecodes++;
+      return decodeState.getState();
+    }
+    parityData.put(parityId, msgPart.getPayload());
+    logger.debug("QRLib: Saving parity chunk " + parityId);
+    rebuildGroup(parityCode.groupOfParity(parityId));
+    return checkFinalState();
+  }
+
+  /**
+   * Rebuilds the missing chunks of {@code group} once as many of its
+   * chunks and parity chunks have arrived as it has chunks, and marks them
+   * recoverable in {@code DecodeState}.
+   */
+  private void rebuildGroup(int group) {
+    int totalChunks = decodeState.getCapacity();
+    int dataChunks = parityCode.chunksInGroup(group, totalChunks);
+    int firstChunk = parityCode.firstChunk(group);
+    int firstParity = parityCode.firstParity(group);
+    int present = 0;
+    int missing = 0;
+    int chunkSize = -1;
+    for (int i = 0; i < parityCode.getParityChunks(); i++) {
+      byte[] parity = parityData.get(firstParity + i);
+      if (parity != null) {
+        present++;
+        chunkSize = parity.length;
+      }
+    }
+    for (int i = 0; i < dataChunks; i++) {
+      if (receivedData.contains(firstChunk + i)) {
+        present++;
+      } else {
+        missing++;
+      }
+    }
+    if (missing == 0 || present < dataChunks || chunkSize < 0) {
+      return;
+    }
+
+    // Data chunks are padded with zeros to the length of the parity chunks.
+    byte[][] chunks = new byte[dataChunks + parityCode.getParityChunks()][];
+    for (int i = 0; i < dataChunks; i++) {
+      byte[] payload = receivedData.get(firstChunk + i);
+      if (payload != null) {
+        if (payload.length > chunkSize) {
+          logger.debug("QRLib: Chunk " + (firstChunk + i) + " is longer than its parity");
+          return;
+        }
+        chunks[i] = Arrays.copyOf(payload, chunkSize);
+      }
+    }
+    for (int i = 0; i < parityCode.getParityChunks(); i++) {
+      byte[] parity = parityData.get(firstParity + i);
+      if (parity != null && parity.length != chunkSize) {
+        logger.debug("QRLib: Parity chunks of group " + group + " differ in length");
+        return;
+      }
+      chunks[dataChunks + i] = parity;
+    }
+    // Every chunk but the last is as long as the parity chunks.
+    long lastLength = messageLength - (long) (totalChunks - 1) * chunkSize;
+    if (lastLength < 0 || lastLength > chunkSize) {
+      logger.debug("QRLib: Parity chunks give an impossible message length");
+      return;
+    }
+    if (!parityCode.recover(chunks)) {
+      return;
+    }
+    for (int i = 0; i < dataChunks; i++) {
+      int chunkId = firstChunk + i;
+      if (receivedData.contains(chunkId)) {
+        continue;
+      }
+      int length = chunkId == totalChunks ? (int) lastLength : chunkSize;
+      if (receivedData.put(chunkId, Arrays.copyOf(chunks[i], length))) {
+        decodeState.markDataRecoverable(chunkId);
+        noteChunkSize(chunkId, length);
+      }
+    }
+    logger.debug("QRLib: Rebuilt " + missing + " chunks of group " + group);
+    decodeProgress.changeState(decodeState);
+  }
+
+  /**
+   * Saves the manifest of the stream, reports it to the progress indicator,
+   * and moves the chunks received so far to storage of the message's
+   * length.
+   */
+  private State saveManifest(PartialMessage msgPart) {
+    if (manifest != null) {
+      logger.debug("QRLib: Already saved manifest");
+      numRepeatedQRDecodes++;
+      return decodeState.getState();
+    }
+    Manifest m;
+    try {
+      m = Manifest.parse(msgPart.getPayload());
+    } catch (IllegalArgumentException e) {
+      logger.debug("QRLib: Ignoring malformed manifest: " + e.getMessage());
+      return decodeState.getState();
+    }
+    if (m.getTotalChunks() != decodeState.getCapacity()) {
+      logger.debug("QRLib: Ignoring manifest of " + m.getTotalChunks() + " chunks in a stream of "
+                   + decodeState.getCapacity());
+      return decodeState.getState();
+    }
+    if (!matchesReceivedChunks(m)) {
+      logger.debug("QRLib: Ignoring " + m + " that does not match the chunks received");
+      return decodeState.getState();
+    }
+    manifest = m;
+    chunkSize = m.getChunkSize();
+    decodeState.setManifest(m);
+    logger.debug("QRLib: Saving " + m);
+    moveToStorage(m);
+    decodeProgress.changeState(decodeState);
+    return decodeState.getState();
+  }
+
+  /**
+   * Returns true if the chunks received so far have the lengths that
+   * {@code m} gives them, so that storage is not preallocated for a
+   * manifest that claims a longer message than the stream holds.
+   */
+  private boolean matchesReceivedChunks(Manifest m) {
+    int totalChunks = m.getTotalChunks();
+    long lastLength = m.getLength() - (long) (totalChunks - 1) * m.getChunkSize();
+    for (int chunkId : receivedData.chunkIds()) {
+      long expected = chunkId == totalChunks ? lastLength : m.getChunkSize();
+      if (receivedData.get(chunkId).length != expected) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the chunks received so far to storage preallocated for the
+   * message that {@code m} describes. Keeps them where they are if it
+   * cannot be allocated, or they do not fit it.
+   */
+  private void moveToStorage(Manifest m) {
+    ChunkStore store;
+    try {
+      store = storageDirectory == null
+          ? ChunkStore.onHeap(m.getLength(), m.getChunkSize())
+          : ChunkStore.inFile(storageDirectory, m.getLength(), m.getChunkSize());
+    } catch (IOException e) {
+      logger.warn("QRLib: Unable to preallocate storage for " + m, e);
+      return;
+    }
+    if (store == null) {
+      return;
+    }
+    for (int chunkId : receivedData.chunkIds()) {
+      if (!store.put(chunkId, receivedData.get(chunkId))) {
+        logger.debug("QRLib: Chunk " + chunkId + " does not match the manifest");
+        store.close();
+        return;
+      }
+    }
+    receivedData.close();
+    receivedData = store;
+  }
+
+  /**
+   * Records the length of every chunk but the last from chunk
+   * {@code chunkId} of {@code length} bytes, if it is not the last.
+   */
+  private void noteChunkSize(int chunkId, int length) {
+    if (chunkSize < 0 && (chunkId < decodeState.getCapacity() || chunkId == 1)) {
+      chunkSize = length;
+    }
+  }
+
+  /**
+   * Returns the length of every chunk but the last, or -1 until a chunk or
+   * manifest that shows it arrives.
+   */
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the chunks received or rebuilt so far, bit {@code chunkId - 1}
+   * for chunk {@code chunkId}.
+   */
+  BitSet getAvailableChunks() {
+    return decodeState == null ? new BitSet() : decodeState.availableChunks();
+  }
+
+  /**
+   * Returns the {@code length} bytes of the message at {@code offset} once
+   * the chunks that cover them have arrived, before the rest of the message
+   * does, or null if they have not. Returns null for compressed and fountain
+   * coded messages, whose bytes are only known once they are complete.
+   */
+  byte[] readRange(long offset, int length) {
+    if (decodeState == null || codecId != 0 || fountainDecoder != null || chunkSize < 1) {
+      return null;
+    }
+    int first = (int) (offset / chunkSize) + 1;
+    int last = length == 0 ? first : (int) ((offset + length - 1) / chunkSize) + 1;
+    for (int chunkId = first; chunkId <= last; chunkId++) {
+      if (!receivedData.contains(chunkId)) {
+        return null;
+      }
+    }
+    byte[] range = new byte[length];
+    int copied = 0;
+    for (int chunkId = first; copied < length; chunkId++) {
+      byte[] chunk = receivedData.get(chunkId);
+      int from = (int) (offset + copied - (long) (chunkId - 1) * chunkSize);
+      int n = Math.min(chunk.length - from, length - copied);
+      if (from < 0 || n <= 0) {
+        // Chunks are not all as long as the first one.
+        return null;
+      }
+      System.arraycopy(chunk, from, range, copied, n);
+      copied += n;
+    }
+    return range;
+  }
+
+  /**
+   * Releases the storage of the message's chunks, deleting the file that
+   * holds them if there is one. The message must not be used afterwards.
+   */
+  void discard() {
+    receivedData.close();
+  }
+
+  /**
+   * Adds a fountain coded symbol to the message and marks every source
+   * block that it allowed to be recovered in {@code DecodeState}.
+   */
+  private State saveSymbol(PartialMessage msgPart) {
+    int symbolId = msgPart.getChunkId();
+    byte[] symbol = msgPart.getPayload();
+    if (symbol.length != fountainDecoder.getBlockSize()) {
+      logger.debug("QRLib: Ignoring symbol " + symbolId + " of the wrong size");
+      return decodeState.getState();
+    }
+    if (fountainDecoder.hasSymbol(symbolId)) {
+      logger.debug("QRLib: Already saved symbol " + symbolId);
+      numRepeatedQRDecodes++;
+      return decodeState.getState();
+    }
+    int[] recovered = fountainDecoder.add(symbolId, symbol);
+    for (int block : recovered) {
+      decodeState.markDataReceived(block + 1);
+    }
+    if (recovered.length > 0) {
+      decodeProgress.changeState(decodeState);
+    }
+    logger.debug("QRLib: Saving symbol " + symbolId + ", recovered " + recovered.length
+                 + " blocks");
+    return checkFinalState();
+  }
+
+  /**
+   * Returns the current state, and reports the decoding performance when
+   * the message is complete.
+   */
+  private State checkFinalState() {
     State currentState = decodeState.getState();
     if (currentState == State.Final) {
       // This is the end of the message. Report the decoding performance.
@@ -0,0 +1,432 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * rsync-style deltas, which describe a new version of a file in terms of
+ * an older version that the receiver already has. The receiver describes
+ * its base file with a {@link Signature}: a weak rolling checksum and a
+ * strong hash of each of its blocks. The sender slides a window over the
+ * new file, and wherever the window matches a block of the base, sends an
+ * instruction to copy that block rather than its bytes. A delta is as
+ * large as the changes between the files, plus a few bytes per run of
+ * copied blocks.
+ *
+ * A delta holds, as big-endian integers:
+ * <pre>
+ *   block size (u32)     the block size of the signature it was made from
+ *   base length (u32)    the length of the base file
+ *   length (u32)         the length of the new file
+ *   CRC (u32)            CRC-32 of the new file
+ *   instructions         until the end of the delta, each one of
+ *     0 (u8), n (u32), n bytes                 insert the bytes
+ *     1 (u8), first block (u32), blocks (u32)  copy blocks of the base
+ * </pre>
+ *
+ * Deltas are made and applied in memory, from whole files, so both files
+ * are limited to {@link #MAX_LENGTH} bytes.
+ */
+public final class Delta {
+
+  /* Block sizes chosen for a base file, as rsync does: about the square
+   * root of its length, so signature and delta overhead stay balanced */
+  static final int MIN_BLOCK_SIZE = 512;
+  static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+  /**
+   * The longest base or new file that a delta can be made for. Both files
+   * and the delta are held in arrays, and the delta of a file that shares
+   * nothing with its base is a little longer than the file, so files are
+   * kept to half of the largest array.
+   */
+  public static final int MAX_LENGTH = 1 << 30;
+
+  private static final int INSERT = 0;
+  private static final int COPY = 1;
+
+  /* Strong hash of each block, of which signatures keep the first 8 bytes */
+  private static final HashFunction STRONG_HASH = Hashing.md5();
+
+  // Do not allow class to be instantiated.
+  private Delta() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Returns the signature of {@code base} with a block size suited to its
+   * length.
+   */
+  public static Signature signature(byte[] base) {
+    int blockSize = (int) Math.sqrt(base.length) & ~7;
+    return signature(base, Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, blockSize)));
+  }
+
+  /**
+   * Returns the signature of {@code base} split into blocks of
+   * {@code blockSize} bytes. Smaller blocks find more of the base in the
+   * new file, but make a larger signature and more copy instructions.
+   *
+   * @throws IllegalArgumentException if {@code blockSize} is not positive,
+   *   or {@code base} is longer than {@link #MAX_LENGTH} bytes.
+   */
+  public static Signature signature(byte[] base, int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be positive.");
+    }
+    checkLength(base.length);
+    int blocks = blockCount(base.length, blockSize);
+    int[] weak = new int[blocks];
+    long[] strong = new long[blocks];
+    for (int i = 0; i < blocks; i++) {
+      int start = i * blockSize;
+      int length = Math.min(blockSize, base.length - start);
+      weak[i] = weakChecksum(base, start, length);
+      strong[i] = strongHash(base, start, length);
+    }
+    return new Signature(blockSize, base.length, weak, strong);
+  }
+
+  /**
+   * Returns the delta that rebuilds {@code data} from the base file that
+   * {@code base} is the signature of.
+   *
+   * @throws IllegalArgumentException if {@code data} is longer than
+   *   {@link #MAX_LENGTH} bytes.
+   */
+  public static byte[] encode(Signature base, byte[] data) {
+    checkLength(data.length);
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeInt(base.blockSize);
+    out.writeInt(base.baseLength);
+    out.writeInt(data.length);
+    out.writeInt((int) Hashing.crc32().hashBytes(data).padToLong());
+
+    Map<Integer, List<Integer>> blocksByChecksum = base.blocksByChecksum();
+    int blockSize = base.blockSize;
+    int lastBlock = base.weak.length - 1;
+    int lastBlockLength = lastBlock < 0 ? 0 : base.baseLength - lastBlock * blockSize;
+
+    int literalStart = 0;
+    int copyStart = -1;
+    int copyBlocks = 0;
+    int pos = 0;
+    int window = Math.min(blockSize, data.length);
+    int checksum = weakChecksum(data, 0, window);
+    while (pos < data.length) {
+      // Only the last block of the base may be shorter than the others,
+      // and the window only shrinks at the end of the data.
+      int match = -1;
+      if (window == blockSize || window == lastBlockLength) {
+        match = findBlock(base, blocksByChecksum, checksum, data, pos, window);
+      }
+      if (match >= 0) {
+        if (literalStart < pos) {
+          writeCopy(out, copyStart, copyBlocks);
+          copyBlocks = 0;
+          writeInsert(out, data, literalStart, pos);
+        }
+        if (copyBlocks > 0 && copyStart + copyBlocks == match) {
+          copyBlocks++;
+        } else {
+          writeCopy(out, copyStart, copyBlocks);
+          copyStart = match;
+          copyBlocks = 1;
+        }
+        pos += window;
+        literalStart = pos;
+        window = Math.min(blockSize, data.length - pos);
+        checksum = weakChecksum(data, pos, window);
+      } else {
+        if (pos + window < data.length) {
+          checksum = rollChecksum(checksum, window, data[pos], data[pos + window]);
+        } else {
+          checksum = dropChecksum(checksum, window, data[pos]);
+          window--;
+        }
+        pos++;
+      }
+    }
+    if (literalStart < pos) {
+      writeCopy(out, copyStart, copyBlocks);
+      copyBlocks = 0;
+      writeInsert(out, data, literalStart, pos);
+    }
+    writeCopy(out, copyStart, copyBlocks);
+    return out.toByteArray();
+  }
+
+  /**
+   * Rebuilds the new file from {@code base} and a {@code delta} made from
+   * the signature of {@code base}.
+   *
+   * @throws IllegalArgumentException if the delta is malformed or was made
+   *   against a different base, so that the result does not match, or
+   *   {@code base} is longer than {@link #MAX_LENGTH} bytes.
+   */
+  public static byte[] apply(byte[] base, byte[] delta) {
+    checkLength(base.length);
+    ByteArrayDataInput in = ByteStreams.newDataInput(delta);
+    try {
+      int blockSize = in.readInt();
+      int baseLength = in.readInt();
+      int length = in.readInt();
+      int crc = in.readInt();
+      if (blockSize < 1 || length < 0 || length > MAX_LENGTH) {
+        throw new IllegalArgumentException("Malformed delta header.");
+      }
+      if (baseLength != base.length) {
+        throw new IllegalArgumentException("Delta expects a base of " + baseLength
+            + " bytes, but got " + base.length);
+      }
+      byte[] data = new byte[length];
+      int pos = 0;
+      int read = 16;
+      while (read < delta.length) {
+        int op = in.readUnsignedByte();
+        if (op == INSERT) {
+          int n = in.readInt();
+          if (n < 0 || n > length - pos) {
+            throw new IllegalArgumentException("Delta inserts past the end of the data.");
+          }
+          in.readFully(data, pos, n);
+          pos += n;
+          read += 5 + n;
+        } else if (op == COPY) {
+          long start = (long) in.readInt() * blockSize;
+          long end = Math.min(start + (long) in.readInt() * blockSize, base.length);
+          if (start < 0 || start >= end || end - start > length - pos) {
+            throw new IllegalArgumentException("Delta copies outside of the base or data.");
+          }
+          System.arraycopy(base, (int) start, data, pos, (int) (end - start));
+          pos += (int) (end - start);
+          read += 9;
+        } else {
+          throw new IllegalArgumentException("Unknown delta instruction " + op);
+        }
+      }
+      if (pos != length || (int) Hashing.crc32().hashBytes(data).padToLong() != crc) {
+        throw new IllegalArgumentException("Delta does not rebuild the data from this base.");
+      }
+      return data;
+    } catch (IllegalStateException e) {
+      // ByteArrayDataInput throws this when the delta is truncated.
+      throw new IllegalArgumentException("Delta is truncated.", e);
+    }
+  }
+
+  private static void checkLength(int length) {
+    if (length > MAX_LENGTH) {
+      throw new IllegalArgumentException("Deltas are limited to files of " + MAX_LENGTH
+          + " bytes, but got " + length);
+    }
+  }
+
+  private static void writeInsert(ByteArrayDataOutput out, byte[] data, int start, int end) {
+    out.writeByte(INSERT);
+    out.writeInt(end - start);
+    out.write(data, start, end - start);
+  }
+
+  private static void writeCopy(ByteArrayDataOutput out, int firstBlock, int blocks) {
+    if (blocks > 0) {
+      out.writeByte(COPY);
+      out.writeInt(firstBlock);
+      out.writeInt(blocks);
+    }
+  }
+
+  /**
+   * Returns the index of a block of the base with {@code checksum} whose
+   * strong hash matches {@code length} bytes of {@code data} at
+   * {@code pos}, or -1 if there is none.
+   */
+  private static int findBlock(Signature base, Map<Integer, List<Integer>> blocksByChecksum,
+                               int checksum, byte[] data, int pos, int length) {
+    List<Integer> candidates = blocksByChecksum.get(checksum);
+    if (candidates == null) {
+      return -1;
+    }
+    long strong = strongHash(data, pos, length);
+    for (int block : candidates) {
+      int blockLength = Math.min(base.blockSize, base.baseLength - block * base.blockSize);
+      if (blockLength == length && base.strong[block] == strong) {
+        return block;
+      }
+    }
+    return -1;
+  }
+
+  private static int blockCount(int length, int blockSize) {
+    return length == 0 ? 0 : (length - 1) / blockSize + 1;
+  }
+
+  /**
+   * Returns rsync's weak checksum of {@code length} bytes at {@code start}:
+   * the sum of the bytes in the low 16 bits, and the sum of the running
+   * sums in the high 16 bits.
+   */
+  static int weakChecksum(byte[] data, int start, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      a += data[start + i] & 0xff;
+      b += a;
+    }
+    return (b << 16) | (a & 0xffff);
+  }
+
+  /**
+   * Returns the weak checksum of a window of {@code length} bytes moved
+   * forward by one byte, from the checksum before it, the byte that left
+   * the window and the byte that entered it.
+   */
+  static int rollChecksum(int checksum, int length, byte out, byte in) {
+    int a = checksum & 0xffff;
+    int b = checksum >>> 16;
+    a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+    b = (b - length * (out & 0xff) + a) & 0xffff;
+    return (b << 16) | a;
+  }
+
+  /**
+   * Returns the weak checksum of a window of {@code length} bytes less its
+   * first byte, {@code out}, as the window shrinks at the end of the data.
+   */
+  static int dropChecksum(int checksum, int length, byte out) {
+    int a = ((checksum & 0xffff) - (out & 0xff)) & 0xffff;
+    int b = ((checksum >>> 16) - length * (out & 0xff)) & 0xffff;
+    return (b << 16) | a;
+  }
+
+  private static long strongHash(byte[] data, int start, int length) {
+    return STRONG_HASH.hashBytes(data, start, length).asLong();
+  }
+
+  /**
+   * The checksums of the blocks of a base file, which a sender needs to
+   * make a delta against it. Signatures are small, about 12 bytes per block,
+   * so a receiver can send one back to the transmitter in a few QR codes.
+   */
+  public static final class Signature {
+    private final int blockSize;
+    private final int baseLength;
+    private final int[] weak;
+    private final long[] strong;
+
+    private Signature(int blockSize, int baseLength, int[] weak, long[] strong) {
+      this.blockSize = blockSize;
+      this.baseLength = baseLength;
+      this.weak = weak;
+      this.strong = strong;
+    }
+
+    public int getBlockSize() {
+      return blockSize;
+    }
+
+    public int getBaseLength() {
+      return baseLength;
+    }
+
+    public int getBlockCount() {
+      return weak.length;
+    }
+
+    /**
+     * Returns the signature as bytes: the block size and base length as
+     * big-endian u32s, then the weak checksum (u32) and strong hash (u64)
+     * of each block.
+     */
+    public byte[] toByteArray() {
+      ByteArrayDataOutput out = ByteStreams.newDataOutput(8 + 12 * weak.length);
+      out.writeInt(blockSize);
+      out.writeInt(baseLength);
+      for (int i = 0; i < weak.length; i++) {
+        out.writeInt(weak[i]);
+        out.writeLong(strong[i]);
+      }
+      return out.toByteArray();
+    }
+
+    /**
+     * Reads a signature written by {@link #toByteArray}.
+     *
+     * @throws IllegalArgumentException if {@code bytes} is not a signature.
+     */
+    public static Signature parse(byte[] bytes) {
+      if (bytes.length < 8 || (bytes.length - 8) % 12 != 0) {
+        throw new IllegalArgumentException("Malformed signature of " + bytes.length + " bytes.");
+      }
+      ByteArrayDataInput in = ByteStreams.newDataInput(bytes);
+      int blockSize = in.readInt();
+      int baseLength = in.readInt();
+      int blocks = (bytes.length - 8) / 12;
+      if (blockSize < 1 || baseLength < 0 || baseLength > MAX_LENGTH
+          || blocks != blockCount(baseLength, blockSize)) {
+        throw new IllegalArgumentException("Malformed signature header.");
+      }
+      int[] weak = new int[blocks];
+      long[] strong = new long[blocks];
+      for (int i = 0; i < blocks; i++) {
+        weak[i] = in.readInt();
+        strong[i] = in.readLong();
+      }
+      return new Signature(blockSize, baseLength, weak, strong);
+    }
+
+    /* Indexes the blocks by weak checksum, for the sender's lookups */
+    private Map<Integer, List<Integer>> blocksByChecksum() {
+      Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+      for (int i = 0; i < weak.length; i++) {
+        List<Integer> same = blocks.get(weak[i]);
+        if (same == null) {
+          same = Lists.newArrayListWithCapacity(1);
+          blocks.put(weak[i], same);
+        }
+        same.add(i);
+      }
+      return blocks;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Signature)) {
+        return false;
+      }
+      Signature other = (Signature) o;
+      return blockSize == other.blockSize && baseLength == other.baseLength
+          && Arrays.equals(weak, other.weak) && Arrays.equals(strong, other.strong);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * blockSize + baseLength) + Arrays.hashCode(strong);
+    }
+  }
+}
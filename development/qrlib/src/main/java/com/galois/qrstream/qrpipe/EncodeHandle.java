@@ -0,0 +1,177 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
+import com.galois.qrstream.image.BitmapImage;
+
+/**
+ * Handle to QR codes being encoded in the background by
+ * {@link Transmit#encodeAsync}. The QR codes are taken in chunk order, each as
+ * soon as it is encoded; the encoder runs a few QR codes ahead of the
+ * consumer and then waits for it. Once every QR code has been taken,
+ * {@link #getCollection} repeats them for later passes over the data.
+ * The methods of a handle may be called from any thread.
+ */
+public final class EncodeHandle {
+  /* QR codes encoded but not yet taken */
+  private final Queue<BitmapImage> ready = new ArrayDeque<BitmapImage>();
+  private final int maxPending;
+
+  private Transmit.ImgCollection collection;
+  private int totalChunks = -1;
+  private int encodedChunks;
+  private boolean finished;
+  private boolean cancelled;
+  private Exception failure;
+
+  EncodeHandle(int maxPending) {
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Returns the next QR code if it has been encoded, otherwise null
+   * without waiting.
+   *
+   * @throws IllegalStateException if encoding failed.
+   */
+  public synchronized BitmapImage poll() {
+    checkFailure();
+    BitmapImage next = ready.poll();
+    if (next != null) {
+      notifyAll();
+    }
+    return next;
+  }
+
+  /**
+   * Returns the next QR code, waiting until it has been encoded, or null
+   * once every QR code has been taken or the handle is cancelled.
+   *
+   * @throws IllegalStateException if encoding failed.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized BitmapImage take() throws InterruptedException {
+    while (ready.isEmpty() && !finished && !cancelled && failure == null) {
+      wait();
+    }
+    return poll();
+  }
+
+  /**
+   * Stops encoding and drops the QR codes not yet taken. The QR code
+   * being encoded, if any, is finished but not kept.
+   */
+  public synchronized void cancel() {
+    cancelled = true;
+    ready.clear();
+    notifyAll();
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Returns true once every QR code has been taken, the handle is
+   * cancelled, or encoding failed.
+   */
+  public synchronized boolean isDone() {
+    return (finished && ready.isEmpty()) || cancelled || failure != null;
+  }
+
+  /**
+   * Returns the number of QR codes, or -1 until the data is ready to
+   * encode.
+   */
+  public synchronized int getTotalChunks() {
+    return totalChunks;
+  }
+
+  /**
+   * Returns the number of QR codes encoded so far, for reporting
+   * progress.
+   */
+  public synchronized int getEncodedChunks() {
+    return encodedChunks;
+  }
+
+  /**
+   * Returns the collection of the QR codes, to encode them again or at
+   * random, or null until the data is ready to encode.
+   */
+  public synchronized Transmit.ImgCollection getCollection() {
+    return collection;
+  }
+
+  /**
+   * Encodes the QR codes of {@code images} into the handle until they
+   * run out or the handle is cancelled.
+   */
+  void run(Transmit.ImgCollection images) {
+    synchronized (this) {
+      collection = images;
+      totalChunks = images.size();
+      notifyAll();
+    }
+    try {
+      Iterator<BitmapImage> it = images.iterator();
+      while (it.hasNext()) {
+        synchronized (this) {
+          while (ready.size() >= maxPending && !cancelled) {
+            wait();
+          }
+          if (cancelled) {
+            return;
+          }
+        }
+        BitmapImage next = it.next();
+        synchronized (this) {
+          if (cancelled) {
+            return;
+          }
+          ready.add(next);
+          encodedChunks++;
+          notifyAll();
+        }
+      }
+      synchronized (this) {
+        finished = true;
+        notifyAll();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail(e);
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  synchronized void fail(Exception e) {
+    failure = e;
+    notifyAll();
+  }
+
+  private void checkFailure() {
+    if (failure != null) {
+      throw new IllegalStateException("Unable to encode QR codes.", failure);
+    }
+  }
+}
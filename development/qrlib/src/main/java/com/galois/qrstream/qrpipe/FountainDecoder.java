@@ -0,0 +1,303 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Recovers the source blocks of an {@link LtCode} from symbols received in
+ * any order. Decoding is by peeling: a symbol with a single unknown block
+ * reveals that block, which is then XORed out of every other symbol that
+ * contains it. Peeling recovers the source blocks that arrive as they are,
+ * but rarely gets far with the dense repair symbols, so once it stalls with
+ * at least as many waiting symbols as unknown blocks, the decoder solves
+ * for the remaining blocks by Gaussian elimination.
+ * Not thread-safe.
+ */
+final class FountainDecoder {
+
+  private final LtCode code;
+  private final int blockSize;
+
+  /* Recovered source blocks, null while unknown */
+  private final byte[][] blocks;
+  private int recovered;
+
+  /* Symbol ids received so far */
+  private final BitSet seen = new BitSet();
+
+  /* Symbols waiting on more than one unknown block, by unknown block */
+  private final List<List<Pending>> waiting;
+
+  /* Every symbol that waited on more than one unknown block */
+  private final List<Pending> pending = new ArrayList<Pending>();
+  private int pendingCount;
+
+  FountainDecoder(LtCode code, int blockSize) {
+    this.code = code;
+    this.blockSize = blockSize;
+    this.blocks = new byte[code.getSourceBlocks()][];
+    this.waiting = new ArrayList<List<Pending>>(code.getSourceBlocks());
+    for (int i = 0; i < code.getSourceBlocks(); i++) {
+      waiting.add(null);
+    }
+  }
+
+  int getBlockSize() {
+    return blockSize;
+  }
+
+  boolean isComplete() {
+    return recovered == blocks.length;
+  }
+
+  /**
+   * Returns true if symbol {@code symbolId} was already added.
+   */
+  boolean hasSymbol(int symbolId) {
+    return seen.get(symbolId);
+  }
+
+  /**
+   * Adds symbol {@code symbolId} and returns the 0-indexed source blocks
+   * that it allowed to be recovered, if any.
+   *
+   * @throws IllegalArgumentException if {@code symbol} is not one block long.
+   */
+  int[] add(int symbolId, byte[] symbol) {
+    if (symbol.length != blockSize) {
+      throw new IllegalArgumentException("Expected symbols of " + blockSize
+          + " bytes, but got " + symbol.length);
+    }
+    if (seen.get(symbolId) || isComplete()) {
+      seen.set(symbolId);
+      return new int[0];
+    }
+    seen.set(symbolId);
+
+    int[] neighbors = code.neighbors(symbolId);
+    byte[] data = symbol.clone();
+    int unknown = 0;
+    int lastUnknown = -1;
+    for (int block : neighbors) {
+      if (blocks[block] != null) {
+        xor(data, blocks[block]);
+      } else {
+        unknown++;
+        lastUnknown = block;
+      }
+    }
+
+    ArrayDeque<Integer> found = new ArrayDeque<Integer>();
+    if (unknown == 1) {
+      blocks[lastUnknown] = data;
+      found.add(lastUnknown);
+    } else if (unknown > 1) {
+      Pending symbolPending = new Pending(neighbors, data, unknown);
+      pending.add(symbolPending);
+      pendingCount++;
+      for (int block : neighbors) {
+        if (blocks[block] == null) {
+          List<Pending> list = waiting.get(block);
+          if (list == null) {
+            list = new ArrayList<Pending>(2);
+            waiting.set(block, list);
+          }
+          list.add(symbolPending);
+        }
+      }
+    }
+
+    // Peel: every recovered block may leave other symbols with one unknown.
+    List<Integer> result = new ArrayList<Integer>();
+    while (!found.isEmpty()) {
+      int block = found.poll();
+      recovered++;
+      result.add(block);
+      List<Pending> list = waiting.get(block);
+      waiting.set(block, null);
+      if (list == null) {
+        continue;
+      }
+      for (Pending p : list) {
+        if (p.unknown == 0) {
+          continue;
+        }
+        xor(p.data, blocks[block]);
+        p.unknown--;
+        if (p.unknown == 1) {
+          for (int other : p.neighbors) {
+            if (blocks[other] == null) {
+              blocks[other] = p.data;
+              found.add(other);
+              break;
+            }
+          }
+          p.unknown = 0;
+          pendingCount--;
+        }
+      }
+    }
+    if (!isComplete() && pendingCount >= blocks.length - recovered) {
+      solve(result);
+    }
+    int[] ids = new int[result.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = result.get(i);
+    }
+    return ids;
+  }
+
+  /**
+   * Recovers every unknown block from the waiting symbols by Gaussian
+   * elimination over GF(2), and adds them to {@code result}. Does nothing
+   * if the waiting symbols do not determine all of the unknown blocks.
+   */
+  private void solve(List<Integer> result) {
+    // Number the unknown blocks, which become the columns.
+    int[] column = new int[blocks.length];
+    List<Integer> unknownBlocks = new ArrayList<Integer>();
+    for (int i = 0; i < blocks.length; i++) {
+      if (blocks[i] == null) {
+        column[i] = unknownBlocks.size();
+        unknownBlocks.add(i);
+      }
+    }
+    List<Pending> rows = new ArrayList<Pending>(pendingCount);
+    List<BitSet> coefficients = new ArrayList<BitSet>(pendingCount);
+    for (Pending p : pending) {
+      if (p.unknown > 0) {
+        BitSet bits = new BitSet(unknownBlocks.size());
+        for (int block : p.neighbors) {
+          if (blocks[block] == null) {
+            bits.set(column[block]);
+          }
+        }
+        rows.add(p);
+        coefficients.add(bits);
+      }
+    }
+
+    // Eliminate on the coefficients alone first; rank deficient systems,
+    // the common case while symbols are still arriving, are cheap to reject.
+    int n = unknownBlocks.size();
+    int[] pivotRows = eliminate(copyOf(coefficients), n, null);
+    if (pivotRows == null) {
+      return;
+    }
+    List<byte[]> data = new ArrayList<byte[]>(rows.size());
+    for (Pending p : rows) {
+      data.add(p.data.clone());
+    }
+    eliminate(coefficients, n, data);
+    for (int col = 0; col < n; col++) {
+      int block = unknownBlocks.get(col);
+      blocks[block] = data.get(pivotRows[col]);
+      recovered++;
+      result.add(block);
+    }
+    for (Pending p : rows) {
+      p.unknown = 0;
+    }
+    pending.clear();
+    pendingCount = 0;
+    for (int i = 0; i < blocks.length; i++) {
+      waiting.set(i, null);
+    }
+  }
+
+  /**
+   * Reduces {@code rows} to have a single row with each of the {@code n}
+   * columns set, applying the same row operations to {@code data} unless it
+   * is null. Returns the row holding each column, or null if some column
+   * cannot be isolated.
+   */
+  private static int[] eliminate(List<BitSet> rows, int n, List<byte[]> data) {
+    int[] pivotRows = new int[n];
+    boolean[] used = new boolean[rows.size()];
+    for (int col = 0; col < n; col++) {
+      int pivot = -1;
+      for (int r = 0; r < rows.size() && pivot < 0; r++) {
+        if (!used[r] && rows.get(r).get(col)) {
+          pivot = r;
+        }
+      }
+      if (pivot < 0) {
+        return null;
+      }
+      used[pivot] = true;
+      pivotRows[col] = pivot;
+      BitSet pivotBits = rows.get(pivot);
+      for (int r = 0; r < rows.size(); r++) {
+        if (r != pivot && rows.get(r).get(col)) {
+          rows.get(r).xor(pivotBits);
+          if (data != null) {
+            xor(data.get(r), data.get(pivot));
+          }
+        }
+      }
+    }
+    return pivotRows;
+  }
+
+  private static List<BitSet> copyOf(List<BitSet> rows) {
+    List<BitSet> copy = new ArrayList<BitSet>(rows.size());
+    for (BitSet row : rows) {
+      copy.add((BitSet) row.clone());
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the source blocks concatenated, once all have been recovered.
+   */
+  byte[] getSource() {
+    if (!isComplete()) {
+      throw new IllegalStateException("Recovered " + recovered + " of "
+          + blocks.length + " blocks.");
+    }
+    byte[] source = new byte[blocks.length * blockSize];
+    for (int i = 0; i < blocks.length; i++) {
+      System.arraycopy(blocks[i], 0, source, i * blockSize, blockSize);
+    }
+    return source;
+  }
+
+  private static void xor(byte[] into, byte[] block) {
+    for (int i = 0; i < into.length; i++) {
+      into[i] ^= block[i];
+    }
+  }
+
+  /**
+   * A received symbol with the known blocks XORed out of its data.
+   */
+  private static final class Pending {
+    final int[] neighbors;
+    final byte[] data;
+    int unknown;
+
+    Pending(int[] neighbors, byte[] data, int unknown) {
+      this.neighbors = neighbors;
+      this.data = data;
+      this.unknown = unknown;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Iterator;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Endless stream of fountain coded QR codes, generated on demand. The
+ * first {@link #getSourceBlocks()} QR codes carry the source blocks
+ * themselves, and every later one a combination of them. Symbol ids are
+ * bounded, so after the last one the stream starts over with the first
+ * combined symbol. Iterators never run out of QR codes; stop iterating
+ * once the receiver has the data.
+ */
+public final class FountainStream implements Iterable<BitmapImage> {
+  /* Encodes the QR codes of the symbols */
+  private final Transmit transmitter;
+
+  private final Version qrVersion;
+  private final ErrorCorrectionLevel ecLevel;
+
+  /* The padded data, sourceBlocks blocks of blockSize bytes */
+  private final byte[] source;
+  private final int blockSize;
+  private final LtCode code;
+  private final int maxSymbolId;
+
+  /* Codec the data was compressed with and its id, or null and 0 */
+  private final CompressionCodec codec;
+  private final int codecId;
+
+  /* Identifies the stream in the header of each symbol */
+  private final int sessionId;
+
+  FountainStream(Transmit transmitter, byte[] source, int blockSize, int sourceBlocks,
+                 Version qrVersion, ErrorCorrectionLevel ecLevel, CompressionCodec codec) {
+    this.transmitter = transmitter;
+    this.source = source;
+    this.blockSize = blockSize;
+    this.code = new LtCode(sourceBlocks);
+    this.maxSymbolId = LtCode.maxSymbolId(sourceBlocks);
+    this.qrVersion = qrVersion;
+    this.ecLevel = ecLevel;
+    this.codec = codec;
+    this.codecId = codec == null ? 0 : codec.getId();
+    this.sessionId = Transmit.newSessionId();
+  }
+
+  /**
+   * Returns the number of blocks the data was split into. A receiver
+   * needs at least this many QR codes, and usually a few percent more.
+   */
+  public int getSourceBlocks() {
+    return code.getSourceBlocks();
+  }
+
+  /**
+   * Returns the largest symbol id, after which iterators start over.
+   */
+  public int getMaxSymbolId() {
+    return maxSymbolId;
+  }
+
+  public Version getVersion() {
+    return qrVersion;
+  }
+
+  public ErrorCorrectionLevel getErrorCorrectionLevel() {
+    return ecLevel;
+  }
+
+  /**
+   * Returns the codec the data was compressed with, or null when it is
+   * sent uncompressed.
+   */
+  public CompressionCodec getCompressionCodec() {
+    return codec;
+  }
+
+  /**
+   * Encodes symbol {@code symbolId} of the stream. This method may be
+   * called concurrently from several threads.
+   *
+   * @param symbolId The 1-indexed id of the symbol to encode.
+   * @throws IndexOutOfBoundsException if {@code symbolId} is not between 1
+   *   and {@link #getMaxSymbolId()}.
+   */
+  public BitmapImage encodeSymbol(int symbolId) {
+    if (symbolId < 1 || symbolId > maxSymbolId) {
+      throw new IndexOutOfBoundsException("Cannot encode symbol " + symbolId
+          + " of " + maxSymbolId + " symbols.");
+    }
+    byte[] symbol = new byte[blockSize];
+    code.encode(source, blockSize, symbolId, symbol);
+    byte[] prependedData = CompactHeader.prependSymbol(symbol, symbolId,
+        code.getSourceBlocks(), codecId, sessionId);
+    return transmitter.encodePrependedQRCode(prependedData, symbolId, code.getSourceBlocks(),
+                                             ecLevel, null, null);
+  }
+
+  @Override
+  public Iterator<BitmapImage> iterator() {
+    return new Iterator<BitmapImage>() {
+      private int symbolId = 0;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public BitmapImage next() {
+        symbolId = symbolId == maxSymbolId ? code.getSourceBlocks() + 1 : symbolId + 1;
+        return encodeSymbol(symbolId);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Removing QR codes is not supported.");
+      }
+    };
+  }
+}
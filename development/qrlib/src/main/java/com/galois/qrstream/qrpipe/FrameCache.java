@@ -0,0 +1,280 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.base.Objects;
+import com.google.common.hash.HashCode;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * Memory-bounded cache of encoded QR codes, shared by any number of
+ * {@code Transmit.ImgCollection}s. A transmitter loops over the same QR
+ * codes until the receiver has them all; with a cache, only the first pass
+ * pays for encoding.
+ *
+ * Frames are stored one bit per module, so a version 10 QR code takes
+ * about 400 bytes regardless of the size it is displayed at. When the
+ * cache exceeds its budget, the least recently used frames are evicted.
+ *
+ * All methods are thread-safe.
+ */
+public final class FrameCache {
+
+  /* Estimated bytes used by each entry in addition to its modules */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final long maxBytes;
+  private long sizeBytes;
+  private long hits;
+  private long misses;
+
+  /* Entries in least to most recently used order */
+  private final LinkedHashMap<Key, Frame> frames =
+      new LinkedHashMap<Key, Frame>(16, 0.75f, true);
+
+  /* The most streams whose session ids are remembered */
+  private static final int MAX_SESSIONS = 64;
+
+  /* Session ids of the streams that used the cache, by the key of their
+   * frames without a session or chunk id, least recently used first */
+  private final LinkedHashMap<Key, Integer> sessions =
+      new LinkedHashMap<Key, Integer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest) {
+          return size() > MAX_SESSIONS;
+        }
+      };
+
+  /**
+   * Creates an empty cache that holds frames using up to {@code maxBytes}.
+   *
+   * @param maxBytes The memory budget of the cache in bytes.
+   */
+  public FrameCache(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Memory budget must not be negative.");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the estimated memory used by the cached frames in bytes.
+   */
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /**
+   * Returns the number of cached frames.
+   */
+  public synchronized int getFrameCount() {
+    return frames.size();
+  }
+
+  /**
+   * Returns the number of lookups that found a cached frame.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups that had to encode the frame.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Removes every frame from the cache.
+   */
+  public synchronized void clear() {
+    frames.clear();
+    sizeBytes = 0;
+  }
+
+  /**
+   * Returns the session id of the stream whose frames have keys like
+   * {@code stream}, recording {@code sessionId} for it if the cache has not
+   * seen it before. Frames carry their session id, so the same data only
+   * encodes to the same frames under the same session id.
+   */
+  synchronized int sessionId(Key stream, int sessionId) {
+    Integer known = sessions.get(stream);
+    if (known != null) {
+      return known;
+    }
+    sessions.put(stream, sessionId);
+    return sessionId;
+  }
+
+  /**
+   * Returns the cached QR code for {@code key}, or null when it is not in
+   * the cache.
+   *
+   * @param totalChunks The total chunks to label the returned image with.
+   */
+  BitmapImage get(Key key, int totalChunks) {
+    Frame frame;
+    synchronized (this) {
+      frame = frames.get(key);
+      if (frame == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    // Frames are immutable, so rebuild the image outside of the lock.
+    return frame.toImage(key.chunkId, totalChunks);
+  }
+
+  /**
+   * Adds the QR code {@code modules}, drawn {@code scale} pixels per module
+   * in the center of a {@code width} by {@code height} image, to the cache.
+   * Frames larger than the whole budget are not cached.
+   */
+  void put(Key key, BitMatrix modules, int scale, int width, int height) {
+    Frame frame = new Frame(modules, scale, width, height);
+    long frameBytes = frame.sizeBytes();
+    if (frameBytes > maxBytes) {
+      return;
+    }
+    synchronized (this) {
+      Frame previous = frames.put(key, frame);
+      if (previous != null) {
+        sizeBytes -= previous.sizeBytes();
+      }
+      sizeBytes += frameBytes;
+
+      Iterator<Map.Entry<Key, Frame>> eldest = frames.entrySet().iterator();
+      while (sizeBytes > maxBytes && eldest.hasNext()) {
+        sizeBytes -= eldest.next().getValue().sizeBytes();
+        eldest.remove();
+      }
+    }
+  }
+
+  /**
+   * Identifies one encoded QR code: the chunk of a payload together with
+   * all of the settings that determine how it is drawn.
+   */
+  static final class Key {
+    private final HashCode payload;
+    private final int codecId;
+    private final int sessionId;
+    private final int version;
+    private final ErrorCorrectionLevel ecLevel;
+    private final MaskSelection maskSelection;
+    private final int width;
+    private final int height;
+    private final int chunkId;
+
+    Key(HashCode payload, int codecId, int sessionId, int version,
+        ErrorCorrectionLevel ecLevel, MaskSelection maskSelection,
+        int width, int height, int chunkId) {
+      this.payload = payload;
+      this.codecId = codecId;
+      this.sessionId = sessionId;
+      this.version = version;
+      this.ecLevel = ecLevel;
+      this.maskSelection = maskSelection;
+      this.width = width;
+      this.height = height;
+      this.chunkId = chunkId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return chunkId == other.chunkId && codecId == other.codecId
+          && sessionId == other.sessionId
+          && version == other.version
+          && width == other.width && height == other.height
+          && ecLevel == other.ecLevel && maskSelection.equals(other.maskSelection)
+          && payload.equals(other.payload);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(payload, codecId, sessionId, version, ecLevel, maskSelection, width, height, chunkId);
+    }
+  }
+
+  /**
+   * The modules of a QR code packed eight to a byte, row by row, along with
+   * how they are drawn.
+   */
+  private static final class Frame {
+    private final byte[] bits;
+    private final int size;
+    private final int scale;
+    private final int width;
+    private final int height;
+
+    Frame(BitMatrix modules, int scale, int width, int height) {
+      this.size = modules.getWidth();
+      this.scale = scale;
+      this.width = width;
+      this.height = height;
+      this.bits = new byte[(size * size + 7) / 8];
+      int i = 0;
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++, i++) {
+          if (modules.get(x, y)) {
+            bits[i >>> 3] |= 0x80 >>> (i & 7);
+          }
+        }
+      }
+    }
+
+    long sizeBytes() {
+      return bits.length + ENTRY_OVERHEAD;
+    }
+
+    BitmapImage toImage(int chunkId, int totalChunks) {
+      BitMatrix modules = new BitMatrix(size);
+      int i = 0;
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++, i++) {
+          if ((bits[i >>> 3] & (0x80 >>> (i & 7))) != 0) {
+            modules.set(x, y);
+          }
+        }
+      }
+      return BitmapImage.createCenteredModuleImage(chunkId, totalChunks, modules,
+                                                   scale, width, height);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Replays the QR codes of a frame pack written by {@link FramePackWriter}.
+ * The file is memory-mapped, so opening a pack only reads the frame
+ * headers, and each QR code is unpacked when it is requested. The reader
+ * can be iterated any number of times and used from several threads.
+ */
+public final class FramePackReader extends AbstractCollection<BitmapImage> {
+
+  private final ByteBuffer pack;
+  private final Version qrVersion;
+  private final ErrorCorrectionLevel ecLevel;
+  private final int totalChunks;
+
+  /* Position of each frame in 'pack', by chunkId - 1 */
+  private final int[] frameOffsets;
+
+  private FramePackReader(ByteBuffer pack) throws IOException {
+    this.pack = pack;
+    if (pack.remaining() < FramePackWriter.HEADER_BYTES
+        || pack.getInt(0) != FramePackWriter.MAGIC) {
+      throw new IOException("Not a frame pack.");
+    }
+    int format = pack.get(4) & 0xff;
+    if (format != FramePackWriter.FORMAT) {
+      throw new IOException("Unsupported frame pack format: " + format);
+    }
+    try {
+      qrVersion = Version.getVersionForNumber(pack.get(5) & 0xff);
+      ecLevel = ErrorCorrectionLevel.forBits(pack.get(6) & 0xff);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Corrupt frame pack header.", e);
+    }
+    totalChunks = pack.getInt(8);
+    if (totalChunks < 0) {
+      throw new IOException("Corrupt frame pack header.");
+    }
+
+    // Find every frame up front so that frames can be read in any order.
+    frameOffsets = new int[totalChunks];
+    int offset = FramePackWriter.HEADER_BYTES;
+    for (int i = 0; i < totalChunks; i++) {
+      if (pack.limit() - offset < FramePackWriter.FRAME_HEADER_BYTES) {
+        throw new IOException("Frame pack ends before frame " + (i + 1));
+      }
+      frameOffsets[i] = offset;
+      int size = pack.getShort(offset + 6) & 0xffff;
+      offset += FramePackWriter.FRAME_HEADER_BYTES + FramePackWriter.packedSize(size);
+      if (offset > pack.limit()) {
+        throw new IOException("Frame pack ends before frame " + (i + 1));
+      }
+    }
+  }
+
+  /**
+   * Opens the frame pack at {@code file}. The file is mapped into memory
+   * and may be modified or deleted once this returns only on platforms
+   * that allow it for mapped files.
+   *
+   * @throws IOException if the file cannot be read or is not a frame pack.
+   */
+  public static FramePackReader open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Cannot map files larger than "
+                              + Integer.MAX_VALUE + " bytes: " + file);
+      }
+      // The mapping stays valid after the channel is closed.
+      return new FramePackReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the requested density of the QR codes in the pack.
+   */
+  public Version getVersion() {
+    return qrVersion;
+  }
+
+  public ErrorCorrectionLevel getErrorCorrectionLevel() {
+    return ecLevel;
+  }
+
+  /**
+   * Returns the QR code of chunk {@code chunkId}.
+   *
+   * @param chunkId The 1-indexed id of the chunk.
+   * @throws IndexOutOfBoundsException if {@code chunkId} is not between 1
+   *   and {@code size()}.
+   */
+  public BitmapImage get(int chunkId) {
+    if (chunkId < 1 || chunkId > totalChunks) {
+      throw new IndexOutOfBoundsException("Cannot read chunk " + chunkId
+          + " of " + totalChunks + " chunks.");
+    }
+    int offset = frameOffsets[chunkId - 1];
+    int width = pack.getShort(offset) & 0xffff;
+    int height = pack.getShort(offset + 2) & 0xffff;
+    int scale = pack.getShort(offset + 4) & 0xffff;
+    int size = pack.getShort(offset + 6) & 0xffff;
+    int bits = offset + FramePackWriter.FRAME_HEADER_BYTES;
+
+    BitMatrix modules = new BitMatrix(size);
+    int i = 0;
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++, i++) {
+        if ((pack.get(bits + (i >>> 3)) & (0x80 >>> (i & 7))) != 0) {
+          modules.set(x, y);
+        }
+      }
+    }
+    try {
+      return BitmapImage.createCenteredModuleImage(chunkId, totalChunks, modules,
+                                                   scale, width, height);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("Corrupt frame " + chunkId + " in frame pack.", e);
+    }
+  }
+
+  @Override
+  public Iterator<BitmapImage> iterator() {
+    return new Iterator<BitmapImage>() {
+      private int chunkId = 0;
+
+      @Override
+      public boolean hasNext() {
+        return chunkId < totalChunks;
+      }
+
+      @Override
+      public BitmapImage next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more QR codes in frame pack.");
+        }
+        chunkId++;
+        return get(chunkId);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Removing QR codes is not supported.");
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return totalChunks;
+  }
+}
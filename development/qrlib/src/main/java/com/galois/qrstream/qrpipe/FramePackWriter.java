@@ -0,0 +1,196 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.io.Closeables;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Writes the QR codes of one transmission to a frame pack, a compact file
+ * that {@link FramePackReader} replays without encoding anything.
+ *
+ * A frame pack is a header followed by the frames in chunk order. All
+ * numbers are big-endian.
+ * <pre>
+ *   header: magic "QRFP", format (u8), QR version (u8),
+ *           error correction bits (u8), reserved (u8), total chunks (s32)
+ *   frame:  image width (u16), image height (u16), pixels per module (u16),
+ *           modules per side (u16), modules packed 8 per byte, row by row
+ * </pre>
+ * Each frame's QR code is centered in its image.
+ */
+public final class FramePackWriter implements Closeable {
+
+  static final int MAGIC = 0x51524650;
+  static final int FORMAT = 1;
+  static final int HEADER_BYTES = 12;
+  static final int FRAME_HEADER_BYTES = 8;
+
+  /* Largest value of the u16 fields of a frame */
+  private static final int MAX_U16 = 0xffff;
+
+  private final DataOutputStream out;
+  private final int totalChunks;
+  private int framesWritten;
+
+  /* Buffer for the packed modules of one frame, reused between frames */
+  private byte[] packed = new byte[0];
+
+  /**
+   * Starts a frame pack for {@code totalChunks} QR codes by writing its
+   * header to {@code out}.
+   *
+   * @param out The stream to write to. It is closed by {@link #close()}.
+   * @param qrVersion The requested density of the QR codes.
+   * @param ecLevel The error correction level of the QR codes.
+   * @param totalChunks The number of QR codes that will be written.
+   */
+  public FramePackWriter(OutputStream out, Version qrVersion, ErrorCorrectionLevel ecLevel,
+                         int totalChunks) throws IOException {
+    if (totalChunks < 0) {
+      throw new IllegalArgumentException("Number of chunks must not be negative.");
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.totalChunks = totalChunks;
+    this.out.writeInt(MAGIC);
+    this.out.writeByte(FORMAT);
+    this.out.writeByte(qrVersion.getVersionNumber());
+    this.out.writeByte(ecLevel.getBits());
+    this.out.writeByte(0);
+    this.out.writeInt(totalChunks);
+  }
+
+  /**
+   * Encodes every chunk of {@code qrCodes} into a new frame pack at
+   * {@code file}, replacing any existing file. A pack holds the chunks of
+   * the whole message in order, so those of a manifest are left out and a
+   * stripe is written with the chunks of every other stripe.
+   *
+   * @throws UnsupportedOperationException if {@code qrCodes} is a stripe of
+   *   a collection created from an input stream or a channel that is not a
+   *   {@code FileChannel}, whose chunks cannot be encoded out of turn.
+   */
+  public static void write(Transmit.ImgCollection qrCodes, File file) throws IOException {
+    int totalChunks = qrCodes.getDataChunks();
+    OutputStream out = new FileOutputStream(file);
+    FramePackWriter writer;
+    try {
+      writer = new FramePackWriter(out, qrCodes.getVersion(),
+                                   qrCodes.getErrorCorrectionLevel(), totalChunks);
+    } catch (IOException e) {
+      Closeables.close(out, true);
+      throw e;
+    }
+    boolean threw = true;
+    try {
+      if (qrCodes.isWhole()) {
+        // Streamed data can only be encoded in order.
+        for (BitmapImage frame : qrCodes) {
+          writer.write(frame);
+        }
+      } else {
+        for (int chunkId = 1; chunkId <= totalChunks; chunkId++) {
+          writer.write(qrCodes.encodeChunk(chunkId));
+        }
+      }
+      threw = false;
+    } finally {
+      // A failure to close must not hide the one that stopped the writes.
+      Closeables.close(writer, threw);
+    }
+  }
+
+  /**
+   * Appends the next QR code to the pack.
+   *
+   * @param frame A QR code stored one bit per module, such as those
+   *   returned by {@link Transmit}.
+   * @throws IllegalArgumentException if the frame is not the next chunk or
+   *   does not store one bit per module.
+   */
+  public void write(BitmapImage frame) throws IOException {
+    if (framesWritten == totalChunks) {
+      throw new IllegalStateException("All " + totalChunks + " frames were already written.");
+    }
+    if (frame.getChunkId() != framesWritten + 1) {
+      throw new IllegalArgumentException("Expected chunk " + (framesWritten + 1)
+          + " but got " + frame);
+    }
+    if (!frame.isModuleImage() || frame.getModuleWidth() != frame.getModuleHeight()) {
+      throw new IllegalArgumentException("Frame packs hold QR codes with one bit per module.");
+    }
+    int size = frame.getModuleWidth();
+    if (frame.getWidth() > MAX_U16 || frame.getHeight() > MAX_U16
+        || frame.getScale() > MAX_U16) {
+      throw new IllegalArgumentException("Frame too large for frame pack: " + frame);
+    }
+
+    int packedLength = packedSize(size);
+    if (packed.length < packedLength) {
+      packed = new byte[packedLength];
+    }
+    Arrays.fill(packed, 0, packedLength, (byte) 0);
+    int i = 0;
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++, i++) {
+        if (frame.getModule(x, y)) {
+          packed[i >>> 3] |= 0x80 >>> (i & 7);
+        }
+      }
+    }
+
+    out.writeShort(frame.getWidth());
+    out.writeShort(frame.getHeight());
+    out.writeShort(frame.getScale());
+    out.writeShort(size);
+    out.write(packed, 0, packedLength);
+    framesWritten++;
+  }
+
+  /**
+   * Flushes and closes the underlying stream.
+   *
+   * @throws IOException if fewer frames than announced were written.
+   */
+  @Override
+  public void close() throws IOException {
+    out.close();
+    if (framesWritten != totalChunks) {
+      throw new IOException("Frame pack holds " + framesWritten + " of "
+          + totalChunks + " frames.");
+    }
+  }
+
+  /**
+   * Returns the number of bytes holding the modules of a QR code with
+   * {@code size} modules per side.
+   */
+  static int packedSize(int size) {
+    return (size * size + 7) / 8;
+  }
+}
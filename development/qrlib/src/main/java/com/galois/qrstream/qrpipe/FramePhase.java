@@ -0,0 +1,159 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Estimates when a transmitter's display changes from one QR code to the
+ * next, from the times of the frames that decode, and schedules captures
+ * in the middle of the interval each QR code is shown for. Times are in
+ * nanoseconds on one clock, such as {@code System.nanoTime()}.
+ *
+ * Each pair of consecutive decoded frames that show different QR codes,
+ * no more than an interval apart, brackets a change of display. Its
+ * midpoint modulo the interval is a sample of the phase. Samples are
+ * averaged on the circle, so that ones either side of the wrap agree, with
+ * older samples decaying so that the estimate follows slow clock drift.
+ *
+ * A pipelined receive schedules captures on one thread and observes the
+ * decoded frames on another, possibly out of order, so the methods are
+ * synchronized and frames older than the last observed one are ignored.
+ */
+final class FramePhase {
+
+  /* Number of samples before the phase is used */
+  static final int MIN_SAMPLES = 2;
+
+  /* Weight kept by the samples so far when a new one is added */
+  private static final double DECAY = 0.9;
+
+  private long interval;
+
+  // The time and QR codes of the last decoded frame, null before the first.
+  private long previousTime;
+  private Set<Integer> previousFrame;
+
+  // Decayed sums of the samples as points on the unit circle.
+  private double sumCos;
+  private double sumSin;
+  private int samples;
+
+  // The middle of the interval of the last scheduled capture.
+  private long lastTarget;
+  private boolean hasTarget;
+
+  /**
+   * Sets the interval each QR code is shown for, in nanoseconds.
+   */
+  synchronized void setInterval(long interval) {
+    if (interval <= 0) {
+      throw new IllegalArgumentException("Frame interval must be positive.");
+    }
+    if (interval != this.interval) {
+      this.interval = interval;
+      sumCos = 0;
+      sumSin = 0;
+      samples = 0;
+    }
+  }
+
+  synchronized boolean hasInterval() {
+    return interval > 0;
+  }
+
+  /**
+   * Returns true once the phase is known well enough to schedule
+   * captures.
+   */
+  synchronized boolean isLocked() {
+    return interval > 0 && samples >= MIN_SAMPLES;
+  }
+
+  /**
+   * Records that a frame captured at {@code time} decoded the QR codes
+   * whose contents hash to {@code frame}.
+   */
+  synchronized void observe(long time, Set<Integer> frame) {
+    if (previousFrame != null && time < previousTime) {
+      return;
+    }
+    if (previousFrame != null && interval > 0 && Collections.disjoint(previousFrame, frame)) {
+      long gap = time - previousTime;
+      if (gap > 0 && gap <= interval) {
+        addSample(previousTime + gap / 2);
+      }
+    }
+    previousTime = time;
+    previousFrame = frame;
+  }
+
+  private void addSample(long change) {
+    double angle = 2 * Math.PI * floorMod(change, interval) / interval;
+    sumCos = sumCos * DECAY + Math.cos(angle);
+    sumSin = sumSin * DECAY + Math.sin(angle);
+    samples++;
+  }
+
+  /**
+   * Returns the offset of the changes of display within the interval,
+   * between 0 and the interval.
+   */
+  synchronized long getPhase() {
+    double angle = Math.atan2(sumSin, sumCos);
+    if (angle < 0) {
+      angle += 2 * Math.PI;
+    }
+    return floorMod((long) (angle / (2 * Math.PI) * interval), interval);
+  }
+
+  /**
+   * Returns how long to wait from {@code now} before capturing the next
+   * frame: none while the phase is unknown, otherwise until the middle of
+   * the current interval if it is still steady and has not been captured,
+   * or else of the next one.
+   */
+  synchronized long delay(long now) {
+    if (!isLocked()) {
+      return 0;
+    }
+    long middle = getPhase() + interval / 2;
+    long previousMiddle = now - floorMod(now - middle, interval);
+    long target;
+    if (now - previousMiddle <= interval / 4 && !isLastTarget(previousMiddle)) {
+      target = now;
+      lastTarget = previousMiddle;
+    } else {
+      target = previousMiddle + interval;
+      lastTarget = target;
+    }
+    hasTarget = true;
+    return target - now;
+  }
+
+  /* Estimates shift a little as samples arrive, so targets less than half
+   * an interval apart are in the same interval. */
+  private boolean isLastTarget(long target) {
+    return hasTarget && Math.abs(target - lastTarget) < interval / 2;
+  }
+
+  private static long floorMod(long a, long b) {
+    long mod = a % b;
+    return mod < 0 ? mod + b : mod;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.ArrayDeque;
+
+/**
+ * Hands frames from the capture stage of a pipelined receive to its
+ * decoders. The queue holds at most a fixed number of frames; when it is
+ * full, adding a frame drops the oldest, since a newer frame is as likely
+ * to hold a missing chunk and decoders that fall behind should not delay
+ * the capture of the frames still to come.
+ */
+final class FrameQueue<T> {
+
+  private final int capacity;
+  private final ArrayDeque<T> frames;
+  private boolean closed;
+  private int dropped;
+
+  FrameQueue(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Frame queue must hold at least one frame.");
+    }
+    this.capacity = capacity;
+    this.frames = new ArrayDeque<T>(capacity);
+  }
+
+  /**
+   * Adds {@code frame}, dropping the oldest frame if the queue is full.
+   * Frames added once the queue is closed are dropped.
+   *
+   * @return the frame dropped, or null if none was.
+   */
+  synchronized T offer(T frame) {
+    if (closed) {
+      dropped++;
+      return frame;
+    }
+    T oldest = null;
+    if (frames.size() == capacity) {
+      oldest = frames.removeFirst();
+      dropped++;
+    }
+    frames.addLast(frame);
+    notify();
+    return oldest;
+  }
+
+  /**
+   * Removes the oldest frame, waiting for one if the queue is empty.
+   *
+   * @return the frame, or null once the queue is closed and empty.
+   */
+  synchronized T take() throws InterruptedException {
+    while (frames.isEmpty() && !closed) {
+      wait();
+    }
+    return frames.pollFirst();
+  }
+
+  /**
+   * Stops the queue from accepting frames. The frames it holds can still
+   * be taken; {@code discard} drops them too.
+   */
+  synchronized void close(boolean discard) {
+    closed = true;
+    if (discard) {
+      dropped += frames.size();
+      frames.clear();
+    }
+    notifyAll();
+  }
+
+  synchronized int size() {
+    return frames.size();
+  }
+
+  /**
+   * Returns the number of frames dropped so far.
+   */
+  synchronized int getDropped() {
+    return dropped;
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+/**
+ * Layout of the header that precedes the data in each QR code of a stream.
+ * {@link Receive} understands both formats.
+ */
+public enum HeaderFormat {
+
+  /**
+   * The original 8 byte header: the chunk id and the total number of chunks
+   * as 4 byte big-endian integers. The top byte of the total holds the id
+   * of the compression codec, if any.
+   */
+  V1,
+
+  /**
+   * A compact header with a random session id that tells streams apart and
+   * a CRC that rejects misread QR codes. It takes 6 bytes in streams of up
+   * to 128 chunks, 8 bytes in streams of up to 16384 chunks, and one more
+   * when the data is compressed:
+   * <pre>
+   *   format (u8)       high bit set, then 2 bits of format (0 for this
+   *                     one, 1 for fountain coded symbols, 2 for parity
+   *                     chunks, 3 for chunks in tiled or colour frames), a
+   *                     bit set when a codec id follows, and the top 4
+   *                     bits of the session id
+   *   session id (u8)   the low 8 bits of the session id
+   *   codec id (u8)     only when the data is compressed
+   *   chunk id - 1      unsigned varint, 7 bits per byte, low bits first
+   *   total chunks - 1  unsigned varint
+   *   CRC (u16)         CRC-16/CCITT of the header before it and the data
+   * </pre>
+   * Fountain coded symbols carry the symbol id and the number of source
+   * blocks in place of the chunk id and total. Parity chunks carry their
+   * own id in place of the chunk id, and add the number of data and parity
+   * chunks per group less one and the message length as varints before
+   * the CRC. Chunks in tiled or colour frames add a byte before the CRC
+   * with the number of columns and rows of QR codes per frame less one, 4
+   * bits each, and a byte with the number of colour channels per frame.
+   * The {@link Manifest} of a stream has the header of chunk 1 of the
+   * stream in frames of a single QR code, but with 0 channels.
+   *
+   * Version 1 headers always start with a zero byte, so receivers tell the
+   * formats apart by the high bit of the first byte. Receivers that only
+   * know version 1 ignore these QR codes.
+   */
+  V2
+}
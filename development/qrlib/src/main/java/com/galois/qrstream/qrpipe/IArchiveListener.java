@@ -0,0 +1,35 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.List;
+
+/**
+ * Receives the files of an archive as they arrive, see
+ * {@link Receive#decodeArchiveQRCodes}.
+ */
+public interface IArchiveListener {
+  /**
+   * Called once, as soon as the index of the archive has arrived.
+   */
+  void indexReceived(List<Archive.Entry> entries);
+
+  /**
+   * Called once for each entry, as soon as all of its contents have arrived.
+   */
+  void entryReceived(Archive.Entry entry, byte[] contents);
+}
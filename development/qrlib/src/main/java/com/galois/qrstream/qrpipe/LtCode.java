@@ -0,0 +1,236 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Luby Transform code over {@code sourceBlocks} equal sized
+ * blocks of data. Symbol {@code i} for {@code i <= sourceBlocks} is source
+ * block {@code i} itself; every later symbol is the XOR of a pseudo-random
+ * set of source blocks whose size follows the robust soliton distribution.
+ * Transmitter and receiver derive the same set from the symbol id alone, so
+ * only the id travels with each symbol.
+ *
+ * Sparse symbols leave some blocks uncovered until well after enough
+ * symbols have arrived, which is what the precode of a Raptor code guards
+ * against. Instead, repair symbols combine at least {@code 2 ln(k)} of the
+ * {@code k} blocks, so that every block is almost surely covered; the
+ * decoder falls back to Gaussian elimination for symbols that dense, and
+ * typically needs only one or two symbols more than there are blocks.
+ */
+final class LtCode {
+
+  /* Robust soliton parameters, tuned for a few hundred to a few thousand
+   * blocks: a small spike keeps the overhead low for short streams. */
+  private static final double C = 0.05;
+  private static final double DELTA = 0.5;
+
+  private final int sourceBlocks;
+
+  /* Cumulative probability of each degree, by degree - 1 */
+  private final double[] degreeCdf;
+
+  /* Fewest source blocks combined in a repair symbol */
+  private final int minDegree;
+
+  LtCode(int sourceBlocks) {
+    if (sourceBlocks < 1) {
+      throw new IllegalArgumentException("Need at least one source block.");
+    }
+    this.sourceBlocks = sourceBlocks;
+    this.degreeCdf = robustSoliton(sourceBlocks);
+    this.minDegree = Math.max(1, (int) Math.ceil(2 * Math.log(sourceBlocks)));
+  }
+
+  int getSourceBlocks() {
+    return sourceBlocks;
+  }
+
+  /**
+   * Returns the largest symbol id of a stream of {@code sourceBlocks}
+   * blocks. Ids are limited so that they fit in a fixed number of varint
+   * bytes; transmitters start over after the first repair symbol once they
+   * reach it.
+   */
+  static int maxSymbolId(int sourceBlocks) {
+    // Leave room for at least three times as many repair symbols as source
+    // blocks, and at least two varint bytes.
+    long wanted = Math.max(1L << 14, 4L * sourceBlocks);
+    long max = 1L << 14;
+    while (max < wanted && max < (1L << 28)) {
+      max <<= 7;
+    }
+    return (int) max;
+  }
+
+  /**
+   * Returns the 0-indexed source blocks that are XORed together to form
+   * symbol {@code symbolId}, in ascending order.
+   */
+  int[] neighbors(int symbolId) {
+    if (symbolId < 1) {
+      throw new IllegalArgumentException("Symbol ids start at 1.");
+    }
+    if (symbolId <= sourceBlocks) {
+      return new int[] { symbolId - 1 };
+    }
+    SymbolRandom rng = new SymbolRandom(((long) sourceBlocks << 32) | symbolId);
+    int degree = Arrays.binarySearch(degreeCdf, rng.nextDouble());
+    degree = (degree < 0 ? -degree - 1 : degree) + 1;
+    degree = Math.min(Math.max(degree, minDegree), sourceBlocks);
+
+    int[] blocks = new int[degree];
+    if (2 * degree > sourceBlocks) {
+      // Dense symbol: take the first entries of a shuffled index.
+      int[] all = new int[sourceBlocks];
+      for (int i = 0; i < sourceBlocks; i++) {
+        all[i] = i;
+      }
+      for (int i = 0; i < degree; i++) {
+        int j = i + rng.nextInt(sourceBlocks - i);
+        int t = all[i];
+        all[i] = all[j];
+        all[j] = t;
+      }
+      System.arraycopy(all, 0, blocks, 0, degree);
+    } else {
+      int n = 0;
+      while (n < degree) {
+        int candidate = rng.nextInt(sourceBlocks);
+        boolean seen = false;
+        for (int i = 0; i < n && !seen; i++) {
+          seen = blocks[i] == candidate;
+        }
+        if (!seen) {
+          blocks[n++] = candidate;
+        }
+      }
+    }
+    Arrays.sort(blocks);
+    return blocks;
+  }
+
+  /**
+   * Writes symbol {@code symbolId} of {@code source}, split into blocks of
+   * {@code blockSize} bytes, into {@code symbol}.
+   */
+  void encode(byte[] source, int blockSize, int symbolId, byte[] symbol) {
+    Arrays.fill(symbol, 0, blockSize, (byte) 0);
+    for (int block : neighbors(symbolId)) {
+      int offset = block * blockSize;
+      for (int i = 0; i < blockSize; i++) {
+        symbol[i] ^= source[offset + i];
+      }
+    }
+  }
+
+  /**
+   * Returns {@code data} followed by a 0x80 byte and as many zeros as it
+   * takes to fill {@code sourceBlocks} blocks of {@code blockSize} bytes.
+   * The marker lets the receiver find the end of the data.
+   */
+  static byte[] pad(byte[] data, int blockSize, int sourceBlocks) {
+    if ((long) blockSize * sourceBlocks < data.length + 1L) {
+      throw new IllegalArgumentException("Data does not fit in the source blocks.");
+    }
+    byte[] padded = new byte[blockSize * sourceBlocks];
+    System.arraycopy(data, 0, padded, 0, data.length);
+    padded[data.length] = (byte) 0x80;
+    return padded;
+  }
+
+  /**
+   * Returns the data that {@link #pad} padded to {@code padded}.
+   *
+   * @throws IllegalArgumentException if {@code padded} does not end with
+   *   the padding.
+   */
+  static byte[] unpad(byte[] padded) {
+    int end = padded.length - 1;
+    while (end >= 0 && padded[end] == 0) {
+      end--;
+    }
+    if (end < 0 || padded[end] != (byte) 0x80) {
+      throw new IllegalArgumentException("Padding not found.");
+    }
+    return Arrays.copyOf(padded, end);
+  }
+
+  /**
+   * Returns the cumulative robust soliton distribution over degrees 1 to
+   * {@code k}.
+   */
+  private static double[] robustSoliton(int k) {
+    double[] mu = new double[k];
+    double r = C * Math.log(k / DELTA) * Math.sqrt(k);
+    int spike = (int) Math.max(1, Math.min(k, Math.round(k / r)));
+    for (int d = 1; d <= k; d++) {
+      double rho = d == 1 ? 1.0 / k : 1.0 / ((double) d * (d - 1));
+      double tau = 0;
+      if (d < spike) {
+        tau = r / ((double) d * k);
+      } else if (d == spike) {
+        tau = r * Math.log(r / DELTA) / k;
+      }
+      mu[d - 1] = rho + Math.max(0, tau);
+    }
+    double sum = 0;
+    for (int d = 0; d < k; d++) {
+      sum += mu[d];
+      mu[d] = sum;
+    }
+    for (int d = 0; d < k; d++) {
+      mu[d] /= sum;
+    }
+    mu[k - 1] = 1.0;
+    return mu;
+  }
+
+  /**
+   * SplitMix64 generator. Unlike {@code java.util.Random}, generators seeded
+   * with neighbouring symbol ids produce unrelated sequences, and the
+   * sequence is fixed by this class rather than by the platform.
+   */
+  private static final class SymbolRandom {
+    private long state;
+
+    SymbolRandom(long seed) {
+      this.state = seed;
+    }
+
+    private long nextLong() {
+      state += 0x9E3779B97F4A7C15L;
+      long z = state;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+    }
+
+    double nextDouble() {
+      return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Returns a value between 0 and {@code bound} - 1. The modulo bias is
+     * negligible for the bounds used here.
+     */
+    int nextInt(int bound) {
+      return (int) ((nextLong() >>> 1) % bound);
+    }
+  }
+}
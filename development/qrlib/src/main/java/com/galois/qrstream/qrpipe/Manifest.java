@@ -0,0 +1,205 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Describes a message before its chunks arrive: its length, how it is
+ * split into chunks, what it is and a digest of it. A transmitter repeats
+ * the manifest throughout a stream, see
+ * {@link Transmit.ImgCollection#withManifest}, so that a receiver can
+ * set aside storage for the message and show what is coming as soon as it
+ * decodes one. Receivers get it from {@link DecodeState#getManifest}.
+ *
+ * The length and digest are of the data as sent, which is compressed when
+ * the stream is. The frame interval, when the transmitter gives one, lets
+ * a receiver time its captures to the transmitter's display, see
+ * {@link SamplingPolicy#PHASE_LOCKED}.
+ */
+public final class Manifest {
+
+  /* Digest of the whole message */
+  static final HashFunction DIGEST = Hashing.sha256();
+  private static final int DIGEST_BYTES = 32;
+
+  /* The most bytes a QR code holds, at version 40 and level L, and so the
+   * longest a chunk can be */
+  static final int MAX_CHUNK_SIZE = 2953;
+
+  /* Manifests start with their version, so that fields can be added.
+   * Version 1 has no frame interval. */
+  private static final int VERSION = 2;
+
+  private final long length;
+  private final int chunkSize;
+  private final String contentType;
+  private final String name;
+  private final byte[] digest;
+  private final int frameInterval;
+
+  Manifest(long length, int chunkSize, String contentType, String name, byte[] digest) {
+    this(length, chunkSize, contentType, name, digest, 0);
+  }
+
+  Manifest(long length, int chunkSize, String contentType, String name, byte[] digest,
+           int frameInterval) {
+    if (digest.length != DIGEST_BYTES) {
+      throw new IllegalArgumentException("Digest must have " + DIGEST_BYTES + " bytes.");
+    }
+    this.length = length;
+    this.chunkSize = chunkSize;
+    this.contentType = contentType == null ? "" : contentType;
+    this.name = name == null ? "" : name;
+    this.digest = digest.clone();
+    this.frameInterval = frameInterval;
+  }
+
+  /**
+   * Returns the length of the message in bytes.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the length of every chunk but the last, which may be shorter.
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Returns the MIME type of the message, or an empty string if the
+   * transmitter did not give one.
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Returns the name of the message, such as its file name, or an empty
+   * string if the transmitter did not give one.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the SHA-256 digest of the message.
+   */
+  public byte[] getDigest() {
+    return digest.clone();
+  }
+
+  /**
+   * Returns the time in milliseconds that the transmitter shows each QR
+   * code for, or 0 if it did not say.
+   */
+  public int getFrameInterval() {
+    return frameInterval;
+  }
+
+  /**
+   * Returns the number of chunks the message is split into.
+   */
+  int getTotalChunks() {
+    return length == 0 ? 0 : (int) ((length - 1) / chunkSize + 1);
+  }
+
+  /**
+   * Returns the manifest as bytes: a version byte, the length (u64) and
+   * chunk size (u32) as big-endian integers, the content type and name as
+   * modified UTF-8 strings preceded by their u16 lengths, the digest, then
+   * the frame interval (u32).
+   */
+  byte[] toByteArray() {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeByte(VERSION);
+    out.writeLong(length);
+    out.writeInt(chunkSize);
+    out.writeUTF(contentType);
+    out.writeUTF(name);
+    out.write(digest);
+    out.writeInt(frameInterval);
+    return out.toByteArray();
+  }
+
+  /**
+   * Reads a manifest written by {@link #toByteArray}.
+   *
+   * @throws IllegalArgumentException if {@code bytes} is not a manifest of
+   *   a known version, or its fields are out of range, such as chunks
+   *   longer than a QR code holds.
+   */
+  static Manifest parse(byte[] bytes) {
+    ByteArrayDataInput in = ByteStreams.newDataInput(bytes);
+    try {
+      int version = in.readUnsignedByte();
+      if (version != 1 && version != VERSION) {
+        throw new IllegalArgumentException("Unknown manifest version " + version);
+      }
+      long length = in.readLong();
+      int chunkSize = in.readInt();
+      String contentType = in.readUTF();
+      String name = in.readUTF();
+      byte[] digest = new byte[DIGEST_BYTES];
+      in.readFully(digest);
+      int frameInterval = version == 1 ? 0 : in.readInt();
+      if (frameInterval < 0) {
+        throw new IllegalArgumentException("Frame interval of " + frameInterval + " ms.");
+      }
+      if (length < 1 || chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE
+          || (length - 1) / chunkSize >= Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Manifest of " + length + " bytes in chunks of "
+            + chunkSize + " bytes is out of range.");
+      }
+      return new Manifest(length, chunkSize, contentType, name, digest, frameInterval);
+    } catch (IllegalStateException e) {
+      // ByteArrayDataInput throws this when the manifest is truncated or
+      // a string is malformed.
+      throw new IllegalArgumentException("Malformed manifest.", e);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Manifest)) {
+      return false;
+    }
+    Manifest other = (Manifest) o;
+    return length == other.length && chunkSize == other.chunkSize
+        && contentType.equals(other.contentType) && name.equals(other.name)
+        && Arrays.equals(digest, other.digest) && frameInterval == other.frameInterval;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(digest);
+  }
+
+  @Override
+  public String toString() {
+    return "Manifest(" + name + ", " + contentType + ", " + length + " bytes)";
+  }
+}
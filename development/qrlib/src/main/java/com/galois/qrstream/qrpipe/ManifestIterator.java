@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.galois.qrstream.image.BitmapImage;
+
+/**
+ * Iterator that sends the QR code of a manifest before every
+ * {@link Transmit#MANIFEST_INTERVAL} QR codes of the chunks.
+ */
+final class ManifestIterator implements Iterator<BitmapImage> {
+  private final Iterator<BitmapImage> chunks;
+  private final BitmapImage manifest;
+  private int sinceManifest = Transmit.MANIFEST_INTERVAL;
+
+  ManifestIterator(Iterator<BitmapImage> chunks, BitmapImage manifest) {
+    this.chunks = chunks;
+    this.manifest = manifest;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return chunks.hasNext();
+  }
+
+  @Override
+  public BitmapImage next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more QR codes to encode.");
+    }
+    if (sinceManifest == Transmit.MANIFEST_INTERVAL) {
+      sinceManifest = 0;
+      return manifest;
+    }
+    sinceManifest++;
+    return chunks.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Removing QR codes is not supported.");
+  }
+}
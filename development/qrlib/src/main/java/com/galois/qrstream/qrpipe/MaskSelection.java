@@ -0,0 +1,94 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+/**
+ * Determines how the mask pattern of each QR code is chosen.
+ *
+ * The QR standard applies one of eight mask patterns to the data modules so
+ * that the code has no large blocks of one colour or shapes that look like
+ * finder patterns. Scoring all eight patterns, as ZXing does, dominates the
+ * time it takes to encode a QR code. Frames of a QR stream are only shown
+ * for a fraction of a second, so a cheaper choice is usually good enough;
+ * the receiver reads the pattern from the code itself in every case.
+ */
+public final class MaskSelection {
+
+  /* Values of 'pattern' that do not name a single mask pattern */
+  static final int ALL_PATTERNS_ID = -1;
+  static final int SAMPLED_ID = -2;
+
+  /**
+   * Scores the whole QR code with each of the eight mask patterns and picks
+   * the best one. This matches ZXing and is the default.
+   */
+  public static final MaskSelection ALL_PATTERNS = new MaskSelection(ALL_PATTERNS_ID);
+
+  /**
+   * Scores each of the eight mask patterns on a band of rows through the
+   * middle of the QR code, rather than on the whole code, and picks the
+   * best one.
+   */
+  public static final MaskSelection SAMPLED = new MaskSelection(SAMPLED_ID);
+
+  private static final MaskSelection[] FIXED = new MaskSelection[ByteModeEncoder.NUM_MASK_PATTERNS];
+  static {
+    for (int i = 0; i < FIXED.length; i++) {
+      FIXED[i] = new MaskSelection(i);
+    }
+  }
+
+  private final int pattern;
+
+  private MaskSelection(int pattern) {
+    this.pattern = pattern;
+  }
+
+  /**
+   * Returns the selection that applies mask pattern {@code pattern} to
+   * every QR code without scoring it.
+   *
+   * @param pattern A mask pattern, 0-7.
+   * @throws IllegalArgumentException if {@code pattern} is not a valid mask pattern.
+   */
+  public static MaskSelection fixed(int pattern) {
+    if (pattern < 0 || pattern >= FIXED.length) {
+      throw new IllegalArgumentException("Invalid mask pattern: " + pattern);
+    }
+    return FIXED[pattern];
+  }
+
+  /**
+   * Returns the mask pattern applied to every QR code, or one of
+   * ALL_PATTERNS_ID and SAMPLED_ID.
+   */
+  int getPattern() {
+    return pattern;
+  }
+
+  @Override
+  public String toString() {
+    switch (pattern) {
+      case ALL_PATTERNS_ID:
+        return "ALL_PATTERNS";
+      case SAMPLED_ID:
+        return "SAMPLED";
+      default:
+        return "FIXED(" + pattern + ")";
+    }
+  }
+}
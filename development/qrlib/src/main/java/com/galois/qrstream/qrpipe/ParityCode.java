@@ -0,0 +1,273 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import com.google.zxing.common.reedsolomon.GenericGF;
+import com.google.zxing.common.reedsolomon.ReedSolomonEncoder;
+
+/**
+ * Reed-Solomon erasure code across the chunks of a message. Chunks are
+ * split into groups of {@code dataChunks} consecutive chunks, and each group
+ * gets {@code parityChunks} parity chunks; the last group may have fewer
+ * data chunks. Byte {@code i} of every chunk in a group, followed by byte
+ * {@code i} of its parity chunks, forms one codeword over GF(256), so any
+ * {@code dataChunks} of the chunks of a group rebuild the rest.
+ *
+ * Parity is computed with ZXing's encoder over the QR code field. ZXing's
+ * decoder corrects errors at unknown positions, which only gets half as far,
+ * so missing chunks are solved for directly from the codeword's syndromes.
+ */
+final class ParityCode {
+
+  /* The largest number of chunks in a group, data and parity together */
+  static final int MAX_GROUP_CHUNKS = 255;
+
+  private static final GenericGF FIELD = GenericGF.QR_CODE_FIELD_256;
+
+  /* Powers of the field's generator and their logarithms; ZXing keeps its
+   * own tables private. EXP is doubled so products need no reduction. */
+  private static final int[] EXP = new int[2 * 255];
+  private static final int[] LOG = new int[256];
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      EXP[i] = x;
+      EXP[i + 255] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= 256) {
+        x ^= 0x11d;
+      }
+    }
+  }
+
+  private final int dataChunks;
+  private final int parityChunks;
+
+  ParityCode(int dataChunks, int parityChunks) {
+    if (dataChunks < 1 || parityChunks < 1) {
+      throw new IllegalArgumentException("Need at least one data and one parity chunk per group.");
+    }
+    if (dataChunks + parityChunks > MAX_GROUP_CHUNKS) {
+      throw new IllegalArgumentException("At most " + MAX_GROUP_CHUNKS
+          + " chunks per group, but got " + dataChunks + " + " + parityChunks);
+    }
+    this.dataChunks = dataChunks;
+    this.parityChunks = parityChunks;
+  }
+
+  int getDataChunks() {
+    return dataChunks;
+  }
+
+  int getParityChunks() {
+    return parityChunks;
+  }
+
+  /**
+   * Returns the number of groups in a message of {@code totalChunks} chunks.
+   */
+  int groupCount(int totalChunks) {
+    return (totalChunks + dataChunks - 1) / dataChunks;
+  }
+
+  /**
+   * Returns the 0-indexed group of data chunk {@code chunkId}.
+   */
+  int groupOf(int chunkId) {
+    return (chunkId - 1) / dataChunks;
+  }
+
+  /**
+   * Returns the 0-indexed group of parity chunk {@code parityId}.
+   */
+  int groupOfParity(int parityId) {
+    return (parityId - 1) / parityChunks;
+  }
+
+  /**
+   * Returns the id of the first data chunk of {@code group}.
+   */
+  int firstChunk(int group) {
+    return group * dataChunks + 1;
+  }
+
+  /**
+   * Returns the id of the first parity chunk of {@code group}.
+   */
+  int firstParity(int group) {
+    return group * parityChunks + 1;
+  }
+
+  /**
+   * Returns the number of data chunks in {@code group} of a message of
+   * {@code totalChunks} chunks.
+   */
+  int chunksInGroup(int group, int totalChunks) {
+    return Math.min(dataChunks, totalChunks - group * dataChunks);
+  }
+
+  /**
+   * Returns the parity chunks of a group of data chunks, all of the same
+   * length.
+   */
+  byte[][] encode(byte[][] data) {
+    int k = data.length;
+    int length = data[0].length;
+    byte[][] parity = new byte[parityChunks][length];
+    // The encoder caches generator polynomials and is not thread-safe.
+    ReedSolomonEncoder encoder = new ReedSolomonEncoder(FIELD);
+    int[] codeword = new int[k + parityChunks];
+    for (int i = 0; i < length; i++) {
+      for (int j = 0; j < k; j++) {
+        codeword[j] = data[j][i] & 0xff;
+      }
+      encoder.encode(codeword, parityChunks);
+      for (int j = 0; j < parityChunks; j++) {
+        parity[j][i] = (byte) codeword[k + j];
+      }
+    }
+    return parity;
+  }
+
+  /**
+   * Rebuilds the missing chunks of a group. {@code chunks} holds the data
+   * chunks of the group followed by its parity chunks, all of the same
+   * length, with null for each chunk that is missing. Returns false, and
+   * leaves {@code chunks} unchanged, if fewer chunks are present than the
+   * group has data chunks.
+   */
+  boolean recover(byte[][] chunks) {
+    int n = chunks.length;
+    int missing = 0;
+    int length = -1;
+    for (byte[] chunk : chunks) {
+      if (chunk == null) {
+        missing++;
+      } else {
+        length = chunk.length;
+      }
+    }
+    if (missing == 0) {
+      return true;
+    }
+    if (missing > parityChunks || n - parityChunks < 1) {
+      return false;
+    }
+
+    // Chunk j is the coefficient of x^(n - 1 - j) in the codeword, which
+    // has roots 1, a, ..., a^(parityChunks - 1). The first 'missing' roots
+    // give a Vandermonde system in the missing chunks.
+    int[] unknown = new int[missing];
+    int[] known = new int[n - missing];
+    for (int j = 0, u = 0, kn = 0; j < n; j++) {
+      if (chunks[j] == null) {
+        unknown[u++] = j;
+      } else {
+        known[kn++] = j;
+      }
+    }
+    int[][] a = new int[missing][missing];
+    for (int i = 0; i < missing; i++) {
+      for (int t = 0; t < missing; t++) {
+        a[i][t] = power(n - 1 - unknown[t], i);
+      }
+    }
+    int[][] inverse = invert(a);
+    int[][] knownPowers = new int[missing][known.length];
+    for (int i = 0; i < missing; i++) {
+      for (int t = 0; t < known.length; t++) {
+        knownPowers[i][t] = power(n - 1 - known[t], i);
+      }
+    }
+
+    byte[][] rebuilt = new byte[missing][length];
+    int[] syndrome = new int[missing];
+    for (int b = 0; b < length; b++) {
+      for (int i = 0; i < missing; i++) {
+        int s = 0;
+        for (int t = 0; t < known.length; t++) {
+          s ^= multiply(knownPowers[i][t], chunks[known[t]][b] & 0xff);
+        }
+        syndrome[i] = s;
+      }
+      for (int t = 0; t < missing; t++) {
+        int value = 0;
+        for (int i = 0; i < missing; i++) {
+          value ^= multiply(inverse[t][i], syndrome[i]);
+        }
+        rebuilt[t][b] = (byte) value;
+      }
+    }
+    for (int t = 0; t < missing; t++) {
+      chunks[unknown[t]] = rebuilt[t];
+    }
+    return true;
+  }
+
+  /**
+   * Returns (a^exponent)^i.
+   */
+  private static int power(int exponent, int i) {
+    return EXP[(exponent * i) % 255];
+  }
+
+  private static int multiply(int x, int y) {
+    if (x == 0 || y == 0) {
+      return 0;
+    }
+    return EXP[LOG[x] + LOG[y]];
+  }
+
+  /**
+   * Returns the inverse of the invertible matrix {@code m} over GF(256).
+   */
+  private static int[][] invert(int[][] m) {
+    int size = m.length;
+    int[][] work = new int[size][2 * size];
+    for (int i = 0; i < size; i++) {
+      System.arraycopy(m[i], 0, work[i], 0, size);
+      work[i][size + i] = 1;
+    }
+    for (int col = 0; col < size; col++) {
+      int pivot = col;
+      while (work[pivot][col] == 0) {
+        pivot++;
+      }
+      int[] t = work[pivot];
+      work[pivot] = work[col];
+      work[col] = t;
+      int scale = EXP[255 - LOG[work[col][col]]];
+      for (int j = 0; j < 2 * size; j++) {
+        work[col][j] = multiply(work[col][j], scale);
+      }
+      for (int r = 0; r < size; r++) {
+        int factor = work[r][col];
+        if (r != col && factor != 0) {
+          for (int j = 0; j < 2 * size; j++) {
+            work[r][j] ^= multiply(factor, work[col][j]);
+          }
+        }
+      }
+    }
+    int[][] inverse = new int[size][size];
+    for (int i = 0; i < size; i++) {
+      System.arraycopy(work[i], size, inverse[i], 0, size);
+    }
+    return inverse;
+  }
+}
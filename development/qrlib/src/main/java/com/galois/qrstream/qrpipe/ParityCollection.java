@@ -0,0 +1,135 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Arrays;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Collection of QR codes with Reed-Solomon parity, generated on demand.
+ * Each group of data QR codes is followed by its parity QR codes. The
+ * parity is computed when the collection is created.
+ */
+public final class ParityCollection extends ChunkedCollection<BitmapImage> {
+  private final ParityCode code;
+
+  /* Parity chunks, by parity chunk id - 1 */
+  private final byte[][] parity;
+
+  ParityCollection(Transmit transmitter, byte[] data, CompressionCodec codec, int chunkSize,
+                   int totalChunks, ParityCode code, Version qrVersion,
+                   ErrorCorrectionLevel ecLevel) {
+    super(transmitter, data, codec, chunkSize, totalChunks, qrVersion, ecLevel);
+    this.code = code;
+
+    int groups = code.groupCount(totalChunks);
+    this.parity = new byte[groups * code.getParityChunks()][];
+    for (int group = 0; group < groups; group++) {
+      int chunks = code.chunksInGroup(group, totalChunks);
+      byte[][] groupData = new byte[chunks][];
+      for (int i = 0; i < chunks; i++) {
+        // Data chunks are padded with zeros to chunkSize.
+        int offset = (code.firstChunk(group) + i - 1) * chunkSize;
+        groupData[i] = Arrays.copyOfRange(data, offset, offset + chunkSize);
+      }
+      byte[][] groupParity = code.encode(groupData);
+      System.arraycopy(groupParity, 0, parity, code.firstParity(group) - 1,
+                       groupParity.length);
+    }
+  }
+
+  /**
+   * Returns the number of data QR codes, without parity.
+   */
+  public int getDataChunks() {
+    return totalChunks;
+  }
+
+  /**
+   * Returns the number of parity QR codes.
+   */
+  public int getParityChunks() {
+    return parity.length;
+  }
+
+  /**
+   * Encodes data chunk {@code chunkId}. This method may be called
+   * concurrently from several threads.
+   *
+   * @param chunkId The 1-indexed id of the chunk to encode.
+   * @throws IndexOutOfBoundsException if {@code chunkId} is not between 1
+   *   and {@link #getDataChunks()}.
+   */
+  public BitmapImage encodeChunk(int chunkId) {
+    if (chunkId < 1 || chunkId > totalChunks) {
+      throw new IndexOutOfBoundsException("Cannot encode chunk " + chunkId
+          + " of " + totalChunks + " chunks.");
+    }
+    byte[] prependedData = CompactHeader.prepend(dataChunk(chunkId), chunkId, totalChunks,
+                                                 codecId, sessionId);
+    return transmitter.encodePrependedQRCode(prependedData, chunkId, totalChunks, ecLevel,
+                                             null, null);
+  }
+
+  /**
+   * Encodes parity chunk {@code parityId}. This method may be called
+   * concurrently from several threads.
+   *
+   * @param parityId The 1-indexed id of the parity chunk to encode.
+   * @throws IndexOutOfBoundsException if {@code parityId} is not between 1
+   *   and {@link #getParityChunks()}.
+   */
+  public BitmapImage encodeParityChunk(int parityId) {
+    if (parityId < 1 || parityId > parity.length) {
+      throw new IndexOutOfBoundsException("Cannot encode parity chunk " + parityId
+          + " of " + parity.length + " parity chunks.");
+    }
+    byte[] prependedData = CompactHeader.prependParity(parity[parityId - 1], parityId,
+        totalChunks, code, data.length, codecId, sessionId);
+    return transmitter.encodePrependedQRCode(prependedData, parityId, totalChunks, ecLevel,
+                                             null, null);
+  }
+
+  /**
+   * Encodes the QR code at position {@code frame}, a data or parity
+   * chunk. Every group but the last is full, so the position gives the
+   * group and the place in it, data chunks first.
+   */
+  @Override
+  public BitmapImage encodeFrame(int frame) {
+    checkFrame(frame);
+    int groupSize = code.getDataChunks() + code.getParityChunks();
+    int group = (frame - 1) / groupSize;
+    int index = (frame - 1) % groupSize;
+    int chunks = code.chunksInGroup(group, totalChunks);
+    if (index < chunks) {
+      return encodeChunk(code.firstChunk(group) + index);
+    }
+    return encodeParityChunk(code.firstParity(group) + index - chunks);
+  }
+
+  /**
+   * Returns the number of QR codes, data and parity.
+   */
+  @Override
+  public int size() {
+    return totalChunks + parity.length;
+  }
+}
@@ -16,6 +16,7 @@
  */
 package com.galois.qrstream.qrpipe;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -30,17 +31,55 @@ import com.google.zxing.ResultMetadataType;
 public final class PartialMessage {
   private final int chunkId;
   private final int totalChunks;
+  private final int codecId;
+  private final int sessionId;
+  private final boolean fountain;
   private final byte[] payload;
 
+  // The code of a parity chunk and the message length, else null and 0
+  private final ParityCode parityCode;
+  private final int messageLength;
+
+  // The grid of QR codes in the frame the chunk was sent in
+  private final int tileColumns;
+  private final int tileRows;
+
+  // The number of colour channels of the frame, each with its own QR code
+  private final int channels;
+
+  // True if the payload is the manifest of the stream
+  private final boolean manifest;
+
   /**
    * Initialize partial message with its data and sequence information.
    * @param chunkId Unique number identifying this chunk of data within a sequence.
    * @param totalChunks The number of chunks in a sequence of transmitted data.
+   * @param codecId The codec the whole message was compressed with, 0 if none.
+   * @param sessionId The id of the stream, or -1 for version 1 headers.
+   * @param fountain True if the payload is a fountain coded symbol.
+   * @param parityCode The code of a parity chunk, null for any other payload.
+   * @param messageLength The length of the whole message for parity chunks.
+   * @param tileColumns The number of columns of QR codes per frame.
+   * @param tileRows The number of rows of QR codes per frame.
+   * @param channels The number of colour channels per frame.
+   * @param manifest True if the payload is the manifest of the stream.
    * @param payload The partial message contains within the QR code.
    */
-  private PartialMessage(int chunkId, int totalChunks, byte[] payload) {
+  private PartialMessage(int chunkId, int totalChunks, int codecId, int sessionId,
+                         boolean fountain, ParityCode parityCode, int messageLength,
+                         int tileColumns, int tileRows, int channels, boolean manifest,
+                         byte[] payload) {
+    this.fountain = fountain;
+    this.manifest = manifest;
+    this.parityCode = parityCode;
+    this.messageLength = messageLength;
+    this.tileColumns = tileColumns;
+    this.tileRows = tileRows;
+    this.channels = channels;
     this.chunkId = chunkId;
     this.totalChunks = totalChunks;
+    this.codecId = codecId;
+    this.sessionId = sessionId;
     this.payload = payload.clone();
   }
 
@@ -52,6 +91,81 @@ public final class PartialMessage {
     return chunkId;
   }
 
+  /**
+   * Returns the id of the {@link CompressionCodec} that the whole message
+   * was compressed with, or 0 when it is not compressed.
+   */
+  public int getCodecId() {
+    return codecId;
+  }
+
+  /**
+   * Returns the id of the stream this chunk belongs to, or -1 when the QR
+   * code has a {@link HeaderFormat#V1} header, which has no session id.
+   */
+  public int getSessionId() {
+    return sessionId;
+  }
+
+  /**
+   * Returns true if the payload is a fountain coded symbol, in which case
+   * the chunk id is the id of the symbol and the total number of chunks is
+   * the number of source blocks of the message.
+   */
+  public boolean isFountain() {
+    return fountain;
+  }
+
+  /**
+   * Returns true if the payload is a parity chunk, in which case the chunk
+   * id is the id of the parity chunk and the total number of chunks is the
+   * number of data chunks of the message.
+   */
+  public boolean isParity() {
+    return parityCode != null;
+  }
+
+  ParityCode getParityCode() {
+    return parityCode;
+  }
+
+  int getMessageLength() {
+    return messageLength;
+  }
+
+  /**
+   * Returns the number of columns of QR codes in the frames of the stream,
+   * 1 unless they are tiled.
+   */
+  public int getTileColumns() {
+    return tileColumns;
+  }
+
+  /**
+   * Returns the number of rows of QR codes in the frames of the stream,
+   * 1 unless they are tiled.
+   */
+  public int getTileRows() {
+    return tileRows;
+  }
+
+  /**
+   * Returns the number of colour channels of the frames of the stream,
+   * each with its own QR code, 1 unless the frames are in colour.
+   */
+  public int getChannels() {
+    return channels;
+  }
+
+  /**
+   * Returns true if the payload is the {@link Manifest} of the stream, in
+   * which case the chunk id is 1 and the total number of chunks is that of
+   * the stream.
+   */
+  public boolean isManifest() {
+    return manifest;
+  }
+
   public byte[] getPayload() {
     return payload.clone();
   }
@@ -74,22 +188,64 @@ public final class PartialMessage {
   protected static PartialMessage createFromResult(Result decodedQR, int maxChunks) {
     final int chunkId;
     final int totalChunks;
+    final int codecId;
+    final int sessionId;
+    final boolean fountain;
+    final ParityCode parityCode;
+    final int messageLength;
+    final int tileColumns;
+    final int tileRows;
+    final int channels;
+    final boolean manifest;
     final byte[] payload;
 
-    // Check that the QR code has enough bytes for extracting
-    // the sequence data needed to identify it as streaming QR.
     byte[] message = getRawData(decodedQR);
-    if (message == null || message.length < Utils.getNumberOfReservedBytes()) {
+    if (message == null) {
       return null;
     }
 
-    // Check that the extracted sequence data is well formed.
-    try {
-      chunkId = Utils.extractChunkId(message);
-      totalChunks = Utils.extractTotalNumberChunks(message);
-      payload = Utils.extractPayload(message);
-    }catch (IllegalArgumentException e) {
-      return null;
+    if (CompactHeader.isCompact(message)) {
+      // Newer header; parsing checks its CRC.
+      CompactHeader header = CompactHeader.parse(message);
+      if (header == null || header.getLength() >= message.length) {
+        return null;
+      }
+      chunkId = header.getChunkId();
+      totalChunks = header.getTotalChunks();
+      codecId = header.getCodecId();
+      sessionId = header.getSessionId();
+      fountain = header.isFountain();
+      parityCode = header.getParityCode();
+      messageLength = header.getMessageLength();
+      tileColumns = header.getTileColumns();
+      tileRows = header.getTileRows();
+      channels = header.getChannels();
+      manifest = header.isManifest();
+      payload = Arrays.copyOfRange(message, header.getLength(), message.length);
+    } else {
+      // Check that the QR code has enough bytes for extracting
+      // the sequence data needed to identify it as streaming QR.
+      if (message.length < Utils.getNumberOfReservedBytes()) {
+        return null;
+      }
+
+      // Check that the extracted sequence data is well formed.
+      try {
+        chunkId = Utils.extractChunkId(message);
+        totalChunks = Utils.extractTotalNumberChunks(message);
+        codecId = Utils.extractCodecId(message);
+        payload = Utils.extractPayload(message);
+      }catch (IllegalArgumentException e) {
+        return null;
+      }
+      sessionId = -1;
+      fountain = false;
+      parityCode = null;
+      messageLength = 0;
+      tileColumns = 1;
+      tileRows = 1;
+      channels = 1;
+      manifest = false;
     }
 
     // Ensure positive chunk data
@@ -106,11 +262,26 @@ public final class PartialMessage {
 
     // Properly formatted streaming QR code must have all chunkIds
     // less than or equal to the expected totalChunks encoded with the QR code.
-    if (chunkId > totalChunks) {
+    // Fountain coded streams have more symbols than source blocks, and
+    // parity chunks are counted separately from data chunks.
+    int maxChunkId = totalChunks;
+    if (fountain) {
+      maxChunkId = LtCode.maxSymbolId(totalChunks);
+    } else if (parityCode != null) {
+      maxChunkId = parityCode.groupCount(totalChunks) * parityCode.getParityChunks();
+    }
+    if (chunkId > maxChunkId) {
+      return null;
+    }
+
+    // The message cannot be decompressed without its codec.
+    if (codecId != 0 && CompressionCodecs.forId(codecId) == null) {
       return null;
     }
 
-    return new PartialMessage(chunkId,totalChunks,payload);
+    return new PartialMessage(chunkId,totalChunks,codecId,sessionId,fountain,
+                              parityCode,messageLength,tileColumns,tileRows,channels,
+                              manifest,payload);
   }
 
   /**
@@ -0,0 +1,54 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteSource;
+
+/**
+ * Turns values of type {@code T} into the bytes of a message and back, as
+ * a compact alternative to Java serialization, which adds class
+ * descriptors to every message and needs the whole message in memory on
+ * both ends. See {@link Transmit#encodeQRCodes(Object, PayloadCodec, int,
+ * com.google.zxing.qrcode.decoder.ErrorCorrectionLevel)} and
+ * {@link Receive#decodeQRCodes(IImageProvider, PayloadCodec)}.
+ *
+ * Unlike a {@link CompressionCodec}, a payload codec is not named in the
+ * QR codes; the receiver must decode with the codec the transmitter
+ * encoded with.
+ */
+public interface PayloadCodec<T> {
+
+  /**
+   * Returns the encoded bytes of {@code value}. They are read as the QR
+   * codes are generated, possibly more than once, so the source should
+   * refer to the value's data rather than copy it.
+   *
+   * @throws IOException if {@code value} cannot be encoded.
+   */
+  ByteSource encode(T value) throws IOException;
+
+  /**
+   * Reads a value from {@code in}, which holds exactly the bytes that
+   * {@link #encode} returned. The caller closes {@code in}.
+   *
+   * @throws IOException if reading fails or the bytes are malformed.
+   */
+  T decode(InputStream in) throws IOException;
+}
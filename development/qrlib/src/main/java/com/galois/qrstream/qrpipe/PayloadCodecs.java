@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * The {@link PayloadCodec}s provided by this library.
+ */
+public final class PayloadCodecs {
+
+  /* Records start with their version, so that fields can be added */
+  private static final int RECORD_VERSION = 1;
+
+  /**
+   * Encodes a {@link Record} as a version byte, its title and MIME type as
+   * modified UTF-8 strings preceded by their u16 lengths, the length of its
+   * data (u32) and then the data itself. Only the fields before the data
+   * are copied; the data is read from the record as the QR codes are
+   * generated, and read into the decoded record's array directly.
+   */
+  public static final PayloadCodec<Record> RECORD = new PayloadCodec<Record>() {
+    @Override
+    public ByteSource encode(Record record) throws IOException {
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(header);
+      out.writeByte(RECORD_VERSION);
+      out.writeUTF(record.getTitle());
+      out.writeUTF(record.getMimeType());
+      out.writeInt(record.getData().length);
+      out.flush();
+      return ByteSource.concat(ByteSource.wrap(header.toByteArray()),
+                               ByteSource.wrap(record.getData()));
+    }
+
+    @Override
+    public Record decode(InputStream stream) throws IOException {
+      DataInputStream in = new DataInputStream(stream);
+      int version = in.readUnsignedByte();
+      if (version != RECORD_VERSION) {
+        throw new IOException("Unknown record version " + version);
+      }
+      String title = in.readUTF();
+      String mimeType = in.readUTF();
+      int length = in.readInt();
+      if (length < 0) {
+        throw new IOException("Record of " + length + " bytes.");
+      }
+      byte[] data = new byte[length];
+      ByteStreams.readFully(in, data);
+      if (in.read() != -1) {
+        throw new IOException("Record is followed by unexpected data.");
+      }
+      return new Record(title, mimeType, data);
+    }
+
+    @Override
+    public String toString() {
+      return "RECORD";
+    }
+  };
+
+  private PayloadCodecs() {
+  }
+}
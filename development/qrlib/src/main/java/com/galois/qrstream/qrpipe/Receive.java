@@ -17,21 +17,38 @@
 package com.galois.qrstream.qrpipe;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.galois.qrstream.image.ColorImage;
 import com.galois.qrstream.image.YuvImage;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
 import com.google.common.primitives.Floats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
@@ -65,6 +82,19 @@ public final class Receive {
   /* Maximum number of chunks to accept in a QR stream. */
   private final int maxChunks;
 
+  /* Directory of the files that hold received chunks, null for the heap */
+  private final File storageDirectory;
+
+  /* When to capture frames */
+  private final SamplingPolicy sampling;
+
+  /* Number of threads decoding frames, 1 to decode on the calling thread */
+  private final int decoders;
+
+  /* Threads of the stages of a pipelined receive */
+  private static final ThreadFactory STAGE_THREADS = new ThreadFactoryBuilder()
+      .setNameFormat("qrstream-receive-%d").setDaemon(true).build();
+
   /* Useful to communicate no QR codes found */
   private static final Iterable<Result> NO_RESULTS = ImmutableList.of();
 
@@ -93,10 +123,78 @@ public final class Receive {
    * transmission.
    */
   public Receive(int height, int width, int maxChunks, IProgress progress) {
+    this(height, width, maxChunks, progress, null);
+  }
+
+  /**
+   * Initializes receiver of QR code stream.
+   * @param height The height of the received images.
+   * @param width The width of the received images.
+   * @param maxChunks The maximum number of QR code chunks to accept. Tune this
+   *                  parameter based on the memory available to your receiver.
+   * @param progress The object used in tracking the progress of the message
+   * transmission.
+   * @param storageDirectory The directory in which to keep the chunks of
+   * a message once its {@link Manifest} tells how long it is, in a file of
+   * that length that is deleted once the message is returned. When null,
+   * the chunks are kept in an array of that length instead.
+   */
+  public Receive(int height, int width, int maxChunks, IProgress progress,
+                 File storageDirectory) {
+    this(height, width, maxChunks, progress, storageDirectory, SamplingPolicy.ALL_FRAMES);
+  }
+
+  /**
+   * Initializes receiver of QR code stream.
+   * @param height The height of the received images.
+   * @param width The width of the received images.
+   * @param maxChunks The maximum number of QR code chunks to accept. Tune this
+   *                  parameter based on the memory available to your receiver.
+   * @param progress The object used in tracking the progress of the message
+   * transmission.
+   * @param storageDirectory The directory in which to keep the chunks of
+   * a message once its {@link Manifest} tells how long it is, or null to
+   * keep them on the heap.
+   * @param sampling When to capture frames from the camera.
+   */
+  public Receive(int height, int width, int maxChunks, IProgress progress,
+                 File storageDirectory, SamplingPolicy sampling) {
+    this(height, width, maxChunks, progress, storageDirectory, sampling, 1);
+  }
+
+  /**
+   * Initializes receiver of QR code stream.
+   * @param height The height of the received images.
+   * @param width The width of the received images.
+   * @param maxChunks The maximum number of QR code chunks to accept. Tune this
+   *                  parameter based on the memory available to your receiver.
+   * @param progress The object used in tracking the progress of the message
+   * transmission.
+   * @param storageDirectory The directory in which to keep the chunks of
+   * a message once its {@link Manifest} tells how long it is, or null to
+   * keep them on the heap.
+   * @param sampling When to capture frames from the camera.
+   * @param decoders The number of threads that decode frames. With more
+   * than one, frames are captured on a thread of their own into a queue
+   * that keeps the newest of them, decoded by that many threads at once,
+   * and their chunks saved on the calling thread, which is the only one to
+   * call {@code progress}. The number of processors is a good choice.
+   */
+  public Receive(int height, int width, int maxChunks, IProgress progress,
+                 File storageDirectory, SamplingPolicy sampling, int decoders) {
+    if (sampling == null) {
+      throw new NullPointerException("Sampling policy must not be null.");
+    }
+    if (decoders < 1) {
+      throw new IllegalArgumentException("Receiver needs at least one decoder.");
+    }
     this.height = height;
     this.width = width;
     this.progress = progress;
     this.maxChunks = maxChunks;
+    this.storageDirectory = storageDirectory;
+    this.sampling = sampling;
+    this.decoders = decoders;
   }
 
   /**
@@ -138,9 +236,179 @@ public final class Receive {
    */
 
   public byte[] decodeQRCodes (IImageProvider frameManager) throws ReceiveException {
-    // The received data and track transmission status.
-    DecodedMessage message = new DecodedMessage(progress);
+    DecodedMessage message = new DecodedMessage(progress, storageDirectory);
+    try {
+      receiveMessage(frameManager, message, null);
+      return message.getEntireMessage();
+    } catch (IllegalStateException e) {
+      message.setFailedDecoding();
+      throw new ReceiveException(e);
+    } finally {
+      message.discard();
+    }
+  }
+
+  /**
+   * Detects and decodes QR codes of a value sent with
+   * {@link Transmit#encodeQRCodes(Object, PayloadCodec, int,
+   * com.google.zxing.qrcode.decoder.ErrorCorrectionLevel)}, and decodes
+   * it with {@code codec} as the message is read, without first copying
+   * the whole message into an array.
+   *
+   * @param frameManager The source of YUV images to decode
+   * @param codec The codec the value was encoded with.
+   * @return The decoded value, or null if the transmission was stopped
+   * before it completed.
+   * @throws ReceiveException If {@code frameManager} failed to receive
+   * enough images to complete the data transmission, or the value could
+   * not be decoded.
+   */
+  public <T> T decodeQRCodes (IImageProvider frameManager, PayloadCodec<T> codec)
+      throws ReceiveException {
+    DecodedMessage message = new DecodedMessage(progress, storageDirectory);
+    try {
+      receiveMessage(frameManager, message, null);
+      InputStream in = message.openEntireMessage();
+      if (in == null) {
+        return null;
+      }
+      try {
+        return codec.decode(in);
+      } finally {
+        Closeables.close(in, true);
+      }
+    } catch (IllegalStateException e) {
+      message.setFailedDecoding();
+      throw new ReceiveException(e);
+    } catch (IOException e) {
+      message.setFailedDecoding();
+      throw new ReceiveException(e);
+    } finally {
+      message.discard();
+    }
+  }
 
+  /**
+   * Detects and decodes QR codes of a delta sent with
+   * {@link Transmit#encodeDeltaQRCodes}, and rebuilds the new version of
+   * the file from it and {@code base}, the older version it was made
+   * against.
+   *
+   * @param frameManager The source of YUV images to decode
+   * @param base The file whose signature the delta was made from.
+   * @return The new version of the file, or an empty array if the
+   * transmission was stopped before it completed.
+   * @throws ReceiveException If {@code frameManager} failed to receive
+   * enough images to complete the data transmission, the delta does not
+   * apply to {@code base}, or {@code base} is longer than
+   * {@link Delta#MAX_LENGTH} bytes.
+   */
+  public byte[] decodeDeltaQRCodes (IImageProvider frameManager, byte[] base)
+      throws ReceiveException {
+    if (base.length > Delta.MAX_LENGTH) {
+      throw new ReceiveException("Cannot apply a delta to a base of " + base.length
+          + " bytes. Deltas are limited to files of " + Delta.MAX_LENGTH + " bytes.");
+    }
+    byte[] delta = decodeQRCodes(frameManager);
+    if (delta.length == 0) {
+      return delta;
+    }
+    try {
+      return Delta.apply(base, delta);
+    } catch (IllegalArgumentException e) {
+      throw new ReceiveException(e);
+    }
+  }
+
+  /**
+   * Detects and decodes QR codes found within a collection of YUV images,
+   * and writes the data to {@code out} rather than returning it, so that
+   * the whole message is never copied into a single array. Suits messages
+   * too large for one.
+   *
+   * @param frameManager The source of YUV images to decode
+   * @param out The stream the decoded data is written to; nothing is
+   * written unless the whole message is received.
+   * @throws ReceiveException If {@code frameManager} failed to receive
+   * enough images to complete the data transmission, or writing to
+   * {@code out} failed.
+   */
+  public void decodeQRCodes (IImageProvider frameManager, OutputStream out)
+      throws ReceiveException {
+    DecodedMessage message = new DecodedMessage(progress, storageDirectory);
+    try {
+      receiveMessage(frameManager, message, null);
+      message.writeEntireMessage(out);
+    } catch (IllegalStateException e) {
+      message.setFailedDecoding();
+      throw new ReceiveException(e);
+    } catch (IOException e) {
+      throw new ReceiveException(e);
+    } finally {
+      message.discard();
+    }
+  }
+
+  /**
+   * Detects and decodes QR codes of an archive sent with
+   * {@link Transmit#encodeArchiveQRCodes}, and hands each of its files to
+   * {@code listener} as soon as the chunks that cover it have arrived,
+   * rather than when the whole archive has. Files of a compressed archive
+   * are only handed over once it is complete.
+   *
+   * @param frameManager The source of YUV images to decode
+   * @param listener Receives the index of the archive and its files.
+   * @throws ReceiveException If {@code frameManager} failed to receive
+   * enough images to complete the data transmission, or the message is not
+   * an archive.
+   */
+  public void decodeArchiveQRCodes (IImageProvider frameManager, IArchiveListener listener)
+      throws ReceiveException {
+    DecodedMessage message = new DecodedMessage(progress, storageDirectory);
+    ArchiveReader reader = new ArchiveReader(listener);
+    try {
+      receiveMessage(frameManager, message, reader);
+      if (message.isComplete() && !reader.isComplete()) {
+        reader.finish(message.getEntireMessage());
+      }
+    } catch (IllegalStateException e) {
+      message.setFailedDecoding();
+      throw new ReceiveException(e);
+    } finally {
+      message.discard();
+    }
+  }
+
+  /**
+   * Decodes frames from {@code frameManager} into {@code message} until
+   * the message is complete or the frames stop, handing the entries of an
+   * archive to {@code reader} as they arrive if it is not null.
+   */
+  private void receiveMessage (IImageProvider frameManager, DecodedMessage message,
+                               ArchiveReader reader) throws ReceiveException {
+    // Times captures to the transmitter's display when non-null.
+    FramePhase phase = sampling.newPhase();
+
+    if (decoders > 1) {
+      receivePipelined(frameManager, message, reader, phase);
+    } else {
+      receiveSerially(frameManager, message, reader, phase);
+    }
+    // Either message complete or received partial message
+    // and asked to stop the decoding process.
+    if (!message.isComplete()) {
+      //Transmission shut down before full message could be read.
+      message.setFailedDecoding();
+    }
+  }
+
+  /**
+   * Captures, decodes and saves the chunks of one frame at a time on the
+   * calling thread.
+   */
+  private void receiveSerially(IImageProvider frameManager, DecodedMessage message,
+                               ArchiveReader reader, FramePhase phase)
+      throws ReceiveException {
     // Trying to keep some performance metrics
     int numFramesFromCamera = 0;
     int numFramesNoQRDetected = 0;
@@ -149,8 +417,11 @@ public final class Receive {
     // Try decoding frames only while external application
     // is running and waiting for a response.
     while( frameManager.isRunning() ) {
-      // TODO Try improving performance by spawning new thread run each image decoding
+      if (phase != null) {
+        waitForSteadyFrame(phase, message);
+      }
       YuvImage img = frameManager.captureFrameFromCamera();
+      long captureTime = System.nanoTime();
       if (img == null) {
         // Communicate failed state to progress indicator.
         logger.debug("decodeQRCodes: received invalid frame (null)");
@@ -159,31 +430,13 @@ public final class Receive {
       }
       numFramesFromCamera++;
       // Decode the QR codes from within the image
-      Iterable<Result> res;
-      try {
-        res = decodeMultipleQRCode(img.getYuvData());
-        displayQRFinderPoints(res);
-        numFramesQRDetected++;
-      } catch (NotFoundException e) {
-        // Unable to detect QR in this image, try next one.
-        displayQRFinderPoints(NO_RESULTS);
+      Iterable<Result> res = decodeFrame(img, message);
+      if (Iterables.isEmpty(res)) {
         numFramesNoQRDetected++;
-        continue;
-      }
-      // For the found QR codes, check that they are properly formatted
-      // streaming QR codes, and then save each of their message chunks.
-      State s = saveMessageAndUpdateProgress(res, message);
-
-      if(s == State.Fail) {
-        // All of the QR codes in `res` are not valid streaming QR codes
-        displayQRFinderPoints(NO_RESULTS);
-        // TODO treat the QR code as a single QR code here, instead of a stream?
-        // Would only want to treat as single QR code if no other frames
-        // from stream have already decoded.  Then break out of loop if found valid
-        // normal QR code.
-        continue;
+      } else {
+        numFramesQRDetected++;
       }
-      if(s == State.Final) {
+      if (reassemble(res, captureTime, message, reader, phase) == State.Final) {
         perfLog.debug("Number frames from camera: " + numFramesFromCamera);
         perfLog.debug("Number frames no QR codes detected: " + numFramesNoQRDetected);
         perfLog.debug("Number frames with detected QR codes: " +numFramesQRDetected);
@@ -191,13 +444,236 @@ public final class Receive {
         break;
       }
     }
-    // Either message complete or received partial message
-    // and asked to stop the decoding process.
-    if (!message.isComplete()) {
-      //Transmission shut down before full message could be read.
+  }
+
+  /**
+   * A frame from the capture stage of a pipelined receive.
+   */
+  private static final class CapturedFrame {
+    final YuvImage image;
+    final long captureTime;
+
+    CapturedFrame(YuvImage image, long captureTime) {
+      this.image = image;
+      this.captureTime = captureTime;
+    }
+  }
+
+  /**
+   * The QR codes a decoder found in a frame, or the error that stopped a
+   * stage of a pipelined receive.
+   */
+  private static final class DecodedFrame {
+    /* Posted by each decoder as it stops */
+    static final DecodedFrame END = new DecodedFrame(NO_RESULTS, 0, null);
+
+    final Iterable<Result> results;
+    final long captureTime;
+    final RuntimeException error;
+
+    DecodedFrame(Iterable<Result> results, long captureTime, RuntimeException error) {
+      this.results = results;
+      this.captureTime = captureTime;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Receives with a pipeline of stages: one thread captures frames into a
+   * {@link FrameQueue}, {@link #decoders} threads decode them, and the
+   * calling thread saves their chunks, in the order the frames finish
+   * decoding, so that it alone updates the message and its progress.
+   * Capture stops once the message is complete, the frame provider stops
+   * or a frame is invalid, and the decoders once they have decoded the
+   * frames captured until then. Returns once all the stages have stopped.
+   */
+  private void receivePipelined(final IImageProvider frameManager, final DecodedMessage message,
+                                ArchiveReader reader, final FramePhase phase)
+      throws ReceiveException {
+    final FrameQueue<CapturedFrame> frames = new FrameQueue<CapturedFrame>(decoders);
+    final BlockingQueue<DecodedFrame> decoded = new LinkedBlockingQueue<DecodedFrame>();
+    final AtomicBoolean stopped = new AtomicBoolean();
+    final AtomicBoolean invalidFrame = new AtomicBoolean();
+
+    ExecutorService stages = Executors.newFixedThreadPool(decoders + 1, STAGE_THREADS);
+    stages.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!stopped.get() && frameManager.isRunning()) {
+            if (phase != null) {
+              waitForSteadyFrame(phase, message);
+            }
+            YuvImage img = frameManager.captureFrameFromCamera();
+            if (img == null) {
+              logger.debug("decodeQRCodes: received invalid frame (null)");
+              invalidFrame.set(true);
+              break;
+            }
+            frames.offer(new CapturedFrame(img, System.nanoTime()));
+          }
+        } catch (RuntimeException e) {
+          decoded.add(new DecodedFrame(NO_RESULTS, 0, e));
+        } finally {
+          frames.close(false);
+        }
+      }
+    });
+    for (int i = 0; i < decoders; i++) {
+      stages.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            CapturedFrame frame;
+            while ((frame = frames.take()) != null) {
+              decoded.add(new DecodedFrame(decodeFrame(frame.image, message),
+                                           frame.captureTime, null));
+            }
+          } catch (InterruptedException e) {
+            // Receive is shutting down.
+          } catch (RuntimeException e) {
+            decoded.add(new DecodedFrame(NO_RESULTS, 0, e));
+          } finally {
+            decoded.add(DecodedFrame.END);
+          }
+        }
+      });
+    }
+
+    // Trying to keep some performance metrics
+    int numFramesNoQRDetected = 0;
+    int numFramesQRDetected = 0;
+    try {
+      int running = decoders;
+      while (running > 0) {
+        DecodedFrame frame = decoded.take();
+        if (frame == DecodedFrame.END) {
+          running--;
+          continue;
+        }
+        if (frame.error != null) {
+          throw frame.error;
+        }
+        if (Iterables.isEmpty(frame.results)) {
+          numFramesNoQRDetected++;
+        } else {
+          numFramesQRDetected++;
+        }
+        if (reassemble(frame.results, frame.captureTime, message, reader, phase) == State.Final) {
+          perfLog.debug("Number frames dropped: " + frames.getDropped());
+          perfLog.debug("Number frames no QR codes detected: " + numFramesNoQRDetected);
+          perfLog.debug("Number frames with detected QR codes: " +numFramesQRDetected);
+          message.logNumberDuplicateQRDecodes();
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      // Stop receiving, and leave the interrupt to the caller.
+      Thread.currentThread().interrupt();
+    } finally {
+      stopped.set(true);
+      frames.close(true);
+      stages.shutdown();
+      awaitStages(stages);
+    }
+    if (invalidFrame.get() && !message.isComplete()) {
+      // Communicate failed state to progress indicator.
       message.setFailedDecoding();
+      throw new ReceiveException("Transmission failed to receive a valid frame from the camera");
+    }
+  }
+
+  /**
+   * Waits for the stages of a pipelined receive to finish the frame each
+   * is on, so that the frame provider is no longer in use once a receive
+   * returns.
+   */
+  private static void awaitStages(ExecutorService stages) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (stages.awaitTermination(1, TimeUnit.SECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+        stages.shutdownNow();
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the QR codes in {@code img}, a frame of the stream being
+   * received into {@code message}. Only reads {@code message}, so that
+   * several frames can be decoded at once.
+   */
+  private Iterable<Result> decodeFrame(YuvImage img, DecodedMessage message) {
+    if (message.getChannels() > 1) {
+      // Frames of a colour stream hold a QR code in each channel.
+      return decodeColorQRCodes(img.getYuvData(), img.getChromaLayout());
+    }
+    Iterable<Result> res;
+    try {
+      res = decodeMultipleQRCode(img.getYuvData());
+    } catch (NotFoundException e) {
+      res = NO_RESULTS;
+    }
+    // Frames of a tiled stream hold a grid of QR codes, and the multi
+    // reader often misses some of them. Look for those in each cell.
+    int columns = message.getTileColumns();
+    int rows = message.getTileRows();
+    if (columns * rows > 1 && Iterables.size(res) < columns * rows) {
+      res = decodeTiledQRCodes(img.getYuvData(), res, columns, rows);
+    }
+    // Until a stream starts, the frames may be in colour, which seldom
+    // decode from their luminance alone, and then only in part. Look in
+    // the channels when a chunk or the chroma of the frame shows that they
+    // are, so that frames of a black and white stream are decoded once.
+    if (!message.isStarted()
+        && (Iterables.isEmpty(res) ? isColorful(img) : hasColorChunk(res))) {
+      res = Iterables.concat(res, decodeColorQRCodes(img.getYuvData(), img.getChromaLayout()));
+    }
+    return res;
+  }
+
+  /**
+   * Saves the chunks of the QR codes {@code res} decoded from a frame
+   * captured at {@code captureTime}, and shows where they were found.
+   *
+   * @return the state of the message, {@link State#Fail} if none of the
+   * QR codes are streaming QR codes.
+   */
+  private State reassemble(Iterable<Result> res, long captureTime, DecodedMessage message,
+                           ArchiveReader reader, FramePhase phase) {
+    if (Iterables.isEmpty(res)) {
+      // Unable to detect QR in this image, try next one.
+      displayQRFinderPoints(NO_RESULTS);
+      return State.Fail;
+    }
+    displayQRFinderPoints(res);
+    if (phase != null) {
+      phase.observe(captureTime, frameContents(res));
+    }
+    // For the found QR codes, check that they are properly formatted
+    // streaming QR codes, and then save each of their message chunks.
+    State s = saveMessageAndUpdateProgress(res, message);
+
+    if(s == State.Fail) {
+      // All of the QR codes in `res` are not valid streaming QR codes
+      displayQRFinderPoints(NO_RESULTS);
+      // TODO treat the QR code as a single QR code here, instead of a stream?
+      // Would only want to treat as single QR code if no other frames
+      // from stream have already decoded.  Then break out of loop if found valid
+      // normal QR code.
+      return s;
     }
-    return message.getEntireMessage();
+    if (reader != null) {
+      reader.update(message);
+    }
+    return s;
   }
 
   /**
@@ -222,6 +698,226 @@ public final class Receive {
         width, height, 0, 0, width, height, false);
     return decodeMultiple(src);
   }
+  /**
+   * Detect and decode the QR codes of a frame holding a grid of
+   * {@code columns} by {@code rows} QR codes that are missing from
+   * {@code found}, by decoding each cell of the grid on its own. The cells
+   * overlap their neighbours a little, since the frame seldom fills the
+   * image exactly.
+   * @param yuvData The YUV image data containing the grid of QR codes.
+   * @param found The QR codes already decoded from the image.
+   * @return The QR codes of {@code found} and any others decoded from the cells.
+   */
+  protected Iterable<Result> decodeTiledQRCodes(byte[] yuvData, Iterable<Result> found,
+                                                int columns, int rows) {
+    List<Result> results = Lists.newArrayList(found);
+    Set<String> seen = Sets.newHashSet();
+    for (Result qr : found) {
+      seen.add(qr.getText());
+    }
+    int marginX = width / (4 * columns);
+    int marginY = height / (4 * rows);
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        int left = Math.max(0, column * width / columns - marginX);
+        int top = Math.max(0, row * height / rows - marginY);
+        int right = Math.min(width, (column + 1) * width / columns + marginX);
+        int bottom = Math.min(height, (row + 1) * height / rows + marginY);
+        LuminanceSource src = new PlanarYUVLuminanceSource(yuvData,
+            width, height, left, top, right - left, bottom - top, false);
+        Iterable<Result> cell;
+        try {
+          cell = decodeMultiple(src);
+        } catch (NotFoundException e) {
+          continue;
+        }
+        for (Result qr : cell) {
+          if (seen.add(qr.getText())) {
+            results.add(translate(qr, left, top));
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Detect and decode the QR codes in the red, green and blue channels of
+   * a colour frame, each of which reads as its own black on white image.
+   * @param yuvData The YUV image data containing the colour frame, with
+   * its chroma laid out as {@link YuvImage.ChromaLayout#I420}.
+   * @return The QR codes decoded from the channels, which may be none.
+   */
+  protected Iterable<Result> decodeColorQRCodes(byte[] yuvData) {
+    return decodeColorQRCodes(yuvData, YuvImage.ChromaLayout.I420);
+  }
+
+  /**
+   * Decodes the QR code in each colour channel of a frame whose chroma is
+   * laid out as {@code layout}, see {@link #decodeColorQRCodes(byte[])}.
+   * Frames without chroma planes have no channels to decode.
+   */
+  protected Iterable<Result> decodeColorQRCodes(byte[] yuvData, YuvImage.ChromaLayout layout) {
+    if (yuvData.length < width * height * 3 / 2) {
+      return NO_RESULTS;
+    }
+    List<Result> results = Lists.newArrayList();
+    for (byte[] channel : separateChannels(yuvData, width, height, layout)) {
+      LuminanceSource src = new PlanarYUVLuminanceSource(channel,
+          width, height, 0, 0, width, height, false);
+      try {
+        Iterables.addAll(results, decodeMultiple(src));
+      } catch (NotFoundException e) {
+        // Channel may be blank or blurred in this frame; try the others.
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Waits until the middle of the next interval that the transmitter shows
+   * a QR code for, once {@code phase} knows when that is. Learns the
+   * interval from the manifest of {@code message}.
+   */
+  private static void waitForSteadyFrame(FramePhase phase, DecodedMessage message) {
+    Manifest manifest = message.getManifest();
+    if (manifest != null && manifest.getFrameInterval() > 0) {
+      phase.setInterval(TimeUnit.MILLISECONDS.toNanos(manifest.getFrameInterval()));
+    }
+    long delay = phase.delay(System.nanoTime());
+    if (delay > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(delay);
+      } catch (InterruptedException e) {
+        // Capture at once, and leave the interrupt to the frame provider.
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns hashes of the contents of the QR codes of a frame, which tell
+   * frames that show the same QR codes apart from those that do not.
+   */
+  private static Set<Integer> frameContents(Iterable<Result> decodedQR) {
+    Set<Integer> contents = Sets.newHashSet();
+    for (Result qr : decodedQR) {
+      contents.add(qr.getText().hashCode());
+    }
+    return contents;
+  }
+
+  /**
+   * Returns true if any of {@code decodedQR} is a chunk of a colour stream.
+   */
+  private boolean hasColorChunk(Iterable<Result> decodedQR) {
+    for (Result qr : decodedQR) {
+      PartialMessage messagePart = PartialMessage.createFromResult(qr, maxChunks);
+      if (messagePart != null && messagePart.getChannels() > 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* Mean distance of the chroma of a frame from grey, in U plus V, above
+   * which the frame may hold colour QR codes */
+  private static final int COLORFUL_CHROMA = 24;
+
+  /* Distance between the chroma bytes looked at by isColorful, odd so
+   * that interleaved chroma gives samples of both U and V */
+  private static final int CHROMA_SAMPLE_STEP = 15;
+
+  /**
+   * Returns true if the chroma of {@code img} is far enough from grey for
+   * it to be a frame of colour QR codes, looking at a sample of it. Frames
+   * without chroma planes are never colourful.
+   */
+  private static boolean isColorful(YuvImage img) {
+    byte[] yuvData = img.getYuvData();
+    int size = img.getWidth() * img.getHeight();
+    if (yuvData.length < size * 3 / 2) {
+      return false;
+    }
+    // Both layouts hold size / 2 bytes of U and V after the luminance, and
+    // grey is 128 in either, so the layout does not matter here.
+    long distance = 0;
+    int samples = 0;
+    for (int i = size; i < size * 3 / 2; i += CHROMA_SAMPLE_STEP) {
+      distance += Math.abs((yuvData[i] & 0xff) - 128);
+      samples++;
+    }
+    // Each sample is either U or V, so twice the mean is their sum.
+    return samples > 0 && 2 * distance > (long) COLORFUL_CHROMA * samples;
+  }
+
+  /**
+   * Converts a YUV image, with chroma of half the width and height of the
+   * luminance plane laid out as {@code layout}, to one plane each of red,
+   * green and blue, in the order of {@link ColorImage#RED},
+   * {@link ColorImage#GREEN} and {@link ColorImage#BLUE}.
+   */
+  static byte[][] separateChannels(byte[] yuvData, int width, int height,
+                                   YuvImage.ChromaLayout layout) {
+    int size = width * height;
+    int chromaWidth = width / 2;
+    // Where the first U and V samples are, and how far apart each is from
+    // the next of its kind.
+    int uStart;
+    int vStart;
+    int step;
+    if (layout == YuvImage.ChromaLayout.NV21) {
+      vStart = size;
+      uStart = size + 1;
+      step = 2;
+    } else {
+      uStart = size;
+      vStart = size + size / 4;
+      step = 1;
+    }
+    byte[][] channels = new byte[ColorImage.CHANNELS][size];
+    for (int y = 0; y < height; y++) {
+      int chromaRow = (y / 2) * chromaWidth;
+      for (int x = 0; x < width; x++) {
+        int i = y * width + x;
+        int luma = yuvData[i] & 0xff;
+        int chroma = (chromaRow + x / 2) * step;
+        int u = (yuvData[uStart + chroma] & 0xff) - 128;
+        int v = (yuvData[vStart + chroma] & 0xff) - 128;
+        // Inverse of the full range BT.601 conversion, in 1/1024ths
+        channels[ColorImage.RED][i] = clamp(luma + ((1436 * v) >> 10));
+        channels[ColorImage.GREEN][i] = clamp(luma - ((352 * u + 731 * v) >> 10));
+        channels[ColorImage.BLUE][i] = clamp(luma + ((1815 * u) >> 10));
+      }
+    }
+    return channels;
+  }
+
+  private static byte clamp(int value) {
+    return (byte) Math.max(0, Math.min(255, value));
+  }
+
+  /**
+   * Returns {@code qr} with its points moved by ({@code dx}, {@code dy}),
+   * from the coordinates of a cell to those of the whole image.
+   */
+  private static Result translate(Result qr, int dx, int dy) {
+    ResultPoint[] points = qr.getResultPoints();
+    ResultPoint[] moved = null;
+    if (points != null) {
+      moved = new ResultPoint[points.length];
+      for (int i = 0; i < points.length; i++) {
+        if (points[i] != null) {
+          moved[i] = new ResultPoint(points[i].getX() + dx, points[i].getY() + dy);
+        }
+      }
+    }
+    Result result = new Result(qr.getText(), qr.getRawBytes(), moved, qr.getBarcodeFormat(),
+                               qr.getTimestamp());
+    result.putAllMetadata(qr.getResultMetadata());
+    return result;
+  }
+
   /**
    * Identify the chunk of data decoded from the QR code and
    * add its message to the collection of already received chunks.
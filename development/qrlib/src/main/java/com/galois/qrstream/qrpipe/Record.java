@@ -0,0 +1,60 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+/**
+ * A titled piece of data and its MIME type, such as a file or some shared
+ * text, sent with {@link PayloadCodecs#RECORD}.
+ */
+public final class Record {
+  private final String title;
+  private final String mimeType;
+  private final byte[] data;
+
+  /**
+   * Creates a record of {@code data}, which is not copied. A null title or
+   * MIME type is taken as empty.
+   */
+  public Record(String title, String mimeType, byte[] data) {
+    if (data == null) {
+      throw new NullPointerException("Data must not be null.");
+    }
+    this.title = title == null ? "" : title;
+    this.mimeType = mimeType == null ? "" : mimeType;
+    this.data = data;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Returns the data of the record, which is not copied.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  @Override
+  public String toString() {
+    return "Record(" + title + ", " + mimeType + ", " + data.length + " bytes)";
+  }
+}
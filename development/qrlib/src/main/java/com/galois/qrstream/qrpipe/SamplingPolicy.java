@@ -0,0 +1,58 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+/**
+ * Determines which camera frames a {@link Receive} captures and decodes.
+ *
+ * A transmitter shows each QR code for a fixed interval, and frames
+ * captured while it changes from one code to the next are blurred between
+ * the two and seldom decode. Decoding them wastes time that could go to
+ * frames that hold a new chunk.
+ */
+public final class SamplingPolicy {
+
+  /**
+   * Captures and decodes frames as fast as the camera provides them. This
+   * is the default.
+   */
+  public static final SamplingPolicy ALL_FRAMES = new SamplingPolicy(false);
+
+  /**
+   * Learns when the transmitter's display changes from the frames that
+   * decode, and then waits to capture each frame until the middle of the
+   * next interval a QR code is shown for, once per interval. Takes effect
+   * once a {@link Manifest} that gives the frame interval arrives, see
+   * {@link Transmit.ImgCollection#withManifest(String, String, int)};
+   * until then every frame is decoded.
+   */
+  public static final SamplingPolicy PHASE_LOCKED = new SamplingPolicy(true);
+
+  private final boolean phaseLocked;
+
+  private SamplingPolicy(boolean phaseLocked) {
+    this.phaseLocked = phaseLocked;
+  }
+
+  /**
+   * Returns a new estimate of a transmitter's display phase for one
+   * message, or null if frames are not timed.
+   */
+  FramePhase newPhase() {
+    return phaseLocked ? new FramePhase() : null;
+  }
+}
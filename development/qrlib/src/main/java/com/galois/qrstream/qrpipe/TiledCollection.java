@@ -0,0 +1,113 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Collection of frames of tiled QR codes, generated on demand. Frame
+ * {@code f} holds chunks {@code (f - 1) * n + 1} to {@code f * n}, where
+ * {@code n} is the number of QR codes in the grid, laid out left to right
+ * and top to bottom; the last frame may leave some cells empty.
+ */
+public final class TiledCollection extends ChunkedCollection<BitmapImage> {
+  private final int columns;
+  private final int rows;
+
+  TiledCollection(Transmit transmitter, byte[] data, CompressionCodec codec, int chunkSize,
+                  int totalChunks, int columns, int rows, Version qrVersion,
+                  ErrorCorrectionLevel ecLevel) {
+    super(transmitter, data, codec, chunkSize, totalChunks, qrVersion, ecLevel);
+    this.columns = columns;
+    this.rows = rows;
+  }
+
+  /**
+   * Returns the number of QR codes across each frame.
+   */
+  public int getColumns() {
+    return columns;
+  }
+
+  /**
+   * Returns the number of QR codes down each frame.
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Encodes frame {@code frame}. This method may be called concurrently
+   * from several threads. The image's chunk id and total are the frame
+   * number and the number of frames.
+   *
+   * @param frame The 1-indexed number of the frame to encode.
+   * @throws IndexOutOfBoundsException if {@code frame} is not between 1
+   *   and {@link #size()}.
+   */
+  @Override
+  public BitmapImage encodeFrame(int frame) {
+    checkFrame(frame);
+    int dimension = qrVersion.getDimensionForVersion();
+    int step = dimension + Transmit.TILE_QUIET_ZONE;
+    BitMatrix grid = new BitMatrix(columns * step + Transmit.TILE_QUIET_ZONE,
+                                   rows * step + Transmit.TILE_QUIET_ZONE);
+    int firstChunk = (frame - 1) * columns * rows + 1;
+    int lastChunk = Math.min(firstChunk + columns * rows - 1, totalChunks);
+    for (int chunkId = firstChunk; chunkId <= lastChunk; chunkId++) {
+      int cell = chunkId - firstChunk;
+      byte[] prependedData = CompactHeader.prependTiled(dataChunk(chunkId), chunkId,
+          totalChunks, columns, rows, 1, codecId, sessionId);
+      // A chunk may fit a smaller version; center it in its cell.
+      Version smallest = ByteModeEncoder.smallestVersionFor(prependedData.length, ecLevel);
+      ByteModeEncoder encoder = transmitter.borrowEncoder(smallest, ecLevel);
+      try {
+        BitMatrix modules = new BitMatrix(encoder.getSize());
+        encoder.encodeModules(prependedData, 0, prependedData.length, modules);
+        int inset = (dimension - encoder.getSize()) / 2;
+        int left = Transmit.TILE_QUIET_ZONE + (cell % columns) * step + inset;
+        int top = Transmit.TILE_QUIET_ZONE + (cell / columns) * step + inset;
+        for (int y = 0; y < modules.getHeight(); y++) {
+          for (int x = 0; x < modules.getWidth(); x++) {
+            if (modules.get(x, y)) {
+              grid.set(left + x, top + y);
+            }
+          }
+        }
+      } finally {
+        transmitter.returnEncoder(encoder);
+      }
+    }
+    int imgWidth = transmitter.getImgWidth();
+    int imgHeight = transmitter.getImgHeight();
+    int scale = Math.min(imgWidth / grid.getWidth(), imgHeight / grid.getHeight());
+    return BitmapImage.createCenteredModuleImage(frame, size(), grid, scale,
+                                                 imgWidth, imgHeight);
+  }
+
+  /**
+   * Returns the number of frames.
+   */
+  @Override
+  public int size() {
+    int perFrame = columns * rows;
+    return (totalChunks + perFrame - 1) / perFrame;
+  }
+}
@@ -16,22 +16,42 @@
  */
 package com.galois.qrstream.qrpipe;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.AbstractCollection;
-import java.util.Collection;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.galois.qrstream.image.BitmapImage;
 import com.google.common.base.Charsets;
-import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.FileBackedOutputStream;
+import com.google.common.util.concurrent.Futures;
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
@@ -58,9 +78,105 @@ public final class Transmit {
   // Logging utility for Rx
   private final Logger perfLog = LoggerFactory.getLogger(Log.TIMING_LOG);
 
+  /* Idle QR encoders, by QR version and error correction level */
+  private final ConcurrentMap<Integer, Queue<ByteModeEncoder>> encoders =
+      new ConcurrentHashMap<Integer, Queue<ByteModeEncoder>>();
+
+  /* How the mask pattern of each QR code is chosen */
+  private final MaskSelection maskSelection;
+
+  /* Compresses data before it is chunked when non-null */
+  private final CompressionCodec compressionCodec;
+
+  /* Layout of the header in front of each chunk */
+  private final HeaderFormat headerFormat;
+
+  /* Picks the session id of each stream with a version 2 header */
+  private static final Random sessionIds = new Random();
+
+  /* Compressed data up to this many bytes is kept in memory, and longer
+   * data in a temporary file */
+  private static final int COMPRESSION_BUFFER_BYTES = 1 << 20;
+
+  /**
+   * The most bytes that {@link #encodeAsync} compresses. Compression has to
+   * finish before the number of QR codes, and so the first QR code, is
+   * known, so larger data is encoded uncompressed to start showing QR
+   * codes at once.
+   */
+  public static final long MAX_ASYNC_COMPRESSED_BYTES = 256 * 1024;
+
+  /* Modules of white space around and between the QR codes of tiled frames */
+  static final int TILE_QUIET_ZONE = 2;
+
+  /* Number of chunks sent between repeats of a stream's manifest */
+  static final int MANIFEST_INTERVAL = 16;
+
   public Transmit(int height, int width) {
+    this(height, width, MaskSelection.ALL_PATTERNS);
+  }
+
+  /**
+   * Creates a transmitter that chooses the mask pattern of its QR codes
+   * according to {@code maskSelection}. Scoring every mask pattern takes
+   * most of the time spent encoding, so a fixed or sampled mask pattern
+   * speeds up encoding considerably.
+   */
+  public Transmit(int height, int width, MaskSelection maskSelection) {
+    this(height, width, maskSelection, null);
+  }
+
+  /**
+   * Creates a transmitter that compresses all data with
+   * {@code compressionCodec} before splitting it into QR codes. The QR codes
+   * name the codec, and the receiver decompresses the data transparently.
+   * Data that does not get smaller is sent uncompressed.
+   *
+   * Since the number of QR codes depends on the compressed size, data read
+   * from a stream or channel is compressed in full before the first QR code
+   * is encoded.
+   *
+   * @param compressionCodec The codec to compress data with, or null to send
+   *   data uncompressed.
+   */
+  public Transmit(int height, int width, MaskSelection maskSelection,
+                  CompressionCodec compressionCodec) {
+    this(height, width, maskSelection, compressionCodec, HeaderFormat.V1);
+  }
+
+  /**
+   * Creates a transmitter that writes headers in {@code headerFormat} in
+   * front of the data of each QR code. The compact {@link HeaderFormat#V2}
+   * header leaves more room for data, which matters most for small QR
+   * versions, but is only understood by up to date receivers.
+   */
+  public Transmit(int height, int width, MaskSelection maskSelection,
+                  CompressionCodec compressionCodec, HeaderFormat headerFormat) {
+    if (maskSelection == null) {
+      throw new NullPointerException("Mask selection must not be null.");
+    }
+    if (headerFormat == null) {
+      throw new NullPointerException("Header format must not be null.");
+    }
+    if (compressionCodec != null
+        && (compressionCodec.getId() < 1 || compressionCodec.getId() > CompressionCodecs.MAX_ID)) {
+      throw new IllegalArgumentException("Codec id must be between 1 and "
+          + CompressionCodecs.MAX_ID);
+    }
     imgHeight = height;
     imgWidth = width;
+    this.maskSelection = maskSelection;
+    this.compressionCodec = compressionCodec;
+    this.headerFormat = headerFormat;
+  }
+
+  /* Dimensions of the images this transmitter draws its QR codes on */
+  int getImgWidth() {
+    return imgWidth;
+  }
+
+  int getImgHeight() {
+    return imgHeight;
   }
 
   /**
@@ -78,7 +194,7 @@ public final class Transmit {
    * @throws TransmitException If something goes wrong (inspect the thrown cause
    *         for more details).
    */
-  public Collection<BitmapImage> encodeQRCodes(Serializable s, int density, ErrorCorrectionLevel ecLevel)
+  public ImgCollection encodeQRCodes(Serializable s, int density, ErrorCorrectionLevel ecLevel)
       throws TransmitException {
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -88,10 +204,173 @@ public final class Transmit {
     } catch (Exception e) {
       throw new TransmitException(e);
     }
-    return encodeQRCodes(baos.toByteArray(), density, ecLevel);
+    byte[] data = baos.toByteArray();
+    return encodeQRCodes(ByteSource.wrap(data), data.length,
+                         versionForDensity(density), ecLevel);
+  }
+
+  /**
+   * Encodes {@code value} with {@code codec} into a collection of QR codes.
+   * Unlike {@link #encodeQRCodes(Serializable, int, ErrorCorrectionLevel)},
+   * no class descriptors are sent and the encoded bytes are read from the
+   * value as the QR codes are generated, rather than first copied into a
+   * buffer, unless the transmitter compresses them.
+   *
+   * @param value The value to encode.
+   * @param codec The codec the receiver decodes the value with, see
+   *   {@link Receive#decodeQRCodes(IImageProvider, PayloadCodec)}.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from the encoded value.
+   * @throws TransmitException if {@code value} cannot be encoded.
+   */
+  public <T> ImgCollection encodeQRCodes(T value, PayloadCodec<T> codec, int density,
+                                         ErrorCorrectionLevel ecLevel)
+      throws TransmitException {
+    ByteSource source;
+    long length;
+    try {
+      source = codec.encode(value);
+      length = source.size();
+    } catch (IOException e) {
+      throw new TransmitException(e);
+    }
+    return encodeQRCodes(source, length, versionForDensity(density), ecLevel);
+  }
+
+  /**
+   * Starts encoding {@code value} with {@code codec} into QR codes on
+   * {@code executor}, and returns at once. The QR codes can be taken from
+   * the returned handle as soon as each is encoded, so the first can be
+   * shown while the rest of the data is still being read, and a transfer
+   * whose settings change can be cancelled part-way. The value is encoded
+   * as by {@link #encodeQRCodes(Object, PayloadCodec, int,
+   * ErrorCorrectionLevel)}, except that data longer than
+   * {@link #MAX_ASYNC_COMPRESSED_BYTES} is not compressed: the first QR
+   * code of compressed data waits until all of it is compressed.
+   *
+   * @param value The value to encode.
+   * @param codec The codec the receiver decodes the value with.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @param executor Runs the encoding. It runs one task per handle, which
+   *   keeps its thread until the handle is finished or cancelled.
+   * @return The handle to take the QR codes from.
+   */
+  public <T> EncodeHandle encodeAsync(final T value, final PayloadCodec<T> codec, int density,
+                                      final ErrorCorrectionLevel ecLevel, Executor executor) {
+    return encodeAsync(value, codec, density, ecLevel, executor, null);
+  }
+
+  /**
+   * Starts encoding {@code value} with {@code codec} into QR codes on
+   * {@code executor}, as
+   * {@link #encodeAsync(Object, PayloadCodec, int, ErrorCorrectionLevel, Executor)}
+   * does, reusing and adding to the QR codes of {@code cache}. The handle
+   * encodes the QR codes of the collection's
+   * {@link ImgCollection#withCache(FrameCache)} view, so every QR code it
+   * gives, from the first on, carries the same session id as the
+   * collections of the same data that used the cache before.
+   *
+   * @param cache The cache of encoded QR codes to use, or null for none.
+   */
+  public <T> EncodeHandle encodeAsync(final T value, final PayloadCodec<T> codec, int density,
+                                      final ErrorCorrectionLevel ecLevel, Executor executor,
+                                      FrameCache cache) {
+    final Version qrVersion = versionForDensity(density);
+    return startAsync(new Callable<ImgCollection>() {
+      @Override
+      public ImgCollection call() throws IOException, TransmitException {
+        ByteSource source = codec.encode(value);
+        return encodeAsyncQRCodes(source, source.size(), qrVersion, ecLevel);
+      }
+    }, executor, cache);
+  }
+
+  /**
+   * Starts encoding {@code data} into QR codes on {@code executor}, and
+   * returns at once; see
+   * {@link #encodeAsync(Object, PayloadCodec, int, ErrorCorrectionLevel, Executor)}.
+   * The data is copied on {@code executor}, so it must not change until
+   * the first QR code is available.
+   */
+  public EncodeHandle encodeAsync(final byte[] data, int density,
+                                  final ErrorCorrectionLevel ecLevel, Executor executor) {
+    return encodeAsync(data, density, ecLevel, executor, null);
   }
 
-  public Collection<BitmapImage> encodeQRCodes(Serializable s)
+  /**
+   * Starts encoding {@code data} into QR codes on {@code executor},
+   * reusing and adding to the QR codes of {@code cache}; see
+   * {@link #encodeAsync(Object, PayloadCodec, int, ErrorCorrectionLevel, Executor, FrameCache)}.
+   *
+   * @param cache The cache of encoded QR codes to use, or null for none.
+   */
+  public EncodeHandle encodeAsync(final byte[] data, int density,
+                                  final ErrorCorrectionLevel ecLevel, Executor executor,
+                                  FrameCache cache) {
+    final Version qrVersion = versionForDensity(density);
+    return startAsync(new Callable<ImgCollection>() {
+      @Override
+      public ImgCollection call() throws TransmitException {
+        return encodeAsyncQRCodes(ByteSource.wrap(data.clone()), data.length, qrVersion,
+                                  ecLevel);
+      }
+    }, executor, cache);
+  }
+
+  /**
+   * Encodes the first {@code length} bytes of {@code source} for
+   * {@link #encodeAsync}, compressed only if they are no longer than
+   * {@link #MAX_ASYNC_COMPRESSED_BYTES}.
+   */
+  private ImgCollection encodeAsyncQRCodes(ByteSource source, long length, Version qrVersion,
+                                           ErrorCorrectionLevel ecLevel)
+      throws TransmitException {
+    CompressionCodec codec = length <= MAX_ASYNC_COMPRESSED_BYTES ? compressionCodec : null;
+    return encodeQRCodes(source, length, qrVersion, ecLevel, codec);
+  }
+
+  /**
+   * Returns a handle to the QR codes of the collection that {@code setup}
+   * creates, both of which happen on {@code executor}. With a cache, the
+   * handle encodes the cached view of the collection, whose session id is
+   * settled before the first QR code is encoded.
+   */
+  private EncodeHandle startAsync(final Callable<ImgCollection> setup, Executor executor,
+                                  final FrameCache cache) {
+    final EncodeHandle handle = new EncodeHandle(2 * Runtime.getRuntime().availableProcessors());
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        // Reading and compressing the data can take a while, so a handle
+        // cancelled before or during it does not start encoding.
+        if (handle.isCancelled()) {
+          return;
+        }
+        ImgCollection collection;
+        try {
+          collection = setup.call();
+          if (cache != null) {
+            collection = collection.withCache(cache);
+          }
+        } catch (IOException e) {
+          handle.fail(new TransmitException(e));
+          return;
+        } catch (Exception e) {
+          handle.fail(e);
+          return;
+        }
+        if (handle.isCancelled()) {
+          return;
+        }
+        handle.run(collection);
+      }
+    });
+    return handle;
+  }
+
+  public ImgCollection encodeQRCodes(Serializable s)
       throws TransmitException {
     // Use default QR density and error correction level so that
     // we can calculate the appropriate chunk size for the input data.
@@ -115,23 +394,501 @@ public final class Transmit {
    * @return The sequence of QR codes generated from input data.
    * @throws TransmitException if input {@code data} cannot be encoded as QR code.
    */
-  public Collection<BitmapImage> encodeQRCodes(final byte[] data, int density, ErrorCorrectionLevel ecLevel)
+  public ImgCollection encodeQRCodes(final byte[] data, int density, ErrorCorrectionLevel ecLevel)
           throws TransmitException {
-    if (density < 1 || density > 40) {
-      throw new IllegalArgumentException("QR density must be equal an integer between 1 and 40.");
+    return encodeQRCodes(data, versionForDensity(density), ecLevel);
+  }
+
+  /**
+   * Encodes {@code length} bytes read from an input stream into a collection
+   * of QR codes. The stream is read lazily, one chunk at a time, as the
+   * collection is iterated so only the chunks being encoded are held in
+   * memory. As a consequence the returned collection can only be iterated
+   * over once. The caller remains responsible for closing the stream.
+   *
+   * @param in The stream to read the data to encode from.
+   * @param length The number of bytes to read from {@code in} and encode.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from input data.
+   * @throws TransmitException if input cannot be encoded as QR code.
+   */
+  public ImgCollection encodeQRCodes(InputStream in, long length, int density,
+                                     ErrorCorrectionLevel ecLevel)
+          throws TransmitException {
+    return encodeQRCodes(ByteSources.once(in), length,
+                         versionForDensity(density), ecLevel);
+  }
+
+  /**
+   * Encodes {@code length} bytes read from a channel into a collection
+   * of QR codes. The channel is read lazily, one chunk at a time, as the
+   * collection is iterated so only the chunks being encoded are held in
+   * memory. When {@code channel} is a {@code FileChannel}, the data is read
+   * starting at its current position without moving it and the returned
+   * collection can be iterated over repeatedly. Any other channel can only
+   * be iterated over once. The caller remains responsible for closing the
+   * channel.
+   *
+   * @param channel The channel to read the data to encode from.
+   * @param length The number of bytes to read from {@code channel} and encode.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from input data.
+   * @throws TransmitException if input cannot be encoded as QR code.
+   */
+  public ImgCollection encodeQRCodes(ReadableByteChannel channel, long length,
+                                     int density, ErrorCorrectionLevel ecLevel)
+          throws TransmitException {
+    if (channel == null) {
+      throw new NullPointerException("Channel must not be null.");
     }
+    ByteSource source;
+    try {
+      source = ByteSources.fromChannel(channel);
+    } catch (IOException e) {
+      throw new TransmitException(e);
+    }
+    return encodeQRCodes(source, length, versionForDensity(density), ecLevel);
+  }
 
-    Version qrVersion = Version.getVersionForNumber(density);
-    return encodeQRCodes(data, qrVersion, ecLevel);
+  /**
+   * Encodes array of bytes into a collection of QR codes using the QR
+   * version and error correction level that {@code planner} expects to
+   * transfer them fastest.
+   *
+   * @param data The array of bytes to encode
+   * @param planner A planner for images of the same dimensions as this
+   *   transmitter's.
+   * @return The sequence of QR codes generated from input data.
+   * @throws TransmitException if no QR version can be drawn with enough
+   *   pixels per module.
+   */
+  public ImgCollection encodeQRCodes(final byte[] data, CapacityPlanner planner)
+      throws TransmitException {
+    if (planner.getHeight() != imgHeight || planner.getWidth() != imgWidth) {
+      throw new IllegalArgumentException("Planner is for " + planner.getWidth() + "x"
+          + planner.getHeight() + " images, but transmitter draws "
+          + imgWidth + "x" + imgHeight + " images.");
+    }
+    CapacityPlanner.Plan plan = planner.best(data == null ? 0 : data.length);
+    if (plan == null) {
+      throw new TransmitException("Requested image dimensions too small for "
+          + "any QR version at the requested pixels per module.");
+    }
+    return encodeQRCodes(data, plan.getVersion(), plan.getErrorCorrectionLevel());
   }
 
-  public Collection<BitmapImage> encodeQRCodes(final byte[] data) throws TransmitException {
+  public ImgCollection encodeQRCodes(final byte[] data) throws TransmitException {
     // Use default QR density and error correction level so that
     // we can calculate the appropriate chunk size for the input data.
     Version qrVersion = Version.getVersionForNumber(1);
     ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.L;
     return encodeQRCodes(data, qrVersion, ecLevel);
   }
+  /**
+   * Encodes the contents of a file into a collection of QR codes. The file is
+   * memory mapped rather than read onto the heap, and the returned
+   * collection supports random access to its QR codes through
+   * {@link ImgCollection#encodeChunk(int)}, so any chunk can be re-encoded
+   * without reading or encoding the chunks before it.
+   *
+   * @param file The file whose contents to encode.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from the file contents.
+   * @throws TransmitException if the file cannot be read or its
+   *   contents cannot be encoded as QR codes.
+   */
+  public ImgCollection encodeQRCodes(File file, int density, ErrorCorrectionLevel ecLevel)
+      throws TransmitException {
+    if (file == null) {
+      throw new NullPointerException("File must not be null.");
+    }
+    Version qrVersion = versionForDensity(density);
+    ByteSource source;
+    try {
+      source = ByteSources.map(file);
+      return encodeQRCodes(source, source.size(), qrVersion, ecLevel);
+    } catch (IOException e) {
+      throw new TransmitException(e);
+    }
+  }
+
+  /**
+   * Encodes a new version of a file that the receiver already has an older
+   * version of, the base, as a delta against the base. Only the parts of
+   * {@code data} that are not found in the base are sent, so the number of
+   * QR codes grows with the size of the changes rather than of the file.
+   * The receiver rebuilds the data with
+   * {@link Receive#decodeDeltaQRCodes(IImageProvider, byte[])}.
+   *
+   * @param data The new version of the file to encode
+   * @param base The signature of the base that the receiver has.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from the delta.
+   * @throws TransmitException if {@code data} is longer than
+   *   {@link Delta#MAX_LENGTH} bytes, or the delta cannot be encoded as QR
+   *   code.
+   */
+  public ImgCollection encodeDeltaQRCodes(final byte[] data, Delta.Signature base,
+                                          int density, ErrorCorrectionLevel ecLevel)
+          throws TransmitException {
+    if (data.length > Delta.MAX_LENGTH) {
+      throw new TransmitException("Cannot encode a delta of " + data.length
+          + " bytes. Deltas are limited to files of " + Delta.MAX_LENGTH + " bytes.");
+    }
+    return encodeQRCodes(Delta.encode(base, data), versionForDensity(density), ecLevel);
+  }
+
+  /**
+   * Encodes several named files as one archive, see {@link Archive}, whose
+   * index comes first. The archive is not compressed, so that each chunk
+   * holds a known range of it and the receiver can hand over each file as
+   * soon as the chunks that cover it arrive, with
+   * {@link Receive#decodeArchiveQRCodes}.
+   *
+   * @param files The contents of the files by name, in the order to send them.
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of QR codes generated from the archive.
+   * @throws TransmitException if the archive cannot be encoded as QR code.
+   */
+  public ImgCollection encodeArchiveQRCodes(Map<String, byte[]> files, int density,
+                                            ErrorCorrectionLevel ecLevel)
+          throws TransmitException {
+    byte[] archive;
+    try {
+      archive = Archive.pack(files);
+    } catch (IllegalArgumentException e) {
+      throw new TransmitException(e);
+    }
+    return encodeQRCodes(ByteSource.wrap(archive), archive.length,
+                         versionForDensity(density), ecLevel, null);
+  }
+
+  /**
+   * Encodes array of bytes into an unbounded stream of fountain coded QR
+   * codes. The data is split into source blocks, and each QR code carries
+   * either a source block or a combination of them. A receiver recovers the
+   * data from slightly more QR codes than there are source blocks, whichever
+   * ones it happens to decode, so a lost QR code never has to wait for its
+   * turn to come around again.
+   *
+   * The QR codes always carry a {@link HeaderFormat#V2} header, whatever
+   * header format this transmitter was created with, and the data is
+   * compressed if this transmitter compresses data.
+   *
+   * @param data The array of bytes to encode
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return An endless stream of QR codes generated from input data.
+   * @throws TransmitException if input {@code data} cannot be encoded as QR code.
+   */
+  public FountainStream encodeFountainQRCodes(final byte[] data, int density,
+                                              ErrorCorrectionLevel ecLevel)
+      throws TransmitException {
+    Version qrVersion = versionForDensity(density);
+    checkDimensions(qrVersion);
+    Payload payload = preparePayload(data);
+
+    // The padding of the source blocks takes at least one byte.
+    HeaderSize header = symbolHeader(payload.codecId);
+    int sourceBlocks = chunkCount(payload.data.length + 1L, qrVersion, ecLevel, header,
+                                  Utils.MAX_TOTAL_CHUNKS);
+    int blockSize = chunkRoom(qrVersion, ecLevel, header.maxSize(sourceBlocks));
+    return new FountainStream(this, LtCode.pad(payload.data, blockSize, sourceBlocks),
+                              blockSize, sourceBlocks, qrVersion, ecLevel, payload.codec);
+  }
+
+  /**
+   * Encodes array of bytes into a collection of QR codes followed, after
+   * every {@code dataChunks} of them, by {@code parityChunks} Reed-Solomon
+   * parity QR codes. A receiver rebuilds the QR codes of a group it missed
+   * from any {@code dataChunks} of the group's QR codes, data or parity, so
+   * it needs not wait for them to come around again.
+   *
+   * The QR codes always carry a {@link HeaderFormat#V2} header, whatever
+   * header format this transmitter was created with, and the data is
+   * compressed if this transmitter compresses data. The data QR codes are
+   * understood by receivers that do not know about parity.
+   *
+   * @param data The array of bytes to encode
+   * @param density The desired density of the resulting QR code (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @param dataChunks The number of data QR codes in each group.
+   * @param parityChunks The number of parity QR codes for each group.
+   * @return The sequence of QR codes generated from input data.
+   * @throws IllegalArgumentException if a group would have less than one
+   *   data or parity QR code, or more than 255 QR codes.
+   * @throws TransmitException if input {@code data} cannot be encoded as QR code.
+   */
+  public ParityCollection encodeParityQRCodes(final byte[] data, int density,
+                                              ErrorCorrectionLevel ecLevel,
+                                              int dataChunks, int parityChunks)
+      throws TransmitException {
+    ParityCode code = new ParityCode(dataChunks, parityChunks);
+    Version qrVersion = versionForDensity(density);
+    checkDimensions(qrVersion);
+    Payload payload = preparePayload(data);
+    if (payload.data.length == 0) {
+      return new ParityCollection(this, payload.data, payload.codec, 0, 0, code, qrVersion,
+                                  ecLevel);
+    }
+
+    // The parity header is the largest, and every chunk must leave room
+    // for it since parity chunks are as long as data chunks.
+    HeaderSize header = parityHeader(code, payload.data.length, payload.codecId);
+    int chunks = chunkCount(payload.data.length, qrVersion, ecLevel, header,
+                            Utils.MAX_TOTAL_CHUNKS);
+    int chunkSize = chunkSize(payload.data.length, chunks, qrVersion, ecLevel, header);
+    return new ParityCollection(this, payload.data, payload.codec, chunkSize, chunks, code,
+                                qrVersion, ecLevel);
+  }
+
+  /**
+   * Encodes array of bytes into a collection of frames, each holding up to
+   * {@code columns} by {@code rows} QR codes side by side, so that a
+   * receiver can decode several chunks from each frame it captures. The QR
+   * codes of a frame share the quiet zones between them, and the grid is
+   * scaled to fit the image dimensions of this transmitter.
+   *
+   * The QR codes always carry a {@link HeaderFormat#V2} header, whatever
+   * header format this transmitter was created with, which records the
+   * grid so that {@link Receive} can look for every QR code of a frame. The
+   * data is compressed if this transmitter compresses data.
+   *
+   * @param data The array of bytes to encode
+   * @param density The desired density of the resulting QR codes (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @param columns The number of QR codes across each frame, 1 to 16.
+   * @param rows The number of QR codes down each frame, 1 to 16.
+   * @return The sequence of frames generated from input data.
+   * @throws IllegalArgumentException if {@code columns} or {@code rows} is
+   *   not between 1 and 16.
+   * @throws TransmitException if input {@code data} cannot be encoded as QR
+   *   codes, or the grid does not fit in the image dimensions.
+   */
+  public TiledCollection encodeTiledQRCodes(final byte[] data, int density,
+                                            ErrorCorrectionLevel ecLevel,
+                                            int columns, int rows)
+      throws TransmitException {
+    if (columns < 1 || columns > CompactHeader.MAX_TILES
+        || rows < 1 || rows > CompactHeader.MAX_TILES) {
+      throw new IllegalArgumentException("Grid must have 1 to " + CompactHeader.MAX_TILES
+          + " columns and rows, but got " + columns + "x" + rows);
+    }
+    Version qrVersion = versionForDensity(density);
+    int dimension = qrVersion.getDimensionForVersion();
+    int gridWidth = columns * dimension + (columns + 1) * TILE_QUIET_ZONE;
+    int gridHeight = rows * dimension + (rows + 1) * TILE_QUIET_ZONE;
+    if (imgWidth < gridWidth || imgHeight < gridHeight) {
+      throw new TransmitException("Requested image dimensions too small for "
+          + columns + "x" + rows + " QR codes of version " + qrVersion.getVersionNumber()
+          + ". Expected at least (" + gridWidth + "," + gridHeight
+          + "), but got (" + imgWidth + "," + imgHeight + ").");
+    }
+
+    Payload payload = preparePayload(data);
+    if (payload.data.length == 0) {
+      return new TiledCollection(this, payload.data, payload.codec, 0, 0, columns, rows,
+                                 qrVersion, ecLevel);
+    }
+
+    HeaderSize header = tiledHeader(payload.codecId);
+    int chunks = chunkCount(payload.data.length, qrVersion, ecLevel, header,
+                            Utils.MAX_TOTAL_CHUNKS);
+    int chunkSize = chunkSize(payload.data.length, chunks, qrVersion, ecLevel, header);
+    return new TiledCollection(this, payload.data, payload.codec, chunkSize, chunks, columns, rows,
+                               qrVersion, ecLevel);
+  }
+
+  /**
+   * Encodes array of bytes into a collection of colour frames, each holding
+   * up to three QR codes, one in each of the red, green and blue channels,
+   * so that a receiver can decode three chunks from each frame it captures
+   * with modules of the same size. A receiver separates the channels of the
+   * frames it captures and decodes each on its own.
+   *
+   * The QR codes always carry a {@link HeaderFormat#V2} header, whatever
+   * header format this transmitter was created with, which records that
+   * the frames are in colour. The data is compressed if this transmitter
+   * compresses data.
+   *
+   * @param data The array of bytes to encode
+   * @param density The desired density of the resulting QR codes (i.e. version 1-40).
+   * @param ecLevel Error correction level of the QR codes.
+   * @return The sequence of colour frames generated from input data.
+   * @throws TransmitException if input {@code data} cannot be encoded as QR codes.
+   */
+  public ColorCollection encodeColorQRCodes(final byte[] data, int density,
+                                            ErrorCorrectionLevel ecLevel)
+      throws TransmitException {
+    Version qrVersion = versionForDensity(density);
+    checkDimensions(qrVersion);
+    Payload payload = preparePayload(data);
+    if (payload.data.length == 0) {
+      return new ColorCollection(this, payload.data, payload.codec, 0, 0, qrVersion, ecLevel);
+    }
+
+    // Colour frames share the header of tiled frames.
+    HeaderSize header = tiledHeader(payload.codecId);
+    int chunks = chunkCount(payload.data.length, qrVersion, ecLevel, header,
+                            Utils.MAX_TOTAL_CHUNKS);
+    int chunkSize = chunkSize(payload.data.length, chunks, qrVersion, ecLevel, header);
+    return new ColorCollection(this, payload.data, payload.codec, chunkSize, chunks, qrVersion,
+                               ecLevel);
+  }
+
+  /**
+   * Throws {@code TransmitException} if the images of this transmitter are
+   * too small to display a QR code of version {@code qrVersion}.
+   */
+  private void checkDimensions(Version qrVersion) throws TransmitException {
+    if (Math.min(imgWidth, imgHeight) < qrVersion.getDimensionForVersion()) {
+      throw new TransmitException("Requested image dimensions too small for "
+          + "QR version " + qrVersion.getVersionNumber()
+          + ". Expected at least " + qrVersion.getDimensionForVersion()
+          + ", but got (" + imgWidth + "," + imgHeight + ").");
+    }
+  }
+
+  /**
+   * Returns the data to send for {@code data}: compressed with this
+   * transmitter's codec if that makes it smaller, otherwise a copy, so that
+   * later changes by the caller do not change the QR codes we generate.
+   */
+  private Payload preparePayload(byte[] data) throws TransmitException {
+    if (data == null) {
+      throw new NullPointerException("Data must not be null.");
+    }
+    if (compressionCodec != null && data.length > 0) {
+      try {
+        byte[] compressed = CompressionCodecs.compress(compressionCodec, data);
+        if (compressed.length < data.length) {
+          return new Payload(compressed, compressionCodec);
+        }
+      } catch (IOException e) {
+        throw new TransmitException(e);
+      }
+    }
+    return new Payload(data.clone(), null);
+  }
+
+  /**
+   * Data to send, and the codec it was compressed with or null.
+   */
+  private static final class Payload {
+    private final byte[] data;
+    private final CompressionCodec codec;
+    private final int codecId;
+
+    Payload(byte[] data, CompressionCodec codec) {
+      this.data = data;
+      this.codec = codec;
+      this.codecId = codec == null ? 0 : codec.getId();
+    }
+  }
+
+  /**
+   * The size of the largest header in front of the data of a QR code, which
+   * depends on the number of chunks the data is split into.
+   */
+  private interface HeaderSize {
+    int maxSize(int totalChunks);
+  }
+
+  private static HeaderSize compactHeader(final int codecId) {
+    return new HeaderSize() {
+      @Override
+      public int maxSize(int totalChunks) {
+        return CompactHeader.maxSize(totalChunks, codecId);
+      }
+    };
+  }
+
+  private static HeaderSize tiledHeader(final int codecId) {
+    return new HeaderSize() {
+      @Override
+      public int maxSize(int totalChunks) {
+        return CompactHeader.maxTiledSize(totalChunks, codecId);
+      }
+    };
+  }
+
+  private static HeaderSize parityHeader(final ParityCode code, final int length,
+                                         final int codecId) {
+    return new HeaderSize() {
+      @Override
+      public int maxSize(int totalChunks) {
+        return CompactHeader.maxParitySize(totalChunks, code, length, codecId);
+      }
+    };
+  }
+
+  private static HeaderSize symbolHeader(final int codecId) {
+    return new HeaderSize() {
+      @Override
+      public int maxSize(int totalChunks) {
+        return CompactHeader.maxSymbolSize(totalChunks, codecId);
+      }
+    };
+  }
+
+  /**
+   * Returns the number of chunks {@code length} bytes need in QR codes
+   * that also hold a {@code header}. The header grows with the number of
+   * chunks, which in turn depends on the room left by the header. Neither
+   * shrinks as the other grows, so a few rounds settle on the smallest
+   * consistent count.
+   *
+   * @throws TransmitException if the header leaves no room for data, or
+   *   the data needs more than {@code maxChunks} chunks.
+   */
+  private int chunkCount(long length, Version qrVersion, ErrorCorrectionLevel ecLevel,
+                         HeaderSize header, int maxChunks) throws TransmitException {
+    int chunks = 1;
+    while (true) {
+      int room = chunkRoom(qrVersion, ecLevel, header.maxSize(chunks));
+      long needed = getTotalChunks(length, room);
+      if (needed == chunks) {
+        return chunks;
+      }
+      checkTotalChunks(needed, maxChunks);
+      chunks = (int) needed;
+    }
+  }
+
+  /**
+   * Returns the size of each of {@code chunks} chunks of {@code length}
+   * bytes in QR codes that also hold a {@code header}, spreading the data
+   * evenly across the QR codes.
+   */
+  private static int chunkSize(long length, int chunks, Version qrVersion,
+                               ErrorCorrectionLevel ecLevel, HeaderSize header)
+      throws TransmitException {
+    return spreadChunkSize(length, chunks,
+                           chunkRoom(qrVersion, ecLevel, header.maxSize(chunks)));
+  }
+
+  /**
+   * Returns the number of data bytes that fit in a QR code next to a
+   * header of {@code headerSize} bytes.
+   *
+   * @throws TransmitException if there is no room for data.
+   */
+  private static int chunkRoom(Version qrVersion, ErrorCorrectionLevel ecLevel,
+                               int headerSize) throws TransmitException {
+    int room = payloadMaxBytes(ecLevel, qrVersion) + Utils.getNumberOfReservedBytes()
+        - headerSize;
+    if (room < 1) {
+      throw new TransmitException("QR version " + qrVersion.getVersionNumber()
+          + " with error correction level " + ecLevel + " has no room for data.");
+    }
+    return room;
+  }
+
   /**
    * Encodes array of bytes into a collection of QR codes. It will break input
    * into chunks small enough for encoding into QR codes for the requested
@@ -143,67 +900,575 @@ public final class Transmit {
    * @return The sequence of QR codes generated from input data.
    * @throws TransmitException if input {@code data} cannot be encoded as QR code.
    */
-  protected Collection<BitmapImage> encodeQRCodes(final byte[] data,
+  protected ImgCollection encodeQRCodes(final byte[] data,
       final Version qrVersion,
       final ErrorCorrectionLevel ecLevel) throws TransmitException {
 
     if (data == null || data.length <= 0) {
-      return Lists.newArrayList();
+      return new ImgCollection(ByteSource.empty(), 0, qrVersion, ecLevel);
     }
+    // Copy the input so that later changes by the caller do not
+    // change the QR codes we generate.
+    return encodeQRCodes(ByteSource.wrap(data.clone()), data.length, qrVersion, ecLevel);
+  }
 
-    // Check that image dimensions specified are large enough
-    // to display the QR code generated with the requested density.
-    if (Math.min(imgWidth, imgHeight) < qrVersion.getDimensionForVersion()) {
-      throw new TransmitException("Requested image dimensions too small for "
-          + "QR version " + qrVersion.getVersionNumber()
-          + "Expected at least " + qrVersion.getDimensionForVersion()
-          + ", but got (" + imgWidth + "," + imgHeight + ").");
+  /**
+   * Encodes the first {@code length} bytes of {@code source} into a collection
+   * of QR codes. The source is only read as the collection is iterated.
+   */
+  private ImgCollection encodeQRCodes(ByteSource source, long length,
+      Version qrVersion, ErrorCorrectionLevel ecLevel) throws TransmitException {
+    return encodeQRCodes(source, length, qrVersion, ecLevel, compressionCodec);
+  }
+
+  /**
+   * Encodes the first {@code length} bytes of {@code source} into a collection
+   * of QR codes, compressed with {@code compressionCodec} if it is not null
+   * and makes them smaller. The data is compressed as it is read, into
+   * memory while it is small and a temporary file once it is not, which is
+   * deleted once the collection is no longer used.
+   */
+  private ImgCollection encodeQRCodes(ByteSource source, long length,
+      Version qrVersion, ErrorCorrectionLevel ecLevel, CompressionCodec compressionCodec)
+      throws TransmitException {
+    if (length < 0) {
+      throw new IllegalArgumentException("Length of data to encode must not be negative.");
+    }
+    if (length == 0) {
+      return new ImgCollection(ByteSource.empty(), 0, qrVersion, ecLevel);
     }
 
-    return new ImgCollection(data,qrVersion,ecLevel);
+    CompressionCodec codec = null;
+    if (compressionCodec != null) {
+      FileBackedOutputStream compressed =
+          new FileBackedOutputStream(COMPRESSION_BUFFER_BYTES, true);
+      // Data that can only be read once is kept as it is read, for when it
+      // does not compress.
+      FileBackedOutputStream raw = ByteSources.isRepeatable(source)
+          ? null : new FileBackedOutputStream(COMPRESSION_BUFFER_BYTES, true);
+      try {
+        long read = CompressionCodecs.compress(compressionCodec, source.slice(0, length),
+                                               compressed, raw);
+        if (read != length) {
+          throw new TransmitException("Input ended after " + read + " of " + length + " bytes.");
+        }
+        ByteSource compressedSource = compressed.asByteSource();
+        long compressedLength = compressedSource.size();
+        if (compressedLength < length) {
+          source = compressedSource;
+          length = compressedLength;
+          codec = compressionCodec;
+        } else {
+          compressed.reset();
+          if (raw != null) {
+            source = raw.asByteSource();
+          }
+        }
+      } catch (IOException e) {
+        throw new TransmitException(e);
+      }
+    }
+
+    checkDimensions(qrVersion);
+    return new ImgCollection(source, length, qrVersion, ecLevel, codec);
+  }
+
+  /**
+   * Returns the QR version for the requested density.
+   *
+   * @throws IllegalArgumentException if {@code density} is not between 1 and 40.
+   */
+  private static Version versionForDensity(int density) {
+    if (density < 1 || density > 40) {
+      throw new IllegalArgumentException("QR density must be equal an integer between 1 and 40.");
+    }
+    return Version.getVersionForNumber(density);
   }
 
   /**
    * Collection generates QR code bitmaps on demand.
    *
+   * By default the QR codes are encoded one at a time on the thread that
+   * iterates over the collection. Use {@link #withExecutor(Executor)} to
+   * obtain a view of the same collection that encodes upcoming chunks
+   * concurrently; the QR codes are still returned in chunk order and are
+   * identical to those produced serially.
    */
-  private class ImgCollection extends AbstractCollection<BitmapImage> {
+  public final class ImgCollection extends AbstractCollection<BitmapImage> {
     private final Version qrVersion;
     private final ErrorCorrectionLevel ecLevel;
-    private final byte[] data;
+
+    /* The data to encode, read lazily by each iterator */
+    private final ByteSource data;
+    private final long length;
 
     private final int maxChunkSize;
     private final int totalChunks;
 
-    // Suppress PMD warning about storing data array
-    // directly since ImgIterator will clone the data.
-    public ImgCollection(byte[] data, //NOPMD
+    /* Codec the data was compressed with and its id, or null and 0 */
+    private final CompressionCodec codec;
+    private final int codecId;
+
+    /* Identifies the stream in version 2 headers, -1 with version 1 */
+    private final int sessionId;
+
+    /* Encode chunks on this executor when non-null, otherwise encode serially */
+    private final Executor executor;
+    private final int maxPending;
+
+    /* Look up and store encoded chunks in this cache when non-null */
+    private final FrameCache cache;
+
+    /* Hash of the data, computed when the cache is first used */
+    private volatile HashCode payloadHash;
+
+    /* Sent before every MANIFEST_INTERVAL chunks when non-null */
+    private final Manifest manifest;
+
+    /* Iterators return the chunks whose id - 1 is stripe modulo stripes */
+    private final int stripe;
+    private final int stripes;
+
+    private ImgCollection(ByteSource data, long length,
         Version qrVersion,
-        ErrorCorrectionLevel ecLevel) {
+        ErrorCorrectionLevel ecLevel) throws TransmitException {
+      this(data, length, qrVersion, ecLevel, null);
+    }
+
+    private ImgCollection(ByteSource data, long length,
+        Version qrVersion,
+        ErrorCorrectionLevel ecLevel, CompressionCodec codec) throws TransmitException {
       this.data = data;
+      this.codec = codec;
+      this.codecId = codec == null ? 0 : codec.getId();
+      this.length = length;
       this.qrVersion = qrVersion;
       this.ecLevel = ecLevel;
+      this.executor = null;
+      this.maxPending = 0;
+      this.cache = null;
+      this.manifest = null;
+      this.stripe = 0;
+      this.stripes = 1;
+      this.sessionId = headerFormat == HeaderFormat.V1 ? -1 : newSessionId();
+
+      if (length == 0) {
+        totalChunks = 0;
+        maxChunkSize = 0;
+      } else if (headerFormat == HeaderFormat.V1) {
+        int desiredChunkSize = getPayloadMaxBytes(ecLevel, qrVersion);
+        long chunks = getTotalChunks(length, desiredChunkSize);
+        checkTotalChunks(chunks, Utils.getMaxTotalChunks(headerFormat));
+        totalChunks = (int) chunks;
+        // Recalculate maxChunkSize to more evenly spread data across QR codes.
+        maxChunkSize = spreadChunkSize(length, totalChunks, desiredChunkSize);
+      } else {
+        HeaderSize header = compactHeader(codecId);
+        totalChunks = chunkCount(length, qrVersion, ecLevel, header,
+                                 Utils.getMaxTotalChunks(headerFormat));
+        maxChunkSize = chunkSize(length, totalChunks, qrVersion, ecLevel, header);
+      }
+    }
 
-      int desiredChunkSize = getPayloadMaxBytes(ecLevel, qrVersion);
-      totalChunks = getTotalChunks(data.length, desiredChunkSize);
-      // Recalculate maxChunkSize to more evenly spread data across QR codes.
-      maxChunkSize = Math.min(desiredChunkSize, ((int) Math.ceil((float)data.length / totalChunks)));
+    // Copy of an existing collection with the given executor, cache,
+    // manifest, session and stripe.
+    private ImgCollection(ImgCollection other, Executor executor, int maxPending,
+                          FrameCache cache, Manifest manifest, int sessionId,
+                          int stripe, int stripes) {
+      this.data = other.data;
+      this.length = other.length;
+      this.qrVersion = other.qrVersion;
+      this.ecLevel = other.ecLevel;
+      this.maxChunkSize = other.maxChunkSize;
+      this.totalChunks = other.totalChunks;
+      this.codec = other.codec;
+      this.codecId = other.codecId;
+      this.sessionId = sessionId;
+      this.stripe = stripe;
+      this.stripes = stripes;
+      this.executor = executor;
+      this.maxPending = maxPending;
+      this.cache = cache;
+      this.manifest = manifest;
+      this.payloadHash = other.payloadHash;
     }
+
     // Suppress default constructor to force instantiation with data
     // default density, and error correction levels.
     private ImgCollection() {
       throw new AssertionError();
     }
 
+    /**
+     * Returns a view of this collection whose iterators encode QR codes
+     * concurrently on {@code executor}. Iterators keep up to twice the number
+     * of available processors worth of chunks encoding ahead of the
+     * consumer.
+     *
+     * @param executor The executor used to run the encoding tasks.
+     */
+    public ImgCollection withExecutor(Executor executor) {
+      return withExecutor(executor, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns a view of this collection whose iterators encode QR codes
+     * concurrently on {@code executor}.
+     *
+     * @param executor The executor used to run the encoding tasks.
+     * @param maxPending The maximum number of chunks that an iterator
+     *   will have submitted for encoding but not yet returned.
+     */
+    public ImgCollection withExecutor(Executor executor, int maxPending) {
+      if (executor == null) {
+        throw new NullPointerException("Executor must not be null.");
+      }
+      if (maxPending < 1) {
+        throw new IllegalArgumentException("Must allow at least one pending chunk.");
+      }
+      return new ImgCollection(this, executor, maxPending, cache, manifest, sessionId,
+                               stripe, stripes);
+    }
+
+    /**
+     * Returns a view of this collection that reuses QR codes from
+     * {@code cache} instead of encoding them again, and adds the QR codes
+     * it does encode to the cache. The cache recognizes the same data
+     * across collections, so it can be shared by any number of them.
+     *
+     * With {@link HeaderFormat#V2} headers every QR code carries the
+     * session id, so the view takes the session id of the first collection
+     * of the same data, density and error correction level to use the
+     * cache, in place of its own. Receivers treat the QR codes of both as
+     * one stream.
+     *
+     * Identifying the data takes one pass over it, when this method is
+     * called for {@code V2} headers and otherwise when the collection is
+     * first iterated. Collections created from an input stream can only be
+     * iterated once, so they do not use the cache.
+     *
+     * @param cache The cache of encoded QR codes to use.
+     */
+    public ImgCollection withCache(FrameCache cache) {
+      if (cache == null) {
+        throw new NullPointerException("Cache must not be null.");
+      }
+      int session = sessionId;
+      if (session >= 0 && ByteSources.isRepeatable(data)) {
+        session = cache.sessionId(frameKey(-1, 0), sessionId);
+      }
+      return new ImgCollection(this, executor, maxPending, cache, manifest, session,
+                               stripe, stripes);
+    }
+
+    /**
+     * Returns a view of this collection that sends a {@link Manifest} of
+     * the data before every {@value Transmit#MANIFEST_INTERVAL} QR codes, so
+     * that a receiver learns what is coming, and sets aside storage for it,
+     * from whichever manifest it decodes first. The manifest carries the
+     * length of the data, its chunk size, {@code name}, {@code contentType}
+     * and a SHA-256 digest that the receiver checks the data against. The
+     * view has a QR code for each manifest in addition to the chunks;
+     * {@link #encodeChunk} still numbers the chunks alone. The manifest's
+     * QR code is of the smallest version that holds it, which may be
+     * larger than the version of the chunks.
+     *
+     * Computing the digest takes one pass over the data.
+     *
+     * @param name The name of the data, such as its file name, or null.
+     * @param contentType The MIME type of the data, or null.
+     * @throws IllegalStateException if the transmitter writes
+     *   {@link HeaderFormat#V1} headers, which cannot mark a manifest.
+     * @throws IllegalArgumentException if {@code name} and
+     *   {@code contentType} are too long for a QR code.
+     * @throws UnsupportedOperationException if the collection was created
+     *   from an input stream, which cannot be read twice.
+     */
+    public ImgCollection withManifest(String name, String contentType) {
+      return withManifest(name, contentType, 0);
+    }
+
+    /**
+     * Returns a view of this collection that sends a {@link Manifest}, as
+     * {@link #withManifest(String, String)} does, which also tells
+     * receivers that each QR code is shown for {@code frameInterval}
+     * milliseconds, so that they can capture frames while a QR code is
+     * steady rather than changing.
+     *
+     * @param frameInterval The time each QR code is shown for in
+     *   milliseconds, or 0 if it is not known.
+     * @throws IllegalArgumentException if {@code frameInterval} is negative.
+     */
+    public ImgCollection withManifest(String name, String contentType, int frameInterval) {
+      if (frameInterval < 0) {
+        throw new IllegalArgumentException("Frame interval must not be negative.");
+      }
+      if (sessionId < 0) {
+        throw new IllegalStateException("Manifests need version 2 headers.");
+      }
+      if (!ByteSources.isRepeatable(data)) {
+        throw new UnsupportedOperationException(
+            "Manifests require data from a byte array or a file.");
+      }
+      byte[] digest;
+      try {
+        digest = data.slice(0, length).hash(Manifest.DIGEST).asBytes();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read data to encode.", e);
+      }
+      Manifest m = new Manifest(length, maxChunkSize, contentType, name, digest, frameInterval);
+      int manifestSize = m.toByteArray().length + CompactHeader.maxTiledSize(totalChunks, codecId);
+      Version largest = Version.getVersionForNumber(40);
+      if (manifestSize > payloadMaxBytes(ecLevel, largest) + Utils.getNumberOfReservedBytes()) {
+        throw new IllegalArgumentException("Manifest of " + manifestSize
+            + " bytes does not fit in a QR code.");
+      }
+      return new ImgCollection(this, executor, maxPending, cache, m, sessionId, stripe, stripes);
+    }
+
+    /**
+     * Returns a view of this collection for one of {@code count}
+     * transmitters that share the work of sending it, each showing its own
+     * stripe of the chunks side by side with the others: transmitter
+     * {@code index} sends chunks {@code index + 1}, {@code index + 1 + count}
+     * and so on. A receiver whose camera sees them all merges the chunks of
+     * every stripe into one message, often several in the same frame, so
+     * that the transfer takes about {@code count} times fewer frames.
+     *
+     * Transmitters on separate devices each encode the same data with the
+     * same settings and must use the same session id, see
+     * {@link #withSessionId}, since receivers ignore chunks of other
+     * sessions.
+     *
+     * @param index The stripe of this transmitter, from 0.
+     * @param count The number of transmitters.
+     * @throws IllegalArgumentException if {@code index} is not between 0
+     *   and {@code count - 1}.
+     */
+    public ImgCollection stripe(int index, int count) {
+      if (count < 1 || index < 0 || index >= count) {
+        throw new IllegalArgumentException("Stripe " + index + " of " + count
+            + " transmitters does not exist.");
+      }
+      return new ImgCollection(this, executor, maxPending, cache, manifest, sessionId,
+                               index, count);
+    }
+
+    /**
+     * Returns the id that identifies this stream in its headers, or -1
+     * when the transmitter writes {@link HeaderFormat#V1} headers, which do
+     * not carry one.
+     */
+    public int getSessionId() {
+      return sessionId;
+    }
+
+    /**
+     * Returns a view of this collection whose headers carry
+     * {@code sessionId} rather than the id picked at random when it was
+     * created, so that transmitters on several devices can send stripes of
+     * the same stream, see {@link #stripe}.
+     *
+     * @throws IllegalStateException if the transmitter writes
+     *   {@link HeaderFormat#V1} headers, which do not carry a session id.
+     * @throws IllegalArgumentException if {@code sessionId} is out of range.
+     */
+    public ImgCollection withSessionId(int sessionId) {
+      if (this.sessionId < 0) {
+        throw new IllegalStateException("Session ids need version 2 headers.");
+      }
+      if (sessionId < 0 || sessionId > CompactHeader.MAX_SESSION_ID) {
+        throw new IllegalArgumentException("Session id must be between 0 and "
+            + CompactHeader.MAX_SESSION_ID + ".");
+      }
+      return new ImgCollection(this, executor, maxPending, cache, manifest, sessionId,
+                               stripe, stripes);
+    }
+
+    /**
+     * Returns the manifest sent with this collection, or null if it has
+     * none.
+     */
+    public Manifest getManifest() {
+      return manifest;
+    }
+
+    /**
+     * Encodes the QR code of the manifest of this collection.
+     *
+     * @throws IllegalStateException if the collection has no manifest.
+     */
+    public BitmapImage encodeManifest() {
+      if (manifest == null) {
+        throw new IllegalStateException("Collection has no manifest.");
+      }
+      byte[] prependedData = CompactHeader.prependManifest(manifest.toByteArray(), totalChunks,
+                                                           codecId, sessionId);
+      return encodePrependedQRCode(prependedData, 0, totalChunks, ecLevel, null, null);
+    }
+
+    /**
+     * Encodes a single chunk of the collection without encoding any of the
+     * chunks before it. The result is identical to the {@code chunkId}-th
+     * QR code returned by this collection's iterators. This method may be
+     * called concurrently from several threads.
+     *
+     * @param chunkId The 1-indexed id of the chunk to encode.
+     * @throws IndexOutOfBoundsException if {@code chunkId} is not between 1
+     *   and {@code size()}.
+     * @throws UnsupportedOperationException if the collection was created
+     *   from an input stream or a channel that is not a {@code FileChannel}.
+     */
+    public BitmapImage encodeChunk(int chunkId) {
+      if (chunkId < 1 || chunkId > totalChunks) {
+        throw new IndexOutOfBoundsException("Cannot encode chunk " + chunkId
+            + " of " + totalChunks + " chunks.");
+      }
+      if (!ByteSources.isRepeatable(data)) {
+        throw new UnsupportedOperationException(
+            "Random access requires data from a byte array or a file.");
+      }
+      // A cached QR code needs no data.
+      BitmapImage cached = getCached(chunkId);
+      if (cached != null) {
+        return cached;
+      }
+      // Every chunk but the last holds exactly maxChunkSize bytes.
+      long offset = (long) (chunkId - 1) * maxChunkSize;
+      int chunkLength = (int) Math.min(maxChunkSize, length - offset);
+      byte[] dataChunk;
+      try {
+        dataChunk = data.slice(offset, chunkLength).read();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read data to encode.", e);
+      }
+      if (dataChunk.length != chunkLength) {
+        throw new IllegalStateException("Input ended before chunk " + chunkId
+            + " could be read.");
+      }
+      return encode(dataChunk, chunkId);
+    }
+
     @Override
     public Iterator<BitmapImage> iterator() {
-      return new ImgIterator(data, qrVersion, ecLevel, maxChunkSize, totalChunks);
+      Iterator<BitmapImage> chunks = executor == null
+          ? new ImgIterator(this) : new ParallelImgIterator(this);
+      if (manifest == null || stripeChunks() == 0) {
+        return chunks;
+      }
+      return new ManifestIterator(chunks, encodeManifest());
     }
 
+    /**
+     * Returns the number of QR codes, which includes those of the manifest
+     * if the collection has one, and only those of its stripe if it is one.
+     */
     @Override
     public int size() {
+      int chunks = stripeChunks();
+      if (manifest == null) {
+        return chunks;
+      }
+      return chunks + (chunks + MANIFEST_INTERVAL - 1) / MANIFEST_INTERVAL;
+    }
+
+    /**
+     * Returns the number of chunks in the stripe of this collection.
+     */
+    private int stripeChunks() {
+      return stripe >= totalChunks ? 0 : (totalChunks - stripe - 1) / stripes + 1;
+    }
+
+    /**
+     * Returns true if chunk {@code chunkId} is in the stripe of this
+     * collection.
+     */
+    private boolean inStripe(int chunkId) {
+      return (chunkId - 1) % stripes == stripe;
+    }
+
+    /**
+     * Returns the number of chunks the data is split into, which
+     * {@link #encodeChunk} numbers from 1, over every stripe and without
+     * the QR codes of the manifest.
+     */
+    public int getDataChunks() {
       return totalChunks;
     }
+
+    /**
+     * Returns true if the iterators of this collection return exactly its
+     * chunks in order: it has no manifest and is not a stripe.
+     */
+    boolean isWhole() {
+      return manifest == null && stripes == 1;
+    }
+
+    /**
+     * Returns the requested density of the QR codes. The last QR code, and
+     * all of them when the data is spread evenly, may use a lower version.
+     */
+    public Version getVersion() {
+      return qrVersion;
+    }
+
+    public ErrorCorrectionLevel getErrorCorrectionLevel() {
+      return ecLevel;
+    }
+
+    /**
+     * Returns the codec the data was compressed with, or null when it is
+     * sent uncompressed.
+     */
+    public CompressionCodec getCompressionCodec() {
+      return codec;
+    }
+
+    /**
+     * Returns the QR code for chunk {@code chunkId} from the cache, or null
+     * when the collection does not use a cache or the chunk is not cached.
+     */
+    private BitmapImage getCached(int chunkId) {
+      FrameCache.Key key = cacheKey(chunkId);
+      return key == null ? null : cache.get(key, totalChunks);
+    }
+
+    /**
+     * Encodes the bytes of chunk {@code chunkId} and adds the QR code to
+     * the cache, if the collection uses one.
+     */
+    private BitmapImage encode(byte[] dataChunk, int chunkId) {
+      byte[] prependedData = headerFormat == HeaderFormat.V1
+          ? Utils.prependChunkId(dataChunk, chunkId, totalChunks, codecId)
+          : CompactHeader.prepend(dataChunk, chunkId, totalChunks, codecId, sessionId);
+      return encodePrependedQRCode(prependedData, chunkId, totalChunks, ecLevel,
+                                   cache, cacheKey(chunkId));
+    }
+
+    private FrameCache.Key cacheKey(int chunkId) {
+      if (cache == null || !ByteSources.isRepeatable(data)) {
+        return null;
+      }
+      return frameKey(sessionId, chunkId);
+    }
+
+    /**
+     * Returns the key of the QR code for chunk {@code chunkId} of the data
+     * under session {@code session}. The data is hashed the first time.
+     */
+    private FrameCache.Key frameKey(int session, int chunkId) {
+      HashCode hash = payloadHash;
+      if (hash == null) {
+        try {
+          hash = data.hash(Hashing.murmur3_128());
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to read data to encode.", e);
+        }
+        payloadHash = hash;
+      }
+      return new FrameCache.Key(hash, codecId, session, qrVersion.getVersionNumber(), ecLevel,
+                                maskSelection, imgWidth, imgHeight, chunkId);
+    }
   }
 
   /**
@@ -213,28 +1478,35 @@ public final class Transmit {
    */
   private class ImgIterator implements Iterator<BitmapImage> {
 
-    private final Version qrVersion;
-    private final ErrorCorrectionLevel ecLevel;
+    protected final ImgCollection images;
 
     private final int maxChunkSize;
-    private final int totalChunks;
+    protected final int totalChunks;
 
     /**
      * The current chunk id, 1-indexed. (The first chunk has chunkId = 1.)
      */
-    private int chunkId;
-    private ByteArrayInputStream byteInputStream;
+    protected int chunkId;
+    private final InputStream byteInputStream;
+    private final long length;
+    private long bytesRead;
 
-    public ImgIterator(byte[] data, Version qrVersion,
-        ErrorCorrectionLevel ecLevel, int maxChunkSize, int totalChunks) {
-      this.qrVersion = qrVersion;
-      this.ecLevel = ecLevel;
-      this.maxChunkSize = maxChunkSize;
-      this.totalChunks = totalChunks;
+    public ImgIterator(ImgCollection images) {
+      this.images = images;
+      this.maxChunkSize = images.maxChunkSize;
+      this.totalChunks = images.totalChunks;
+      this.length = images.length;
 
       chunkId = 0;
+      bytesRead = 0;
       perfLog.debug("Max bytes of payload per QR code: " + maxChunkSize);
-      byteInputStream = new ByteArrayInputStream(data.clone());
+      try {
+        byteInputStream = images.data.openStream();
+      } catch (IOException e) {
+        // Iterators cannot throw checked exceptions.
+        throw new IllegalStateException("Unable to read data to encode.", e);
+      }
+      skipOtherStripes();
     }
 
     @Override
@@ -244,26 +1516,72 @@ public final class Transmit {
 
     @Override
     public BitmapImage next() {
-      int bytesRemaining = byteInputStream.available();
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more QR codes to encode.");
+      }
+      BitmapImage cached = images.getCached(chunkId + 1);
+      if (cached != null) {
+        skipNextChunk();
+        skipOtherStripes();
+        return cached;
+      }
+      byte[] dataChunk = readNextChunk();
+      int id = chunkId;
+      skipOtherStripes();
+      return images.encode(dataChunk, id);
+    }
 
-      byte[] dataChunk = null;
-      if (bytesRemaining <= maxChunkSize) {
-        dataChunk = new byte[bytesRemaining];
-      } else {
-        dataChunk = new byte[maxChunkSize];
+    /**
+     * Skips the chunks up to the next one in the collection's stripe, or to
+     * the end.
+     */
+    protected void skipOtherStripes() {
+      while (chunkId != totalChunks && !images.inStripe(chunkId + 1)) {
+        skipNextChunk();
+      }
+    }
+
+    /**
+     * Returns the number of bytes in the next chunk.
+     */
+    private int nextChunkSize() {
+      return (int) Math.min(maxChunkSize, length - bytesRead);
+    }
+
+    /**
+     * Skips over the bytes of the next chunk and advances {@code chunkId}.
+     */
+    protected void skipNextChunk() {
+      int chunkSize = nextChunkSize();
+      try {
+        ByteStreams.skipFully(byteInputStream, chunkSize);
+      } catch (EOFException e) {
+        throw new IllegalStateException("Input ended after " + bytesRead
+            + " bytes but expected " + length + " bytes.", e);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read data to encode.", e);
       }
-      int bytesRead = byteInputStream.read(dataChunk, 0, dataChunk.length);
-      if (bytesRead < 0) {
-        throw new AssertionError(
-            "Data reportedly available to read but read returned end of input.");
-      } else if (bytesRead != dataChunk.length) {
-        throw new AssertionError("Should be possible to read "
-            + dataChunk.length + " bytes when there are " + bytesRemaining
-            + " bytes available.");
+      bytesRead += chunkSize;
+      chunkId++;
+    }
+
+    /**
+     * Reads the bytes of the next chunk and advances {@code chunkId}.
+     */
+    protected byte[] readNextChunk() {
+      byte[] dataChunk = new byte[nextChunkSize()];
+      try {
+        ByteStreams.readFully(byteInputStream, dataChunk);
+      } catch (EOFException e) {
+        throw new IllegalStateException("Input ended after " + bytesRead
+            + " bytes but expected " + length + " bytes.", e);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read data to encode.", e);
       }
+      bytesRead += dataChunk.length;
 
       chunkId++;
-      return encodeQRCode(dataChunk, chunkId, totalChunks, qrVersion, ecLevel);
+      return dataChunk;
     }
 
     @Override
@@ -273,6 +1591,81 @@ public final class Transmit {
 
   }
 
+  /**
+   * Iterator that reads chunks in order on the calling thread but hands
+   * the QR encoding of upcoming chunks to an executor. Encoded images are
+   * returned in chunk order.
+   */
+  private final class ParallelImgIterator extends ImgIterator {
+
+    private final Executor executor;
+    private final int maxPending;
+
+    /* Chunks submitted for encoding, in chunk order */
+    private final Queue<Future<BitmapImage>> pending;
+
+    public ParallelImgIterator(ImgCollection images) {
+      super(images);
+      this.executor = images.executor;
+      this.maxPending = images.maxPending;
+      this.pending = new ArrayDeque<Future<BitmapImage>>(maxPending);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !pending.isEmpty() || super.hasNext();
+    }
+
+    @Override
+    public BitmapImage next() {
+      // Keep the executor busy with the chunks the consumer will ask for next.
+      while (pending.size() < maxPending && super.hasNext()) {
+        final BitmapImage cached = images.getCached(chunkId + 1);
+        if (cached != null) {
+          skipNextChunk();
+          skipOtherStripes();
+          pending.add(Futures.immediateFuture(cached));
+          continue;
+        }
+        final byte[] dataChunk = readNextChunk();
+        final int id = chunkId;
+        skipOtherStripes();
+        FutureTask<BitmapImage> task = new FutureTask<BitmapImage>(
+            new Callable<BitmapImage>() {
+              @Override
+              public BitmapImage call() {
+                return images.encode(dataChunk, id);
+              }
+            });
+        executor.execute(task);
+        pending.add(task);
+      }
+      if (pending.isEmpty()) {
+        throw new NoSuchElementException("No more QR codes to encode.");
+      }
+      return waitForImage(pending.remove());
+    }
+
+    private BitmapImage waitForImage(Future<BitmapImage> encoded) {
+      try {
+        return encoded.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while encoding QR code.", e);
+      } catch (ExecutionException e) {
+        // Encoding only fails with unchecked exceptions, rethrow them as-is
+        // so that callers see the same failures as with serial encoding.
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+
   /**
    * Generates a QR code for the input bytes, {@code chunkedData}. It is
    * assumed that {@code chunkedData} is subset of larger input. This function
@@ -299,8 +1692,71 @@ public final class Transmit {
               + getPayloadMaxBytes(ecLevel, v));
     }
     byte[] prependedData = Utils.prependChunkId(chunkedData, chunkId, totalChunks);
-    BitMatrix bMat = bytesToQRCode(prependedData, ecLevel);
-    return BitmapImage.createBitmapImage(chunkId, totalChunks, bMat);
+    return encodePrependedQRCode(prependedData, chunkId, totalChunks, ecLevel, null, null);
+  }
+
+  /**
+   * Generates a QR code for {@code prependedData}, a chunk of data that
+   * already starts with its header, and adds it to {@code cache} under
+   * {@code key}, unless either is null.
+   */
+  BitmapImage encodePrependedQRCode(byte[] prependedData, int chunkId, int totalChunks,
+                                    ErrorCorrectionLevel ecLevel,
+                                    FrameCache cache, FrameCache.Key key) {
+    // Use the smallest version that fits, as ZXing would, so that the
+    // last and any evenly spread chunks stay as small as possible.
+    Version smallest = ByteModeEncoder.smallestVersionFor(prependedData.length, ecLevel);
+    ByteModeEncoder encoder = borrowEncoder(smallest, ecLevel);
+    try {
+      // Keep one bit per module; the image scales it up when it is drawn.
+      BitMatrix modules = new BitMatrix(encoder.getSize());
+      encoder.encodeModules(prependedData, 0, prependedData.length, modules);
+      int size = encoder.getOutputSize();
+      if (cache != null && key != null) {
+        cache.put(key, modules, encoder.getScale(), size, size);
+      }
+      return BitmapImage.createCenteredModuleImage(chunkId, totalChunks, modules,
+                                                   encoder.getScale(), size, size);
+    } finally {
+      returnEncoder(encoder);
+    }
+  }
+
+  /**
+   * Returns an idle encoder for QR codes of version {@code v} and error
+   * correction level {@code ecLevel}, creating one if none is available.
+   * Encoders are not thread-safe, so each is used by one thread at a time
+   * and handed back with {@code returnEncoder} when it is done.
+   */
+  ByteModeEncoder borrowEncoder(Version v, ErrorCorrectionLevel ecLevel) {
+    Integer key = encoderKey(v, ecLevel);
+    Queue<ByteModeEncoder> idle = encoders.get(key);
+    if (idle == null) {
+      encoders.putIfAbsent(key, new ConcurrentLinkedQueue<ByteModeEncoder>());
+      idle = encoders.get(key);
+    }
+    ByteModeEncoder encoder = idle.poll();
+    if (encoder == null) {
+      encoder = new ByteModeEncoder(v, ecLevel, Math.min(imgWidth, imgHeight));
+      encoder.setMaskSelection(maskSelection);
+    }
+    return encoder;
+  }
+
+  void returnEncoder(ByteModeEncoder encoder) {
+    encoders.get(encoderKey(encoder.getVersion(), encoder.getErrorCorrectionLevel()))
+        .offer(encoder);
+  }
+
+  /**
+   * Returns a new session id for a stream with a version 2 header.
+   */
+  static int newSessionId() {
+    return sessionIds.nextInt(CompactHeader.MAX_SESSION_ID + 1);
+  }
+
+  private static Integer encoderKey(Version v, ErrorCorrectionLevel ecLevel) {
+    return v.getVersionNumber() * ErrorCorrectionLevel.values().length + ecLevel.ordinal();
   }
 
   /**
@@ -315,7 +1771,10 @@ public final class Transmit {
    * @return
    */
   protected int getPayloadMaxBytes(ErrorCorrectionLevel ecLevel, Version v) {
+    return payloadMaxBytes(ecLevel, v);
+  }
 
+  static int payloadMaxBytes(ErrorCorrectionLevel ecLevel, Version v) {
     // Max payload for (version,ecLevel) = number data bytes - header bytes
     Version.ECBlocks ecBlocks = v.getECBlocksForLevel(ecLevel);
     int numReservedBytes = Utils.getNumberQRHeaderBytes(v);
@@ -422,11 +1881,32 @@ public final class Transmit {
    * @param length the input size that we want to split into chunks.
    * @param desiredChunkSize the size of split that we want to break {@source length} into.
    */
-  private int getTotalChunks(int length, int desiredChunkSize) {
+  private long getTotalChunks(long length, int desiredChunkSize) {
     if (length < 1 || desiredChunkSize < 1) {
       throw new IllegalArgumentException("Input must be positive.");
     }
-    return ((int) Math.ceil((float)length/desiredChunkSize));
+    return (length - 1) / desiredChunkSize + 1;
+  }
+
+  /**
+   * Returns the size of the chunks when {@code length} bytes are spread as
+   * evenly as possible across {@code totalChunks} chunks of at most
+   * {@code desiredChunkSize} bytes.
+   */
+  private static int spreadChunkSize(long length, int totalChunks, int desiredChunkSize) {
+    return (int) Math.min(desiredChunkSize, (length - 1) / totalChunks + 1);
+  }
+
+  /**
+   * Throws {@code TransmitException} if {@code totalChunks} is more than
+   * {@code maxChunks}, the most the QR code header can number.
+   */
+  private static void checkTotalChunks(long totalChunks, int maxChunks)
+      throws TransmitException {
+    if (totalChunks > maxChunks) {
+      throw new TransmitException("Input needs " + totalChunks + " QR codes, but at most "
+          + maxChunks + " are supported.");
+    }
   }
 
 }//public class Transmit
@@ -39,9 +39,27 @@ public final class Utils {
   /* There can be at most 4 bytes to represent an integer */
   private static final int MAX_INT_SIZE = 4;
 
+  /* The top byte of the total chunks holds the id of the codec the data
+   * was compressed with, leaving 24 bits for the total itself. */
+  private static final int CODEC_SHIFT = 24;
+  public static final int MAX_TOTAL_CHUNKS = (1 << CODEC_SHIFT) - 1;
+
+  /* Version 2 headers write the chunk id and total as varints, which are
+   * only limited by the int they are read into. At 1 to 3 KB per QR code,
+   * that is terabytes rather than the tens of gigabytes of version 1. */
+  public static final int MAX_COMPACT_TOTAL_CHUNKS = Integer.MAX_VALUE;
+
   /* Transmitting and receiving of BYTE data */
   private static final Mode DATA_ENCODING = Mode.BYTE;
 
+  /**
+   * Returns the largest number of chunks that QR code headers of
+   * {@code format} can number.
+   */
+  public static int getMaxTotalChunks(HeaderFormat format) {
+    return format == HeaderFormat.V1 ? MAX_TOTAL_CHUNKS : MAX_COMPACT_TOTAL_CHUNKS;
+  }
+
   /**
    * Converts big-endian byte array to integer. Expects input will
    * convert to non-negative integer value.
@@ -147,16 +165,35 @@ public final class Utils {
    * Number realistic bits we'd need = log2(14,412,642) ~= 24
    */
   public static byte[] prependChunkId(final byte[] rawData, int chunk, int totalChunks) {
+    return prependChunkId(rawData, chunk, totalChunks, 0);
+  }
+
+  /**
+   * Injects chunk#, totalChunks and the id of the codec that compressed the
+   * data into byte[] for encoding into QR code. The codec id is stored in
+   * the top byte of the total number of chunks; id 0 means uncompressed.
+   *
+   * @throws IllegalArgumentException if {@code totalChunks} is greater than
+   *   {@link #MAX_TOTAL_CHUNKS} or {@code codecId} is out of range.
+   */
+  public static byte[] prependChunkId(final byte[] rawData, int chunk, int totalChunks,
+                                      int codecId) {
     // Unable to prepend chunk number to rawData if receive invalid inputs
     if (totalChunks < 0 || chunk < 0) {
       throw new IllegalArgumentException("Number of chunks must be positive");
     }
+    if (totalChunks > MAX_TOTAL_CHUNKS) {
+      throw new IllegalArgumentException("Number of chunks must be at most " + MAX_TOTAL_CHUNKS);
+    }
+    if (codecId < 0 || codecId > CompressionCodecs.MAX_ID) {
+      throw new IllegalArgumentException("Invalid codec id: " + codecId);
+    }
 
     byte[] inputData = rawData == null ? new byte[0] : rawData.clone();
     // Reserve first NUM_BYTES_PER_INT bytes of data for chunk id and
     // another NUM_BYTES_PER_INT bytes of data for the totalChunks.
     byte[] chunkId = intToBytes(chunk);
-    byte[] nChunks = intToBytes(totalChunks);
+    byte[] nChunks = intToBytes((codecId << CODEC_SHIFT) | totalChunks);
     byte[] combined = new byte[inputData.length + chunkId.length + nChunks.length];
 
     System.arraycopy(chunkId, 0, combined, 0, chunkId.length);
@@ -195,6 +232,26 @@ public final class Utils {
     if (rawData == null || rawData.length < getNumberOfReservedBytes()) {
       throw new IllegalArgumentException("Input data is too small");
     }
+    return extractTotalField(rawData) & MAX_TOTAL_CHUNKS;
+  }
+
+  /**
+   * Returns the id of the codec that the message was compressed with, or 0
+   * when it is not compressed. Data is assumed to be at the front of the
+   * input.
+   *
+   * @param rawData The segment of input message containing the codec id.
+   * @throws IllegalArgumentException if the length of {@code rawData} is less
+   * than the bytes reserved for the chunkId and the total number of chunks.
+   */
+  public static int extractCodecId(final byte[] rawData) throws IllegalArgumentException {
+    if (rawData == null || rawData.length < getNumberOfReservedBytes()) {
+      throw new IllegalArgumentException("Input data is too small");
+    }
+    return extractTotalField(rawData) >>> CODEC_SHIFT;
+  }
+
+  private static int extractTotalField(final byte[] rawData) {
     byte[] totalChunks = new byte[MAX_INT_SIZE];
     System.arraycopy(rawData, MAX_INT_SIZE, totalChunks, 0, MAX_INT_SIZE);
     return bytesToInt(totalChunks);
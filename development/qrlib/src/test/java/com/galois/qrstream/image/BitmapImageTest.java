@@ -0,0 +1,178 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.image;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+public class BitmapImageTest {
+
+  /**
+   * Returns a square matrix of random modules.
+   */
+  static BitMatrix randomModules(int size, long seed) {
+    Random rng = new Random(seed);
+    BitMatrix modules = new BitMatrix(size);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if (rng.nextBoolean()) {
+          modules.set(x, y);
+        }
+      }
+    }
+    return modules;
+  }
+
+  /**
+   * Renders modules the way ZXing's QRCodeWriter does: scaled by
+   * {@code scale} and placed at (left, top) in a width by height image.
+   */
+  private static BitMatrix render(BitMatrix modules, int scale, int left, int top,
+                                  int width, int height) {
+    BitMatrix pixels = new BitMatrix(width, height);
+    for (int y = 0; y < modules.getHeight(); y++) {
+      for (int x = 0; x < modules.getWidth(); x++) {
+        if (modules.get(x, y)) {
+          pixels.setRegion(left + x * scale, top + y * scale, scale, scale);
+        }
+      }
+    }
+    return pixels;
+  }
+
+  private static void assertSamePixels(BitMatrix expected, BitmapImage actual) {
+    assertEquals("Widths differ", expected.getWidth(), actual.getWidth());
+    assertEquals("Heights differ", expected.getHeight(), actual.getHeight());
+    BitArray row = null;
+    for (int y = 0; y < expected.getHeight(); y++) {
+      row = actual.getRow(y, row);
+      for (int x = 0; x < expected.getWidth(); x++) {
+        assertEquals("Pixel (" + x + "," + y + ")", expected.get(x, y), actual.get(x, y));
+        assertEquals("Row pixel (" + x + "," + y + ")", expected.get(x, y), row.get(x));
+      }
+    }
+    assertEquals("Rendered matrix", expected, actual.getBitMatrix());
+    assertSameRasters(expected, actual);
+  }
+
+  /**
+   * Checks every bulk exporter of {@code actual} against {@code expected}.
+   */
+  private static void assertSameRasters(BitMatrix expected, BitmapImage actual) {
+    int w = expected.getWidth();
+    int h = expected.getHeight();
+    int on = 0xff112233;
+    int off = 0xffeeddcc;
+
+    // Whole image with a stride wider than the image, plus single rows
+    int stride = w + 3;
+    int[] pixels = new int[2 + h * stride];
+    actual.getPixels(pixels, 2, stride, on, off);
+    int[] row = new int[w];
+    IntBuffer heapInts = IntBuffer.allocate(w * h);
+    IntBuffer directInts = ByteBuffer.allocateDirect(4 * w * h).asIntBuffer();
+    actual.copyPixelsTo(heapInts, on, off);
+    actual.copyPixelsTo(directInts, on, off);
+    assertEquals("Heap buffer position", w * h, heapInts.position());
+    assertEquals("Direct buffer position", w * h, directInts.position());
+
+    for (int y = 0; y < h; y++) {
+      actual.getRowPixels(y, row, 0, on, off);
+      for (int x = 0; x < w; x++) {
+        int color = expected.get(x, y) ? on : off;
+        assertEquals("Pixel (" + x + "," + y + ")", color, pixels[2 + y * stride + x]);
+        assertEquals("Row pixel (" + x + "," + y + ")", color, row[x]);
+        assertEquals("Heap buffer pixel", color, heapInts.get(y * w + x));
+        assertEquals("Direct buffer pixel", color, directInts.get(y * w + x));
+      }
+    }
+
+    // Packed rows, as an array and in heap and direct buffers
+    int rowSize = actual.getPackedRowSize();
+    byte[] packed = new byte[rowSize + 1];
+    ByteBuffer heapBytes = ByteBuffer.allocate(rowSize * h);
+    ByteBuffer directBytes = ByteBuffer.allocateDirect(rowSize * h);
+    actual.copyPackedRowsTo(heapBytes);
+    actual.copyPackedRowsTo(directBytes);
+    for (int y = 0; y < h; y++) {
+      actual.getPackedRow(y, packed, 1);
+      for (int i = 0; i < rowSize; i++) {
+        int expectedByte = 0;
+        for (int bit = 0; bit < 8; bit++) {
+          int x = i * 8 + bit;
+          if (x < w && expected.get(x, y)) {
+            expectedByte |= 0x80 >>> bit;
+          }
+        }
+        assertEquals("Packed byte " + i + " of row " + y, (byte) expectedByte, packed[1 + i]);
+        assertEquals("Heap buffer byte", (byte) expectedByte, heapBytes.get(y * rowSize + i));
+        assertEquals("Direct buffer byte", (byte) expectedByte, directBytes.get(y * rowSize + i));
+      }
+    }
+  }
+
+  @Test
+  public void testModuleImageWithQuietZone() {
+    BitMatrix modules = randomModules(21, 1);
+    BitmapImage image = BitmapImage.createModuleImage(1, 1, modules, 4, 2);
+
+    assertTrue(image.isModuleImage());
+    assertEquals("Scale", 4, image.getScale());
+    assertSamePixels(render(modules, 4, 8, 8, 100, 100), image);
+  }
+
+  @Test
+  public void testCenteredModuleImage() {
+    BitMatrix modules = randomModules(25, 2);
+    BitmapImage image = BitmapImage.createCenteredModuleImage(3, 5, modules, 5, 131, 140);
+
+    assertEquals("chunk 3 of 5", image.toString());
+    assertSamePixels(render(modules, 5, 3, 7, 131, 140), image);
+  }
+
+  @Test
+  public void testPixelImageIsUnchanged() {
+    BitMatrix pixels = randomModules(40, 3);
+    BitmapImage image = BitmapImage.createBitmapImage(1, 1, pixels);
+
+    assertFalse(image.isModuleImage());
+    assertEquals("Scale", 1, image.getScale());
+    assertSamePixels(pixels, image);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetPixelsArrayTooSmall() {
+    BitmapImage image = BitmapImage.createModuleImage(1, 1, randomModules(21, 5), 2, 1);
+    image.getPixels(new int[image.getWidth() * image.getHeight() - 1], 0,
+                    image.getWidth(), BitmapImage.BLACK, BitmapImage.WHITE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCenteredModuleImageTooSmall() {
+    BitmapImage.createCenteredModuleImage(1, 1, randomModules(21, 4), 5, 100, 100);
+  }
+}
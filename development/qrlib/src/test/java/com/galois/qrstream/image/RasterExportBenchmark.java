@@ -0,0 +1,70 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.image;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Timings of exporting bitmap images to pixels, printed rather than
+ * checked, so they only run when asked for.
+ */
+@Ignore("Benchmark; run by hand")
+public class RasterExportBenchmark {
+
+  /**
+   * Compares converting a full screen QR code to ARGB pixels one get(x, y)
+   * at a time with the bulk exporter, for both kinds of image.
+   */
+  @Test
+  public void benchmarkRasterExport() {
+    int dimension = 1080;
+    BitMatrix modules = BitmapImageTest.randomModules(57, 6);
+    int scale = dimension / 59;
+    BitmapImage moduleImage = BitmapImage.createCenteredModuleImage(
+        1, 1, modules, scale, dimension, dimension);
+    BitmapImage pixelImage = BitmapImage.createBitmapImage(1, 1, moduleImage.getBitMatrix());
+    int[] pixels = new int[dimension * dimension];
+
+    for (BitmapImage image : new BitmapImage[] { pixelImage, moduleImage }) {
+      long perPixel = Long.MAX_VALUE;
+      long bulk = Long.MAX_VALUE;
+      // Report the best of a few passes, so that JIT warm-up does not count.
+      for (int pass = 0; pass < 5; pass++) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int y = 0; y < dimension; y++) {
+          int offset = y * dimension;
+          for (int x = 0; x < dimension; x++) {
+            pixels[offset + x] = image.get(x, y) ? BitmapImage.BLACK : BitmapImage.WHITE;
+          }
+        }
+        perPixel = Math.min(perPixel, stopwatch.elapsed(TimeUnit.MICROSECONDS));
+
+        stopwatch = Stopwatch.createStarted();
+        image.getPixels(pixels, 0, dimension, BitmapImage.BLACK, BitmapImage.WHITE);
+        bulk = Math.min(bulk, stopwatch.elapsed(TimeUnit.MICROSECONDS));
+      }
+      System.out.println(String.format("%s image: get(x, y) %d us, getPixels %d us",
+          image.isModuleImage() ? "Module" : "Pixel", perPixel, bulk));
+    }
+  }
+}
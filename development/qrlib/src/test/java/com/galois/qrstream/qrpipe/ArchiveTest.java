@@ -0,0 +1,173 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class ArchiveTest {
+
+  private static final int DIMENSION = 350;
+
+  private static final Transmit TRANSMITTER = new Transmit(DIMENSION, DIMENSION,
+      MaskSelection.fixed(0));
+
+  /**
+   * Records the files handed over, and whether the whole archive had
+   * arrived when each was.
+   */
+  private static final class Recorder implements IArchiveListener, IProgress {
+    List<Archive.Entry> index;
+    final Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    final List<Boolean> completeWhenReceived = Lists.newArrayList();
+    State state;
+
+    @Override
+    public void indexReceived(List<Archive.Entry> entries) {
+      assertEquals(null, index);
+      index = entries;
+    }
+
+    @Override
+    public void entryReceived(Archive.Entry entry, byte[] contents) {
+      assertFalse("Entry received twice: " + entry, files.containsKey(entry.getName()));
+      files.put(entry.getName(), contents);
+      completeWhenReceived.add(state == State.Final);
+    }
+
+    @Override
+    public void changeState(DecodeState decodeState) {
+      state = decodeState.getState();
+    }
+
+    @Override
+    public void drawFinderPoints(float[] pts) {
+    }
+  }
+
+  private static Map<String, byte[]> files() {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put("notes.txt", randomBytes(100, 1));
+    files.put("empty", new byte[0]);
+    files.put("r\u00e9sum\u00e9.pdf", randomBytes(300, 2));
+    files.put("photo.jpg", randomBytes(4000, 3));
+    return files;
+  }
+
+  private static void assertSameFiles(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+    assertEquals(Lists.newArrayList(expected.keySet()), Lists.newArrayList(actual.keySet()));
+    for (String name : expected.keySet()) {
+      assertArrayEquals(name, expected.get(name), actual.get(name));
+    }
+  }
+
+  @Test
+  public void testPackRoundTrip() {
+    Map<String, byte[]> files = files();
+    assertSameFiles(files, Archive.unpack(Archive.pack(files)));
+    assertTrue(Archive.unpack(Archive.pack(new LinkedHashMap<String, byte[]>())).isEmpty());
+  }
+
+  @Test
+  public void testIndex() {
+    byte[] archive = Archive.pack(files());
+    int indexLength = Archive.indexLength(archive);
+    List<Archive.Entry> entries =
+        Archive.parseIndex(Arrays.copyOf(archive, Archive.HEADER_BYTES + indexLength));
+    assertEquals(4, entries.size());
+    assertEquals("notes.txt", entries.get(0).getName());
+    assertEquals(Archive.HEADER_BYTES + indexLength, entries.get(0).getOffset());
+    assertEquals(archive.length, entries.get(3).getOffset() + entries.get(3).getLength());
+  }
+
+  @Test(expected = TransmitException.class)
+  public void testNameTooLong() throws TransmitException {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put(Strings.repeat("a", 70000), new byte[10]);
+    TRANSMITTER.encodeArchiveQRCodes(files, 3, ErrorCorrectionLevel.L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedArchive() {
+    byte[] archive = Archive.pack(files());
+    Archive.unpack(Arrays.copyOf(archive, archive.length - 1));
+  }
+
+  /**
+   * Files at the start of the archive are handed over before the rest of
+   * the archive arrives.
+   */
+  @Test
+  public void testEarlyCompletion() throws Exception {
+    Map<String, byte[]> files = files();
+    Transmit.ImgCollection qrCodes = TRANSMITTER.encodeArchiveQRCodes(files, 3,
+                                                                      ErrorCorrectionLevel.L);
+    Recorder recorder = new Recorder();
+    Receive receiver = new Receive(DIMENSION, DIMENSION, recorder);
+    receiver.decodeArchiveQRCodes(new FrameProvider(CompactHeaderTest.toFrames(qrCodes)),
+                                  recorder);
+
+    assertEquals(4, recorder.index.size());
+    assertSameFiles(files, recorder.files);
+    assertEquals(Arrays.asList(false, false, false, true), recorder.completeWhenReceived);
+  }
+
+  /**
+   * A compressed archive can only be read once it is complete, but its
+   * files are still handed over.
+   */
+  @Test
+  public void testCompressedArchive() throws Exception {
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put("a.txt", new byte[3000]);
+    files.put("b.txt", new byte[2000]);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(Archive.pack(files), 3,
+                                                               ErrorCorrectionLevel.L);
+    Recorder recorder = new Recorder();
+    Receive receiver = new Receive(DIMENSION, DIMENSION, recorder);
+    receiver.decodeArchiveQRCodes(new FrameProvider(CompactHeaderTest.toFrames(qrCodes)),
+                                  recorder);
+
+    assertSameFiles(files, recorder.files);
+    assertEquals(Arrays.asList(true, true), recorder.completeWhenReceived);
+  }
+
+  @Test(expected = ReceiveException.class)
+  public void testNotAnArchive() throws Exception {
+    Transmit.ImgCollection qrCodes = TRANSMITTER.encodeQRCodes(randomBytes(500, 4), 3,
+                                                               ErrorCorrectionLevel.L);
+    Recorder recorder = new Recorder();
+    new Receive(DIMENSION, DIMENSION, recorder).decodeArchiveQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(qrCodes)), recorder);
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+public class ByteModeEncoderTest {
+
+  private static final int DIMENSION = 350;
+
+  @Test
+  public void testMatchesZXingAcrossVersions() {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Random rng = new Random(42);
+
+    for (ErrorCorrectionLevel ecLevel : ErrorCorrectionLevel.values()) {
+      for (int v = 1; v <= 40; v++) {
+        Version version = Version.getVersionForNumber(v);
+        ByteModeEncoder encoder = new ByteModeEncoder(version, ecLevel, DIMENSION);
+
+        // Fill the code completely, so that ZXing picks the same version.
+        byte[] data = new byte[encoder.getMaxBytes()];
+        rng.nextBytes(data);
+        assertEquals("Smallest version for a full code", version,
+                     ByteModeEncoder.smallestVersionFor(data.length, ecLevel));
+
+        BitMatrix expected = transmitter.bytesToQRCode(data, ecLevel);
+        BitMatrix actual = encoder.encode(data, 0, data.length);
+        assertEquals("Version " + v + ", level " + ecLevel, expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testMatchesZXingForShortInput() {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Random rng = new Random(7);
+    ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.M;
+
+    for (int length = 1; length < 200; length += 13) {
+      byte[] data = new byte[length];
+      rng.nextBytes(data);
+      Version version = ByteModeEncoder.smallestVersionFor(length, ecLevel);
+      ByteModeEncoder encoder = new ByteModeEncoder(version, ecLevel, DIMENSION);
+
+      assertEquals("Length " + length, transmitter.bytesToQRCode(data, ecLevel),
+                   encoder.encode(data, 0, length));
+    }
+  }
+
+  @Test
+  public void testEncoderIsReusable() {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Random rng = new Random(3);
+    ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.L;
+    ByteModeEncoder encoder =
+        new ByteModeEncoder(Version.getVersionForNumber(10), ecLevel, DIMENSION);
+
+    // Encode a slice of a larger buffer into the same matrix a few times.
+    byte[] buffer = new byte[3 * encoder.getMaxBytes()];
+    rng.nextBytes(buffer);
+    BitMatrix first = encoder.encode(buffer, 0, encoder.getMaxBytes());
+    for (int i = 1; i < 3; i++) {
+      int offset = i * encoder.getMaxBytes();
+      byte[] chunk = new byte[encoder.getMaxBytes()];
+      System.arraycopy(buffer, offset, chunk, 0, chunk.length);
+
+      BitMatrix actual = encoder.encode(buffer, offset, chunk.length);
+      assertSame("Encoder reuses its output matrix", first, actual);
+      assertEquals(transmitter.bytesToQRCode(chunk, ecLevel), actual);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInputTooLarge() {
+    ByteModeEncoder encoder = new ByteModeEncoder(
+        Version.getVersionForNumber(1), ErrorCorrectionLevel.H, DIMENSION);
+    byte[] data = new byte[encoder.getMaxBytes() + 1];
+    encoder.encode(data, 0, data.length);
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+public class CapacityPlannerTest {
+
+  private final byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+
+  @Test
+  public void testPlansAreRankedByTransferTime() {
+    CapacityPlanner planner = new CapacityPlanner(350, 350, 3, 100, 1);
+    List<CapacityPlanner.Plan> plans = planner.rank(data.length);
+
+    assertFalse("Some plan fits", plans.isEmpty());
+    for (int i = 1; i < plans.size(); i++) {
+      assertTrue("Plans out of order at " + i,
+          plans.get(i - 1).getExpectedTransferMillis()
+          <= plans.get(i).getExpectedTransferMillis());
+    }
+    for (CapacityPlanner.Plan plan : plans) {
+      assertTrue("Modules too small: " + plan, plan.getModulePixels() >= 3);
+      assertEquals("Frame time: " + plan, plan.getFrameCount() * 100.0,
+                   plan.getExpectedTransferMillis(), 1e-6);
+    }
+
+    // Without losses, the fewest frames win, drawn as large as possible.
+    CapacityPlanner.Plan best = planner.best(data.length);
+    for (CapacityPlanner.Plan plan : plans) {
+      assertTrue("Fewer frames: " + plan, plan.getFrameCount() >= best.getFrameCount());
+      if (plan.getFrameCount() == best.getFrameCount()) {
+        assertTrue("Larger modules: " + plan, plan.getModulePixels() <= best.getModulePixels());
+      }
+    }
+  }
+
+  @Test
+  public void testLossRatesFavorStrongerErrorCorrection() {
+    CapacityPlanner planner = new CapacityPlanner(350, 350, 3, 100, 1)
+        .withLossRate(ErrorCorrectionLevel.L, 0.6)
+        .withLossRate(ErrorCorrectionLevel.M, 0.3)
+        .withLossRate(ErrorCorrectionLevel.Q, 0.01);
+    CapacityPlanner.Plan best = planner.best(data.length);
+    assertEquals(ErrorCorrectionLevel.Q, best.getErrorCorrectionLevel());
+    assertTrue("Losses cost time",
+        best.getExpectedTransferMillis() > best.getFrameCount() * 100.0);
+  }
+
+  @Test
+  public void testCodesPerFrame() {
+    CapacityPlanner single = new CapacityPlanner(700, 700, 3, 100, 1);
+    CapacityPlanner tiled = new CapacityPlanner(700, 700, 3, 100, 4);
+    Version v = Version.getVersionForNumber(10);
+
+    CapacityPlanner.Plan singlePlan = find(single.rank(data.length), v);
+    CapacityPlanner.Plan tiledPlan = find(tiled.rank(data.length), v);
+    assertEquals("Same chunks", singlePlan.getChunkCount(), tiledPlan.getChunkCount());
+    assertEquals("Four codes per frame", (singlePlan.getChunkCount() + 3) / 4,
+                 tiledPlan.getFrameCount());
+    assertEquals("Half the pixels per module", 700 / 2 / (57 + 2),
+                 tiledPlan.getModulePixels());
+  }
+
+  @Test
+  public void testExpectedPasses() {
+    assertEquals(0, CapacityPlanner.expectedPasses(0, 0.5), 1e-9);
+    assertEquals(1, CapacityPlanner.expectedPasses(10, 0), 1e-9);
+    assertEquals(2, CapacityPlanner.expectedPasses(1, 0.5), 1e-6);
+    // Two chunks lost half the time: 1 + sum over k of 1 - (1 - 2^-k)^2 = 8/3
+    assertEquals(8.0 / 3, CapacityPlanner.expectedPasses(2, 0.5), 1e-6);
+  }
+
+  @Test
+  public void testNothingFits() {
+    assertNull(new CapacityPlanner(30, 30, 2, 100, 1).best(data.length));
+  }
+
+  @Test
+  public void testTransmitUsesBestPlan() throws TransmitException {
+    CapacityPlanner planner = new CapacityPlanner(350, 350, 3, 100, 1);
+    CapacityPlanner.Plan best = planner.best(data.length);
+    Transmit.ImgCollection qrCodes = new Transmit(350, 350).encodeQRCodes(data, planner);
+
+    assertEquals(best.getVersion(), qrCodes.getVersion());
+    assertEquals(best.getErrorCorrectionLevel(), qrCodes.getErrorCorrectionLevel());
+    assertEquals(best.getChunkCount(), qrCodes.size());
+  }
+
+  @Test(expected = TransmitException.class)
+  public void testTransmitWithoutPlan() throws TransmitException {
+    new Transmit(30, 30).encodeQRCodes(data, new CapacityPlanner(30, 30, 2, 100, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTransmitDimensionsMustMatch() throws TransmitException {
+    new Transmit(350, 350).encodeQRCodes(data, new CapacityPlanner(300, 350, 3, 100, 1));
+  }
+
+  private static CapacityPlanner.Plan find(List<CapacityPlanner.Plan> plans, Version v) {
+    for (CapacityPlanner.Plan plan : plans) {
+      if (plan.getVersion() == v && plan.getErrorCorrectionLevel() == ErrorCorrectionLevel.L) {
+        return plan;
+      }
+    }
+    throw new AssertionError("No plan for version " + v);
+  }
+}
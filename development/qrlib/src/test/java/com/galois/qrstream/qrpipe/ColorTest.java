@@ -0,0 +1,224 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.ColorImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class ColorTest {
+
+  private static final int DIMENSION = 350;
+
+  private static List<YuvImage> toFrames(Iterable<ColorImage> frames) {
+    return toFrames(frames, YuvImage.ChromaLayout.I420);
+  }
+
+  private static List<YuvImage> toFrames(Iterable<ColorImage> frames,
+                                         YuvImage.ChromaLayout layout) {
+    List<YuvImage> yuvFrames = Lists.newArrayList();
+    for (ColorImage frame : frames) {
+      int width = frame.getWidth();
+      int height = frame.getHeight();
+      int[] pixels = new int[width * height];
+      frame.getPixels(pixels, 0, width);
+      BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      image.setRGB(0, 0, width, height, pixels, 0, width);
+      byte[] yuv = layout == YuvImage.ChromaLayout.NV21
+          ? YuvUtilities.toNV21(image) : YuvUtilities.toYUV(image);
+      yuvFrames.add(new YuvImage(yuv, width, height, layout));
+    }
+    return yuvFrames;
+  }
+
+  private static BitmapImage square(int size, int left, int top, int side) {
+    BitMatrix m = new BitMatrix(size);
+    m.setRegion(left, top, side, side);
+    return BitmapImage.createBitmapImage(1, 1, m);
+  }
+
+  @Test
+  public void testPixelColors() {
+    ColorImage image = new ColorImage(1, 1, square(8, 0, 0, 4), square(8, 2, 2, 4),
+                                      square(8, 4, 4, 4));
+    assertEquals(0xff00ffff, image.getPixel(0, 0));
+    assertEquals(0xff0000ff, image.getPixel(2, 2));
+    assertEquals(0xffff0000, image.getPixel(4, 4));
+    assertEquals(0xffffffff, image.getPixel(7, 0));
+
+    int[] pixels = new int[64];
+    image.getPixels(pixels, 0, 8);
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 8; x++) {
+        assertEquals("Pixel " + x + "," + y, image.getPixel(x, y), pixels[y * 8 + x]);
+      }
+    }
+
+    // Rows further apart than the width, after an offset, leave the rest
+    // of the array alone.
+    int[] padded = new int[3 + 8 * 10];
+    image.getPixels(padded, 3, 10);
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 10; x++) {
+        int expected = x < 8 ? image.getPixel(x, y) : 0;
+        assertEquals("Pixel " + x + "," + y, expected, padded[3 + y * 10 + x]);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testChannelsMustHaveSameSize() {
+    new ColorImage(1, 1, square(8, 0, 0, 1), square(8, 0, 0, 1), square(9, 0, 0, 1));
+  }
+
+  /**
+   * Each channel separated from a colour frame is dark exactly where the
+   * channel's image is set, away from the edges blurred by the half
+   * resolution chroma planes.
+   */
+  @Test
+  public void testSeparateChannels() {
+    for (YuvImage.ChromaLayout layout : YuvImage.ChromaLayout.values()) {
+      assertChannelsSeparate(layout);
+    }
+  }
+
+  private static void assertChannelsSeparate(YuvImage.ChromaLayout layout) {
+    ColorImage image = new ColorImage(1, 1, square(16, 0, 0, 8), square(16, 4, 4, 8),
+                                      square(16, 8, 8, 8));
+    byte[][] channels = Receive.separateChannels(
+        toFrames(Lists.newArrayList(image), layout).get(0).getYuvData(), 16, 16, layout);
+    int[][] inside = { {2, 2}, {6, 6}, {10, 10}, {14, 14}, {14, 2}, {2, 14} };
+    for (int c = 0; c < ColorImage.CHANNELS; c++) {
+      for (int[] p : inside) {
+        int value = channels[c][p[1] * 16 + p[0]] & 0xff;
+        boolean set = image.getChannel(c).get(p[0], p[1]);
+        assertTrue(layout + " channel " + c + " at " + p[0] + "," + p[1] + ": " + value,
+                   set ? value < 64 : value > 192);
+      }
+    }
+  }
+
+  @Test
+  public void testColorHeaderRoundTrip() {
+    byte[] data = { 1, 2, 3 };
+    CompactHeader header = CompactHeader.parse(
+        CompactHeader.prependTiled(data, 4, 9, 1, 1, ColorImage.CHANNELS, 0, 0x77));
+    assertEquals(ColorImage.CHANNELS, header.getChannels());
+    assertEquals(1, CompactHeader.parse(CompactHeader.prepend(data, 4, 9, 0, 0x77))
+        .getChannels());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidChannels() {
+    CompactHeader.prependTiled(new byte[1], 1, 1, 1, 1, 2, 0, 0);
+  }
+
+  /**
+   * Receive decodes the QR code of every channel of each frame, so it
+   * needs each frame only once.
+   */
+  @Test
+  public void testTransmitColor() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ColorCollection frames =
+        transmitter.encodeColorQRCodes(input, 5, ErrorCorrectionLevel.L);
+    assertTrue("Several frames: " + frames.size(), frames.size() > 2);
+    assertEquals((frames.getChunkCount() + 2) / 3, frames.size());
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(toFrames(frames))));
+  }
+
+  /**
+   * Frames from an Android camera preview, whose chroma is NV21, decode
+   * as well as planar ones.
+   */
+  @Test
+  public void testTransmitColorNV21() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ColorCollection frames =
+        transmitter.encodeColorQRCodes(input, 5, ErrorCorrectionLevel.L);
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(toFrames(frames, YuvImage.ChromaLayout.NV21))));
+  }
+
+  /**
+   * Frames with only a luminance plane, which have no channels to
+   * separate, still decode, blank ones included.
+   */
+  @Test
+  public void testLuminanceOnlyFrames() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    List<YuvImage> frames = Lists.newArrayList();
+    byte[] blank = new byte[DIMENSION * DIMENSION];
+    Arrays.fill(blank, (byte) 0xff);
+    frames.add(new YuvImage(blank, DIMENSION, DIMENSION));
+    for (BitmapImage qrCode : transmitter.encodeQRCodes(input, 10, ErrorCorrectionLevel.L)) {
+      BufferedImage image = UtilsTest.toBufferedImage(qrCode);
+      byte[] luminance = Arrays.copyOf(YuvUtilities.toYUV(image),
+                                       image.getWidth() * image.getHeight());
+      frames.add(new YuvImage(luminance, image.getWidth(), image.getHeight()));
+    }
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(frames)));
+  }
+
+  @Test
+  public void testTransmitSingleChunk() throws Exception {
+    byte[] input = { 42, 43, 44 };
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ColorCollection frames =
+        transmitter.encodeColorQRCodes(input, 2, ErrorCorrectionLevel.M);
+    assertEquals(1, frames.size());
+    ColorImage frame = frames.encodeFrame(1);
+    for (int c = ColorImage.GREEN; c <= ColorImage.BLUE; c++) {
+      BitmapImage blank = frame.getChannel(c);
+      assertEquals(frame.getWidth(), blank.getWidth());
+      assertEquals(frame.getHeight(), blank.getHeight());
+      assertTrue("Blank channel stores modules", blank.isModuleImage());
+      for (int y = 0; y < blank.getHeight(); y += 7) {
+        for (int x = 0; x < blank.getWidth(); x += 7) {
+          assertFalse("Blank channel is white", blank.get(x, y));
+        }
+      }
+    }
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(toFrames(frames))));
+  }
+}
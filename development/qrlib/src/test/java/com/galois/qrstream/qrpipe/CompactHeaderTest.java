@@ -0,0 +1,176 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class CompactHeaderTest {
+
+  private static final int DIMENSION = 350;
+
+  /**
+   * Returns a decode result holding {@code rawData} as a byte segment, as
+   * ZXing reports a byte mode QR code.
+   */
+  static Result toResult(byte[] rawData) {
+    Result result = new Result("", rawData, null, BarcodeFormat.QR_CODE);
+    result.putMetadata(ResultMetadataType.BYTE_SEGMENTS, Collections.singletonList(rawData));
+    return result;
+  }
+
+  static List<YuvImage> toFrames(Iterable<BitmapImage> qrCodes) {
+    List<YuvImage> frames = Lists.newArrayList();
+    for (BitmapImage qrCode : qrCodes) {
+      BufferedImage image = UtilsTest.toBufferedImage(qrCode);
+      frames.add(new YuvImage(YuvUtilities.toYUV(image), image.getWidth(), image.getHeight()));
+    }
+    return frames;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    byte[] data = { 10, 20, 30 };
+    int[][] fields = { {1, 1, 0, 0}, {128, 128, 1, 0xfff}, {128, 300, 0, 42},
+                       {Utils.MAX_TOTAL_CHUNKS, Utils.MAX_TOTAL_CHUNKS, 127, 7} };
+    for (int[] f : fields) {
+      byte[] raw = CompactHeader.prepend(data, f[0], f[1], f[2], f[3]);
+      CompactHeader header = CompactHeader.parse(raw);
+      assertNotNull("Parsed " + Arrays.toString(f), header);
+      assertEquals(f[0], header.getChunkId());
+      assertEquals(f[1], header.getTotalChunks());
+      assertEquals(f[2], header.getCodecId());
+      assertEquals(f[3], header.getSessionId());
+      assertEquals(raw.length - data.length, header.getLength());
+      assertTrue("Within bound", header.getLength() <= CompactHeader.maxSize(f[1], f[2]));
+    }
+  }
+
+  @Test
+  public void testHeaderIsSmallerThanVersion1() {
+    assertEquals("Short stream", 6, CompactHeader.maxSize(128, 0));
+    assertEquals("Compressed", 7, CompactHeader.maxSize(128, 1));
+    assertEquals("Longer stream", 8, CompactHeader.maxSize(129, 0));
+    assertEquals("Longer stream", 8, CompactHeader.maxSize(16384, 0));
+    assertEquals("Longest stream", 13, CompactHeader.maxSize(Utils.MAX_TOTAL_CHUNKS, 1));
+  }
+
+  /**
+   * Any single corrupted byte, in the header or the data, is rejected.
+   */
+  @Test
+  public void testCorruptionIsRejected() {
+    byte[] data = new byte[50];
+    new Random(3).nextBytes(data);
+    byte[] raw = CompactHeader.prepend(data, 5, 9, 1, 1234);
+    for (int i = 0; i < raw.length; i++) {
+      byte[] corrupt = raw.clone();
+      corrupt[i] ^= 0x04;
+      assertNull("Corrupt byte " + i, CompactHeader.parse(corrupt));
+    }
+    assertNull("Truncated", CompactHeader.parse(Arrays.copyOf(raw, 5)));
+  }
+
+  @Test
+  public void testPartialMessageReadsBothFormats() {
+    byte[] data = { 1, 2, 3, 4 };
+    PartialMessage v1 = PartialMessage.createFromResult(
+        toResult(Utils.prependChunkId(data, 2, 3)), 3000);
+    PartialMessage v2 = PartialMessage.createFromResult(
+        toResult(CompactHeader.prepend(data, 2, 3, 0, 99)), 3000);
+
+    for (PartialMessage m : new PartialMessage[] { v1, v2 }) {
+      assertEquals(2, m.getChunkId());
+      assertEquals(3, m.getTotalChunks());
+      assertArrayEquals(data, m.getPayload());
+    }
+    assertEquals("No session in version 1", -1, v1.getSessionId());
+    assertEquals(99, v2.getSessionId());
+
+    // The usual checks apply to version 2 headers too.
+    assertNull("Chunk past total", PartialMessage.createFromResult(
+        toResult(CompactHeader.prepend(data, 4, 3, 0, 99)), 3000));
+    assertNull("Too many chunks", PartialMessage.createFromResult(
+        toResult(CompactHeader.prepend(data, 1, 3001, 0, 99)), 3000));
+    assertNull("No data", PartialMessage.createFromResult(
+        toResult(CompactHeader.prepend(new byte[0], 1, 3, 0, 99)), 3000));
+  }
+
+  /**
+   * The compact header leaves room for more data in small QR codes, and
+   * Receive decodes it.
+   */
+  @Test
+  public void testTransmitWithCompactHeader() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit v1 = new Transmit(DIMENSION, DIMENSION);
+    Transmit v2 = new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, null,
+                               HeaderFormat.V2);
+    Transmit.ImgCollection v1Codes = v1.encodeQRCodes(input, 3, ErrorCorrectionLevel.L);
+    Transmit.ImgCollection v2Codes = v2.encodeQRCodes(input, 3, ErrorCorrectionLevel.L);
+    assertTrue("Fewer QR codes: " + v2Codes.size() + " vs " + v1Codes.size(),
+               v2Codes.size() < v1Codes.size());
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(toFrames(v2Codes))));
+  }
+
+  /**
+   * QR codes of another stream are ignored, even when they have the same
+   * number of chunks.
+   */
+  @Test
+  public void testOtherSessionsAreIgnored() throws Exception {
+    byte[] first = new byte[2000];
+    byte[] second = new byte[2000];
+    new Random(1).nextBytes(first);
+    new Random(2).nextBytes(second);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0), null,
+                                        HeaderFormat.V2);
+
+    List<YuvImage> firstFrames = toFrames(transmitter.encodeQRCodes(first, 10, ErrorCorrectionLevel.L));
+    List<YuvImage> secondFrames = toFrames(transmitter.encodeQRCodes(second, 10, ErrorCorrectionLevel.L));
+    assertEquals(firstFrames.size(), secondFrames.size());
+    List<YuvImage> mixed = Lists.newArrayList();
+    for (int i = 0; i < firstFrames.size(); i++) {
+      mixed.add(firstFrames.get(i));
+      mixed.add(secondFrames.get((i + 1) % secondFrames.size()));
+    }
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(first, receiver.decodeQRCodes(new FrameProvider(mixed)));
+  }
+}
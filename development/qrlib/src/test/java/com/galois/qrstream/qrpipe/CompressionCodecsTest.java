@@ -0,0 +1,240 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class CompressionCodecsTest {
+
+  private static final int DIMENSION = 350;
+
+  /* A codec that is not registered with CompressionCodecs by default */
+  private static final CompressionCodec GZIP = new CompressionCodec() {
+    @Override
+    public int getId() {
+      return 2;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in);
+    }
+  };
+
+  /**
+   * Returns about 8KB of repetitive JSON, like the notes users send.
+   */
+  private static byte[] getText() {
+    StringBuilder text = new StringBuilder("[");
+    for (int i = 0; i < 100; i++) {
+      text.append("{\"title\": \"Note ").append(i)
+          .append("\", \"mime\": \"text/plain\", \"body\": \"Meet at the usual place.\"},");
+    }
+    return text.append("]").toString().getBytes(Charsets.UTF_8);
+  }
+
+  private static byte[] roundTrip(Transmit.ImgCollection qrCodes) throws ReceiveException {
+    List<YuvImage> frames = Lists.newArrayList();
+    for (BitmapImage qrCode : qrCodes) {
+      BufferedImage image = UtilsTest.toBufferedImage(qrCode);
+      frames.add(new YuvImage(YuvUtilities.toYUV(image), image.getWidth(), image.getHeight()));
+    }
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    return receiver.decodeQRCodes(new FrameProvider(frames));
+  }
+
+  @Test
+  public void testDeflateRoundTrip() throws IOException {
+    byte[] text = getText();
+    byte[] compressed = CompressionCodecs.compress(CompressionCodecs.DEFLATE, text);
+    assertTrue("Text compresses", compressed.length < text.length / 4);
+    assertArrayEquals(text, CompressionCodecs.decompress(CompressionCodecs.DEFLATE, compressed));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedDeflateData() throws IOException {
+    byte[] compressed = CompressionCodecs.compress(CompressionCodecs.DEFLATE, getText());
+    CompressionCodecs.decompress(CompressionCodecs.DEFLATE,
+                                 Arrays.copyOf(compressed, compressed.length - 5));
+  }
+
+  /**
+   * Compressed text needs fewer QR codes, and the receiver decompresses it
+   * without being told to.
+   */
+  @Test
+  public void testCompressedTransmission() throws Exception {
+    byte[] text = getText();
+    Transmit.ImgCollection plain =
+        new Transmit(DIMENSION, DIMENSION).encodeQRCodes(text, 10, ErrorCorrectionLevel.L);
+    Transmit.ImgCollection compressed =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(text, 10, ErrorCorrectionLevel.L);
+
+    assertSame(CompressionCodecs.DEFLATE, compressed.getCompressionCodec());
+    assertTrue("Fewer QR codes: " + compressed.size() + " vs " + plain.size(),
+               compressed.size() * 4 < plain.size());
+    assertArrayEquals(text, roundTrip(compressed));
+  }
+
+  @Test
+  public void testCompressedStream() throws Exception {
+    byte[] text = getText();
+    Transmit.ImgCollection compressed =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(new ByteArrayInputStream(text), text.length, 10, ErrorCorrectionLevel.L);
+    assertSame(CompressionCodecs.DEFLATE, compressed.getCompressionCodec());
+    assertArrayEquals(text, roundTrip(compressed));
+  }
+
+  /**
+   * Receiving into a stream decompresses the message as it is written.
+   */
+  @Test
+  public void testReceiveToOutputStream() throws Exception {
+    byte[] text = getText();
+    Transmit.ImgCollection compressed =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(text, 10, ErrorCorrectionLevel.L);
+    List<YuvImage> frames = Lists.newArrayList();
+    for (BitmapImage qrCode : compressed) {
+      BufferedImage image = UtilsTest.toBufferedImage(qrCode);
+      frames.add(new YuvImage(YuvUtilities.toYUV(image), image.getWidth(), image.getHeight()));
+    }
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    receiver.decodeQRCodes(new FrameProvider(frames), out);
+    assertArrayEquals(text, out.toByteArray());
+  }
+
+  @Test
+  public void testIncompressibleDataIsSentAsIs() throws Exception {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit.ImgCollection plain =
+        new Transmit(DIMENSION, DIMENSION).encodeQRCodes(data, 10, ErrorCorrectionLevel.L);
+    Transmit.ImgCollection compressed =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(data, 10, ErrorCorrectionLevel.L);
+
+    assertNull("Sent uncompressed", compressed.getCompressionCodec());
+    TransmitTest.assertSameImages(plain, Lists.newArrayList(compressed));
+  }
+
+  /**
+   * A stream is read only once, so when it does not compress the data sent
+   * is the copy kept while compressing it.
+   */
+  @Test
+  public void testIncompressibleStreamIsSentAsIs() throws Exception {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit.ImgCollection plain =
+        new Transmit(DIMENSION, DIMENSION).encodeQRCodes(data, 10, ErrorCorrectionLevel.L);
+    Transmit.ImgCollection compressed =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(new ByteArrayInputStream(data), data.length, 10, ErrorCorrectionLevel.L);
+    assertNull("Sent uncompressed", compressed.getCompressionCodec());
+    TransmitTest.assertSameImages(plain, Lists.newArrayList(compressed));
+  }
+
+  @Test(expected = TransmitException.class)
+  public void testCompressedStreamTooShort() throws Exception {
+    byte[] text = getText();
+    new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, CompressionCodecs.DEFLATE)
+        .encodeQRCodes(new ByteArrayInputStream(text), text.length + 1, 10, ErrorCorrectionLevel.L);
+  }
+
+  @Test
+  public void testRegisteredCodec() throws Exception {
+    byte[] text = getText();
+    Transmit transmitter =
+        new Transmit(DIMENSION, DIMENSION, MaskSelection.ALL_PATTERNS, GZIP);
+
+    // Until the receiver knows the codec, it ignores the QR codes.
+    if (CompressionCodecs.forId(GZIP.getId()) == null) {
+      assertEquals(0, roundTrip(transmitter.encodeQRCodes(text, 10, ErrorCorrectionLevel.L))
+                      .length);
+    }
+    CompressionCodecs.register(GZIP);
+    assertSame(GZIP, CompressionCodecs.forId(GZIP.getId()));
+    assertArrayEquals(text, roundTrip(transmitter.encodeQRCodes(text, 10, ErrorCorrectionLevel.L)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCodecIdTaken() {
+    CompressionCodecs.register(new CompressionCodec() {
+      @Override
+      public int getId() {
+        return CompressionCodecs.DEFLATE.getId();
+      }
+
+      @Override
+      public OutputStream compress(OutputStream out) {
+        return out;
+      }
+
+      @Override
+      public InputStream decompress(InputStream in) {
+        return in;
+      }
+    });
+  }
+
+  @Test
+  public void testCodecIdInHeader() {
+    byte[] header = Utils.prependChunkId(new byte[] { 1 }, 3, Utils.MAX_TOTAL_CHUNKS, 5);
+    assertEquals(3, Utils.extractChunkId(header));
+    assertEquals(Utils.MAX_TOTAL_CHUNKS, Utils.extractTotalNumberChunks(header));
+    assertEquals(5, Utils.extractCodecId(header));
+
+    header = Utils.prependChunkId(new byte[] { 1 }, 3, 7);
+    assertEquals(7, Utils.extractTotalNumberChunks(header));
+    assertEquals("Uncompressed", 0, Utils.extractCodecId(header));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooManyChunksForHeader() {
+    Utils.prependChunkId(new byte[] { 1 }, 1, Utils.MAX_TOTAL_CHUNKS + 1);
+  }
+}
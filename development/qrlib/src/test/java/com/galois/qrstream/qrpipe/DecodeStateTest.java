@@ -106,4 +106,59 @@ public class DecodeStateTest {
         new int[] {}, s.identifyMissingChunks());
   }
 
+  @Test
+  public void testRecoverableIsDistinctFromReceived() {
+    DecodeState s = new DecodeState(3);
+    s.markDataReceived(1);
+    s.markDataRecoverable(2);
+    assertEquals("Intermediate state", State.Intermediate, s.getState());
+    assertEquals("Received", 1, s.getTotalFramesDecoded());
+    assertEquals("Recoverable", 1, s.getTotalChunksRecoverable());
+    assertArrayEquals("Recoverable chunks are not missing",
+        new int[] {3}, s.identifyMissingChunks());
+
+    s.markDataRecoverable(1);
+    assertEquals("Received chunks stay received", 1, s.getTotalChunksRecoverable());
+    s.markDataReceived(2);
+    assertEquals("Received replaces recoverable", 0, s.getTotalChunksRecoverable());
+    s.markDataRecoverable(3);
+    assertEquals("Final state", State.Final, s.getState());
+    assertEquals("Received", 2, s.getTotalFramesDecoded());
+  }
+
+  /**
+   * A message rebuilt entirely from parity chunks is complete, and one
+   * with only rebuilt chunks has started.
+   */
+  @Test
+  public void testRecoverableOnly() {
+    DecodeState s = new DecodeState(2);
+    s.markDataRecoverable(1);
+    assertEquals("Intermediate state", State.Intermediate, s.getState());
+    s.markDataRecoverable(2);
+    assertEquals("Final state", State.Final, s.getState());
+  }
+
+  /**
+   * Streams of the most chunks a header can number are tracked without
+   * allocating for every chunk up front. Low chunk ids keep the test from
+   * allocating for the high ones instead.
+   */
+  @Test
+  public void testLargeCapacity() {
+    DecodeState s = new DecodeState(Integer.MAX_VALUE);
+    assertEquals("Capacity", Integer.MAX_VALUE, s.getCapacity());
+    s.markDataReceived(3);
+    s.markDataReceived(3);
+    s.markDataRecoverable(1);
+    s.markDataRecoverable(1);
+    assertEquals("Intermediate state", State.Intermediate, s.getState());
+    assertEquals("Received", 1, s.getTotalFramesDecoded());
+    assertEquals("Recoverable", 1, s.getTotalChunksRecoverable());
+    s.markDataReceived(1);
+    assertEquals("Received", 2, s.getTotalFramesDecoded());
+    assertEquals("Recoverable", 0, s.getTotalChunksRecoverable());
+    assertEquals("Intermediate state", State.Intermediate, s.getState());
+  }
+
 }
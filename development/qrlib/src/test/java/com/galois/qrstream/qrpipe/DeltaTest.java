@@ -0,0 +1,168 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class DeltaTest {
+
+  private static final int DIMENSION = 350;
+
+  private static byte[] roundTrip(byte[] base, byte[] data, int blockSize) {
+    byte[] delta = Delta.encode(Delta.signature(base, blockSize), data);
+    assertArrayEquals(data, Delta.apply(base, delta));
+    return delta;
+  }
+
+  @Test
+  public void testRollingChecksum() {
+    byte[] data = randomBytes(300, 1);
+    int length = 64;
+    int checksum = Delta.weakChecksum(data, 0, length);
+    for (int pos = 1; pos + length <= data.length; pos++) {
+      checksum = Delta.rollChecksum(checksum, length, data[pos - 1], data[pos + length - 1]);
+      assertEquals("At " + pos, Delta.weakChecksum(data, pos, length), checksum);
+    }
+    for (int pos = data.length - length + 1; length > 1; pos++) {
+      checksum = Delta.dropChecksum(checksum, length, data[pos - 1]);
+      length--;
+      assertEquals("At " + pos, Delta.weakChecksum(data, pos, length), checksum);
+    }
+  }
+
+  @Test
+  public void testUnchangedFile() {
+    byte[] base = randomBytes(10000, 2);
+    byte[] delta = roundTrip(base, base, 512);
+    assertTrue("One copy: " + delta.length, delta.length < 32);
+  }
+
+  /**
+   * Edits that shift the rest of the file still find the blocks after them.
+   */
+  @Test
+  public void testEditedFile() {
+    byte[] base = randomBytes(20000, 3);
+    byte[] inserted = randomBytes(100, 4);
+    byte[] data = Bytes.concat(Arrays.copyOfRange(base, 0, 5000), inserted,
+                               Arrays.copyOfRange(base, 5300, 15000),
+                               Arrays.copyOfRange(base, 16000, 20000));
+    byte[] delta = roundTrip(base, data, 512);
+    // The insertion and the unmatched parts of the blocks around the edits
+    assertTrue("Small delta: " + delta.length, delta.length < 100 + 4 * 512);
+  }
+
+  @Test
+  public void testAppendedAndTruncated() {
+    byte[] base = randomBytes(5000, 5);
+    roundTrip(base, Bytes.concat(base, randomBytes(700, 6)), 256);
+    roundTrip(base, Arrays.copyOf(base, 4000), 256);
+    roundTrip(base, Arrays.copyOfRange(base, 123, 5000), 256);
+  }
+
+  @Test
+  public void testEmptyFiles() {
+    byte[] data = randomBytes(1000, 7);
+    roundTrip(new byte[0], data, 512);
+    roundTrip(data, new byte[0], 512);
+    roundTrip(new byte[0], new byte[0], 512);
+  }
+
+  @Test
+  public void testSignatureRoundTrip() {
+    Delta.Signature signature = Delta.signature(randomBytes(5000, 8));
+    assertEquals(Delta.MIN_BLOCK_SIZE, signature.getBlockSize());
+    assertEquals(10, signature.getBlockCount());
+    byte[] bytes = signature.toByteArray();
+    assertEquals(8 + 12 * signature.getBlockCount(), bytes.length);
+    assertEquals(signature, Delta.Signature.parse(bytes));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMalformedSignature() {
+    Delta.Signature.parse(new byte[20]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongBase() {
+    byte[] base = randomBytes(5000, 9);
+    byte[] data = Bytes.concat(randomBytes(100, 10), base);
+    byte[] delta = Delta.encode(Delta.signature(base, 256), data);
+    Delta.apply(randomBytes(5000, 11), delta);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedDelta() {
+    byte[] base = randomBytes(5000, 12);
+    byte[] delta = Delta.encode(Delta.signature(base, 256), randomBytes(1000, 13));
+    Delta.apply(base, Arrays.copyOf(delta, delta.length - 10));
+  }
+
+  /**
+   * A delta whose header claims a file longer than deltas allow is
+   * rejected before the file is allocated.
+   */
+  @Test
+  public void testOversizedDelta() {
+    ByteArrayDataOutput header = ByteStreams.newDataOutput();
+    header.writeInt(512);
+    header.writeInt(0);
+    header.writeInt(Delta.MAX_LENGTH + 1);
+    header.writeInt(0);
+    try {
+      Delta.apply(new byte[0], header.toByteArray());
+      fail("Oversized delta applied");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Malformed delta header.", e.getMessage());
+    }
+  }
+
+  /**
+   * A small change to a large file takes a few QR codes rather than as
+   * many as the whole file.
+   */
+  @Test
+  public void testTransmitDelta() throws Exception {
+    byte[] base = randomBytes(50000, 14);
+    byte[] data = base.clone();
+    System.arraycopy(randomBytes(200, 15), 0, data, 30000, 200);
+
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Transmit.ImgCollection whole = transmitter.encodeQRCodes(data, 10, ErrorCorrectionLevel.L);
+    Transmit.ImgCollection delta = transmitter.encodeDeltaQRCodes(
+        data, Delta.signature(base), 10, ErrorCorrectionLevel.L);
+    assertTrue("Fewer QR codes: " + delta.size() + " vs " + whole.size(),
+               delta.size() * 20 < whole.size());
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(data, receiver.decodeDeltaQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(delta)), base));
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class EncodeHandleTest {
+
+  private static final int DIMENSION = 350;
+
+  private static final Transmit TRANSMITTER = new Transmit(DIMENSION, DIMENSION,
+      MaskSelection.fixed(0));
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private static List<BitmapImage> takeAll(EncodeHandle handle)
+      throws InterruptedException {
+    List<BitmapImage> images = Lists.newArrayList();
+    BitmapImage next;
+    while ((next = handle.take()) != null) {
+      images.add(next);
+    }
+    return images;
+  }
+
+  @Test
+  public void testSameAsSerial() throws Exception {
+    byte[] input = randomBytes(3000);
+    EncodeHandle handle = TRANSMITTER.encodeAsync(input, 3, ErrorCorrectionLevel.L,
+                                                           executor);
+    List<BitmapImage> images = takeAll(handle);
+    TransmitTest.assertSameImages(
+        TRANSMITTER.encodeQRCodes(input, 3, ErrorCorrectionLevel.L), images);
+
+    assertTrue(handle.isDone());
+    assertEquals(images.size(), handle.getTotalChunks());
+    assertEquals(images.size(), handle.getEncodedChunks());
+    TransmitTest.assertSameImages(handle.getCollection(), images);
+    assertNull(handle.poll());
+  }
+
+  /**
+   * The first QR code is available long before the rest are encoded, and
+   * cancelling stops the encoding.
+   */
+  @Test
+  public void testCancelPartWay() throws Exception {
+    EncodeHandle handle = TRANSMITTER.encodeAsync(randomBytes(200000), 1,
+                                                           ErrorCorrectionLevel.L, executor);
+    BitmapImage first = handle.take();
+    assertNotNull(first);
+    assertEquals(1, first.getChunkId());
+    int total = handle.getTotalChunks();
+    assertTrue("Most chunks still to encode: " + handle.getEncodedChunks() + " of " + total,
+               handle.getEncodedChunks() < total / 2);
+
+    handle.cancel();
+    assertTrue(handle.isCancelled());
+    assertTrue(handle.isDone());
+    assertNull(handle.take());
+    int encoded = handle.getEncodedChunks();
+    Thread.sleep(100);
+    assertEquals(encoded, handle.getEncodedChunks());
+  }
+
+  /**
+   * A handle cancelled while its data is still being read never starts
+   * encoding.
+   */
+  @Test
+  public void testCancelDuringSetup() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    PayloadCodec<byte[]> slow = new PayloadCodec<byte[]>() {
+      @Override
+      public ByteSource encode(byte[] value) throws IOException {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return ByteSource.wrap(value);
+      }
+
+      @Override
+      public byte[] decode(InputStream in) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    EncodeHandle handle = TRANSMITTER.encodeAsync(randomBytes(3000), slow, 3,
+                                                           ErrorCorrectionLevel.L, executor);
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    handle.cancel();
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertNull(handle.getCollection());
+    assertEquals(-1, handle.getTotalChunks());
+    assertEquals(0, handle.getEncodedChunks());
+    assertNull(handle.take());
+  }
+
+  /**
+   * Encoding the same data again with the same cache gives the same QR
+   * codes from the first on, so receivers see one stream across both.
+   */
+  @Test
+  public void testSameSessionWithCache() throws Exception {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0), null,
+                                        HeaderFormat.V2);
+    FrameCache cache = new FrameCache(1 << 20);
+    byte[] input = randomBytes(3000);
+    EncodeHandle first = transmitter.encodeAsync(input, 3, ErrorCorrectionLevel.L,
+                                                          executor, cache);
+    List<BitmapImage> firstImages = takeAll(first);
+    EncodeHandle second = transmitter.encodeAsync(input, 3, ErrorCorrectionLevel.L,
+                                                           executor, cache);
+    List<BitmapImage> secondImages = takeAll(second);
+
+    assertEquals("Second pass is cached", secondImages.size(), cache.getHitCount());
+    TransmitTest.assertSameImages(firstImages, secondImages);
+    TransmitTest.assertSameImages(first.getCollection(), secondImages);
+  }
+
+  /**
+   * Only data short enough to compress quickly is compressed, so that the
+   * first QR code of a long input is not held up.
+   */
+  @Test
+  public void testCompressesOnlyShortData() throws Exception {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    int limit = (int) Transmit.MAX_ASYNC_COMPRESSED_BYTES;
+
+    EncodeHandle small = transmitter.encodeAsync(new byte[limit], 40,
+                                                          ErrorCorrectionLevel.L, executor);
+    assertNotNull(small.take());
+    assertEquals(CompressionCodecs.DEFLATE, small.getCollection().getCompressionCodec());
+    small.cancel();
+
+    EncodeHandle large = transmitter.encodeAsync(new byte[limit + 1], 40,
+                                                          ErrorCorrectionLevel.L, executor);
+    assertNotNull(large.take());
+    assertNull(large.getCollection().getCompressionCodec());
+    large.cancel();
+  }
+
+  @Test
+  public void testReceiveRecord() throws Exception {
+    Record record = new Record("notes.txt", "text/plain", randomBytes(2000));
+    EncodeHandle handle = TRANSMITTER.encodeAsync(record, PayloadCodecs.RECORD, 5,
+                                                           ErrorCorrectionLevel.L, executor);
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    Record received = receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(takeAll(handle))), PayloadCodecs.RECORD);
+    assertEquals(record.getTitle(), received.getTitle());
+    assertArrayEquals(record.getData(), received.getData());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEncodingFails() throws Exception {
+    PayloadCodec<String> failing = new PayloadCodec<String>() {
+      @Override
+      public ByteSource encode(String value) throws IOException {
+        throw new IOException("Cannot encode " + value);
+      }
+
+      @Override
+      public String decode(InputStream in) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    TRANSMITTER.encodeAsync("value", failing, 5, ErrorCorrectionLevel.L, executor).take();
+  }
+}
@@ -0,0 +1,205 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class FountainTest {
+
+  private static final int DIMENSION = 350;
+
+  /**
+   * Feeds the symbols of a stream of {@code k} random blocks to a decoder
+   * in a random order, and returns how many it took to recover them.
+   */
+  private static int symbolsToRecover(int k, int blockSize, long seed) {
+    Random rng = new Random(seed);
+    byte[] source = new byte[k * blockSize];
+    rng.nextBytes(source);
+    LtCode code = new LtCode(k);
+    FountainDecoder decoder = new FountainDecoder(code, blockSize);
+
+    List<Integer> ids = new ArrayList<Integer>();
+    for (int id = 1; id <= 3 * k; id++) {
+      ids.add(id);
+    }
+    Collections.shuffle(ids, rng);
+    int used = 0;
+    byte[] symbol = new byte[blockSize];
+    for (int id : ids) {
+      code.encode(source, blockSize, id, symbol);
+      decoder.add(id, symbol.clone());
+      used++;
+      if (decoder.isComplete()) {
+        assertArrayEquals("Recovered source", source, decoder.getSource());
+        return used;
+      }
+    }
+    throw new AssertionError("Could not recover " + k + " blocks from " + used + " symbols");
+  }
+
+  @Test
+  public void testRecoversFromAnySymbols() {
+    int k = 200;
+    int trials = 20;
+    int total = 0;
+    for (int seed = 0; seed < trials; seed++) {
+      int used = symbolsToRecover(k, 8, seed);
+      assertTrue("Needs at least k symbols", used >= k);
+      total += used;
+    }
+    double overhead = (double) total / (trials * k) - 1;
+    assertTrue("Overhead " + overhead, overhead < 0.05);
+  }
+
+  @Test
+  public void testSystematicSymbolsAreSourceBlocks() {
+    byte[] source = new byte[30];
+    new Random(3).nextBytes(source);
+    LtCode code = new LtCode(3);
+    FountainDecoder decoder = new FountainDecoder(code, 10);
+    byte[] symbol = new byte[10];
+    for (int id = 1; id <= 3; id++) {
+      code.encode(source, 10, id, symbol);
+      assertArrayEquals(new int[] { id - 1 }, decoder.add(id, symbol.clone()));
+    }
+    assertTrue(decoder.isComplete());
+    assertArrayEquals(source, decoder.getSource());
+  }
+
+  @Test
+  public void testNeighborsAreDeterministic() {
+    LtCode code = new LtCode(500);
+    LtCode other = new LtCode(500);
+    for (int id = 1; id < 2000; id++) {
+      int[] neighbors = code.neighbors(id);
+      assertArrayEquals(neighbors, other.neighbors(id));
+      assertTrue("Degree of " + id, neighbors.length >= 1 && neighbors.length <= 500);
+      for (int i = 1; i < neighbors.length; i++) {
+        assertTrue("Sorted and distinct", neighbors[i - 1] < neighbors[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testDuplicateSymbolsRecoverNothing() {
+    byte[] source = new byte[20];
+    LtCode code = new LtCode(2);
+    FountainDecoder decoder = new FountainDecoder(code, 10);
+    byte[] symbol = new byte[10];
+    code.encode(source, 10, 1, symbol);
+    assertEquals(1, decoder.add(1, symbol).length);
+    assertTrue(decoder.hasSymbol(1));
+    assertEquals(0, decoder.add(1, symbol).length);
+    assertFalse(decoder.isComplete());
+  }
+
+  @Test
+  public void testPadding() {
+    byte[] data = { 1, 0, (byte) 0x80, 0 };
+    byte[] padded = LtCode.pad(data, 3, 2);
+    assertEquals(6, padded.length);
+    assertArrayEquals(data, LtCode.unpad(padded));
+    assertArrayEquals(new byte[0], LtCode.unpad(LtCode.pad(new byte[0], 1, 1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingPadding() {
+    LtCode.unpad(new byte[4]);
+  }
+
+  @Test
+  public void testSymbolHeaderRoundTrip() {
+    byte[] data = { 1, 2, 3 };
+    byte[] prepended = CompactHeader.prependSymbol(data, 16000, 1000, 0, 0x123);
+    assertTrue(prepended.length - data.length <= CompactHeader.maxSymbolSize(1000, 0));
+    CompactHeader header = CompactHeader.parse(prepended);
+    assertNotNull(header);
+    assertTrue(header.isFountain());
+    assertEquals(16000, header.getChunkId());
+    assertEquals(1000, header.getTotalChunks());
+    assertEquals(0x123, header.getSessionId());
+
+    CompactHeader chunk = CompactHeader.parse(CompactHeader.prepend(data, 1, 1000, 0, 0x123));
+    assertFalse(chunk.isFountain());
+  }
+
+  /**
+   * Receive recovers the data from the fountain coded stream even when
+   * most of its source blocks are never seen.
+   */
+  @Test
+  public void testTransmitWithLostFrames() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    FountainStream stream =
+        transmitter.encodeFountainQRCodes(input, 10, ErrorCorrectionLevel.L);
+    int k = stream.getSourceBlocks();
+    assertTrue("Several source blocks: " + k, k > 3);
+
+    // Skip every other source block and a third of the repair symbols.
+    List<BitmapImage> received = Lists.newArrayList();
+    Iterator<BitmapImage> symbols = stream.iterator();
+    for (int id = 1; id <= 5 * k; id++) {
+      BitmapImage qrCode = symbols.next();
+      if (id <= k ? id % 2 == 0 : id % 3 != 0) {
+        received.add(qrCode);
+      }
+    }
+    List<YuvImage> frames = CompactHeaderTest.toFrames(received);
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(frames)));
+  }
+
+  @Test
+  public void testTransmitCompressed() throws Exception {
+    byte[] input = new byte[3000];
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    FountainStream stream =
+        transmitter.encodeFountainQRCodes(input, 5, ErrorCorrectionLevel.M);
+    assertEquals(CompressionCodecs.DEFLATE, stream.getCompressionCodec());
+
+    List<BitmapImage> received = Lists.newArrayList();
+    Iterator<BitmapImage> symbols = stream.iterator();
+    symbols.next();
+    for (int i = 0; i < 3 * stream.getSourceBlocks() + 2; i++) {
+      received.add(symbols.next());
+    }
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(received))));
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+public class FrameCacheTest {
+
+  private final Transmit transmitter = new Transmit(350, 350);
+  private final byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+  private final Version qrVersion = Version.getVersionForNumber(5);
+  private final ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.M;
+
+  /**
+   * The second pass over a cached collection must not encode anything,
+   * and must return the same QR codes as the first.
+   */
+  @Test
+  public void testSecondPassHitsCache() throws TransmitException {
+    FrameCache cache = new FrameCache(1 << 20);
+    Transmit.ImgCollection uncached = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+    Transmit.ImgCollection cached = uncached.withCache(cache);
+
+    TransmitTest.assertSameImages(uncached, Lists.newArrayList(cached));
+    assertEquals("First pass misses", cached.size(), cache.getMissCount());
+    assertEquals("Every frame cached", cached.size(), cache.getFrameCount());
+
+    TransmitTest.assertSameImages(uncached, Lists.newArrayList(cached));
+    assertEquals("Second pass hits", cached.size(), cache.getHitCount());
+    assertEquals("No more misses", cached.size(), cache.getMissCount());
+  }
+
+  /**
+   * Encoding a cached chunk at random does not read the data again.
+   */
+  @Test
+  public void testRandomAccessHitDoesNotRead() throws TransmitException {
+    final int[] reads = new int[1];
+    PayloadCodec<byte[]> counting = new PayloadCodec<byte[]>() {
+      @Override
+      public ByteSource encode(final byte[] value) {
+        return new ByteSource() {
+          @Override
+          public InputStream openStream() {
+            reads[0]++;
+            return new ByteArrayInputStream(value);
+          }
+        };
+      }
+
+      @Override
+      public byte[] decode(InputStream in) throws IOException {
+        throw new UnsupportedOperationException();
+      }
+    };
+    Transmit.ImgCollection cached = transmitter.encodeQRCodes(data, counting, 5, ecLevel)
+        .withCache(new FrameCache(1 << 20));
+    BitmapImage first = cached.encodeChunk(2);
+    int readsBefore = reads[0];
+    TransmitTest.assertSameImage(first, cached.encodeChunk(2));
+    assertEquals("Cache hit reads nothing", readsBefore, reads[0]);
+  }
+
+  /**
+   * A cache shared by collections of the same data, but from different
+   * arrays, reuses the frames. Different encode settings do not.
+   */
+  @Test
+  public void testCacheIsKeyedByContentAndSettings() throws TransmitException {
+    FrameCache cache = new FrameCache(1 << 20);
+    Lists.newArrayList(transmitter.encodeQRCodes(data, qrVersion, ecLevel).withCache(cache));
+    int frames = cache.getFrameCount();
+
+    Lists.newArrayList(transmitter.encodeQRCodes(data.clone(), qrVersion, ecLevel).withCache(cache));
+    assertEquals("Same content hits", frames, cache.getHitCount());
+
+    Lists.newArrayList(transmitter.encodeQRCodes(data, qrVersion, ErrorCorrectionLevel.H)
+                                  .withCache(cache));
+    Transmit other = new Transmit(350, 350, MaskSelection.fixed(2));
+    Lists.newArrayList(other.encodeQRCodes(data, qrVersion, ecLevel).withCache(cache));
+    Transmit smaller = new Transmit(200, 200);
+    Lists.newArrayList(smaller.encodeQRCodes(data, qrVersion, ecLevel).withCache(cache));
+    assertEquals("Different settings miss", frames, cache.getHitCount());
+  }
+
+  /**
+   * Collections with version 2 headers pick their own session ids, which
+   * every frame carries. Those of the same data take the session id of the
+   * first one to use the cache, so their frames hit it.
+   */
+  @Test
+  public void testSessionIdsAreSharedForSameData() throws TransmitException {
+    FrameCache cache = new FrameCache(1 << 20);
+    Transmit v2 = new Transmit(350, 350, MaskSelection.fixed(0), null, HeaderFormat.V2);
+    Transmit.ImgCollection first = v2.encodeQRCodes(data, qrVersion, ecLevel).withCache(cache);
+    List<BitmapImage> firstFrames = Lists.newArrayList(first);
+    int frames = cache.getFrameCount();
+
+    Transmit.ImgCollection again = v2.encodeQRCodes(data.clone(), qrVersion, ecLevel)
+        .withSessionId((first.getSessionId() + 1) % (CompactHeader.MAX_SESSION_ID + 1));
+    Transmit.ImgCollection second = again.withCache(cache);
+    assertEquals("Same session", first.getSessionId(), second.getSessionId());
+    TransmitTest.assertSameImages(firstFrames, Lists.newArrayList(second));
+    assertEquals("Same data hits", frames, cache.getHitCount());
+  }
+
+  @Test
+  public void testEvictsWithinBudget() throws TransmitException {
+    // Room for a few version 5 frames only
+    FrameCache cache = new FrameCache(600);
+    Transmit.ImgCollection cached =
+        transmitter.encodeQRCodes(data, qrVersion, ecLevel).withCache(cache);
+    Lists.newArrayList(cached);
+
+    assertTrue("Cache exceeds its budget", cache.getSizeBytes() <= cache.getMaxBytes());
+    assertTrue("Cache holds some frames", cache.getFrameCount() > 0);
+    assertTrue("Cache holds too many frames", cache.getFrameCount() < cached.size());
+
+    // The most recently used frames survive eviction.
+    long hits = cache.getHitCount();
+    assertEquals(cached.encodeChunk(cached.size()).toString(), "chunk " + cached.size()
+        + " of " + cached.size());
+    assertEquals("Last frame still cached", hits + 1, cache.getHitCount());
+
+    cache.clear();
+    assertEquals("Cleared", 0, cache.getFrameCount());
+    assertEquals("Cleared", 0, cache.getSizeBytes());
+  }
+
+  @Test
+  public void testParallelIterationUsesCache() throws TransmitException {
+    FrameCache cache = new FrameCache(1 << 20);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Transmit.ImgCollection uncached = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+      Transmit.ImgCollection cached = uncached.withCache(cache).withExecutor(executor, 4);
+
+      TransmitTest.assertSameImages(uncached, Lists.newArrayList(cached));
+      TransmitTest.assertSameImages(uncached, Lists.newArrayList(cached));
+      assertEquals("Second pass hits", cached.size(), cache.getHitCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testStreamsAreNotCached() throws TransmitException {
+    FrameCache cache = new FrameCache(1 << 20);
+    Transmit.ImgCollection streamed = transmitter.encodeQRCodes(
+        new ByteArrayInputStream(data), data.length, 5, ecLevel).withCache(cache);
+
+    for (BitmapImage ignored : streamed) { }
+    assertEquals("No frames cached", 0, cache.getFrameCount());
+  }
+}
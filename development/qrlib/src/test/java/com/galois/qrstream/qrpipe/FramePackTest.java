@@ -0,0 +1,156 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+public class FramePackTest {
+
+  private final Transmit transmitter = new Transmit(350, 350);
+  private final byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+  private final Version qrVersion = Version.getVersionForNumber(5);
+  private final ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.Q;
+  private File packFile;
+
+  @Before
+  public void createPackFile() throws IOException {
+    packFile = File.createTempFile("qrstream", ".qrfp");
+  }
+
+  @After
+  public void deletePackFile() {
+    packFile.delete();
+  }
+
+  /**
+   * A frame pack replays exactly the QR codes it was written from, in
+   * order and by chunk id.
+   */
+  @Test
+  public void testRoundTrip() throws TransmitException, IOException {
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+    FramePackWriter.write(qrCodes, packFile);
+
+    FramePackReader pack = FramePackReader.open(packFile);
+    assertEquals("Frames", qrCodes.size(), pack.size());
+    assertEquals("Version", qrVersion, pack.getVersion());
+    assertEquals("EC level", ecLevel, pack.getErrorCorrectionLevel());
+    TransmitTest.assertSameImages(qrCodes, Lists.newArrayList(pack));
+    // Iterating twice gives the same frames.
+    TransmitTest.assertSameImages(qrCodes, Lists.newArrayList(pack));
+
+    int last = pack.size();
+    TransmitTest.assertSameImage(qrCodes.encodeChunk(last), pack.get(last));
+  }
+
+  /**
+   * Views with manifests or of a stripe are written as the chunks of the
+   * whole message.
+   */
+  @Test
+  public void testManifestAndStripeViews() throws TransmitException, IOException {
+    Transmit v2 = new Transmit(350, 350, MaskSelection.fixed(0), null, HeaderFormat.V2);
+    Transmit.ImgCollection qrCodes = v2.encodeQRCodes(data, qrVersion, ecLevel);
+    Transmit.ImgCollection[] views = {
+        qrCodes.withManifest("random2kfile", "text/plain"),
+        qrCodes.stripe(1, 3),
+        qrCodes.withManifest("random2kfile", "text/plain").stripe(0, 2),
+    };
+    for (Transmit.ImgCollection view : views) {
+      FramePackWriter.write(view, packFile);
+      TransmitTest.assertSameImages(qrCodes, Lists.newArrayList(FramePackReader.open(packFile)));
+    }
+  }
+
+  /**
+   * The error that stops a pack being written is not replaced by the one
+   * from closing a pack with frames missing.
+   */
+  @Test(expected = UnsupportedOperationException.class)
+  public void testWriteFailureIsReported() throws TransmitException, IOException {
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(
+        new ByteArrayInputStream(data), data.length, qrVersion.getVersionNumber(), ecLevel);
+    FramePackWriter.write(qrCodes.stripe(1, 2), packFile);
+  }
+
+  @Test
+  public void testEmptyPack() throws IOException {
+    new FramePackWriter(Files.asByteSink(packFile).openStream(), qrVersion, ecLevel, 0).close();
+    FramePackReader pack = FramePackReader.open(packFile);
+    assertEquals("Frames", 0, pack.size());
+    assertEquals("Header only", FramePackWriter.HEADER_BYTES, packFile.length());
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotAFramePack() throws IOException {
+    Files.write(data, packFile);
+    FramePackReader.open(packFile);
+  }
+
+  @Test
+  public void testTruncatedPack() throws TransmitException, IOException {
+    FramePackWriter.write(transmitter.encodeQRCodes(data, qrVersion, ecLevel), packFile);
+    RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    try {
+      FramePackReader.open(packFile);
+      fail("Opened a truncated frame pack");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingFrames() throws IOException {
+    new FramePackWriter(new ByteArrayOutputStream(), qrVersion, ecLevel, 2).close();
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testChunkOutOfRange() throws TransmitException, IOException {
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+    FramePackWriter.write(qrCodes, packFile);
+    FramePackReader.open(packFile).get(qrCodes.size() + 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPixelImagesAreRejected() throws IOException {
+    FramePackWriter writer =
+        new FramePackWriter(new ByteArrayOutputStream(), qrVersion, ecLevel, 1);
+    writer.write(BitmapImage.createBitmapImage(1, 1, new BitMatrix(21)));
+  }
+}
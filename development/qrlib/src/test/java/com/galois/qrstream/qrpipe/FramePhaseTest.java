@@ -0,0 +1,153 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class FramePhaseTest {
+
+  private static final int DIMENSION = 350;
+
+  private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /* The display changes 37 ms into each interval */
+  private static final long PHASE = TimeUnit.MILLISECONDS.toNanos(37);
+
+  /* Frames captured this close to a change are blurred and do not decode */
+  private static final long BLUR = TimeUnit.MILLISECONDS.toNanos(8);
+
+  /**
+   * Returns the QR code the display shows at {@code time}, or null if it is
+   * changing.
+   */
+  private static Set<Integer> shown(long time) {
+    long sinceChange = (time - PHASE) % INTERVAL;
+    if (sinceChange < BLUR || sinceChange > INTERVAL - BLUR) {
+      return null;
+    }
+    return Collections.singleton((int) ((time - PHASE) / INTERVAL));
+  }
+
+  /**
+   * Feeds {@code phase} the frames a 30 frames per second camera decodes
+   * from {@code start} for {@code frames} frames, and returns the time
+   * after the last.
+   */
+  private static long capture(FramePhase phase, long start, int frames) {
+    long time = start;
+    for (int i = 0; i < frames; i++) {
+      Set<Integer> frame = shown(time);
+      if (frame != null) {
+        phase.observe(time, frame);
+      }
+      time += TimeUnit.SECONDS.toNanos(1) / 30;
+    }
+    return time;
+  }
+
+  @Test
+  public void testLearnsPhase() {
+    FramePhase phase = new FramePhase();
+    long start = TimeUnit.SECONDS.toNanos(1000);
+    capture(phase, start, 10);
+    // Without an interval, nothing is learned.
+    assertFalse(phase.isLocked());
+    assertEquals(0, phase.delay(start));
+
+    phase.setInterval(INTERVAL);
+    capture(phase, start, 60);
+    assertTrue(phase.isLocked());
+    long error = Math.abs(phase.getPhase() - PHASE);
+    assertTrue("Phase within 10 ms: " + phase.getPhase(),
+               error < TimeUnit.MILLISECONDS.toNanos(10));
+  }
+
+  /**
+   * Once locked, captures fall in the steady middle of distinct intervals.
+   */
+  @Test
+  public void testSchedulesSteadyCaptures() {
+    FramePhase phase = new FramePhase();
+    phase.setInterval(INTERVAL);
+    long now = capture(phase, TimeUnit.SECONDS.toNanos(1000), 60);
+
+    Random random = new Random(1);
+    long previousShown = Long.MIN_VALUE;
+    for (int i = 0; i < 50; i++) {
+      now += phase.delay(now);
+      Set<Integer> frame = shown(now);
+      assertTrue("Steady at capture " + i, frame != null);
+      long sinceChange = (now - PHASE) % INTERVAL;
+      assertTrue("Near the middle: " + sinceChange,
+                 Math.abs(sinceChange - INTERVAL / 2) < INTERVAL / 4 + 1);
+      int id = frame.iterator().next();
+      assertTrue("One capture per interval", id > previousShown);
+      previousShown = id;
+      phase.observe(now, frame);
+      // Decoding takes some time
+      now += TimeUnit.MILLISECONDS.toNanos(random.nextInt(60));
+    }
+  }
+
+  @Test
+  public void testManifestCarriesFrameInterval() {
+    Manifest manifest = new Manifest(5000, 300, "image/png", "photo.png", new byte[32], 125);
+    Manifest parsed = Manifest.parse(manifest.toByteArray());
+    assertEquals(125, parsed.getFrameInterval());
+    assertEquals(manifest, parsed);
+  }
+
+  @Test
+  public void testReadsVersion1Manifest() {
+    byte[] bytes = new Manifest(5000, 300, "text/plain", "a", new byte[32], 0).toByteArray();
+    byte[] version1 = new byte[bytes.length - 4];
+    System.arraycopy(bytes, 0, version1, 0, version1.length);
+    version1[0] = 1;
+    assertEquals(0, Manifest.parse(version1).getFrameInterval());
+  }
+
+  /**
+   * A receiver that times its captures still receives every chunk.
+   */
+  @Test
+  public void testReceivePhaseLocked() throws Exception {
+    byte[] input = new byte[3000];
+    new Random(2).nextBytes(input);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0), null,
+                                        HeaderFormat.V2);
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(input, 3, ErrorCorrectionLevel.L)
+        .withManifest("data.bin", null, 5);
+    assertEquals(5, qrCodes.getManifest().getFrameInterval());
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, RandomQRDecodeTest.NULL_PROGRESS,
+                                   null, SamplingPolicy.PHASE_LOCKED);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(qrCodes))));
+  }
+}
@@ -0,0 +1,193 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class ManifestTest {
+
+  private static final int DIMENSION = 350;
+
+  private static final Transmit TRANSMITTER = new Transmit(DIMENSION, DIMENSION,
+      MaskSelection.fixed(0), null, HeaderFormat.V2);
+
+  /**
+   * Records the manifest in the first state that has one, and whether the
+   * message was complete by then.
+   */
+  private static final class ManifestProgress implements IProgress {
+    Manifest manifest;
+    boolean completeFirst;
+
+    @Override
+    public void changeState(DecodeState state) {
+      if (manifest == null && state.getManifest() != null) {
+        manifest = state.getManifest();
+        completeFirst = state.getState() == State.Final;
+      }
+    }
+
+    @Override
+    public void drawFinderPoints(float[] pts) {
+    }
+  }
+
+  @Test
+  public void testManifestRoundTrip() {
+    Manifest manifest = new Manifest(5000, 300, "image/png", "photo.png", new byte[32]);
+    assertEquals(17, manifest.getTotalChunks());
+    Manifest parsed = Manifest.parse(manifest.toByteArray());
+    assertEquals(manifest, parsed);
+    assertEquals("image/png", parsed.getContentType());
+    assertEquals("photo.png", parsed.getName());
+    assertEquals(300, parsed.getChunkSize());
+    assertEquals(5000, parsed.getLength());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedManifest() {
+    byte[] bytes = new Manifest(5000, 300, "text/plain", "", new byte[32]).toByteArray();
+    Manifest.parse(Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  /**
+   * A manifest of chunks longer than a QR code holds would have a receiver
+   * set aside storage for far more than the stream can carry.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testOversizedChunks() {
+    Manifest.parse(new Manifest(3L * 600000000, 600000000, "", "", new byte[32]).toByteArray());
+  }
+
+  /**
+   * A manifest whose chunk size does not match the chunks already received
+   * is ignored rather than used to preallocate the message.
+   */
+  @Test
+  public void testManifestMismatchingChunks() {
+    byte[] chunk = randomBytes(100);
+    DecodedMessage message = new DecodedMessage(RandomQRDecodeTest.NULL_PROGRESS);
+    message.saveMessageChunk(PartialMessage.createFromResult(
+        CompactHeaderTest.toResult(CompactHeader.prepend(chunk, 1, 3, 0, 7)), 3000));
+
+    Manifest wrong = new Manifest(2500, 1000, "", "", new byte[32]);
+    message.saveMessageChunk(PartialMessage.createFromResult(CompactHeaderTest.toResult(
+        CompactHeader.prependManifest(wrong.toByteArray(), 3, 0, 7)), 3000));
+    assertNull(message.getManifest());
+
+    Manifest right = new Manifest(250, 100, "", "", new byte[32]);
+    message.saveMessageChunk(PartialMessage.createFromResult(CompactHeaderTest.toResult(
+        CompactHeader.prependManifest(right.toByteArray(), 3, 0, 7)), 3000));
+    assertEquals(right, message.getManifest());
+  }
+
+  @Test
+  public void testManifestHeader() {
+    byte[] data = { 1, 2, 3 };
+    CompactHeader header = CompactHeader.parse(CompactHeader.prependManifest(data, 40, 1, 7));
+    assertNotNull(header);
+    assertTrue(header.isManifest());
+    assertEquals(1, header.getChunkId());
+    assertEquals(40, header.getTotalChunks());
+    assertEquals(1, header.getChannels());
+    assertFalse(CompactHeader.parse(CompactHeader.prepend(data, 1, 40, 1, 7)).isManifest());
+  }
+
+  @Test
+  public void testManifestFrames() throws TransmitException {
+    byte[] input = randomBytes(4000);
+    Transmit.ImgCollection plain = TRANSMITTER.encodeQRCodes(input, 3, ErrorCorrectionLevel.L);
+    assertNull(plain.getManifest());
+    Transmit.ImgCollection withManifest =
+        plain.withManifest("data.bin", "application/octet-stream");
+    int manifests = (plain.size() + Transmit.MANIFEST_INTERVAL - 1) / Transmit.MANIFEST_INTERVAL;
+    assertTrue("Several manifests: " + manifests, manifests > 1);
+    assertEquals(plain.size() + manifests, withManifest.size());
+    assertEquals(withManifest.size(), Lists.newArrayList(withManifest).size());
+
+    Manifest manifest = withManifest.getManifest();
+    assertEquals(input.length, manifest.getLength());
+    assertEquals(plain.size(), manifest.getTotalChunks());
+    assertArrayEquals(Manifest.DIGEST.hashBytes(input).asBytes(), manifest.getDigest());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testManifestNeedsCompactHeader() throws TransmitException {
+    new Transmit(DIMENSION, DIMENSION).encodeQRCodes(new byte[100], 3, ErrorCorrectionLevel.L)
+        .withManifest("data.bin", null);
+  }
+
+  /**
+   * The receiver learns what is coming from the first manifest, before the
+   * message is complete.
+   */
+  @Test
+  public void testReceiveManifestFirst() throws Exception {
+    byte[] input = randomBytes(3000);
+    Transmit.ImgCollection qrCodes = TRANSMITTER.encodeQRCodes(input, 3, ErrorCorrectionLevel.L)
+        .withManifest("notes.txt", "text/plain");
+    ManifestProgress progress = new ManifestProgress();
+    Receive receiver = new Receive(DIMENSION, DIMENSION, progress);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(qrCodes))));
+    assertEquals(qrCodes.getManifest(), progress.manifest);
+    assertFalse(progress.completeFirst);
+  }
+
+  /**
+   * Chunks that arrive before the manifest move to the file set aside for
+   * the message, which is deleted once the message is returned.
+   */
+  @Test
+  public void testReceiveIntoFile() throws Exception {
+    byte[] input = randomBytes(5000);
+    Transmit.ImgCollection qrCodes = TRANSMITTER.encodeQRCodes(input, 3, ErrorCorrectionLevel.L)
+        .withManifest("notes.txt", "text/plain");
+    List<YuvImage> frames = CompactHeaderTest.toFrames(qrCodes);
+    // Start part way through the first run of chunks.
+    Collections.rotate(frames, -5);
+
+    File directory = Files.createTempDir();
+    try {
+      ManifestProgress progress = new ManifestProgress();
+      Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, progress, directory);
+      assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(frames)));
+      assertNotNull(progress.manifest);
+      assertEquals(0, directory.list().length);
+    } finally {
+      directory.delete();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.base.Stopwatch;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * Timings of the mask selections, printed rather than checked. Encoding
+ * takes several seconds, so they only run when asked for.
+ */
+@Ignore("Benchmark; run by hand")
+public class MaskSelectionBenchmark {
+
+  private static final int DIMENSION = 350;
+
+  /**
+   * Compares encoding throughput of the mask selections and counts how many
+   * of the generated QR codes decode on their own.
+   */
+  @Test
+  public void benchmarkMaskSelection() throws Exception {
+    final int frames = 100;
+    byte[] input = new byte[frames * 150];
+    new Random(13).nextBytes(input);
+
+    for (MaskSelection selection : MaskSelectionTest.SELECTIONS) {
+      Transmit transmitter = new Transmit(DIMENSION, DIMENSION, selection);
+      Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(input, 10, ErrorCorrectionLevel.L);
+
+      // Report the best of a few passes, so that JIT warm-up does not count.
+      long elapsed = Long.MAX_VALUE;
+      for (int pass = 0; pass < 4; pass++) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (BitmapImage ignored : qrCodes) { }
+        elapsed = Math.min(elapsed, stopwatch.elapsed(TimeUnit.MICROSECONDS));
+      }
+
+      int decoded = 0;
+      for (BitmapImage qrCode : qrCodes) {
+        LuminanceSource source =
+            new BufferedImageLuminanceSource(UtilsTest.toBufferedImage(qrCode));
+        try {
+          Receive.decodeSingle(source);
+          decoded++;
+        } catch (NotFoundException e) {
+          // Counted as a frame the receiver would have missed.
+        }
+      }
+      System.out.println(String.format("%-14s %7.1f frames/s, %d/%d frames decoded",
+          selection, qrCodes.size() * 1e6 / elapsed, decoded, qrCodes.size()));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Version;
+
+public class MaskSelectionTest {
+
+  private static final int DIMENSION = 350;
+
+  static final MaskSelection[] SELECTIONS = {
+    MaskSelection.ALL_PATTERNS, MaskSelection.SAMPLED, MaskSelection.fixed(0),
+    MaskSelection.fixed(3), MaskSelection.fixed(7),
+  };
+
+  @Test
+  public void testFixedMaskIsApplied() {
+    byte[] data = new byte[100];
+    new Random(5).nextBytes(data);
+    ByteModeEncoder encoder = new ByteModeEncoder(
+        Version.getVersionForNumber(8), ErrorCorrectionLevel.M, DIMENSION);
+
+    for (int mask = 0; mask < ByteModeEncoder.NUM_MASK_PATTERNS; mask++) {
+      encoder.setMaskSelection(MaskSelection.fixed(mask));
+      assertEquals("Fixed mask pattern", mask,
+                   encoder.encodeModules(data, 0, data.length));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidFixedMask() {
+    MaskSelection.fixed(ByteModeEncoder.NUM_MASK_PATTERNS);
+  }
+
+  /**
+   * Every mask selection must produce QR codes that Receive can decode.
+   */
+  @Test
+  public void testEncodeThenDecodeWithEachSelection() throws Exception {
+    byte[] input = new byte[5000];
+    new Random(11).nextBytes(input);
+
+    for (MaskSelection selection : SELECTIONS) {
+      Transmit transmitter = new Transmit(DIMENSION, DIMENSION, selection);
+      List<YuvImage> frames = Lists.newArrayList();
+      for (BitmapImage qrCode : transmitter.encodeQRCodes(input, 10, ErrorCorrectionLevel.L)) {
+        BufferedImage image = UtilsTest.toBufferedImage(qrCode);
+        frames.add(new YuvImage(YuvUtilities.toYUV(image), image.getWidth(), image.getHeight()));
+      }
+
+      Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+      byte[] actual = receiver.decodeQRCodes(new FrameProvider(frames));
+      assertArrayEquals("Round trip with " + selection, input, actual);
+    }
+  }
+}
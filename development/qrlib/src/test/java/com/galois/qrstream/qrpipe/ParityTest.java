@@ -0,0 +1,241 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class ParityTest {
+
+  private static final int DIMENSION = 350;
+
+  private static byte[][] randomChunks(Random rng, int count, int length) {
+    byte[][] chunks = new byte[count][length];
+    for (byte[] chunk : chunks) {
+      rng.nextBytes(chunk);
+    }
+    return chunks;
+  }
+
+  /**
+   * Any dataChunks of a group's chunks rebuild the rest, whichever they are.
+   */
+  @Test
+  public void testRecoverAnyErasures() {
+    Random rng = new Random(1);
+    ParityCode code = new ParityCode(10, 4);
+    for (int trial = 0; trial < 50; trial++) {
+      int k = 1 + rng.nextInt(10);
+      byte[][] data = randomChunks(rng, k, 20);
+      byte[][] parity = code.encode(data);
+      assertEquals(4, parity.length);
+
+      byte[][] chunks = new byte[k + 4][];
+      System.arraycopy(data, 0, chunks, 0, k);
+      System.arraycopy(parity, 0, chunks, k, 4);
+      int erase = rng.nextInt(5);
+      for (int i = 0; i < erase; i++) {
+        chunks[rng.nextInt(k + 4)] = null;
+      }
+      assertTrue("Recovered trial " + trial, code.recover(chunks));
+      for (int i = 0; i < k; i++) {
+        assertArrayEquals("Chunk " + i + " of trial " + trial, data[i], chunks[i]);
+      }
+      for (int i = 0; i < 4; i++) {
+        assertArrayEquals("Parity " + i + " of trial " + trial, parity[i], chunks[k + i]);
+      }
+    }
+  }
+
+  @Test
+  public void testTooManyErasures() {
+    ParityCode code = new ParityCode(5, 2);
+    byte[][] data = randomChunks(new Random(2), 5, 8);
+    byte[][] chunks = new byte[7][];
+    System.arraycopy(data, 0, chunks, 0, 5);
+    System.arraycopy(code.encode(data), 0, chunks, 5, 2);
+    chunks[0] = null;
+    chunks[3] = null;
+    chunks[6] = null;
+    assertFalse(code.recover(chunks));
+    assertNull("Left unchanged", chunks[0]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGroupTooLarge() {
+    new ParityCode(200, 56);
+  }
+
+  @Test
+  public void testGroups() {
+    ParityCode code = new ParityCode(4, 2);
+    assertEquals(3, code.groupCount(10));
+    assertEquals(2, code.groupOf(9));
+    assertEquals(1, code.groupOfParity(4));
+    assertEquals(9, code.firstChunk(2));
+    assertEquals(5, code.firstParity(2));
+    assertEquals(2, code.chunksInGroup(2, 10));
+  }
+
+  @Test
+  public void testParityHeaderRoundTrip() {
+    byte[] data = { 1, 2, 3 };
+    ParityCode code = new ParityCode(16, 3);
+    byte[] prepended = CompactHeader.prependParity(data, 7, 40, code, 100000, 1, 0x456);
+    assertTrue(prepended.length - data.length <= CompactHeader.maxParitySize(40, code, 100000, 1));
+    assertTrue(CompactHeader.maxSize(40, 1) <= CompactHeader.maxParitySize(40, code, 100000, 1));
+
+    CompactHeader header = CompactHeader.parse(prepended);
+    assertNotNull(header);
+    assertFalse(header.isFountain());
+    assertEquals(7, header.getChunkId());
+    assertEquals(40, header.getTotalChunks());
+    assertEquals(16, header.getParityCode().getDataChunks());
+    assertEquals(3, header.getParityCode().getParityChunks());
+    assertEquals(100000, header.getMessageLength());
+    assertEquals(1, header.getCodecId());
+    assertEquals(0x456, header.getSessionId());
+
+    prepended[prepended.length - 1] ^= 1;
+    assertNull("CRC covers the data", CompactHeader.parse(prepended));
+    assertNull("Data chunks have no parity",
+        CompactHeader.parse(CompactHeader.prepend(data, 1, 40, 1, 0x456)).getParityCode());
+  }
+
+  @Test
+  public void testCollectionLayout() throws TransmitException {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ParityCollection qrCodes =
+        transmitter.encodeParityQRCodes(input, 10, ErrorCorrectionLevel.L, 3, 1);
+    int dataChunks = qrCodes.getDataChunks();
+    assertEquals((dataChunks + 2) / 3, qrCodes.getParityChunks());
+    assertEquals(dataChunks + qrCodes.getParityChunks(), qrCodes.size());
+    assertEquals(qrCodes.size(), Lists.newArrayList(qrCodes).size());
+  }
+
+  /**
+   * Encoding a frame at random gives the QR code iteration shows at that
+   * position, data or parity, including those of the short last group.
+   */
+  @Test
+  public void testEncodeFrameMatchesIteration() throws TransmitException {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ParityCollection qrCodes =
+        transmitter.encodeParityQRCodes(input, 10, ErrorCorrectionLevel.L, 3, 2);
+    assertTrue("Short last group", qrCodes.getDataChunks() % 3 != 0);
+    List<BitmapImage> atRandom = Lists.newArrayList();
+    for (int frame = 1; frame <= qrCodes.size(); frame++) {
+      atRandom.add(qrCodes.encodeFrame(frame));
+    }
+    TransmitTest.assertSameImages(qrCodes, atRandom);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testEncodeFrameOutOfRange() throws TransmitException {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ParityCollection qrCodes =
+        transmitter.encodeParityQRCodes(input, 10, ErrorCorrectionLevel.L, 3, 1);
+    qrCodes.encodeFrame(qrCodes.size() + 1);
+  }
+
+  /**
+   * Receive rebuilds the QR codes it misses from the parity QR codes of
+   * their group, without waiting for them to be shown again.
+   */
+  @Test
+  public void testTransmitWithLostFrames() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    ParityCollection qrCodes =
+        transmitter.encodeParityQRCodes(input, 5, ErrorCorrectionLevel.L, 4, 2);
+    int dataChunks = qrCodes.getDataChunks();
+    assertTrue("Several groups: " + dataChunks, dataChunks > 8);
+
+    // Drop two data QR codes of every full group of six, and the last data
+    // QR code, which is shorter than the others.
+    int groups = (dataChunks + 3) / 4;
+    int lastData = (groups - 1) * 6 + (dataChunks - (groups - 1) * 4) - 1;
+    List<BitmapImage> received = Lists.newArrayList();
+    int position = 0;
+    for (BitmapImage qrCode : qrCodes) {
+      boolean lastGroup = position / 6 == groups - 1;
+      boolean dropped = lastGroup ? position == lastData
+                                  : position % 6 == 1 || position % 6 == 3;
+      if (!dropped) {
+        received.add(qrCode);
+      }
+      position++;
+    }
+    List<YuvImage> frames = CompactHeaderTest.toFrames(received);
+
+    final List<DecodeState> states = Lists.newArrayList();
+    IProgress progress = new IProgress() {
+      @Override
+      public void changeState(DecodeState state) {
+        states.add(state);
+      }
+      @Override
+      public void drawFinderPoints(float[] pts) {
+      }
+    };
+    Receive receiver = new Receive(DIMENSION, DIMENSION, progress);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(frames)));
+    DecodeState last = states.get(states.size() - 1);
+    assertEquals(State.Final, last.getState());
+    assertTrue("Rebuilt chunks: " + last, last.getTotalChunksRecoverable() > 0);
+  }
+
+  @Test
+  public void testTransmitCompressed() throws Exception {
+    byte[] input = new byte[5000];
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    ParityCollection qrCodes =
+        transmitter.encodeParityQRCodes(input, 1, ErrorCorrectionLevel.M, 2, 1);
+    assertEquals(CompressionCodecs.DEFLATE, qrCodes.getCompressionCodec());
+
+    // Keep only the parity and the second chunk of each group.
+    List<BitmapImage> received = Lists.newArrayList();
+    int position = 0;
+    for (BitmapImage qrCode : qrCodes) {
+      if (position % 3 != 0 || position == qrCodes.size() - 2) {
+        received.add(qrCode);
+      }
+      position++;
+    }
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(received))));
+  }
+}
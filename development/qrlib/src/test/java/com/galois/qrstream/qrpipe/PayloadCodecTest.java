@@ -0,0 +1,105 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteSource;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class PayloadCodecTest {
+
+  private static final int DIMENSION = 350;
+
+  private static void assertSameRecord(Record expected, Record actual) {
+    assertEquals(expected.getTitle(), actual.getTitle());
+    assertEquals(expected.getMimeType(), actual.getMimeType());
+    assertArrayEquals(expected.getData(), actual.getData());
+  }
+
+  @Test
+  public void testRecordRoundTrip() throws IOException {
+    Record record = new Record("photo.png", "image/png", randomBytes(1000));
+    ByteSource encoded = PayloadCodecs.RECORD.encode(record);
+    // A version byte, two strings with their lengths, and the data with its length
+    assertEquals(1 + 2 + 9 + 2 + 9 + 4 + 1000, encoded.size());
+    assertSameRecord(record, PayloadCodecs.RECORD.decode(encoded.openStream()));
+  }
+
+  @Test
+  public void testMissingFields() throws IOException {
+    Record record = new Record(null, null, new byte[0]);
+    assertEquals("", record.getTitle());
+    Record decoded = PayloadCodecs.RECORD.decode(
+        PayloadCodecs.RECORD.encode(record).openStream());
+    assertSameRecord(record, decoded);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedRecord() throws IOException {
+    byte[] encoded = PayloadCodecs.RECORD.encode(new Record("a", "b", new byte[10])).read();
+    PayloadCodecs.RECORD.decode(ByteSource.wrap(Arrays.copyOf(encoded, 15)).openStream());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTrailingData() throws IOException {
+    byte[] encoded = PayloadCodecs.RECORD.encode(new Record("a", "b", new byte[10])).read();
+    PayloadCodecs.RECORD.decode(
+        ByteSource.wrap(Arrays.copyOf(encoded, encoded.length + 1)).openStream());
+  }
+
+  @Test
+  public void testTransmitRecord() throws Exception {
+    Record record = new Record("notes.txt", "text/plain", randomBytes(2000));
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(record, PayloadCodecs.RECORD, 5,
+                                                               ErrorCorrectionLevel.L);
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertSameRecord(record, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(qrCodes)), PayloadCodecs.RECORD));
+  }
+
+  @Test
+  public void testTransmitCompressedRecord() throws Exception {
+    Record record = new Record("notes.txt", "text/plain", new byte[5000]);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(record, PayloadCodecs.RECORD, 5,
+                                                               ErrorCorrectionLevel.L);
+    assertEquals(CompressionCodecs.DEFLATE, qrCodes.getCompressionCodec());
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertSameRecord(record, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(qrCodes)), PayloadCodecs.RECORD));
+  }
+
+  @Test(expected = ReceiveException.class)
+  public void testReceiveNotARecord() throws Exception {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(randomBytes(500), 5,
+                                                               ErrorCorrectionLevel.L);
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    receiver.decodeQRCodes(new FrameProvider(CompactHeaderTest.toFrames(qrCodes)),
+                           PayloadCodecs.RECORD);
+  }
+}
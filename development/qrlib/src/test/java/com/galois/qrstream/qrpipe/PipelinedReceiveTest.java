@@ -0,0 +1,203 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Sets;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class PipelinedReceiveTest {
+
+  private static final int DIMENSION = 350;
+
+  private static final int DECODERS = 4;
+
+  /* Time the looping frames are shown for, faster than they decode */
+  private static final long FRAME_MILLIS = 1;
+
+  /* Time after which the looping frames stop */
+  private static final long TIMEOUT_MILLIS = 60000;
+
+  /**
+   * Shows the frames of a stream over and over, as a transmitter does, a
+   * frame every {@link #FRAME_MILLIS}, until {@link #TIMEOUT_MILLIS}.
+   */
+  private static final class LoopingFrameProvider implements IImageProvider {
+    private final List<YuvImage> frames;
+    private final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    private int captured;
+
+    LoopingFrameProvider(List<YuvImage> frames) {
+      this.frames = frames;
+    }
+
+    @Override
+    public YuvImage captureFrameFromCamera() {
+      try {
+        Thread.sleep(FRAME_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return frames.get(captured++ % frames.size());
+    }
+
+    @Override
+    public boolean isRunning() {
+      return System.currentTimeMillis() < deadline;
+    }
+  }
+
+  /**
+   * Records the threads that report progress and how often the message
+   * was reported complete.
+   */
+  private static final class ThreadProgress implements IProgress {
+    final Set<Thread> threads = Sets.newConcurrentHashSet();
+    volatile int finalStates;
+
+    @Override
+    public void changeState(DecodeState state) {
+      threads.add(Thread.currentThread());
+      if (state.getState() == State.Final) {
+        finalStates++;
+      }
+    }
+
+    @Override
+    public void drawFinderPoints(float[] pts) {
+      threads.add(Thread.currentThread());
+    }
+  }
+
+  @Test
+  public void testQueueDropsOldest() throws InterruptedException {
+    FrameQueue<String> queue = new FrameQueue<String>(2);
+    assertNull(queue.offer("a"));
+    assertNull(queue.offer("b"));
+    assertEquals("a", queue.offer("c"));
+    assertEquals(1, queue.getDropped());
+    assertEquals("b", queue.take());
+    queue.close(false);
+    assertEquals("d", queue.offer("d"));
+    assertEquals("c", queue.take());
+    assertNull(queue.take());
+    assertEquals(2, queue.getDropped());
+  }
+
+  @Test
+  public void testQueueDiscardsOnClose() throws InterruptedException {
+    FrameQueue<String> queue = new FrameQueue<String>(3);
+    queue.offer("a");
+    queue.offer("b");
+    queue.close(true);
+    assertEquals(0, queue.size());
+    assertNull(queue.take());
+    assertEquals(2, queue.getDropped());
+  }
+
+  /**
+   * Frames captured faster than they decode are dropped, and the stream
+   * still arrives whole from the frames shown again.
+   */
+  @Test
+  public void testPipelinedReceive() throws Exception {
+    byte[] input = randomBytes(3000);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(input, 3, ErrorCorrectionLevel.L);
+    ThreadProgress progress = new ThreadProgress();
+    Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, progress, null,
+                                   SamplingPolicy.ALL_FRAMES, DECODERS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new LoopingFrameProvider(CompactHeaderTest.toFrames(qrCodes))));
+    assertEquals(1, progress.finalStates);
+    assertEquals(Sets.newHashSet(Thread.currentThread()), progress.threads);
+  }
+
+  @Test
+  public void testPipelinedArchive() throws Exception {
+    byte[] first = randomBytes(1500);
+    byte[] second = randomBytes(2500);
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    files.put("first.bin", first);
+    files.put("second.bin", second);
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Transmit.ImgCollection qrCodes =
+        transmitter.encodeArchiveQRCodes(files, 3, ErrorCorrectionLevel.L);
+    Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, RandomQRDecodeTest.NULL_PROGRESS,
+                                   null, SamplingPolicy.ALL_FRAMES, DECODERS);
+    final Set<String> received = Sets.newHashSet();
+    receiver.decodeArchiveQRCodes(
+        new LoopingFrameProvider(CompactHeaderTest.toFrames(qrCodes)),
+        new IArchiveListener() {
+          @Override
+          public void indexReceived(List<Archive.Entry> entries) {
+          }
+
+          @Override
+          public void entryReceived(Archive.Entry entry, byte[] contents) {
+            received.add(entry.getName());
+          }
+        });
+    assertEquals(files.keySet(), received);
+  }
+
+  @Test(expected = ReceiveException.class)
+  public void testPipelinedInvalidFrame() throws ReceiveException {
+    Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, RandomQRDecodeTest.NULL_PROGRESS,
+                                   null, SamplingPolicy.ALL_FRAMES, DECODERS);
+    receiver.decodeQRCodes(FrameProvider.INVALID_COLLECTION);
+  }
+
+  /**
+   * A stream that stops part way leaves the message incomplete, once the
+   * decoders have finished the frames captured, and reports the failure on
+   * the calling thread.
+   */
+  @Test
+  public void testPipelinedStopsWithFrames() throws Exception {
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION);
+    Transmit.ImgCollection qrCodes =
+        transmitter.encodeQRCodes(randomBytes(3000), 3, ErrorCorrectionLevel.L);
+    List<YuvImage> frames = CompactHeaderTest.toFrames(qrCodes);
+    ThreadProgress progress = new ThreadProgress();
+    Receive receiver = new Receive(DIMENSION, DIMENSION, 3000, progress, null,
+                                   SamplingPolicy.ALL_FRAMES, DECODERS);
+    byte[] received = receiver.decodeQRCodes(
+        new FrameProvider(frames.subList(0, frames.size() / 2)));
+    assertEquals(0, received.length);
+    assertEquals(0, progress.finalStates);
+    assertEquals(Sets.newHashSet(Thread.currentThread()), progress.threads);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoDecoders() {
+    new Receive(DIMENSION, DIMENSION, 3000, RandomQRDecodeTest.NULL_PROGRESS, null,
+                SamplingPolicy.ALL_FRAMES, 0);
+  }
+}
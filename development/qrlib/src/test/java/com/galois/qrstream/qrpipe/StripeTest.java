@@ -0,0 +1,159 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static com.galois.qrstream.qrpipe.TestUtils.randomBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.galois.qrstream.image.YuvImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class StripeTest {
+
+  private static final int DIMENSION = 350;
+
+  private static Transmit newTransmitter() {
+    return new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0), null, HeaderFormat.V2);
+  }
+
+  /**
+   * Returns frames that each show the next QR code of every stripe side by
+   * side, as a camera would see the screens of several transmitters.
+   */
+  private static List<YuvImage> sideBySide(List<Transmit.ImgCollection> stripes) {
+    List<Iterator<BitmapImage>> qrCodes = Lists.newArrayList();
+    for (Transmit.ImgCollection stripe : stripes) {
+      qrCodes.add(stripe.iterator());
+    }
+    List<YuvImage> frames = Lists.newArrayList();
+    while (qrCodes.get(0).hasNext()) {
+      BufferedImage frame = new BufferedImage(DIMENSION * stripes.size(), DIMENSION,
+                                              BufferedImage.TYPE_INT_RGB);
+      Graphics2D g = frame.createGraphics();
+      for (int i = 0; i < qrCodes.size(); i++) {
+        if (qrCodes.get(i).hasNext()) {
+          g.drawImage(UtilsTest.toBufferedImage(qrCodes.get(i).next()), DIMENSION * i, 0, null);
+        } else {
+          g.clearRect(DIMENSION * i, 0, DIMENSION, DIMENSION);
+        }
+      }
+      g.dispose();
+      frames.add(new YuvImage(YuvUtilities.toYUV(frame), frame.getWidth(), frame.getHeight()));
+    }
+    return frames;
+  }
+
+  @Test
+  public void testStripesPartitionChunks() throws Exception {
+    Transmit.ImgCollection qrCodes = newTransmitter().encodeQRCodes(randomBytes(4000), 3,
+                                                                    ErrorCorrectionLevel.L);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      BitSet seen = new BitSet();
+      int count = 3;
+      for (int index = 0; index < count; index++) {
+        Transmit.ImgCollection stripe = qrCodes.stripe(index, count);
+        List<BitmapImage> serial = Lists.newArrayList(stripe);
+        List<BitmapImage> parallel = Lists.newArrayList(stripe.withExecutor(executor));
+        assertEquals(stripe.size(), serial.size());
+        assertEquals(serial.size(), parallel.size());
+        for (int i = 0; i < serial.size(); i++) {
+          int chunkId = serial.get(i).getChunkId();
+          assertEquals(index, (chunkId - 1) % count);
+          assertEquals(chunkId, parallel.get(i).getChunkId());
+          seen.set(chunkId);
+        }
+      }
+      assertEquals(qrCodes.size(), seen.cardinality());
+      assertEquals(qrCodes.size(), seen.nextClearBit(1) - 1);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testMoreStripesThanChunks() throws Exception {
+    Transmit.ImgCollection qrCodes = newTransmitter().encodeQRCodes(randomBytes(10), 3,
+                                                                    ErrorCorrectionLevel.L);
+    assertEquals(1, qrCodes.stripe(0, 2).size());
+    assertEquals(0, qrCodes.stripe(1, 2).size());
+    assertTrue(qrCodes.stripe(1, 2).withManifest("a", null).isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStripeOutOfRange() throws Exception {
+    newTransmitter().encodeQRCodes(randomBytes(10), 3, ErrorCorrectionLevel.L).stripe(2, 2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSessionIdNeedsCompactHeader() throws Exception {
+    new Transmit(DIMENSION, DIMENSION).encodeQRCodes(randomBytes(10), 3, ErrorCorrectionLevel.L)
+        .withSessionId(1);
+  }
+
+  /**
+   * Two transmitters that each encode the data, with the same session id,
+   * complete the transfer in half the frames of one.
+   */
+  @Test
+  public void testReceiveSideBySide() throws Exception {
+    byte[] input = randomBytes(3000);
+    Transmit.ImgCollection first = newTransmitter().encodeQRCodes(input, 3,
+                                                                  ErrorCorrectionLevel.L);
+    Transmit.ImgCollection second = newTransmitter().encodeQRCodes(input, 3,
+                                                                   ErrorCorrectionLevel.L)
+        .withSessionId(first.getSessionId());
+    List<YuvImage> frames = sideBySide(Lists.newArrayList(first.stripe(0, 2),
+                                                          second.stripe(1, 2)));
+    assertEquals((first.size() + 1) / 2, frames.size());
+
+    Receive receiver = new Receive(DIMENSION, 2 * DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(new FrameProvider(frames)));
+  }
+
+  /**
+   * Stripes of different sessions do not mix.
+   */
+  @Test
+  public void testOtherSessionIgnored() throws Exception {
+    byte[] input = randomBytes(3000);
+    Transmit.ImgCollection first = newTransmitter().encodeQRCodes(input, 3,
+                                                                  ErrorCorrectionLevel.L);
+    Transmit.ImgCollection second = newTransmitter().encodeQRCodes(input, 3,
+                                                                   ErrorCorrectionLevel.L)
+        .withSessionId((first.getSessionId() + 1) % (CompactHeader.MAX_SESSION_ID + 1));
+    List<YuvImage> frames = sideBySide(Lists.newArrayList(first.stripe(0, 2),
+                                                          second.stripe(1, 2)));
+
+    Receive receiver = new Receive(DIMENSION, 2 * DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertEquals(0, receiver.decodeQRCodes(new FrameProvider(frames)).length);
+  }
+}
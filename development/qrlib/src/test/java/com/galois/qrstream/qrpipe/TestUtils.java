@@ -22,4 +22,18 @@ public class TestUtils {
   public static int nextNatural(Random r) {
     return Math.abs(r.nextInt());
   }
+
+  /**
+   * Returns {@code length} pseudo-random bytes, the same ones for the same
+   * length.
+   */
+  public static byte[] randomBytes(int length) {
+    return randomBytes(length, length);
+  }
+
+  public static byte[] randomBytes(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
 }
@@ -0,0 +1,122 @@
+/**
+ *    Copyright 2014 Galois, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.galois.qrstream.qrpipe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.galois.qrstream.image.BitmapImage;
+import com.google.common.collect.Lists;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+public class TiledTest {
+
+  private static final int DIMENSION = 400;
+
+  @Test
+  public void testTiledHeaderRoundTrip() {
+    byte[] data = { 1, 2, 3 };
+    byte[] prepended = CompactHeader.prependTiled(data, 9, 300, 3, 16, 1, 1, 0x123);
+    assertTrue(prepended.length - data.length <= CompactHeader.maxTiledSize(300, 1));
+
+    CompactHeader header = CompactHeader.parse(prepended);
+    assertNotNull(header);
+    assertFalse(header.isFountain());
+    assertNull(header.getParityCode());
+    assertEquals(9, header.getChunkId());
+    assertEquals(300, header.getTotalChunks());
+    assertEquals(3, header.getTileColumns());
+    assertEquals(16, header.getTileRows());
+    assertEquals(1, header.getCodecId());
+    assertEquals(0x123, header.getSessionId());
+
+    CompactHeader plain = CompactHeader.parse(CompactHeader.prepend(data, 9, 300, 1, 0x123));
+    assertEquals(1, plain.getTileColumns());
+    assertEquals(1, plain.getTileRows());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGridTooLarge() {
+    CompactHeader.prependTiled(new byte[1], 1, 1, 17, 1, 1, 0, 0);
+  }
+
+  @Test
+  public void testFrameLayout() throws TransmitException {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    TiledCollection frames =
+        transmitter.encodeTiledQRCodes(input, 5, ErrorCorrectionLevel.L, 3, 2);
+    assertEquals(3, frames.getColumns());
+    assertEquals(2, frames.getRows());
+    assertEquals((frames.getChunkCount() + 5) / 6, frames.size());
+
+    List<BitmapImage> images = Lists.newArrayList(frames);
+    assertEquals(frames.size(), images.size());
+    for (int i = 0; i < images.size(); i++) {
+      BitmapImage image = images.get(i);
+      assertEquals(DIMENSION, image.getWidth());
+      assertEquals(DIMENSION, image.getHeight());
+      assertEquals(i + 1, image.getChunkId());
+      assertEquals(frames.size(), image.getTotalChunks());
+    }
+  }
+
+  @Test(expected = TransmitException.class)
+  public void testGridMustFitImage() throws TransmitException {
+    new Transmit(DIMENSION, DIMENSION).encodeTiledQRCodes(new byte[10], 40,
+        ErrorCorrectionLevel.L, 4, 4);
+  }
+
+  /**
+   * Receive decodes every QR code of each frame, so it needs each frame
+   * only once.
+   */
+  @Test
+  public void testTransmitTiled() throws Exception {
+    byte[] input = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0));
+    TiledCollection frames =
+        transmitter.encodeTiledQRCodes(input, 5, ErrorCorrectionLevel.L, 2, 2);
+    assertTrue("Several frames: " + frames.size(), frames.size() > 2);
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(frames))));
+  }
+
+  @Test
+  public void testTransmitCompressed() throws Exception {
+    byte[] input = new byte[5000];
+    Transmit transmitter = new Transmit(DIMENSION, DIMENSION, MaskSelection.fixed(0),
+                                        CompressionCodecs.DEFLATE);
+    TiledCollection frames =
+        transmitter.encodeTiledQRCodes(input, 2, ErrorCorrectionLevel.M, 3, 1);
+    assertEquals(CompressionCodecs.DEFLATE, frames.getCompressionCodec());
+
+    Receive receiver = new Receive(DIMENSION, DIMENSION, RandomQRDecodeTest.NULL_PROGRESS);
+    assertArrayEquals(input, receiver.decodeQRCodes(
+        new FrameProvider(CompactHeaderTest.toFrames(frames))));
+  }
+}
@@ -19,16 +19,24 @@ package com.galois.qrstream.qrpipe;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 
@@ -38,6 +46,8 @@ import org.junit.Test;
 
 import com.galois.qrstream.image.BitmapImage;
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.google.zxing.DecodeHintType;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.LuminanceSource;
@@ -108,6 +118,191 @@ public class TransmitTest {
     assertEquals("Image dimensions are not square", true, image.getWidth() == image.getHeight() );
   }
 
+  /**
+   * Encoding chunks concurrently must produce the same QR codes,
+   * in the same order, as encoding them serially.
+   */
+  @Test
+  public void testParallelEncodingMatchesSerial() throws TransmitException {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Version qrVersion = Version.getVersionForNumber(5);
+    ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.M;
+
+    Transmit.ImgCollection serial = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      assertSameImages(serial, serial.withExecutor(executor, 3));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Encoding from a stream or channel must produce the same QR codes as
+   * encoding the same bytes held in memory.
+   */
+  @Test
+  public void testStreamingEncodingMatchesByteArray()
+      throws TransmitException, IOException {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    int density = 7;
+    ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.Q;
+    Collection<BitmapImage> expected = transmitter.encodeQRCodes(data, density, ecLevel);
+
+    Collection<BitmapImage> fromStream = transmitter.encodeQRCodes(
+        new ByteArrayInputStream(data), data.length, density, ecLevel);
+    assertSameImages(expected, fromStream);
+
+    File tmp = File.createTempFile("testStreamingEncoding", ".bin");
+    tmp.deleteOnExit();
+    Files.write(data, tmp);
+    RandomAccessFile file = new RandomAccessFile(tmp, "r");
+    try {
+      Collection<BitmapImage> fromChannel = transmitter.encodeQRCodes(
+          file.getChannel(), data.length, density, ecLevel);
+      // File channels can be read more than once.
+      assertSameImages(expected, fromChannel);
+      assertSameImages(expected, fromChannel);
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * A collection read from a stream can only be iterated once.
+   */
+  @Test(expected=IllegalStateException.class)
+  public void testStreamingEncodingIsSinglePass() throws TransmitException {
+    byte[] data = "Single pass".getBytes(Charsets.ISO_8859_1);
+    Collection<BitmapImage> qrCodes = transmitter.encodeQRCodes(
+        new ByteArrayInputStream(data), data.length, 1, ErrorCorrectionLevel.L);
+    qrCodes.iterator().next();
+    qrCodes.iterator();
+  }
+
+  /**
+   * Streams that end before their declared length cannot be encoded.
+   */
+  @Test(expected=IllegalStateException.class)
+  public void testStreamingEncodingTruncatedInput() throws TransmitException {
+    byte[] data = "Truncated".getBytes(Charsets.ISO_8859_1);
+    Collection<BitmapImage> qrCodes = transmitter.encodeQRCodes(
+        new ByteArrayInputStream(data), data.length + 1, 1, ErrorCorrectionLevel.L);
+    for (BitmapImage qrCode : qrCodes) {
+      assertNotNull(qrCode);
+    }
+  }
+
+  /**
+   * Chunk counts are exact for inputs larger than a float can count in
+   * bytes, and larger than an int can hold. The collection is sized
+   * without reading the input.
+   */
+  @Test
+  public void testChunkCountOfLargeInput() throws TransmitException {
+    Version qrVersion = Version.getVersionForNumber(40);
+    long chunkSize = transmitter.getPayloadMaxBytes(ErrorCorrectionLevel.L, qrVersion);
+    InputStream empty = new ByteArrayInputStream(new byte[0]);
+
+    long length = chunkSize * Utils.MAX_TOTAL_CHUNKS;
+    assertTrue("Longer than an int", length > Integer.MAX_VALUE);
+    assertEquals(Utils.MAX_TOTAL_CHUNKS,
+        transmitter.encodeQRCodes(empty, length, 40, ErrorCorrectionLevel.L).size());
+    assertEquals(5000001,
+        transmitter.encodeQRCodes(empty, chunkSize * 5000000 + 1, 40, ErrorCorrectionLevel.L)
+        .size());
+  }
+
+  @Test(expected=TransmitException.class)
+  public void testTooManyChunksForVersion1Header() throws TransmitException {
+    Version qrVersion = Version.getVersionForNumber(40);
+    long chunkSize = transmitter.getPayloadMaxBytes(ErrorCorrectionLevel.L, qrVersion);
+    transmitter.encodeQRCodes(new ByteArrayInputStream(new byte[0]),
+        chunkSize * Utils.MAX_TOTAL_CHUNKS + 1, 40, ErrorCorrectionLevel.L);
+  }
+
+  /**
+   * Random access to a chunk of a mapped file must yield the same QR code
+   * as iterating over the collection up to that chunk.
+   */
+  @Test
+  public void testEncodeChunkMatchesIteration() throws TransmitException, IOException {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    File tmp = File.createTempFile("testEncodeChunk", ".bin");
+    tmp.deleteOnExit();
+    Files.write(data, tmp);
+
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(tmp, 9, ErrorCorrectionLevel.L);
+    assertSameImages(transmitter.encodeQRCodes(data, 9, ErrorCorrectionLevel.L), qrCodes);
+
+    // Visit the chunks out of order to check that no state is shared.
+    int chunkId = qrCodes.size();
+    for (BitmapImage expected : Lists.reverse(Lists.newArrayList(qrCodes))) {
+      assertSameImage(expected, qrCodes.encodeChunk(chunkId));
+      chunkId--;
+    }
+  }
+
+  @Test(expected=IndexOutOfBoundsException.class)
+  public void testEncodeChunkOutOfRange() throws TransmitException {
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes("Random".getBytes());
+    qrCodes.encodeChunk(qrCodes.size() + 1);
+  }
+
+  /**
+   * QR codes stored one bit per module must have exactly the pixels that
+   * ZXing renders for the same chunk.
+   */
+  @Test
+  public void testModuleImagesMatchZXingRendering() throws TransmitException {
+    byte[] data = UtilsTest.getTextResourceAndCheckNotNull("random2kfile");
+    Version qrVersion = Version.getVersionForNumber(7);
+    ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.Q;
+
+    Transmit.ImgCollection qrCodes = transmitter.encodeQRCodes(data, qrVersion, ecLevel);
+    int chunkSize = (int) Math.ceil((float) data.length / qrCodes.size());
+    int chunkId = 0;
+    for (BitmapImage qrCode : qrCodes) {
+      chunkId++;
+      assertTrue("Expected one bit per module", qrCode.isModuleImage());
+      int start = (chunkId - 1) * chunkSize;
+      byte[] chunk = Arrays.copyOfRange(data, start, Math.min(data.length, start + chunkSize));
+      BitMatrix expected = transmitter.bytesToQRCode(
+          Utils.prependChunkId(chunk, chunkId, qrCodes.size()), ecLevel);
+      assertSameImage(BitmapImage.createBitmapImage(chunkId, qrCodes.size(), expected), qrCode);
+    }
+  }
+
+  /**
+   * Fails unless both collections hold the same QR codes in the same order.
+   */
+  protected static void assertSameImages(Collection<BitmapImage> expected,
+                                         Collection<BitmapImage> actual) {
+    assertEquals("Different number of QR codes", expected.size(), actual.size());
+    Iterator<BitmapImage> actualIter = actual.iterator();
+    for (BitmapImage e : expected) {
+      assertTrue("Too few QR codes", actualIter.hasNext());
+      assertSameImage(e, actualIter.next());
+    }
+    assertFalse("Too many QR codes", actualIter.hasNext());
+  }
+
+  /**
+   * Fails unless both images have the same label and the same pixels.
+   */
+  protected static void assertSameImage(BitmapImage expected, BitmapImage actual) {
+    assertEquals("QR codes are out of order", expected.toString(), actual.toString());
+    assertEquals("Image widths differ", expected.getWidth(), actual.getWidth());
+    assertEquals("Image heights differ", expected.getHeight(), actual.getHeight());
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        if (expected.get(x, y) != actual.get(x, y)) {
+          fail("QR codes differ at (" + x + "," + y + ") of " + expected);
+        }
+      }
+    }
+  }
+
   /**
    * Check that ZXing will round trip the input bytes when we send
    * the hint that resulting encoded image contains only a pure QR code.
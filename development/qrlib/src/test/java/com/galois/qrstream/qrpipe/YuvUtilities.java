@@ -61,4 +61,20 @@ public class YuvUtilities {
 
     return frame;
   }
+
+  /**
+   * Converts {@code bi}, of even width, to YUV with its chroma laid out as
+   * NV21, V and U interleaved, as Android camera previews are.
+   */
+  public static byte[] toNV21(BufferedImage bi) {
+    byte[] planar = toYUV(bi);
+    int size = bi.getWidth() * bi.getHeight();
+    int quarter = size / 4;
+    byte[] frame = planar.clone();
+    for (int i = 0; i < quarter; i++) {
+      frame[size + 2 * i] = planar[size + quarter + i];
+      frame[size + 2 * i + 1] = planar[size + i];
+    }
+    return frame;
+  }
 }